@@ -14,8 +14,6 @@
 
 package uk.co.inhealthcare.open.jsat.services;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -25,6 +23,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import uk.co.inhealthcare.open.itk.transform.TransformManager;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
 import uk.co.inhealthcare.open.jsat.AlertException;
 
 public class EmailSenderImpl implements EmailSender {
@@ -34,17 +34,12 @@ public class EmailSenderImpl implements EmailSender {
 	public final static String ERR_SENDING = "Error sending the alert by email";
 	public final static String ERR_BUILDING_CONTEXT = "Error building the business context";
 
-	/** The Constant DATE_FORMAT. */
-	private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-	
-	/** The Constant CAL. */
-	private static final Calendar CAL = Calendar.getInstance();
-	
 	private ProducerTemplate template ;
 	private String subject;
 	private String contentTransformer;
 	private String to;
 	private String from;
+	private ITKClock clock = ITKClock.getDefault();
 
 	public void setTemplate(ProducerTemplate template) {
 		this.template = template;
@@ -66,6 +61,10 @@ public class EmailSenderImpl implements EmailSender {
 		this.from = from;
 	}
 
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
+
 	public EmailSenderImpl(){
 		logger.debug("Starting EmailSender Processor.");
 	}
@@ -99,7 +98,7 @@ public class EmailSenderImpl implements EmailSender {
 		// Protect against illegal characters in the technicalContext (likely for HL7 messages/fragments) 
 		String techContextEnc = StringEscapeUtils.escapeXml(technicalContext);
 
-		String dateTime = DATE_FORMAT.format(CAL.getTime());
+		String dateTime = clock.format(TimestampFormat.DISPLAY);
 		String XML = "<Email>"+
 			  "<Headline>"+headline+"</Headline>"+
 			  "<Message>"+message+"</Message>"+
@@ -14,18 +14,17 @@
 
 package uk.co.inhealthcare.open.jsat.utils;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
+
 public class HL7Helper {
 
-	private final static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss");
-	
 	private static AtomicInteger messageSequence = new AtomicInteger();
 
 	public static String getCreationDate() {
-		return DATE_FORMAT.format(Calendar.getInstance().getTime());
+		return ITKClock.getDefault().format(TimestampFormat.HL7);
 	}
 	
 	public static String getMessageId() {
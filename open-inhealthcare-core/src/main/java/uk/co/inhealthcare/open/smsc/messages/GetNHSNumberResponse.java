@@ -13,19 +13,14 @@
 */
 package uk.co.inhealthcare.open.smsc.messages;
 
-import java.io.IOException;
-
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
-import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
 import uk.co.inhealthcare.open.itk.util.xml.XPaths;
 
 
@@ -90,22 +85,13 @@ public class GetNHSNumberResponse extends SMSPResponse {
 		String localIdentifier="";
 
 		try {
-			Document responseDoc = DomUtils.parse(response.getBusinessPayload());
+			Document responseDoc = response.getBusinessPayloadDocument();
 			responseCode = (String)XPaths.compileXPath(XP_RESPONSECODE)
 					.evaluate(responseDoc);
 			nhsNumber = (String)XPaths.compileXPath(XP_NHSNUMBER)
 					.evaluate(responseDoc);
 			localIdentifier = (String)XPaths.compileXPath(XP_LOCALID)
 					.evaluate(responseDoc);
-		} catch (SAXException e) {
-			logger.error("SAXException parsing GetNHSNumberResponse", e);
-			throw new ITKMessagingException("SAXException parsing GetNHSNumberResponse");
-		} catch (IOException e) {
-			logger.error("IOException parsing GetNHSNumberResponse", e);
-			throw new ITKMessagingException("IOException parsing GetNHSNumberResponse");
-		} catch (ParserConfigurationException e) {
-			logger.error("ParserConfigurationException parsing GetNHSNumberResponse", e);
-			throw new ITKMessagingException("ParserConfigurationException parsing GetNHSNumberResponse");
 		} catch (XPathExpressionException e) {
 			logger.error("XPathExpressionException parsing GetNHSNumberResponse", e);
 			throw new ITKMessagingException("XPathExpressionException parsing GetNHSNumberResponse");
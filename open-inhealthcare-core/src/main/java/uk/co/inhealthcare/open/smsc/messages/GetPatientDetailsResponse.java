@@ -56,6 +56,10 @@ public class GetPatientDetailsResponse extends SMSPResponse {
 	private final static String XP_PRACTICECODE = "/Response/PracticeCode";
 	private final static String XP_PRACTICENAME = "/Response/PracticeName";
 	private final static String XP_PRACTICECONTACTTELEPHONENUMBER = "/Response/PracticeContactTelephoneNumber";
+	private final static String XP_ADDRESS = "/Response/Address";
+	private final static String XP_TEMPORARYADDRESS = "/Response/TemporaryAddress";
+	private final static String XP_CORRESPONDENCEADDRESS = "/Response/CorrespondenceAddress";
+	private final static String XP_PRACTICEADDRESS = "/Response/PracticeAddress";
 
 	private Person person;
 	
@@ -86,7 +90,7 @@ public class GetPatientDetailsResponse extends SMSPResponse {
 		String canonicalMessage ="";
 		String tName = "xslt/smsc/FromGetPatientDetailsResponse.xslt";
 		try {
-			canonicalMessage = TransformManager.doTransform(tName, response.getBusinessPayload());
+			canonicalMessage = TransformManager.doTransformDocument(tName, response.getBusinessPayloadDocument());
 		} catch (Exception e) {
 			logger.error("Error creating GPD Response.",e);
 		}
@@ -112,49 +116,10 @@ public class GetPatientDetailsResponse extends SMSPResponse {
 			person.setPracticeName((String)XPaths.compileXPath(XP_PRACTICENAME).evaluate(responseDoc));
 			person.setPracticeContactTelephoneNumber((String)XPaths.compileXPath(XP_PRACTICECONTACTTELEPHONENUMBER).evaluate(responseDoc));
 			
-			Node address = (Node)XPaths.compileXPath("/Response/Address").evaluate(responseDoc, XPathConstants.NODE);
-			if (address!=null){
-				person.setAddress(new Address());
-				person.getAddress().setLine1((String)XPaths.compileXPath("/Response/Address/AddressLine1").evaluate(responseDoc));
-				person.getAddress().setLine2((String)XPaths.compileXPath("/Response/Address/AddressLine2").evaluate(responseDoc));
-				person.getAddress().setLine3((String)XPaths.compileXPath("/Response/Address/AddressLine3").evaluate(responseDoc));
-				person.getAddress().setLine4((String)XPaths.compileXPath("/Response/Address/AddressLine4").evaluate(responseDoc));
-				person.getAddress().setLine5((String)XPaths.compileXPath("/Response/Address/AddressLine5").evaluate(responseDoc));
-				person.getAddress().setPostcode((String)XPaths.compileXPath("/Response/Address/Postcode").evaluate(responseDoc));
-			}
-			
-			Node tAddress = (Node)XPaths.compileXPath("/Response/TemporaryAddress").evaluate(responseDoc, XPathConstants.NODE);
-			if (tAddress!=null){
-				person.setTemporaryAddress(new Address());
-				person.getTemporaryAddress().setLine1((String)XPaths.compileXPath("/Response/TemporaryAddress/AddressLine1").evaluate(responseDoc));
-				person.getTemporaryAddress().setLine2((String)XPaths.compileXPath("/Response/TemporaryAddress/AddressLine2").evaluate(responseDoc));
-				person.getTemporaryAddress().setLine3((String)XPaths.compileXPath("/Response/TemporaryAddress/AddressLine3").evaluate(responseDoc));
-				person.getTemporaryAddress().setLine4((String)XPaths.compileXPath("/Response/TemporaryAddress/AddressLine4").evaluate(responseDoc));
-				person.getTemporaryAddress().setLine5((String)XPaths.compileXPath("/Response/TemporaryAddress/AddressLine5").evaluate(responseDoc));
-				person.getTemporaryAddress().setPostcode((String)XPaths.compileXPath("/Response/TemporaryAddress/Postcode").evaluate(responseDoc));
-			}
-
-			Node cAddress = (Node)XPaths.compileXPath("/Response/CorrespondenceAddress").evaluate(responseDoc, XPathConstants.NODE);
-			if (cAddress!=null){
-				person.setCorrespondenceAddress(new Address());
-				person.getCorrespondenceAddress().setLine1((String)XPaths.compileXPath("/Response/CorrespondenceAddress/AddressLine1").evaluate(responseDoc));
-				person.getCorrespondenceAddress().setLine2((String)XPaths.compileXPath("/Response/CorrespondenceAddress/AddressLine2").evaluate(responseDoc));
-				person.getCorrespondenceAddress().setLine3((String)XPaths.compileXPath("/Response/CorrespondenceAddress/AddressLine3").evaluate(responseDoc));
-				person.getCorrespondenceAddress().setLine4((String)XPaths.compileXPath("/Response/CorrespondenceAddress/AddressLine4").evaluate(responseDoc));
-				person.getCorrespondenceAddress().setLine5((String)XPaths.compileXPath("/Response/CorrespondenceAddress/AddressLine5").evaluate(responseDoc));
-				person.getCorrespondenceAddress().setPostcode((String)XPaths.compileXPath("/Response/CorrespondenceAddress/Postcode").evaluate(responseDoc));
-			}
-			
-			Node pAddress = (Node)XPaths.compileXPath("/Response/PracticeAddress").evaluate(responseDoc, XPathConstants.NODE);
-			if (pAddress!=null){
-				person.setPracticeAddress(new Address());
-				person.getPracticeAddress().setLine1((String)XPaths.compileXPath("/Response/PracticeAddress/AddressLine1").evaluate(responseDoc));
-				person.getPracticeAddress().setLine2((String)XPaths.compileXPath("/Response/PracticeAddress/AddressLine2").evaluate(responseDoc));
-				person.getPracticeAddress().setLine3((String)XPaths.compileXPath("/Response/PracticeAddress/AddressLine3").evaluate(responseDoc));
-				person.getPracticeAddress().setLine4((String)XPaths.compileXPath("/Response/PracticeAddress/AddressLine4").evaluate(responseDoc));
-				person.getPracticeAddress().setLine5((String)XPaths.compileXPath("/Response/PracticeAddress/AddressLine5").evaluate(responseDoc));
-				person.getPracticeAddress().setPostcode((String)XPaths.compileXPath("/Response/PracticeAddress/Postcode").evaluate(responseDoc));
-			}
+			person.setAddress(extractAddress(responseDoc, XP_ADDRESS));
+			person.setTemporaryAddress(extractAddress(responseDoc, XP_TEMPORARYADDRESS));
+			person.setCorrespondenceAddress(extractAddress(responseDoc, XP_CORRESPONDENCEADDRESS));
+			person.setPracticeAddress(extractAddress(responseDoc, XP_PRACTICEADDRESS));
 
 		} catch (SAXException e) {
 			logger.error("SAXException parsing GetPatientDetailsResponse", e);
@@ -173,6 +138,29 @@ public class GetPatientDetailsResponse extends SMSPResponse {
 		logger.trace("ENDED: Parsing Response");
 	}
 
+	/**
+	 * Extracts an address from the canonical response.
+	 *
+	 * @param responseDoc the canonical response
+	 * @param xPath the x path of the address element
+	 * @return the address, or null if not present
+	 * @throws XPathExpressionException the x path expression exception
+	 */
+	private Address extractAddress(Document responseDoc, String xPath) throws XPathExpressionException {
+		Node addressNode = (Node)XPaths.compileXPath(xPath).evaluate(responseDoc, XPathConstants.NODE);
+		if (addressNode==null){
+			return null;
+		}
+		Address address = new Address();
+		address.setLine1((String)XPaths.compileXPath(xPath+"/AddressLine1").evaluate(responseDoc));
+		address.setLine2((String)XPaths.compileXPath(xPath+"/AddressLine2").evaluate(responseDoc));
+		address.setLine3((String)XPaths.compileXPath(xPath+"/AddressLine3").evaluate(responseDoc));
+		address.setLine4((String)XPaths.compileXPath(xPath+"/AddressLine4").evaluate(responseDoc));
+		address.setLine5((String)XPaths.compileXPath(xPath+"/AddressLine5").evaluate(responseDoc));
+		address.setPostcode((String)XPaths.compileXPath(xPath+"/Postcode").evaluate(responseDoc));
+		return address;
+	}
+
 	/**
 	 * Instantiates a new get nhs number response from a response code only - for error scenarios
 	 *
@@ -13,19 +13,14 @@
 */
 package uk.co.inhealthcare.open.smsc.messages;
 
-import java.io.IOException;
-
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
-import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
 import uk.co.inhealthcare.open.itk.util.xml.XPaths;
 
 
@@ -99,22 +94,13 @@ public class VerifyNHSNumberResponse extends SMSPResponse {
 		String nhsNumber="";
 		String responseCode="";
 		try {
-			Document responseDoc = DomUtils.parse(response.getBusinessPayload());
+			Document responseDoc = response.getBusinessPayloadDocument();
 			responseCode = (String)XPaths.compileXPath(XP_RESPONSECODE)
 					.evaluate(responseDoc);
 			verified = (String)XPaths.compileXPath(XP_VERIFIED)
 					.evaluate(responseDoc);
 			nhsNumber = (String)XPaths.compileXPath(XP_NHSNUMBER)
 					.evaluate(responseDoc);
-		} catch (SAXException e) {
-			logger.error("SAXException parsing VerifyNHSNumberResponse", e);
-			throw new ITKMessagingException("SAXException parsing VerifyNHSNumberResponse");
-		} catch (IOException e) {
-			logger.error("IOException parsing VerifyNHSNumberResponse", e);
-			throw new ITKMessagingException("IOException parsing VerifyNHSNumberResponse");
-		} catch (ParserConfigurationException e) {
-			logger.error("ParserConfigurationException parsing VerifyNHSNumberResponse", e);
-			throw new ITKMessagingException("ParserConfigurationException parsing VerifyNHSNumberResponse");
 		} catch (XPathExpressionException e) {
 			logger.error("XPathExpressionException parsing VerifyNHSNumberResponse", e);
 			throw new ITKMessagingException("XPathExpressionException parsing VerifyNHSNumberResponse");
@@ -13,13 +13,11 @@
 */
 package uk.co.inhealthcare.open.smsc.messages.logging;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.TimeZone;
-
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
 import uk.co.inhealthcare.open.smsc.canonical.DemographicUpdate;
 import uk.co.inhealthcare.open.smsc.messages.SMSPRequest;
 import uk.co.inhealthcare.open.smsc.messages.SMSPResponse;
@@ -35,18 +33,25 @@ public class DatabaseSMSCLoggingServiceImpl implements SMSCLoggingService {
 
 	// private final static Logger logger = LoggerFactory.getLogger(DatabaseSMSCLoggingServiceImpl.class);
 	
-	/** The Constant DATE_FORMAT. */
-	private static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS Z");
-	
     private SqlSessionFactory sqlSessionFactory;
+	private ITKClock clock = ITKClock.getDefault();
 	
     public DatabaseSMSCLoggingServiceImpl(){
         sqlSessionFactory = SMSCLoggingDBConnectionFactory.getSqlSessionFactory();
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
    }
+
+	/**
+	 * Sets the clock used to timestamp the log records.
+	 *
+	 * @param clock the new clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
+
 	public void logSMSPRequest(SMSPRequest request) throws LoggingException {
 		SMSPRequestLog log = new SMSPRequestLog();
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		log.setTimestamp(timestamp);
 		log.setConversationId(request.getConversationId());
 		log.setRequest(request.serialise());
@@ -56,7 +61,7 @@ public class DatabaseSMSCLoggingServiceImpl implements SMSCLoggingService {
 	@Override
 	public void logSMSPResponse(SMSPResponse response) throws LoggingException {
 		SMSPResponseLog log = new SMSPResponseLog();
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		log.setTimestamp(timestamp);
 		log.setConversationId(response.getConversationId());
 		log.setResponseCode(response.getResponseCode());
@@ -66,7 +71,7 @@ public class DatabaseSMSCLoggingServiceImpl implements SMSCLoggingService {
 
 	@Override
 	public void logSMSCProcessOutcome(String conversationId, String outcome) throws LoggingException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		SMSCOutcome outcomeDetails = new SMSCOutcome();
 		outcomeDetails.setConversationId(conversationId);
 		outcomeDetails.setOutcome(outcome);
@@ -76,7 +81,7 @@ public class DatabaseSMSCLoggingServiceImpl implements SMSCLoggingService {
 
 	@Override
 	public void logSMSCProcessInput(String conversationId, DemographicUpdate demoUpdate) throws LoggingException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		SMSCInput input = new SMSCInput();
 		input.setConversationId(conversationId);
 		input.setRequest(demoUpdate.toXml());
@@ -13,13 +13,11 @@
 */
 package uk.co.inhealthcare.open.smsc.messages.logging;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.TimeZone;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
 import uk.co.inhealthcare.open.smsc.canonical.DemographicUpdate;
 import uk.co.inhealthcare.open.smsc.messages.SMSPRequest;
 import uk.co.inhealthcare.open.smsc.messages.SMSPResponse;
@@ -35,18 +33,22 @@ public class SimpleSMSCLoggingServiceImpl implements SMSCLoggingService {
 
 	private final static Logger logger = LoggerFactory.getLogger(SimpleSMSCLoggingServiceImpl.class);
 	
-	/** The Constant DATE_FORMAT. */
-	private static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS Z");
-	
-    public SimpleSMSCLoggingServiceImpl(){
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-    
+	private ITKClock clock = ITKClock.getDefault();
+
+	/**
+	 * Sets the clock used to timestamp the log records.
+	 *
+	 * @param clock the new clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
+
 	public void logSMSPRequest(SMSPRequest request) throws LoggingException {
 		
 		logger.info("SMSP Logging using default SimpleSMSCLoggingServiceImpl. Consider implementing a database implementation");
 		
-		String logMessage = DATE_FORMAT.format(Calendar.getInstance().getTime()) + 
+		String logMessage = clock.format(TimestampFormat.AUDIT) + 
 							"[CONVID]"+request.getConversationId()+
 						    "[TYPE]"+request.getClass().getSimpleName()+
 						    "[REQUEST]"+request.serialise()+
@@ -59,7 +61,7 @@ public class SimpleSMSCLoggingServiceImpl implements SMSCLoggingService {
 		
 		logger.info("SMSP logging using default SimpleSMSCLoggingServiceImpl. Consider implementing a database implementation");
 		
-		String logMessage = DATE_FORMAT.format(Calendar.getInstance().getTime()) + 
+		String logMessage = clock.format(TimestampFormat.AUDIT) + 
 				"[CONVID]"+response.getConversationId()+
 			    "[TYPE]"+response.getClass().getSimpleName()+
 			    "[RSP:CODE]"+response.getResponseCode()+
@@ -72,7 +74,7 @@ public class SimpleSMSCLoggingServiceImpl implements SMSCLoggingService {
 		
 		logger.info("SMSP Logging using default SimpleSMSCLoggingServiceImpl. Consider implementing a database implementation");
 		
-		String logMessage = DATE_FORMAT.format(Calendar.getInstance().getTime()) + 
+		String logMessage = clock.format(TimestampFormat.AUDIT) + 
 							"[CONVID]"+conversationId+
 						    "[PROCESS]"+outcome+
 						    "";
@@ -85,7 +87,7 @@ public class SimpleSMSCLoggingServiceImpl implements SMSCLoggingService {
 		
 		logger.info("SMSP Logging using default SimpleSMSCLoggingServiceImpl. Consider implementing a database implementation");
 		
-		String logMessage = DATE_FORMAT.format(Calendar.getInstance().getTime()) + 
+		String logMessage = clock.format(TimestampFormat.AUDIT) + 
 							"[CONVID]"+conversationId+
 							"[DEMOUPDATE]"+demoUpdate.toXml()+
 						    "";
@@ -24,6 +24,10 @@ import org.slf4j.LoggerFactory;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.source.ITKAsyncMessageSender;
+import uk.co.inhealthcare.open.itk.source.ITKRetryPolicy;
+import uk.co.inhealthcare.open.itk.source.ITKRetryScheduler;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
 import uk.co.inhealthcare.open.jsat.ConfigurationException;
 import uk.co.inhealthcare.open.jsat.ValidationException;
 import uk.co.inhealthcare.open.jsat.operation.ITKBusinessOperation;
@@ -53,6 +57,7 @@ public abstract class SMSCBusinessOperation extends ITKBusinessOperation {
 	private final static Logger logger = LoggerFactory.getLogger(SMSCBusinessOperation.class);
 
 	public final static String SMSCLOGGER_NOT_CONFIGURED = "SMSC Logger not configured";
+	public final static String RETRY_SENDER_NOT_ASYNC = "Retries need an ITKAsyncMessageSender";
 	public final static String ERR_REQUEST_NOT_PROVIDED = "Request not provided";
 
 
@@ -70,10 +75,34 @@ public abstract class SMSCBusinessOperation extends ITKBusinessOperation {
 	public void setSmscLogger(SMSCLoggingService smscLogger) {
 		this.smscLogger = smscLogger;
 	}
+
+	protected ITKRetryScheduler retryScheduler = null;
+	/**
+	 * Sets the scheduler used to retry busy tones, timeouts and retryable errors.
+	 * If not set failures are not retried. The ITKMessageSender must then be an
+	 * ITKAsyncMessageSender, so that no thread is held while a retry is awaited.
+	 * 
+	 * @param retryScheduler
+	 */
+	public void setRetryScheduler(ITKRetryScheduler retryScheduler) {
+		this.retryScheduler = retryScheduler;
+	}
+
+	protected ITKRetryPolicy retryPolicy = null;
+	/**
+	 * Sets the retry policy. If not set it is read from service.properties
+	 * for the service id.
+	 * 
+	 * @param retryPolicy
+	 */
+	public void setRetryPolicy(ITKRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
 	
 	protected void checkSMSCConfiguration() throws ConfigurationException {
 		super.checkITKConfiguration();
 		if (smscLogger == null) raiseConfigurationException(SMSCLOGGER_NOT_CONFIGURED);
+		if (retryScheduler != null && !(itkMessageSender instanceof ITKAsyncMessageSender)) raiseConfigurationException(RETRY_SENDER_NOT_ASYNC);
 		
 	}
 
@@ -321,12 +350,12 @@ public abstract class SMSCBusinessOperation extends ITKBusinessOperation {
 		
 		// Send the message and handle the response
 		try {
-			ITKMessage resp = itkMessageSender.sendSync(itkRequest); 
+			ITKMessage resp = sendSync(request, itkRequest); 
 			response = marshallResponse(resp);
 			logger.trace("Received response from GetNHSNumber call:"+response.getResponseCode());
 			
 		} catch (ITKUnavailableException e) {
-			// A Busy Tone was received from the SMSP - just set response code to BUSY (aligns with Ensemble SMSC)
+			// A Busy Tone was received from the SMSP (on every attempt) - just set response code to BUSY (aligns with Ensemble SMSC)
 			logger.error("Busy Tone received sending ITK Message");
 			response = marshallResponse("BUSY", request.getConversationId());
 
@@ -344,6 +373,42 @@ public abstract class SMSCBusinessOperation extends ITKBusinessOperation {
 		return response;
 	}
 	
+	/**
+	 * Sends the message, retrying according to the retry policy if a scheduler is configured.
+	 * Each attempt is started with sendSyncAsync, so only this thread waits for the outcome.
+	 * Each retry sends a newly built message as the sender adds the envelope to the one it is given.
+	 */
+	private ITKMessage sendSync(final SMSPRequest request, final ITKMessage itkRequest) throws ITKMessagingException {
+		if (retryScheduler == null) {
+			return itkMessageSender.sendSync(itkRequest);
+		}
+		final ITKAsyncMessageSender sender = (ITKAsyncMessageSender) itkMessageSender;
+		return ITKRetryScheduler.await(retryScheduler.execute(getRetryPolicy(), request.getConversationId(), new ITKRetryScheduler.Attempt() {
+			@Override
+			public void start(int attempt, ITKSendCallback callback) throws ITKMessagingException {
+				if (attempt == 1) {
+					sender.sendSyncAsync(itkRequest, callback);
+					return;
+				}
+				ITKMessage retry = buildITKRequest(request);
+				try {
+					setPatientIdentities(request, retry);
+				} catch (ValidationException ve) {
+					// Already validated by the first attempt
+					throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, ve.getMessage());
+				}
+				sender.sendSyncAsync(retry, callback);
+			}
+		}), request.getConversationId());
+	}
+
+	private ITKRetryPolicy getRetryPolicy() {
+		if (retryPolicy == null) {
+			retryPolicy = ITKRetryPolicy.forService(serviceId);
+		}
+		return retryPolicy;
+	}
+
 	protected abstract void validate(SMSPRequest smspRequest) throws ValidationException ;
 	protected abstract void setPatientIdentities(SMSPRequest smspRequest, ITKMessage itkMessage) throws ValidationException ;
 	protected abstract SMSPResponse marshallResponse(ITKMessage response) throws ITKMessagingException ;
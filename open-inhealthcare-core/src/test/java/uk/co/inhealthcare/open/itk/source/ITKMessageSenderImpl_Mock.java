@@ -3,14 +3,16 @@ package uk.co.inhealthcare.open.itk.source;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Future;
 
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
 import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
-import uk.co.inhealthcare.open.itk.source.ITKMessageSender;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
 
-public class ITKMessageSenderImpl_Mock implements ITKMessageSender {
+public class ITKMessageSenderImpl_Mock implements ITKAsyncMessageSender {
 	
 	private String responseType;
 	public final static String BUSY = "BUSY";
@@ -20,15 +22,28 @@ public class ITKMessageSenderImpl_Mock implements ITKMessageSender {
 		this.responseType = responseType;
 	}
 	
+	private int busyCount = 0;
+	/**
+	 * Primes the sender to be busy for the first count calls, then give the primed response
+	 */
+	public void primeBusyCount(int busyCount) {
+		this.busyCount = busyCount;
+	}
+	
 	public ITKMessage parm_Request = null;
+	public int sendCount = 0;
 	@Override
 	public ITKMessage sendSync(ITKMessage request) throws ITKMessagingException {
 
 		this.parm_Request = request;
+		this.sendCount++;
 		
 		ITKMessage response = null;
 		
-		if (this.responseType==null){
+		if (this.busyCount > 0){
+			this.busyCount--;
+			throw new ITKUnavailableException("Primed to be busy");
+		} else if (this.responseType==null){
 			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Service not primed.");
 		} else if (this.responseType.equals(BUSY)){
 			throw new ITKUnavailableException("Primed to be busy");
@@ -49,6 +64,23 @@ public class ITKMessageSenderImpl_Mock implements ITKMessageSender {
 
 	}
 	
+	/**
+	 * Sends on the calling thread, then notifies the callback
+	 */
+	@Override
+	public Future<ITKMessage> sendSyncAsync(ITKMessage request, ITKSendCallback callback) throws ITKMessagingException {
+		SettableFuture<ITKMessage> future = new SettableFuture<ITKMessage>();
+		try {
+			ITKMessage response = sendSync(request);
+			future.set(response);
+			callback.completed(response);
+		} catch (ITKMessagingException me) {
+			future.setException(me);
+			callback.failed(me);
+		}
+		return future;
+	}
+	
 	@Override
 	public void send(ITKMessage request) throws ITKMessagingException {
 
@@ -14,7 +14,10 @@ import org.xml.sax.SAXException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKAddress;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKIdentity;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.source.ITKMessageSender;
 import uk.co.inhealthcare.open.itk.source.ITKMessageSenderImpl_Mock;
+import uk.co.inhealthcare.open.itk.source.ITKRetryPolicy;
+import uk.co.inhealthcare.open.itk.source.ITKRetryScheduler;
 import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
 import uk.co.inhealthcare.open.itk.util.xml.XPaths;
 import uk.co.inhealthcare.open.jsat.ConfigurationException;
@@ -86,6 +89,27 @@ public class VerifyNHSNumberOperationUnitTest extends TestCase {
 		}
 	}
 
+	public void testConfigRetryNeedsAsyncSender() throws ValidationException, LoggingException {
+		
+		VerifyNHSNumberOperation operation = getConfiguredOperation();
+		operation.setItkMessageSender(new ITKMessageSender() {
+			public ITKMessage sendSync(ITKMessage request) { return null; }
+			public void send(ITKMessage request) { }
+			public void sendAsync(ITKMessage request) { }
+		});
+		ITKRetryScheduler scheduler = new ITKRetryScheduler();
+		operation.setRetryScheduler(scheduler);
+
+		try {
+			operation.process(null);
+			fail("Should throw a ConfigurationException");
+		} catch (ConfigurationException e) {
+			assertTrue(e.getMessage().contains(VerifyNHSNumberOperation.RETRY_SENDER_NOT_ASYNC));
+		} finally {
+			scheduler.close();
+		}
+	}
+
 	public void testConfigMissingServiceProvider() throws ValidationException, LoggingException {
 		
 		VerifyNHSNumberOperation operation = getConfiguredOperation();
@@ -585,6 +609,71 @@ public class VerifyNHSNumberOperationUnitTest extends TestCase {
 		
 	}
 
+	// TEST - Retrying busy tones
+	public void testRetryBusy() throws ConfigurationException, LoggingException, ValidationException {
+		
+		VerifyNHSNumberOperation operation = getConfiguredOperation();
+		VerifyNHSNumberRequest request = getValidRequest();
+		ITKMessageSenderImpl_Mock sender = new ITKMessageSenderImpl_Mock();
+		sender.primeBusyCount(2);
+		sender.primeResponse("HappyDayVNNResponse.xml");
+		operation.setItkMessageSender(sender);
+		ITKRetryScheduler scheduler = new ITKRetryScheduler();
+		operation.setRetryScheduler(scheduler);
+		operation.setRetryPolicy(new ITKRetryPolicy(3, 10, 50, 2, 0.5));
+
+		try {
+			VerifyNHSNumberResponse response = operation.process(request);
+			assertTrue(response.getResponseCode().equals("SMSP-0000"));
+			assertEquals(3, sender.sendCount);
+			// The retry carries the patient identities too
+			assertTrue(sender.parm_Request.getMessageProperties().getPatientIdentities().size()==1);
+		} finally {
+			scheduler.close();
+		}
+	}
+	
+	public void testRetryBusyExhausted() throws ConfigurationException, LoggingException, ValidationException {
+		
+		VerifyNHSNumberOperation operation = getConfiguredOperation();
+		VerifyNHSNumberRequest request = getValidRequest();
+		ITKMessageSenderImpl_Mock sender = new ITKMessageSenderImpl_Mock();
+		sender.primeResponse(ITKMessageSenderImpl_Mock.BUSY);
+		operation.setItkMessageSender(sender);
+		ITKRetryScheduler scheduler = new ITKRetryScheduler();
+		operation.setRetryScheduler(scheduler);
+		operation.setRetryPolicy(new ITKRetryPolicy(3, 10, 50, 2, 0.5));
+
+		try {
+			VerifyNHSNumberResponse response = operation.process(request);
+			assertTrue(response.getResponseCode().equals("BUSY"));
+			assertEquals(3, sender.sendCount);
+		} finally {
+			scheduler.close();
+		}
+	}
+	
+	public void testNoRetryFail() throws ConfigurationException, LoggingException, ValidationException {
+		
+		VerifyNHSNumberOperation operation = getConfiguredOperation();
+		VerifyNHSNumberRequest request = getValidRequest();
+		ITKMessageSenderImpl_Mock sender = new ITKMessageSenderImpl_Mock();
+		sender.primeResponse(ITKMessageSenderImpl_Mock.FAIL);
+		operation.setItkMessageSender(sender);
+		ITKRetryScheduler scheduler = new ITKRetryScheduler();
+		operation.setRetryScheduler(scheduler);
+		operation.setRetryPolicy(new ITKRetryPolicy(3, 10, 50, 2, 0.5));
+
+		try {
+			VerifyNHSNumberResponse response = operation.process(request);
+			assertTrue(response.getResponseCode().equals("FAILED"));
+			// Not retryable
+			assertEquals(1, sender.sendCount);
+		} finally {
+			scheduler.close();
+		}
+	}
+
 	// TEST - Logging the SMSP Response
 	public void testLogResponse() throws ConfigurationException, LoggingException, ValidationException {
 		
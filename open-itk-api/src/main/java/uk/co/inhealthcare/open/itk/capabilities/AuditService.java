@@ -30,6 +30,7 @@ public interface AuditService {
 	public final static String SOAPREQUEST = "SOAPREQUEST";
 	public final static String SOAPRESPONSE = "SOAPRESPONSE";
 	public final static String FAILURE = "FAILURE";
+	public final static String CONVERSATION = "CONVERSATION";
 	
 	/**
 	 * 
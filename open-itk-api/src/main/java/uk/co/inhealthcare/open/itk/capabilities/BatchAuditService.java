@@ -0,0 +1,41 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.capabilities;
+
+import java.util.List;
+
+/**
+ * An {@link AuditService} which can write several audit records at once, so
+ * that they can share a single transaction.
+ *
+ * @author Nick Jones
+ *
+ */
+public interface BatchAuditService extends AuditService {
+
+	/**
+	 * 
+	 * Write a batch of audit records. The type and timestamp of each record
+	 * must already have been set, as they would be by the individual audit
+	 * operations. Records which are {@link ConversationAuditDetails} are
+	 * written as conversation audits, {@link SOAPAuditDetails} as SOAP audits
+	 * and all others as ITK audits.
+	 * 
+	 * @param auditDetails the records to write, in order
+	 * @throws AuditException if the batch could not be written, in which case
+	 * none of it should have been
+	 */
+	public void auditBatch(List<AuditDetails> auditDetails) throws AuditException;
+
+}
@@ -0,0 +1,82 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.capabilities;
+
+/**
+ * Interface representing a whole ITK conversation in a single audit record: the
+ * ITK request and response, the SOAP request and response, and when each of
+ * them happened. The inherited ITK details are those of the request and the
+ * status is the outcome of the conversation.
+ * 
+ * @author Nick Jones
+ *
+ */
+public interface ConversationAuditDetails extends ITKAuditDetails {
+
+	// ITK Response
+	public String getResponseTrackingId();
+	public String getResponsePayloadId();
+	public String getResponseProfileId();
+
+	// SOAP Request
+	public String getMessageId();
+	public String getCreationTime();
+	public String getTo();
+	public String getAction();
+	public String getUserId();
+
+	// SOAP Response
+	public String getResponseMessageId();
+	public String getSoapStatus();
+	public int getAttempts();
+
+	// Stage timestamps, null for a stage that did not happen
+	public String getItkRequestTime();
+	public String getSoapRequestTime();
+	public String getSoapResponseTime();
+	public String getItkResponseTime();
+
+	// Timings in milliseconds, null if either end is missing
+	public Long getSoapElapsed();
+	public Long getTotalElapsed();
+
+	// SETTERS
+	// ITK Response
+	public void setResponseTrackingId(String value);
+	public void setResponsePayloadId(String value);
+	public void setResponseProfileId(String value);
+
+	// SOAP Request
+	public void setMessageId(String value);
+	public void setCreationTime(String value);
+	public void setTo(String value);
+	public void setAction(String value);
+	public void setUserId(String value);
+
+	// SOAP Response
+	public void setResponseMessageId(String value);
+	public void setSoapStatus(String value);
+	public void setAttempts(int value);
+
+	// Stage timestamps
+	public void setItkRequestTime(String value);
+	public void setSoapRequestTime(String value);
+	public void setSoapResponseTime(String value);
+	public void setItkResponseTime(String value);
+
+	// Timings
+	public void setSoapElapsed(Long value);
+	public void setTotalElapsed(Long value);
+
+}
@@ -0,0 +1,34 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.capabilities;
+
+/**
+ * An {@link AuditService} which can also write a whole conversation as one audit
+ * record, rather than a record for each stage of it.
+ *
+ * @author Nick Jones
+ *
+ */
+public interface ConversationAuditService extends AuditService {
+
+	/**
+	 * 
+	 * Audit a completed, failed or abandoned conversation
+	 * 
+	 * @param auditDetails
+	 * @throws AuditException
+	 */
+	public void auditConversation(ConversationAuditDetails auditDetails) throws AuditException;
+
+}
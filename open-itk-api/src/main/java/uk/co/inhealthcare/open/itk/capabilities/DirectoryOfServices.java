@@ -13,6 +13,8 @@
 */
 package uk.co.inhealthcare.open.itk.capabilities;
 
+import java.util.List;
+
 import uk.co.inhealthcare.open.itk.infrastructure.ITKAddress;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.service.ITKService;
@@ -39,6 +41,17 @@ public interface DirectoryOfServices {
 	 */
 	public ITKTransportRoute resolveDestination(String serviceId, ITKAddress address) throws ITKMessagingException ;
 
+	/**
+	 * Resolve every <code>ITKTransportRoute</code> for the supplied <code>service</code>
+	 * and logical destination <code>address</code>, where more than one provider offers it. 
+	 * 
+	 * @param serviceId The serviceId representing the ITK service that is being requested
+	 * @param address The logical address of the destination
+	 * @return The routes in order of preference - the first is the one returned by
+	 * {@link #resolveDestination(String, ITKAddress)}
+	 */
+	public List<ITKTransportRoute> resolveDestinations(String serviceId, ITKAddress address) throws ITKMessagingException ;
+
 	/**
 	 * Get the <code>ITKService</code> for the supplied <code>serviceId</code>
 	 * 
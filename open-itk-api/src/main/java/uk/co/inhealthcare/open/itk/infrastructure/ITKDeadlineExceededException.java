@@ -0,0 +1,61 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.infrastructure;
+
+
+/**
+ * An exception to report that the deadline for a message passed before
+ * it could be sent, or before the next step of sending it. It says nothing
+ * about the destination, so circuit breakers do not count it against it.
+ * 
+ * @author Nick Jones
+ * 
+ */
+
+public class ITKDeadlineExceededException extends ITKTransportTimeoutException {
+
+	private static final long serialVersionUID = 5213096728135493172L;
+
+	/**
+	 * Creates an ITKDeadlineExceededException with any relevant diagnostic
+	 * information about the error - such as the likely cause
+	 * 
+	 * @param message The diagnostic message about the error condition
+	 */
+	public ITKDeadlineExceededException(String message) {
+		super(message);
+	}
+
+	/**
+	 * Creates an ITKDeadlineExceededException that wraps an underlying
+	 * <code>Throwable</code> which has been encountered when sending/responding to a message
+	 * 
+	 * @param cause The <code>Throwable</code> containing the root cause
+	 */
+	public ITKDeadlineExceededException(Throwable cause) {
+		super(cause);
+	}
+
+	/**
+	 * Creates an ITKDeadlineExceededException that wraps an underlying
+	 * <code>Throwable</code> which has been encountered when sending/responding to a message
+	 * 
+	 * @param message The diagnostic message about the error condition
+	 * @param cause The <code>Throwable</code> containing the root cause
+	 */
+	public ITKDeadlineExceededException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.infrastructure;
+
+
+/**
+ * An exception to report that the sender itself has no capacity for another
+ * message, such as when every connection to the destination is in use.
+ * The destination was never asked, so a circuit breaker leaves it out of
+ * the destination's failure count.
+ * 
+ * @author Nick Jones
+ * 
+ */
+
+public class ITKSaturatedException extends ITKUnavailableException {
+
+	private static final long serialVersionUID = -2841139637352305327L;
+
+	/**
+	 * Creates an ITKSaturatedException with any relevant diagnostic
+	 * information about the error - such as the likely cause
+	 * 
+	 * @param message The diagnostic message about the error condition
+	 */
+	public ITKSaturatedException(String message) {
+		super(message);
+	}
+
+	/**
+	 * Creates an ITKSaturatedException that wraps an underlying
+	 * <code>Throwable</code> which has been encountered when sending/responding to a message
+	 * 
+	 * @param cause The <code>Throwable</code> containing the root cause
+	 */
+	public ITKSaturatedException(Throwable cause) {
+		super(cause);
+	}
+
+	/**
+	 * Creates an ITKSaturatedException that wraps an underlying
+	 * <code>Throwable</code> which has been encountered when sending/responding to a message
+	 * 
+	 * @param message The diagnostic message about the error condition
+	 * @param cause The <code>Throwable</code> containing the root cause
+	 */
+	public ITKSaturatedException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -13,6 +13,11 @@
 */
 package uk.co.inhealthcare.open.itk.payload;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.w3c.dom.Document;
+
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
@@ -105,6 +110,33 @@ public interface ITKMessage {
 	 */
 	public String getBusinessPayload();
 	
+	/**
+	 * Sets the business payload as an already parsed document. This allows a payload
+	 * that has been parsed by one layer to be passed on to the next without being
+	 * serialised and re-parsed. The string form is derived from the document only
+	 * if {@link #getBusinessPayload()} is called.
+	 * 
+	 * @param businessPayloadDocument the parsed business payload
+	 */
+	public void setBusinessPayloadDocument(Document businessPayloadDocument);
+	
+	/**
+	 * Obtains the business payload as a parsed document. If the payload was supplied
+	 * as a string it is parsed on first use and the result retained.
+	 * 
+	 * @return the parsed business payload, or <code>null</code> if there is no payload
+	 * @throws ITKMessagingException if the payload is not well formed XML
+	 */
+	public Document getBusinessPayloadDocument() throws ITKMessagingException;
+	
+	/**
+	 * Indicates whether a parsed form of the business payload is already held,
+	 * i.e. whether {@link #getBusinessPayloadDocument()} can be called without parsing.
+	 * 
+	 * @return <code>true</code> if a parsed payload is held
+	 */
+	public boolean hasBusinessPayloadDocument();
+	
 	/**
 	 * Builds the full ITKMessage including any wrappers
 	 * 
@@ -113,8 +145,29 @@ public interface ITKMessage {
 	 */
 	public void buildFullMessage(String templateName) throws ITKMessagingException;
 
+	/**
+	 * Builds the full ITKMessage including any wrappers by writing them
+	 * directly, rather than by transforming with a template
+	 * 
+	 * @throws ITKMessagingException If there is an error serialising the
+	 * full ITKMessage
+	 */
+	public void buildFullMessage() throws ITKMessagingException;
+
 	public String getFullMessage() ;
 	
+	/**
+	 * Writes the full ITKMessage to the stream as UTF-8. Implementations
+	 * may write their wrappers directly to the stream rather than first
+	 * building the full message as a String
+	 * 
+	 * @param out the stream to write to
+	 * @throws IOException If the stream cannot be written to
+	 * @throws ITKMessagingException If the full ITKMessage has not been
+	 * built or cannot be serialised
+	 */
+	public void writeFullMessage(OutputStream out) throws IOException, ITKMessagingException;
+	
 	/**
 	 * Indicates whether this ITKMessage instance is
 	 * in response to a request message such as a query
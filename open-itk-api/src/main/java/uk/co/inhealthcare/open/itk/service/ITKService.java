@@ -69,4 +69,22 @@ public interface ITKService {
 	 * 
 	 */
 	public String getMimeType();
+	
+	/**
+	 * Determines whether the DistributionEnvelope for this service is written directly
+	 * rather than by transforming with the (possibly customised) envelope template.
+	 * 
+	 * @return <code>true</code> if the envelope should be written directly
+	 * 
+	 */
+	public boolean isStreamingEnvelope();
+
+	/**
+	 * Determines whether a request to this service only reads, so that the same request
+	 * may safely be sent to more than one provider.
+	 * 
+	 * @return <code>true</code> if the service is idempotent
+	 * 
+	 */
+	public boolean isIdempotent();
 }
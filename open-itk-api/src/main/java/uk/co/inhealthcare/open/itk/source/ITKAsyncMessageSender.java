@@ -0,0 +1,51 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.util.concurrent.Future;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+
+/**
+ * An {@link ITKMessageSender} which can carry out a synchronous conversation without
+ * blocking the application thread, so that many conversations may be in progress at once.
+ *
+ * @author Nick Jones
+ *
+ */
+public interface ITKAsyncMessageSender extends ITKMessageSender {
+
+	/**
+	 * Operation that starts sending a business payload to a destination service/system
+	 * which responds synchronously, and returns without waiting for the response.
+	 * The request and response are validated and audited as for {@link ITKMessageSender#sendSync(ITKMessage)}.
+	 *
+	 * @param request    This is the business payload being sent which
+	 * must include an appropriately populated {@link ITKMessageProperties}.
+	 *
+	 * @param callback An {@link ITKSendCallback} to notify on completion. May be <code>null</code>
+	 *
+	 * @return A <code>Future</code> for the business response, failing with the
+	 * <code>ITKMessagingException</code> sendSync would have thrown
+	 *
+	 * @exception ITKMessagingException If the addressing and message meta-data
+	 * properties are not populated, or if too many conversations are already waiting to
+	 * be sent. In either case nothing is sent and the callback is not called
+	 */
+	public Future<ITKMessage> sendSyncAsync(ITKMessage request, ITKSendCallback callback) throws ITKMessagingException;
+
+}
@@ -0,0 +1,47 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.util.List;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+
+/**
+ * An {@link ITKMessageSender} which can carry out many synchronous conversations
+ * at once, for work such as re-verifying a list of NHS numbers.
+ *
+ * @author Nick Jones
+ *
+ */
+public interface ITKBatchMessageSender extends ITKMessageSender {
+
+	/**
+	 * Operation that sends a number of business payloads to destination services/systems
+	 * which respond synchronously, and waits for all of the responses. Each request is
+	 * validated and audited as for {@link ITKMessageSender#sendSync(ITKMessage)}, and the
+	 * failure of one does not affect the others.
+	 *
+	 * @param requests The business payloads being sent, each of which
+	 * must include an appropriately populated {@link ITKMessageProperties}.
+	 *
+	 * @return One result for each request, in the same order as the requests
+	 *
+	 * @exception ITKMessagingException If the list of requests is missing, or the
+	 * wait for the responses is interrupted
+	 */
+	public List<ITKBatchResult> sendSyncBatch(List<ITKMessage> requests) throws ITKMessagingException;
+
+}
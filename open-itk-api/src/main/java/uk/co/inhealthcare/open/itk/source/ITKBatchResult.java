@@ -0,0 +1,81 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+
+/**
+ * The outcome of one request sent by {@link ITKBatchMessageSender#sendSyncBatch} -
+ * either the business response or the exception sendSync would have thrown.
+ *
+ * @author Nick Jones
+ *
+ */
+public class ITKBatchResult {
+
+	private final ITKMessage request;
+	private final ITKMessage response;
+	private final ITKMessagingException exception;
+
+	/**
+	 * Instantiates a new batch result.
+	 *
+	 * @param request the request
+	 * @param response the response, <code>null</code> if the request failed
+	 * @param exception the failure, <code>null</code> if the request succeeded
+	 */
+	public ITKBatchResult(ITKMessage request, ITKMessage response, ITKMessagingException exception) {
+		this.request = request;
+		this.response = response;
+		this.exception = exception;
+	}
+
+	/**
+	 * Gets the request.
+	 *
+	 * @return the request
+	 */
+	public ITKMessage getRequest() {
+		return request;
+	}
+
+	/**
+	 * Gets the business response.
+	 *
+	 * @return the response, <code>null</code> if the request failed
+	 */
+	public ITKMessage getResponse() {
+		return response;
+	}
+
+	/**
+	 * Gets the failure.
+	 *
+	 * @return the exception, <code>null</code> if the request succeeded
+	 */
+	public ITKMessagingException getException() {
+		return exception;
+	}
+
+	/**
+	 * Whether the request succeeded.
+	 *
+	 * @return true if there is a response
+	 */
+	public boolean isSuccess() {
+		return exception == null;
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import java.util.concurrent.Future;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+
+/**
+ * An {@link ITKSender} which can send a synchronous request without blocking the
+ * calling thread, so that the same request can be in flight to more than one destination.
+ * 
+ * @author Nick Jones
+ * 
+ */
+public interface ITKAsyncSender extends ITKSender {
+
+	/**
+	 * Operation that starts sending a synchronous request and returns without waiting
+	 * for the response. The response is processed as for
+	 * {@link ITKSender#sendSync(ITKTransportRoute, ITKMessage, ITKDeadline)}.
+	 * 
+	 * @param destination The {@link ITKTransportRoute} providing the transport invocation
+	 * path for this operation
+	 * 
+	 * @param request This is the ITK Wrapped message that is being sent.  
+	 * 
+	 * @param deadline The {@link ITKDeadline} for the conversation. If <code>null</code> the
+	 * deadline is taken from the time to live of the <code>destination</code>
+	 * 
+	 * @param callback An {@link ITKSendCallback} to notify on completion. May be <code>null</code>
+	 * 
+	 * @return A <code>Future</code> for the response, failing with the <code>ITKMessagingException</code>
+	 * sendSync would have thrown
+	 * 
+	 * @exception ITKMessagingException If the request is invalid or cannot be audited, in which
+	 * case nothing is sent and the callback is not called
+	 */
+	public Future<ITKMessage> sendSyncAsync(ITKTransportRoute destination, ITKMessage request,
+			ITKDeadline deadline, ITKSendCallback callback) throws ITKMessagingException;
+
+}
@@ -0,0 +1,57 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+
+/**
+ * An {@link ITKTransportSender} which can also send without blocking the calling
+ * thread, so that many messages can be in flight at once.
+ * 
+ * @author Nick Jones
+ * 
+ */
+public interface ITKAsyncTransportSender extends ITKTransportSender {
+
+	/**
+	 * Operation that starts sending a message over a physical transport and returns
+	 * immediately. The response is marshalled into an XML Document as for
+	 * {@link ITKTransportSender#transportSend(ITKMessage, ITKTransportRoute, Map, ITKDeadline)}.<br/><br/>
+	 * 
+	 * Nothing is thrown by this operation. Any failure, including the deadline having
+	 * already passed, is reported through the returned <code>Future</code> (as the cause of an
+	 * <code>ExecutionException</code>) and the <code>callback</code>.
+	 * 
+	 * @param message This is ITKMessage to be sent  
+	 * 
+	 * @param destination The {@link ITKTransportRoute} providing the transport invocation
+	 * path for this operation
+	 * 
+	 * @param transportProperties A set of properties required by the physical transport.
+	 * 
+	 * @param deadline The {@link ITKDeadline} for the conversation
+	 * 
+	 * @param callback An {@link ITKTransportCallback} to notify on completion. May be <code>null</code>
+	 * 
+	 * @return A <code>Future</code> for the response Document
+	 */
+	public Future<Document> transportSendAsync(ITKMessage message, ITKTransportRoute destination,
+			Map<String,String> transportProperties, ITKDeadline deadline, ITKTransportCallback callback);
+
+}
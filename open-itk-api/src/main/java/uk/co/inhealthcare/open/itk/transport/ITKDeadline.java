@@ -0,0 +1,115 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import java.util.concurrent.TimeUnit;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKDeadlineExceededException;
+
+/**
+ * The point in time by which a conversation must complete. A deadline is created
+ * when a message is first sent and passed down through the {@link ITKSender} and
+ * {@link ITKTransportSender}, so that each step only waits for whatever is left of
+ * the overall time budget.
+ *
+ * Deadlines are immutable and measured against a monotonic clock.
+ *
+ * @author Nick Jones
+ *
+ */
+public final class ITKDeadline {
+
+	private final long deadlineNanos;
+
+	private ITKDeadline(long deadlineNanos) {
+		this.deadlineNanos = deadlineNanos;
+	}
+
+	/**
+	 * Creates a deadline a number of milliseconds from now
+	 *
+	 * @param millis the time budget in milliseconds
+	 * @return the deadline
+	 */
+	public static ITKDeadline after(long millis) {
+		return new ITKDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * Creates a deadline from the time to live of a route - the same
+	 * time at which the message itself expires
+	 *
+	 * @param route the route
+	 * @return the deadline
+	 */
+	public static ITKDeadline forRoute(ITKTransportRoute route) {
+		return after(route.getTimeToLive() * 1000L);
+	}
+
+	/**
+	 * Obtains the time left before the deadline
+	 *
+	 * @return the remaining time in milliseconds, zero if the
+	 * deadline has passed
+	 */
+	public long remainingMillis() {
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+		return remaining > 0 ? remaining : 0;
+	}
+
+	/**
+	 * Checks whether the deadline has passed
+	 *
+	 * @return true if there is no time left
+	 */
+	public boolean isExpired() {
+		return remainingMillis() == 0;
+	}
+
+	/**
+	 * Obtains the timeout for a single blocking step, being the lesser of the
+	 * configured timeout and the time left before the deadline
+	 *
+	 * @param timeout the configured timeout in milliseconds, where zero means no limit
+	 * @return the timeout to use in milliseconds, never zero
+	 * @exception ITKDeadlineExceededException If the deadline has already passed
+	 */
+	public int timeout(int timeout) throws ITKDeadlineExceededException {
+		long remaining = remainingMillis();
+		if (remaining == 0) {
+			throw new ITKDeadlineExceededException("Deadline exceeded sending ITK Message");
+		}
+		if (timeout > 0 && timeout < remaining) {
+			return timeout;
+		}
+		return (int) Math.min(remaining, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Fails fast if the deadline has already passed
+	 *
+	 * @exception ITKDeadlineExceededException If the deadline has already passed
+	 */
+	public void check() throws ITKDeadlineExceededException {
+		if (isExpired()) {
+			throw new ITKDeadlineExceededException("Deadline exceeded sending ITK Message");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ITKDeadline [remaining=" + remainingMillis() + "ms]";
+	}
+
+}
@@ -0,0 +1,44 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+
+/**
+ * Interface to be notified when a synchronous request sent by an {@link ITKAsyncSender}
+ * completes. Exactly one of the methods is called, possibly on a thread belonging to
+ * the transport, so implementations should not block.
+ * 
+ * @author Nick Jones
+ * 
+ */
+public interface ITKSendCallback {
+
+	/**
+	 * Called when the response has been received and processed
+	 * 
+	 * @param response The response message
+	 */
+	public void completed(ITKMessage response);
+
+	/**
+	 * Called when the request failed
+	 * 
+	 * @param exception The exception that would have been thrown by
+	 * {@link ITKSender#sendSync(ITKTransportRoute, ITKMessage, ITKDeadline)}
+	 */
+	public void failed(ITKMessagingException exception);
+
+}
@@ -68,6 +68,23 @@ public interface ITKSender {
 	 */
 	public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException;
 	
+	/**
+	 * Operation that sends a message synchronously as {@link #sendSync(ITKTransportRoute, ITKMessage)}
+	 * but which must complete before a deadline.
+	 * 
+	 * @param destination The {@link ITKTransportRoute} providing the transport invocation
+	 * path for this operation
+	 * 
+	 * @param request This is the ITK Wrapped message that is being sent.  
+	 * 
+	 * @param deadline The {@link ITKDeadline} for the conversation. If <code>null</code> the
+	 * deadline is taken from the time to live of the <code>destination</code>
+	 * 
+	 * @exception ITKMessagingException As for {@link #sendSync(ITKTransportRoute, ITKMessage)}.
+	 * An ITKTransportTimeoutException is thrown if the deadline passes.
+	 */
+	public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline) throws ITKMessagingException;
+	
 	/**
 	 * Operation that allows a business payload and ITK wrappers (e.g. DistributionEnvelope)
 	 * to be sent asynchronously to the destination service/system via the transport specific
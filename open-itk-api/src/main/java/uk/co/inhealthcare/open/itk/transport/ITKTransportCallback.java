@@ -0,0 +1,47 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+
+/**
+ * Interface to be notified when a message sent by an {@link ITKAsyncTransportSender}
+ * completes. Exactly one of the methods is called, normally on a thread belonging to
+ * the transport, so implementations should not block. A message which fails before it
+ * could be sent is reported on the calling thread.
+ * 
+ * @author Nick Jones
+ * 
+ */
+public interface ITKTransportCallback {
+
+	/**
+	 * Called when the response has been received
+	 * 
+	 * @param response The response as an XML Document, or <code>null</code> if the
+	 * transport only acknowledged the message (HTTP 202)
+	 */
+	public void completed(Document response);
+
+	/**
+	 * Called when the message could not be sent or the response indicated an error
+	 * 
+	 * @param exception The exception that would have been thrown by
+	 * {@link ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, ITKTransportRoute, java.util.Map, ITKDeadline)}
+	 */
+	public void failed(ITKMessagingException exception);
+
+}
@@ -35,13 +35,28 @@ public interface ITKTransportRoute {
 	 */
 	public static final String HTTP_WS = "WS";
 
+	/**
+	 * Constant to indicate an HTTP SOAP/Web Service
+	 * ITKTransportRoute sent over pooled keep-alive
+	 * connections
+	 */
+	public static final String HTTP_WS_POOLED = "WSP";
+
+	/**
+	 * Constant to indicate an HTTP SOAP/Web Service
+	 * ITKTransportRoute sent as streams of a
+	 * multiplexed HTTP/2 connection
+	 */
+	public static final String HTTP_WS_H2 = "WSH2";
+
 	/**
 	 * Obtains the transport type for this
 	 * ITKTransportRoute instance
 	 * 
 	 * @return the transport type. Can be one of
 	 * 
-	 * {@link ITKTransportRoute#HTTP_WS} or {@link ITKTransportRoute#UNKNOWN}
+	 * {@link ITKTransportRoute#HTTP_WS}, {@link ITKTransportRoute#HTTP_WS_POOLED},
+	 * {@link ITKTransportRoute#HTTP_WS_H2} or {@link ITKTransportRoute#UNKNOWN}
 	 */
 	public String getTransportType();
 	
@@ -85,4 +100,28 @@ public interface ITKTransportRoute {
 	 * @return The transport timeout (in milliseconds)
 	 */
 	public int getTransportTimeout();
+
+	/**
+	 * Obtains the id of the directory channel this ITKTransportRoute
+	 * was resolved from, which carries its TLS settings
+	 * 
+	 * @return The channel id, or null if the route was not resolved from a channel
+	 */
+	public String getChannelId();
+
+	/**
+	 * Whether request bodies sent via this ITKTransportRoute
+	 * are gzip compressed
+	 * 
+	 * @return true if requests are compressed
+	 */
+	public boolean isCompressRequest();
+
+	/**
+	 * Whether gzip compressed responses are accepted from
+	 * this ITKTransportRoute
+	 * 
+	 * @return true if compressed responses are accepted
+	 */
+	public boolean isAcceptCompressed();
 }
@@ -48,4 +48,24 @@ public interface ITKTransportSender {
 	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map <String,String> transportProperties)
 			throws ITKMessagingException;
 	
+	/**
+	 * Operation that sends a message over a physical transport within the time left
+	 * before a deadline. Connect and read timeouts are the lesser of the transport
+	 * timeout of the destination and the time remaining.
+	 * 
+	 * @param message This is ITKMessage to be sent  
+
+	 * @param destination The {@link ITKTransportRoute} providing the transport invocation
+	 * path for this operation
+	 * 
+	 * @param transportProperties A set of properties required by the physical transport.
+	 * 
+	 * @param deadline The {@link ITKDeadline} for the conversation
+	 * 
+	 * @exception ITKMessagingException As for {@link #transportSend(ITKMessage, ITKTransportRoute, Map)}.
+	 * An ITKTransportTimeoutException is thrown without sending if the deadline has already passed.
+	 */
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map <String,String> transportProperties,
+			ITKDeadline deadline) throws ITKMessagingException;
+	
 }
@@ -0,0 +1,503 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.infrastructure;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.util.xml.DOMStreamReader;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+import uk.co.inhealthcare.open.itk.util.xml.XMLNamespaceContext;
+
+/**
+ * Reads an ITK DistributionEnvelope in a single forward pass using StAX.
+ * The header fields, manifest attributes and payload count are captured as
+ * the envelope is read, and only the first payload is materialised - either
+ * as serialised XML for an XML payload or as its text for a text payload.
+ *
+ * This provides the same values as ITKMessagePropertiesImpl.build and the
+ * XPaths ITK_FIRST_* expressions without building a DOM of the envelope.
+ * An envelope the transport has already parsed can be read through a
+ * DOMSource, in which case an XML payload is kept as a Document rather than
+ * being serialised.
+ *
+ * @author Nick Jones
+ */
+public class DistributionEnvelopeReader {
+
+	private static final String ITKNS = XMLNamespaceContext.ITKNAMESPACE;
+
+	private static final String DISTRIBUTION_ENVELOPE = "DistributionEnvelope";
+
+	// StAX factories are thread safe once configured
+	private static final XMLInputFactory inputFactory = createInputFactory();
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+	private String rootName;
+	private String rootNamespace;
+	private int payloadCount = 0;
+
+	private String service = "";
+	private String trackingId = "";
+	private String auditIdentityUri = "";
+	private String auditIdentityType = "";
+	private String fromAddressUri = "";
+	private String fromAddressType = "";
+	private String toAddressUri = "";
+	private String toAddressType = "";
+	private String profileId = "";
+	private String mimeType = "";
+	private String base64 = "";
+	private String businessAckHandlingSpecification = "";
+	private String payloadId = "";
+	private String payloadXML;
+	private Document payloadDocument;
+	private String payloadText = "";
+
+	// Set as each repeating element is found so only the first is used
+	private boolean haveAuditIdentity;
+	private boolean haveToAddress;
+	private boolean haveManifestItem;
+	private boolean haveBusinessAck;
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return xif;
+	}
+
+	private DistributionEnvelopeReader() {
+	}
+
+	/**
+	 * Reads the XML. If the root element is not a DistributionEnvelope
+	 * reading stops immediately and isDistributionEnvelope returns false.
+	 *
+	 * @param xml the xml
+	 * @return the distribution envelope reader
+	 * @throws XMLStreamException if the XML is not well formed
+	 */
+	public static DistributionEnvelopeReader read(String xml) throws XMLStreamException {
+		return read(new StreamSource(new StringReader(xml)));
+	}
+
+	/**
+	 * Reads the XML from a source. A DOMSource is read in place, so an
+	 * envelope already parsed by the transport is not serialised again.
+	 *
+	 * @param source the source
+	 * @return the distribution envelope reader
+	 * @throws XMLStreamException if the XML is not well formed
+	 */
+	public static DistributionEnvelopeReader read(Source source) throws XMLStreamException {
+		DistributionEnvelopeReader de = new DistributionEnvelopeReader();
+		XMLStreamReader reader;
+		if (source instanceof DOMSource) {
+			reader = new DOMStreamReader(((DOMSource) source).getNode());
+		} else {
+			reader = inputFactory.createXMLStreamReader(source);
+		}
+		try {
+			de.readEnvelope(reader);
+		} finally {
+			reader.close();
+		}
+		return de;
+	}
+
+	private void readEnvelope(XMLStreamReader reader) throws XMLStreamException {
+
+		reader.nextTag();
+		rootName = reader.getLocalName();
+		rootNamespace = reader.getNamespaceURI();
+		if (!isDistributionEnvelope()) {
+			return;
+		}
+
+		// Namespace declarations in scope, outermost first, so that a payload
+		// can be serialised on its own
+		Deque<Map<String, String>> scopes = new ArrayDeque<Map<String, String>>();
+		scopes.push(declarations(reader));
+
+		// Element path beneath the root - header, manifest, manifestitem etc.
+		List<String> path = new ArrayList<String>();
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String name = ITKNS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : null;
+				path.add(name);
+				scopes.push(declarations(reader));
+				if (isPath(path, "payloads", "payload")) {
+					readPayload(reader, scopes);
+					path.remove(path.size() - 1);
+					scopes.pop();
+				} else {
+					readHeaderElement(reader, path);
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (path.isEmpty()) {
+					break;
+				}
+				path.remove(path.size() - 1);
+				scopes.pop();
+			}
+		}
+	}
+
+	private void readHeaderElement(XMLStreamReader reader, List<String> path) {
+		if (isPath(path, "header")) {
+			service = attribute(reader, "service");
+			trackingId = attribute(reader, "trackingid");
+		} else if (isPath(path, "header", "auditIdentity", "id") && !haveAuditIdentity) {
+			haveAuditIdentity = true;
+			auditIdentityUri = attribute(reader, "uri");
+			auditIdentityType = attribute(reader, "type");
+		} else if (isPath(path, "header", "senderAddress")) {
+			fromAddressUri = attribute(reader, "uri");
+			fromAddressType = attribute(reader, "type");
+		} else if (isPath(path, "header", "addresslist", "address") && !haveToAddress) {
+			haveToAddress = true;
+			toAddressUri = attribute(reader, "uri");
+			toAddressType = attribute(reader, "type");
+		} else if (isPath(path, "header", "manifest", "manifestitem") && !haveManifestItem) {
+			haveManifestItem = true;
+			mimeType = attribute(reader, "mimetype");
+			base64 = attribute(reader, "base64");
+			profileId = attribute(reader, "profileid");
+		} else if (isPath(path, "header", "handlingSpecification", "spec") && !haveBusinessAck
+				&& ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY.equals(reader.getAttributeValue(null, "key"))) {
+			haveBusinessAck = true;
+			businessAckHandlingSpecification = attribute(reader, "value");
+		}
+	}
+
+	/**
+	 * Reads a payload element, leaving the reader on its end tag. Only the
+	 * first payload is kept; any others are skipped and just counted.
+	 */
+	private void readPayload(XMLStreamReader reader, Deque<Map<String, String>> scopes) throws XMLStreamException {
+		payloadCount++;
+		if (payloadCount > 1) {
+			skipElement(reader);
+			return;
+		}
+		payloadId = attribute(reader, "id");
+
+		boolean inFirstText = false;
+		boolean haveFirstText = false;
+		StringBuilder text = new StringBuilder();
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			switch (event) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (!haveFirstText) {
+					inFirstText = true;
+					text.append(reader.getText());
+				}
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				haveFirstText |= inFirstText;
+				if (payloadXML != null || payloadDocument != null) {
+					skipElement(reader);
+				} else if (reader instanceof DOMStreamReader) {
+					payloadDocument = copyNode((DOMStreamReader) reader);
+				} else {
+					payloadXML = copyElement(reader, scopes);
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				payloadText = text.toString();
+				return;
+			default:
+				haveFirstText |= inFirstText;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Copies the element the reader is positioned on into a Document of its
+	 * own, leaving the reader on its end tag.
+	 */
+	private static Document copyNode(DOMStreamReader reader) throws XMLStreamException {
+		try {
+			Document doc = DomUtils.createDocumentFromNode(reader.getCurrentNode());
+			skipElement(reader);
+			return doc;
+		} catch (ParserConfigurationException pce) {
+			throw new XMLStreamException("Unable to copy the payload", pce);
+		}
+	}
+
+	/**
+	 * Serialises the element the reader is positioned on, including any namespace
+	 * declarations inherited from the envelope, leaving the reader on its end tag.
+	 */
+	private static String copyElement(XMLStreamReader reader, Deque<Map<String, String>> scopes) throws XMLStreamException {
+		StringWriter sw = new StringWriter();
+		XMLStreamWriter writer = outputFactory.createXMLStreamWriter(sw);
+		writer.writeStartDocument("UTF-8", "1.0");
+
+		// In scope declarations, with inner declarations overriding outer ones
+		Map<String, String> inherited = new LinkedHashMap<String, String>();
+		Iterator<Map<String, String>> outerFirst = scopes.descendingIterator();
+		while (outerFirst.hasNext()) {
+			inherited.putAll(outerFirst.next());
+		}
+		Map<String, String> own = declarations(reader);
+		inherited.putAll(own);
+
+		int depth = 0;
+		do {
+			switch (reader.getEventType()) {
+			case XMLStreamConstants.START_ELEMENT:
+				writeStartElement(reader, writer);
+				if (depth == 0) {
+					writeDeclarations(writer, inherited);
+				} else {
+					writeDeclarations(writer, own);
+				}
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					String prefix = reader.getAttributePrefix(i);
+					String ns = reader.getAttributeNamespace(i);
+					if (ns == null || ns.isEmpty()) {
+						writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					} else {
+						writer.writeAttribute(prefix, ns, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					}
+				}
+				depth++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				writer.writeEndElement();
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.SPACE:
+				writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+				break;
+			case XMLStreamConstants.CDATA:
+				writer.writeCData(reader.getText());
+				break;
+			case XMLStreamConstants.COMMENT:
+				writer.writeComment(reader.getText());
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+				break;
+			default:
+				break;
+			}
+			if (depth == 0) {
+				break;
+			}
+			reader.next();
+			if (reader.getEventType() == XMLStreamConstants.START_ELEMENT) {
+				own = declarations(reader);
+			}
+		} while (true);
+
+		writer.writeEndDocument();
+		writer.close();
+		return sw.toString();
+	}
+
+	private static void writeStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+		String prefix = reader.getPrefix();
+		String ns = reader.getNamespaceURI();
+		if (ns == null) {
+			writer.writeStartElement(reader.getLocalName());
+		} else {
+			writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), ns);
+		}
+	}
+
+	private static void writeDeclarations(XMLStreamWriter writer, Map<String, String> declarations) throws XMLStreamException {
+		for (Map.Entry<String, String> decl : declarations.entrySet()) {
+			if (decl.getKey().isEmpty()) {
+				writer.writeDefaultNamespace(decl.getValue());
+			} else {
+				writer.writeNamespace(decl.getKey(), decl.getValue());
+			}
+		}
+	}
+
+	private static Map<String, String> declarations(XMLStreamReader reader) {
+		Map<String, String> decls = new LinkedHashMap<String, String>();
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String prefix = reader.getNamespacePrefix(i);
+			String uri = reader.getNamespaceURI(i);
+			decls.put(prefix == null ? "" : prefix, uri == null ? "" : uri);
+		}
+		return decls;
+	}
+
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static boolean isPath(List<String> path, String... names) {
+		if (path.size() != names.length) {
+			return false;
+		}
+		for (int i = 0; i < names.length; i++) {
+			if (!names[i].equals(path.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String attribute(XMLStreamReader reader, String name) {
+		String value = reader.getAttributeValue(null, name);
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Checks whether the root element was a DistributionEnvelope in the ITK namespace.
+	 *
+	 * @return true, if a distribution envelope
+	 */
+	public boolean isDistributionEnvelope() {
+		return DISTRIBUTION_ENVELOPE.equals(rootName) && ITKNS.equals(rootNamespace);
+	}
+
+	/**
+	 * Gets the local name of the root element.
+	 *
+	 * @return the root name
+	 */
+	public String getRootName() {
+		return rootName;
+	}
+
+	/**
+	 * Gets the number of payloads found.
+	 *
+	 * @return the payload count
+	 */
+	public int getPayloadCount() {
+		return payloadCount;
+	}
+
+	/**
+	 * Builds the message properties from the envelope header, as ITKMessagePropertiesImpl.build.
+	 *
+	 * @return the iTK message properties
+	 * @throws ITKMessagingException if the envelope does not contain exactly one payload
+	 */
+	public ITKMessageProperties getMessageProperties() throws ITKMessagingException {
+		ITKMessagePropertiesImpl itkMessageProperties = new ITKMessagePropertiesImpl();
+
+		// LIMITATION - Only supports a single payload
+		if (payloadCount != 1) {
+			throw new ITKMessagingException(itkMessageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "The ITK reference implementation currently only supports a single payload within a distribution envelope");
+		}
+
+		itkMessageProperties.setItkPayloadId(ITKMessagePropertiesImpl.toPayloadId(payloadId));
+		itkMessageProperties.setToAddress(ITKMessagePropertiesImpl.toAddress(toAddressUri, toAddressType));
+		itkMessageProperties.setFromAddress(ITKMessagePropertiesImpl.toAddress(fromAddressUri, fromAddressType));
+		itkMessageProperties.addAuditIdentity(ITKMessagePropertiesImpl.toIdentity(auditIdentityUri, auditIdentityType));
+
+		itkMessageProperties.setServiceId(service);
+		itkMessageProperties.setProfileId(profileId);
+		itkMessageProperties.setTrackingId(trackingId);
+		itkMessageProperties.addHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY, businessAckHandlingSpecification);
+
+		return itkMessageProperties;
+	}
+
+	/**
+	 * Gets the mime type of the first manifest item.
+	 *
+	 * @return the mime type, or an empty string
+	 */
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	/**
+	 * Checks whether the first manifest item is flagged as base64 encoded.
+	 *
+	 * @return true, if base64
+	 */
+	public boolean isBase64() {
+		return base64.equalsIgnoreCase("true");
+	}
+
+	/**
+	 * Gets the first element of the first payload, serialised as XML.
+	 *
+	 * @return the payload xml, or null if the payload has no element content
+	 * or the envelope was read from a DOMSource
+	 */
+	public String getPayloadXML() {
+		return payloadXML;
+	}
+
+	/**
+	 * Gets the first element of the first payload as a Document of its own,
+	 * when the envelope was read from a DOMSource.
+	 *
+	 * @return the payload document, or null if the payload has no element
+	 * content or the envelope was read as text
+	 */
+	public Document getPayloadDocument() {
+		return payloadDocument;
+	}
+
+	/**
+	 * Gets the first text node of the first payload.
+	 *
+	 * @return the payload text, or an empty string
+	 */
+	public String getPayloadText() {
+		return payloadText;
+	}
+
+}
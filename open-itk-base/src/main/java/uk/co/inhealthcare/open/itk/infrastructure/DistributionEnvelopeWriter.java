@@ -0,0 +1,205 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.infrastructure;
+
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.util.xml.StaxUtils;
+import uk.co.inhealthcare.open.itk.util.xml.XMLNamespaceContext;
+
+/**
+ * Writes an ITK DistributionEnvelope directly with StAX. The output matches
+ * ToDistributionEnvelope.xslt but avoids building the intermediate ITKMessage
+ * XML and parsing the business payload a second time to transform it.
+ *
+ * Services which need a customised envelope should continue to use the XSLT.
+ *
+ * @author Nick Jones
+ */
+public class DistributionEnvelopeWriter {
+
+	private final static Logger logger = LoggerFactory.getLogger(DistributionEnvelopeWriter.class);
+
+	private static final String ITKNS = XMLNamespaceContext.ITKNAMESPACE;
+	private static final String ITKPREFIX = XMLNamespaceContext.ITKNAMESPACE_DEFAULT_PREFIX;
+	private static final String XSINS = "http://www.w3.org/2001/XMLSchema-instance";
+	private static final String TEXT_PLAIN = "text/plain";
+	private static final String UUID_PREFIX = "uuid_";
+
+	private DistributionEnvelopeWriter() {
+	}
+
+	/**
+	 * Writes the DistributionEnvelope for the message to a String.
+	 *
+	 * @param message the message
+	 * @return the distribution envelope
+	 * @throws ITKMessagingException if the envelope cannot be written
+	 */
+	public static String toXML(ITKMessage message) throws ITKMessagingException {
+		StringWriter sw = new StringWriter();
+		write(message, sw);
+		return sw.toString();
+	}
+
+	/**
+	 * Writes the DistributionEnvelope for the message to a character stream.
+	 *
+	 * @param message the message
+	 * @param out the out
+	 * @throws ITKMessagingException if the envelope cannot be written
+	 */
+	public static void write(ITKMessage message, Writer out) throws ITKMessagingException {
+		try {
+			write(message, StaxUtils.getOutputFactory().createXMLStreamWriter(out));
+		} catch (XMLStreamException e) {
+			throw writeError(message, e);
+		}
+	}
+
+	/**
+	 * Writes the DistributionEnvelope for the message to a byte stream as UTF-8.
+	 *
+	 * @param message the message
+	 * @param out the out
+	 * @throws ITKMessagingException if the envelope cannot be written
+	 */
+	public static void write(ITKMessage message, OutputStream out) throws ITKMessagingException {
+		try {
+			write(message, StaxUtils.getOutputFactory().createXMLStreamWriter(out, "UTF-8"));
+		} catch (XMLStreamException e) {
+			throw writeError(message, e);
+		}
+	}
+
+	private static void write(ITKMessage message, XMLStreamWriter writer) throws XMLStreamException, ITKMessagingException {
+
+		ITKMessageProperties props = message.getMessageProperties();
+		if (props == null) {
+			String eMsg = "Message Properties not set";
+			logger.error(eMsg);
+			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+
+		writer.setPrefix(ITKPREFIX, ITKNS);
+		writer.writeStartElement(ITKPREFIX, "DistributionEnvelope", ITKNS);
+		writer.writeNamespace(ITKPREFIX, ITKNS);
+		writer.writeNamespace("xsi", XSINS);
+
+		writer.writeStartElement(ITKNS, "header");
+		StaxUtils.writeAttribute(writer, "service", props.getServiceId());
+		StaxUtils.writeAttribute(writer, "trackingid", props.getTrackingId());
+
+		// CONSTRAINT: this implementation only allows one "To" address
+		writer.writeStartElement(ITKNS, "addresslist");
+		writer.writeEmptyElement(ITKNS, "address");
+		ITKAddress toAddress = props.getToAddress();
+		if (toAddress != null) {
+			writeAddressAttributes(writer, toAddress);
+		} else {
+			writer.writeAttribute("uri", "");
+		}
+		writer.writeEndElement();
+
+		writer.writeStartElement(ITKNS, "auditIdentity");
+		if (props.getAuditIdentities() != null) {
+			for (ITKIdentity identity : props.getAuditIdentities()) {
+				writer.writeEmptyElement(ITKNS, "id");
+				StaxUtils.writeAttribute(writer, "type", identity.getType());
+				StaxUtils.writeAttribute(writer, "uri", identity.getURI());
+			}
+		}
+		writer.writeEndElement();
+
+		writer.writeStartElement(ITKNS, "manifest");
+		writer.writeAttribute("count", "1");
+		writer.writeEmptyElement(ITKNS, "manifestitem");
+		writer.writeAttribute("id", UUID_PREFIX + props.getItkPayloadId());
+		if (props.getProfileId() != null) {
+			writer.writeAttribute("profileid", props.getProfileId());
+		}
+		if (message.isBase64()) {
+			writer.writeAttribute("base64", "true");
+		}
+		StaxUtils.writeAttribute(writer, "mimetype", message.getMimeType());
+		writer.writeEndElement();
+
+		// From Address is optional
+		ITKAddress fromAddress = props.getFromAddress();
+		if (fromAddress != null) {
+			writer.writeEmptyElement(ITKNS, "senderAddress");
+			writeAddressAttributes(writer, fromAddress);
+		}
+
+		Map<String, String> handlingSpecs = props.getHandlingSpecifications();
+		if (handlingSpecs != null && !handlingSpecs.isEmpty()) {
+			writer.writeStartElement(ITKNS, "handlingSpecification");
+			for (Map.Entry<String, String> entry : handlingSpecs.entrySet()) {
+				writer.writeEmptyElement(ITKNS, "spec");
+				StaxUtils.writeAttribute(writer, "key", entry.getKey());
+				StaxUtils.writeAttribute(writer, "value", entry.getValue());
+			}
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+
+		writer.writeStartElement(ITKNS, "payloads");
+		writer.writeAttribute("count", "1");
+		writer.writeStartElement(ITKNS, "payload");
+		writer.writeAttribute("id", UUID_PREFIX + props.getItkPayloadId());
+		writePayload(message, writer);
+		writer.writeEndElement();
+		writer.writeEndElement();
+
+		writer.writeEndElement();
+		writer.flush();
+	}
+
+	private static void writeAddressAttributes(XMLStreamWriter writer, ITKAddress address) throws XMLStreamException {
+		// The default address type is implied so is not written
+		if (address.getType() != null && !address.getType().equals(ITKAddress.DEFAULT_ADDRESS_TYPE)) {
+			writer.writeAttribute("type", address.getType());
+		}
+		StaxUtils.writeAttribute(writer, "uri", address.getURI());
+	}
+
+	private static void writePayload(ITKMessage message, XMLStreamWriter writer) throws XMLStreamException {
+		String payload = message.getBusinessPayload();
+		if (payload == null || payload.isEmpty()) {
+			return;
+		}
+		if (message.isBase64() || TEXT_PLAIN.equalsIgnoreCase(message.getMimeType())) {
+			writer.writeCharacters(payload);
+		} else {
+			StaxUtils.copyContent(payload, writer);
+		}
+	}
+
+	private static ITKMessagingException writeError(ITKMessage message, XMLStreamException e) {
+		logger.error("Error writing Distribution Envelope", e);
+		return new ITKMessagingException(message.getMessageProperties(), ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE,
+				"Error writing Distribution Envelope");
+	}
+
+}
@@ -237,29 +237,10 @@ public class ITKMessagePropertiesImpl implements ITKMessageProperties {
 			String itkPayloadId = XPaths.ITK_FIRST_PAYLOAD_ID_XPATH.evaluate(distributionEnvelope);
 			String businessAckHandlingSpecification = XPaths.ITK_BUSINESS_ACK_HANDLING_SPECIFICATIONS_XPATH.evaluate(distributionEnvelope);
 			
-			if (itkPayloadId.toUpperCase().startsWith("UUID_")){
-				itkMessageProperties.setItkPayloadId(itkPayloadId.substring(5));
-			} else {
-				itkMessageProperties.setItkPayloadId(itkPayloadId);
-			}
-
-			if (itkToAddressType.length()==0){
-				itkMessageProperties.setToAddress(new ITKAddressImpl(itkToAddressUri));
-			} else {
-				itkMessageProperties.setToAddress(new ITKAddressImpl(itkToAddressUri,itkToAddressType));
-			}
-			
-			if (itkFromAddressType.length()==0){
-				itkMessageProperties.setFromAddress(new ITKAddressImpl(itkFromAddressUri));
-			} else {
-				itkMessageProperties.setFromAddress(new ITKAddressImpl(itkFromAddressUri,itkFromAddressType));
-			}
-			
-			if (itkAuditIdentityType.length()==0){
-				itkMessageProperties.addAuditIdentity(new ITKIdentityImpl(itkAuditIdentityURI));
-			} else {
-				itkMessageProperties.addAuditIdentity(new ITKIdentityImpl(itkAuditIdentityURI, itkAuditIdentityType));
-			}
+			itkMessageProperties.setItkPayloadId(toPayloadId(itkPayloadId));
+			itkMessageProperties.setToAddress(toAddress(itkToAddressUri, itkToAddressType));
+			itkMessageProperties.setFromAddress(toAddress(itkFromAddressUri, itkFromAddressType));
+			itkMessageProperties.addAuditIdentity(toIdentity(itkAuditIdentityURI, itkAuditIdentityType));
 			
 			itkMessageProperties.setServiceId(itkService);
 			itkMessageProperties.setProfileId(itkProfileId);
@@ -273,6 +254,48 @@ public class ITKMessagePropertiesImpl implements ITKMessageProperties {
 		}
 	}
 
+	/**
+	 * Strips any UUID_ prefix from a payload id read from a distribution envelope.
+	 *
+	 * @param itkPayloadId the payload id
+	 * @return the payload id without prefix
+	 */
+	static String toPayloadId(String itkPayloadId) {
+		if (itkPayloadId.toUpperCase().startsWith("UUID_")){
+			return itkPayloadId.substring(5);
+		}
+		return itkPayloadId;
+	}
+
+	/**
+	 * Builds an address read from a distribution envelope, using the default type if none was given.
+	 *
+	 * @param uri the uri
+	 * @param type the type
+	 * @return the address
+	 */
+	static ITKAddress toAddress(String uri, String type) {
+		if (type.length()==0){
+			return new ITKAddressImpl(uri);
+		}
+		return new ITKAddressImpl(uri, type);
+	}
+
+	/**
+	 * Builds an identity read from a distribution envelope, using the default type if none was given.
+	 *
+	 * @param uri the uri
+	 * @param type the type
+	 * @return the identity
+	 */
+	static ITKIdentity toIdentity(String uri, String type) {
+		if (type.length()==0){
+			return new ITKIdentityImpl(uri);
+		}
+		return new ITKIdentityImpl(uri, type);
+	}
+
+
 	@Override
 	public String getItkPayloadId() {
 		return itkPayloadId;
@@ -27,6 +27,8 @@ public class ITKServiceImpl implements ITKService {
     private boolean supportsAsync;
     private boolean base64;
     private String mimeType;
+    private boolean streamingEnvelope;
+    private boolean idempotent;
     
     /* (non-Javadoc)
      * @see uk.nhs.interoperability.service.ITKService#getMimeType()
@@ -44,6 +46,38 @@ public class ITKServiceImpl implements ITKService {
 		this.mimeType = mimeType;
 	}
 	
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.service.ITKService#isStreamingEnvelope()
+	 */
+	public boolean isStreamingEnvelope() {
+		return streamingEnvelope;
+	}
+
+	/**
+	 * Sets the streaming envelope.
+	 *
+	 * @param streamingEnvelope the new streaming envelope
+	 */
+	public void setStreamingEnvelope(boolean streamingEnvelope) {
+		this.streamingEnvelope = streamingEnvelope;
+	}
+	
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.service.ITKService#isIdempotent()
+	 */
+	public boolean isIdempotent() {
+		return idempotent;
+	}
+
+	/**
+	 * Sets the idempotent.
+	 *
+	 * @param idempotent the new idempotent
+	 */
+	public void setIdempotent(boolean idempotent) {
+		this.idempotent = idempotent;
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.service.ITKService#isBase64()
 	 */
@@ -13,16 +13,25 @@
 */
 package uk.co.inhealthcare.open.itk.payload;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.xml.parsers.ParserConfigurationException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
 
+import uk.co.inhealthcare.open.itk.infrastructure.DistributionEnvelopeWriter;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.transform.TransformManager;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
 
 /**
  * The Class SimpleMessage.
@@ -32,6 +41,7 @@ import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
 public class ITKSimpleMessageImpl implements ITKMessage {
 
 	private final static String DEFAULT_TEMPLATE = "ToDistributionEnvelope.xslt";
+	private final static Charset UTF8 = Charset.forName("UTF-8");
 	
 	private final static Logger logger = LoggerFactory.getLogger(ITKSimpleMessageImpl.class);
 
@@ -39,6 +49,7 @@ public class ITKSimpleMessageImpl implements ITKMessage {
 	protected ITKMessageProperties messageProperties;
 	protected ITKTransportProperties transportProperties;
 	protected String businessPayload;
+	protected Document businessPayloadDocument;
 	/** The Full ITK wrapped message. */
 	protected String fullMessage;
 	protected boolean isResponse;
@@ -57,19 +68,16 @@ public class ITKSimpleMessageImpl implements ITKMessage {
 		logger.trace("New ITKMessage created with conversationId provided:"+this.conversationId);
 	}
 
-	public void buildFullMessage(String templateName) throws ITKMessagingException {
+	public void buildFullMessage() throws ITKMessagingException {
 		
-		if ((this.messageProperties == null)) {
-			String eMsg = "Message Properties not set";
-			logger.error(eMsg);
-			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
-		}
+		checkMessageProperties();
+		this.fullMessage = DistributionEnvelopeWriter.toXML(this);
+		logger.trace("Distribution Envelope written directly");
+	}
+
+	public void buildFullMessage(String templateName) throws ITKMessagingException {
 		
-		if ((this.messageProperties.getServiceId() == null)) {
-			String eMsg =  "Service Id not set";
-			logger.error(eMsg);
-			throw new ITKMessagingException(this.messageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
-		}
+		checkMessageProperties();
 		
 		if ((templateName == null)||(templateName.isEmpty())) {
 			logger.warn("No template name provided - using default");
@@ -124,6 +132,21 @@ public class ITKSimpleMessageImpl implements ITKMessage {
 		this.fullMessage = TransformManager.doTransform(templateName, deXML);
 		
 	}
+
+	private void checkMessageProperties() throws ITKMessagingException {
+		
+		if ((this.messageProperties == null)) {
+			String eMsg = "Message Properties not set";
+			logger.error(eMsg);
+			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		
+		if ((this.messageProperties.getServiceId() == null)) {
+			String eMsg =  "Service Id not set";
+			logger.error(eMsg);
+			throw new ITKMessagingException(this.messageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+	}
 	public String getConversationId() {
 		return conversationId;
 	}
@@ -135,6 +158,19 @@ public class ITKSimpleMessageImpl implements ITKMessage {
 		return fullMessage;
 	}
 
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.payload.ITKMessage#writeFullMessage(java.io.OutputStream)
+	 */
+	public void writeFullMessage(OutputStream out) throws IOException, ITKMessagingException {
+		String message = getFullMessage();
+		if (message == null) {
+			String eMsg = "Full message has not been built";
+			logger.error(eMsg);
+			throw new ITKMessagingException(this.messageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		out.write(message.getBytes(UTF8));
+	}
+
 	public boolean isBase64() {
 		return isBase64;
 	}
@@ -155,6 +191,10 @@ public class ITKSimpleMessageImpl implements ITKMessage {
 	 * @see uk.nhs.interoperability.payload.ITKMessage#getBusinessPayload()
 	 */
 	public String getBusinessPayload() {
+		// Only serialise a parsed payload when the string form is actually needed
+		if (businessPayload == null && businessPayloadDocument != null) {
+			businessPayload = DomUtils.serialiseToXML(businessPayloadDocument);
+		}
 		return businessPayload;
 	}
 	
@@ -163,6 +203,43 @@ public class ITKSimpleMessageImpl implements ITKMessage {
 	 */
 	public void setBusinessPayload(String businessPayload) {
 		this.businessPayload = businessPayload;
+		this.businessPayloadDocument = null;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.payload.ITKMessage#setBusinessPayloadDocument(org.w3c.dom.Document)
+	 */
+	public void setBusinessPayloadDocument(Document businessPayloadDocument) {
+		this.businessPayloadDocument = businessPayloadDocument;
+		this.businessPayload = null;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.payload.ITKMessage#getBusinessPayloadDocument()
+	 */
+	public Document getBusinessPayloadDocument() throws ITKMessagingException {
+		if (businessPayloadDocument == null && businessPayload != null && !businessPayload.isEmpty()) {
+			try {
+				businessPayloadDocument = DomUtils.parse(businessPayload);
+			} catch (SAXException e) {
+				logger.error("Error parsing business payload", e);
+				throw new ITKMessagingException(messageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Business payload is not well formed XML");
+			} catch (IOException e) {
+				logger.error("Error parsing business payload", e);
+				throw new ITKMessagingException(messageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "IOException parsing business payload");
+			} catch (ParserConfigurationException e) {
+				logger.error("Error parsing business payload", e);
+				throw new ITKMessagingException(messageProperties, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Parser configuration error parsing business payload");
+			}
+		}
+		return businessPayloadDocument;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.payload.ITKMessage#hasBusinessPayloadDocument()
+	 */
+	public boolean hasBusinessPayloadDocument() {
+		return businessPayloadDocument != null;
 	}
 	
 
@@ -0,0 +1,176 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.service;
+
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditDetails;
+
+public class ConversationAuditDetailsImpl extends ITKAuditDetailsImpl 
+								 implements ConversationAuditDetails {
+
+	private String responseTrackingId;
+	private String responsePayloadId;
+	private String responseProfileId;
+	private String messageId;
+	private String creationTime;
+	private String to;
+	private String action;
+	private String userId;
+	private String responseMessageId;
+	private String soapStatus;
+	private int attempts;
+	private String itkRequestTime;
+	private String soapRequestTime;
+	private String soapResponseTime;
+	private String itkResponseTime;
+	private Long soapElapsed;
+	private Long totalElapsed;
+	
+	@Override
+	public String getResponseTrackingId() {
+		return responseTrackingId;
+	}
+	@Override
+	public String getResponsePayloadId() {
+		return responsePayloadId;
+	}
+	@Override
+	public String getResponseProfileId() {
+		return responseProfileId;
+	}
+	@Override
+	public String getMessageId() {
+		return messageId;
+	}
+	@Override
+	public String getCreationTime() {
+		return creationTime;
+	}
+	@Override
+	public String getTo() {
+		return to;
+	}
+	@Override
+	public String getAction() {
+		return action;
+	}
+	@Override
+	public String getUserId() {
+		return userId;
+	}
+	@Override
+	public String getResponseMessageId() {
+		return responseMessageId;
+	}
+	@Override
+	public String getSoapStatus() {
+		return soapStatus;
+	}
+	@Override
+	public int getAttempts() {
+		return attempts;
+	}
+	@Override
+	public String getItkRequestTime() {
+		return itkRequestTime;
+	}
+	@Override
+	public String getSoapRequestTime() {
+		return soapRequestTime;
+	}
+	@Override
+	public String getSoapResponseTime() {
+		return soapResponseTime;
+	}
+	@Override
+	public String getItkResponseTime() {
+		return itkResponseTime;
+	}
+	@Override
+	public Long getSoapElapsed() {
+		return soapElapsed;
+	}
+	@Override
+	public Long getTotalElapsed() {
+		return totalElapsed;
+	}
+	@Override
+	public void setResponseTrackingId(String responseTrackingId) {
+		this.responseTrackingId = responseTrackingId;
+	}
+	@Override
+	public void setResponsePayloadId(String responsePayloadId) {
+		this.responsePayloadId = responsePayloadId;
+	}
+	@Override
+	public void setResponseProfileId(String responseProfileId) {
+		this.responseProfileId = responseProfileId;
+	}
+	@Override
+	public void setMessageId(String messageId) {
+		this.messageId = messageId;
+	}
+	@Override
+	public void setCreationTime(String creationTime) {
+		this.creationTime = creationTime;
+	}
+	@Override
+	public void setTo(String to) {
+		this.to = to;
+	}
+	@Override
+	public void setAction(String action) {
+		this.action = action;
+	}
+	@Override
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+	@Override
+	public void setResponseMessageId(String responseMessageId) {
+		this.responseMessageId = responseMessageId;
+	}
+	@Override
+	public void setSoapStatus(String soapStatus) {
+		this.soapStatus = soapStatus;
+	}
+	@Override
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+	@Override
+	public void setItkRequestTime(String itkRequestTime) {
+		this.itkRequestTime = itkRequestTime;
+	}
+	@Override
+	public void setSoapRequestTime(String soapRequestTime) {
+		this.soapRequestTime = soapRequestTime;
+	}
+	@Override
+	public void setSoapResponseTime(String soapResponseTime) {
+		this.soapResponseTime = soapResponseTime;
+	}
+	@Override
+	public void setItkResponseTime(String itkResponseTime) {
+		this.itkResponseTime = itkResponseTime;
+	}
+	@Override
+	public void setSoapElapsed(Long soapElapsed) {
+		this.soapElapsed = soapElapsed;
+	}
+	@Override
+	public void setTotalElapsed(Long totalElapsed) {
+		this.totalElapsed = totalElapsed;
+	}
+
+}
@@ -0,0 +1,756 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.capabilities.AuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.AuditException;
+import uk.co.inhealthcare.open.itk.capabilities.AuditService;
+import uk.co.inhealthcare.open.itk.capabilities.BatchAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.ITKRingBuffer;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
+
+/**
+ * The Class ITKBufferedAuditImpl.
+ * An AuditService which takes audit records off the messaging thread. Each record is
+ * typed and timestamped when it is audited and put in a bounded ring buffer, and a
+ * single writer thread passes them on to the underlying AuditService in batches.
+ * Records that arrive while a batch is being written make up the next batch, so a
+ * busy system gets bigger batches rather than more transactions. Records given to
+ * auditBatch keep the type and timestamp they already have.
+ * <p>
+ * If the underlying service is a {@link BatchAuditService} each batch is written with
+ * one call, and so one commit. Otherwise the records are audited one at a time, and
+ * will be timestamped again by the underlying service. Conversation records can only be
+ * written to an underlying {@link ConversationAuditService}.
+ * <p>
+ * When the buffer is full the caller either waits for room ({@link #OVERFLOW_BLOCK}) or
+ * the record is appended to a local spill file ({@link #OVERFLOW_SPILL}). If a spill file
+ * is configured, batches the underlying service fails to write are spilled as well.
+ * Spilled records are written again when the writer is idle, on start and on close.
+ *
+ * @author Nick Jones
+ */
+public class ITKBufferedAuditImpl implements ConversationAuditService, BatchAuditService {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKBufferedAuditImpl.class);
+
+	public final static String OVERFLOW_BLOCK = "BLOCK";
+	public final static String OVERFLOW_SPILL = "SPILL";
+
+	private final static byte ITK_RECORD = 'I';
+	private final static byte SOAP_RECORD = 'S';
+	private final static byte CONVERSATION_RECORD = 'C';
+
+	private AuditService auditService;
+
+	/**
+	 * Sets the AuditService the records are written to.
+	 *
+	 * @param auditService the underlying audit service
+	 */
+	public void setAuditService(AuditService auditService) {
+		this.auditService = auditService;
+	}
+
+	private int bufferSize = 8192;
+
+	/**
+	 * Sets the number of records which may be waiting to be written, rounded up to a power of two.
+	 *
+	 * @param bufferSize the buffer size
+	 */
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	private int batchSize = 500;
+
+	/**
+	 * Sets the most records written in one batch.
+	 *
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	private long flushInterval = 1000;
+
+	/**
+	 * Sets the longest time in milliseconds the writer sleeps when there is nothing to write.
+	 * The writer is woken as soon as a record arrives, so this only bounds how long a record
+	 * can wait if that wake up is missed.
+	 *
+	 * @param flushInterval the flush interval
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	private String overflowPolicy = OVERFLOW_BLOCK;
+
+	/**
+	 * Sets what happens to a record when the buffer is full, either
+	 * {@link #OVERFLOW_BLOCK} or {@link #OVERFLOW_SPILL}.
+	 *
+	 * @param overflowPolicy the overflow policy
+	 */
+	public void setOverflowPolicy(String overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	private String spillFile;
+
+	/**
+	 * Sets the local file records are spilled to. Required for {@link #OVERFLOW_SPILL}.
+	 *
+	 * @param spillFile the spill file path
+	 */
+	public void setSpillFile(String spillFile) {
+		this.spillFile = spillFile;
+	}
+
+	private long spillReplayInterval = 30000;
+
+	/**
+	 * Sets how often in milliseconds an idle writer tries to write spilled records again.
+	 *
+	 * @param spillReplayInterval the spill replay interval
+	 */
+	public void setSpillReplayInterval(long spillReplayInterval) {
+		this.spillReplayInterval = spillReplayInterval;
+	}
+
+	private ITKClock clock = ITKClock.getDefault();
+
+	/**
+	 * Sets the clock used to timestamp the audit records.
+	 *
+	 * @param clock the new clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
+
+	// Published by start, so that auditing only takes the lock before the first start
+	private volatile ITKRingBuffer<AuditDetails> buffer;
+	private Thread writer;
+	private volatile boolean writerIdle = false;
+	private volatile boolean closed = false;
+
+	private final Object spillLock = new Object();
+	private DataOutputStream spillStream;
+	private final AtomicLong spilledCount = new AtomicLong();
+	private long nextReplay = 0;
+
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong overflowCount = new AtomicLong();
+	private final AtomicLong lostCount = new AtomicLong();
+
+	@Override
+	public void auditITKRequest(ITKAuditDetails auditDetails) throws AuditException {
+		enqueue(ITKREQUEST, auditDetails);
+	}
+
+	@Override
+	public void auditITKResponse(ITKAuditDetails auditDetails) throws AuditException {
+		enqueue(ITKRESPONSE, auditDetails);
+	}
+
+	@Override
+	public void auditSOAPRequest(SOAPAuditDetails auditDetails) throws AuditException {
+		enqueue(SOAPREQUEST, auditDetails);
+	}
+
+	@Override
+	public void auditSOAPResponse(SOAPAuditDetails auditDetails) throws AuditException {
+		enqueue(SOAPRESPONSE, auditDetails);
+	}
+
+	@Override
+	public void auditFailure(ITKAuditDetails auditDetails) throws AuditException {
+		enqueue(FAILURE, auditDetails);
+	}
+
+	@Override
+	public void auditConversation(ConversationAuditDetails auditDetails) throws AuditException {
+		enqueue(CONVERSATION, auditDetails);
+	}
+
+	/**
+	 * Buffers records which have already been typed and timestamped, such as those an
+	 * ITKConversationAuditImpl holds until its conversation is over, keeping the time of
+	 * each stage. The records are queued one by one, so a failure may leave some of
+	 * them queued.
+	 */
+	@Override
+	public void auditBatch(List<AuditDetails> auditDetails) throws AuditException {
+		for (AuditDetails record : auditDetails) {
+			enqueue(record);
+		}
+	}
+
+	private void enqueue(String type, AuditDetails auditDetails) throws AuditException {
+		auditDetails.setType(type);
+		auditDetails.setTimestamp(clock.format(TimestampFormat.AUDIT));
+		enqueue(auditDetails);
+	}
+
+	private void enqueue(AuditDetails auditDetails) throws AuditException {
+		ITKRingBuffer<AuditDetails> ring = buffer;
+		if (ring == null) {
+			ring = start();
+		}
+		if (closed) {
+			// Nothing left to drain the buffer so write it straight away
+			writeDirect(auditDetails);
+			return;
+		}
+		if (ring.offer(auditDetails)) {
+			wakeWriter();
+			if (closed) {
+				drainAfterClose();
+			}
+			return;
+		}
+		overflowCount.incrementAndGet();
+		if (OVERFLOW_SPILL.equals(overflowPolicy)) {
+			List<AuditDetails> overflow = new ArrayList<AuditDetails>(1);
+			overflow.add(auditDetails);
+			if (!spill(overflow)) {
+				String eMsg = "Audit buffer is full and the record could not be spilled";
+				logger.error(eMsg);
+				throw new AuditException(eMsg);
+			}
+			return;
+		}
+		while (!ring.offer(auditDetails)) {
+			if (closed) {
+				writeDirect(auditDetails);
+				return;
+			}
+			wakeWriter();
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+			if (Thread.currentThread().isInterrupted()) {
+				String eMsg = "Interrupted waiting for room in the audit buffer";
+				logger.error(eMsg);
+				throw new AuditException(eMsg);
+			}
+		}
+		wakeWriter();
+		if (closed) {
+			drainAfterClose();
+		}
+	}
+
+	/**
+	 * Writes anything published to the buffer after the writer has stopped.
+	 */
+	private synchronized void drainAfterClose() {
+		try {
+			// The writer is on its way out, and must be gone before there is another consumer
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		List<AuditDetails> batch = new ArrayList<AuditDetails>();
+		while (buffer.drainTo(batch, Math.max(1, batchSize)) > 0) {
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void wakeWriter() {
+		if (writerIdle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Creates the buffer and starts the writer, replaying anything left in the spill
+	 * file by an earlier run. Should be the init-method; otherwise called on first use.
+	 *
+	 * @return the buffer
+	 */
+	public synchronized ITKRingBuffer<AuditDetails> start() {
+		if (buffer == null) {
+			if (auditService == null) {
+				auditService = ITKSimpleAuditImpl.getInstance();
+			}
+			if (OVERFLOW_SPILL.equals(overflowPolicy) && spillFile == null) {
+				logger.warn("No spill file is configured for the audit buffer so records will wait for room");
+				overflowPolicy = OVERFLOW_BLOCK;
+			}
+			if (spillFile != null && (new File(spillFile).length() > 0 || new File(spillFile + ".replay").exists())) {
+				spilledCount.incrementAndGet();
+			}
+			ITKRingBuffer<AuditDetails> ring = new ITKRingBuffer<AuditDetails>(Math.max(1, bufferSize));
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			}, "ITK-Audit-Writer");
+			writer.setDaemon(true);
+			// Publish the buffer only once the writer is set, as enqueue reads it without the lock
+			buffer = ring;
+			writer.start();
+		}
+		return buffer;
+	}
+
+	private void writeLoop() {
+		List<AuditDetails> batch = new ArrayList<AuditDetails>(Math.max(1, batchSize));
+		while (true) {
+			batch.clear();
+			buffer.drainTo(batch, Math.max(1, batchSize));
+			if (!batch.isEmpty()) {
+				write(batch);
+				continue;
+			}
+			if (closed) {
+				// Producers may still be publishing into slots they have claimed
+				if (buffer.isEmpty()) {
+					break;
+				}
+				Thread.yield();
+				continue;
+			}
+			if (spilledCount.get() > 0 && System.currentTimeMillis() >= nextReplay) {
+				replaySpill();
+				continue;
+			}
+			writerIdle = true;
+			if (buffer.isEmpty() && !closed) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushInterval)));
+			}
+			writerIdle = false;
+		}
+	}
+
+	/**
+	 * Writes a batch to the underlying service, spilling whatever could not be written.
+	 */
+	private void write(List<AuditDetails> batch) {
+		List<AuditDetails> failed = writeBatch(batch);
+		batchCount.incrementAndGet();
+		writtenCount.addAndGet(batch.size() - failed.size());
+		if (!failed.isEmpty() && !spill(failed)) {
+			lostCount.addAndGet(failed.size());
+			logger.error("Lost " + failed.size() + " audit records which could not be written");
+		}
+	}
+
+	/**
+	 * @return the records which could not be written
+	 */
+	private List<AuditDetails> writeBatch(List<AuditDetails> batch) {
+		if (auditService instanceof BatchAuditService) {
+			try {
+				((BatchAuditService) auditService).auditBatch(batch);
+				return new ArrayList<AuditDetails>(0);
+			} catch (AuditException e) {
+				logger.error("Failed to write a batch of " + batch.size() + " audit records", e);
+				return new ArrayList<AuditDetails>(batch);
+			} catch (RuntimeException e) {
+				logger.error("Failed to write a batch of " + batch.size() + " audit records", e);
+				return new ArrayList<AuditDetails>(batch);
+			}
+		}
+		List<AuditDetails> failed = new ArrayList<AuditDetails>(0);
+		for (AuditDetails auditDetails : batch) {
+			try {
+				writeOne(auditDetails);
+			} catch (AuditException e) {
+				logger.error("Failed to write audit record for conversation " + auditDetails.getConversationId(), e);
+				failed.add(auditDetails);
+			} catch (RuntimeException e) {
+				logger.error("Failed to write audit record for conversation " + auditDetails.getConversationId(), e);
+				failed.add(auditDetails);
+			}
+		}
+		return failed;
+	}
+
+	private void writeOne(AuditDetails auditDetails) throws AuditException {
+		String type = auditDetails.getType();
+		if (auditDetails instanceof ConversationAuditDetails) {
+			if (!(auditService instanceof ConversationAuditService)) {
+				throw new AuditException("The underlying audit service cannot write conversation records");
+			}
+			((ConversationAuditService) auditService).auditConversation((ConversationAuditDetails) auditDetails);
+		} else if (auditDetails instanceof SOAPAuditDetails) {
+			if (SOAPREQUEST.equals(type)) {
+				auditService.auditSOAPRequest((SOAPAuditDetails) auditDetails);
+			} else {
+				auditService.auditSOAPResponse((SOAPAuditDetails) auditDetails);
+			}
+		} else if (ITKREQUEST.equals(type)) {
+			auditService.auditITKRequest((ITKAuditDetails) auditDetails);
+		} else if (ITKRESPONSE.equals(type)) {
+			auditService.auditITKResponse((ITKAuditDetails) auditDetails);
+		} else {
+			auditService.auditFailure((ITKAuditDetails) auditDetails);
+		}
+	}
+
+	private void writeDirect(AuditDetails auditDetails) throws AuditException {
+		List<AuditDetails> single = new ArrayList<AuditDetails>(1);
+		single.add(auditDetails);
+		if (auditService instanceof BatchAuditService) {
+			((BatchAuditService) auditService).auditBatch(single);
+		} else {
+			writeOne(auditDetails);
+		}
+		writtenCount.incrementAndGet();
+	}
+
+	/**
+	 * Appends records to the spill file.
+	 *
+	 * @return false if there is no spill file or it could not be written
+	 */
+	private boolean spill(List<AuditDetails> records) {
+		if (spillFile == null) {
+			return false;
+		}
+		synchronized (spillLock) {
+			try {
+				if (spillStream == null) {
+					spillStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile, true)));
+				}
+				for (AuditDetails auditDetails : records) {
+					writeRecord(spillStream, auditDetails);
+				}
+				spillStream.flush();
+				spilledCount.addAndGet(records.size());
+				return true;
+			} catch (IOException e) {
+				logger.error("Failed to spill " + records.size() + " audit records to " + spillFile, e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Writes the spilled records to the underlying service. The spill file is moved aside
+	 * first, and anything which still cannot be written is spilled again.
+	 */
+	private void replaySpill() {
+		nextReplay = System.currentTimeMillis() + spillReplayInterval;
+		File replay = new File(spillFile + ".replay");
+		synchronized (spillLock) {
+			closeSpillStream();
+			File spill = new File(spillFile);
+			// A replay file left by a crash is finished before the spill file is touched
+			if (!replay.exists() && spill.exists() && !spill.renameTo(replay)) {
+				logger.error("Unable to move audit spill file " + spillFile + " for replay");
+				return;
+			}
+			spilledCount.set(0);
+		}
+		if (!replay.exists()) {
+			return;
+		}
+		List<AuditDetails> records;
+		try {
+			records = readRecords(replay);
+		} catch (IOException e) {
+			logger.error("Unable to read audit spill file " + replay.getAbsolutePath(), e);
+			spilledCount.incrementAndGet();
+			return;
+		}
+		int size = Math.max(1, batchSize);
+		for (int i = 0; i < records.size(); i += size) {
+			write(records.subList(i, Math.min(records.size(), i + size)));
+		}
+		if (!replay.delete()) {
+			logger.error("Unable to delete audit spill file " + replay.getAbsolutePath());
+		}
+		logger.info("Replayed " + records.size() + " spilled audit records");
+		// Anything left in the spill file has only just been spilled
+		if (new File(spillFile).length() > 0) {
+			spilledCount.incrementAndGet();
+		}
+	}
+
+	private void closeSpillStream() {
+		if (spillStream != null) {
+			try {
+				spillStream.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close audit spill file " + spillFile, e);
+			}
+			spillStream = null;
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, AuditDetails auditDetails) throws IOException {
+		if (auditDetails instanceof ConversationAuditDetails) {
+			ConversationAuditDetails conversation = (ConversationAuditDetails) auditDetails;
+			out.writeByte(CONVERSATION_RECORD);
+			writeCommon(out, conversation);
+			writeITK(out, conversation);
+			writeString(out, conversation.getResponseTrackingId());
+			writeString(out, conversation.getResponsePayloadId());
+			writeString(out, conversation.getResponseProfileId());
+			writeString(out, conversation.getMessageId());
+			writeString(out, conversation.getCreationTime());
+			writeString(out, conversation.getTo());
+			writeString(out, conversation.getAction());
+			writeString(out, conversation.getUserId());
+			writeString(out, conversation.getResponseMessageId());
+			writeString(out, conversation.getSoapStatus());
+			out.writeInt(conversation.getAttempts());
+			writeString(out, conversation.getItkRequestTime());
+			writeString(out, conversation.getSoapRequestTime());
+			writeString(out, conversation.getSoapResponseTime());
+			writeString(out, conversation.getItkResponseTime());
+			writeLong(out, conversation.getSoapElapsed());
+			writeLong(out, conversation.getTotalElapsed());
+		} else if (auditDetails instanceof SOAPAuditDetails) {
+			SOAPAuditDetails soap = (SOAPAuditDetails) auditDetails;
+			out.writeByte(SOAP_RECORD);
+			writeCommon(out, soap);
+			writeString(out, soap.getMessageId());
+			writeString(out, soap.getCreationTime());
+			writeString(out, soap.getTo());
+			writeString(out, soap.getAction());
+			writeString(out, soap.getUserId());
+		} else {
+			ITKAuditDetails itk = (ITKAuditDetails) auditDetails;
+			out.writeByte(ITK_RECORD);
+			writeCommon(out, itk);
+			writeITK(out, itk);
+		}
+	}
+
+	private static void writeITK(DataOutputStream out, ITKAuditDetails itk) throws IOException {
+		writeString(out, itk.getTrackingId());
+		writeString(out, itk.getPayloadId());
+		writeString(out, itk.getNhsNumber());
+		writeString(out, itk.getLocalPatientId());
+		writeString(out, itk.getLocalAuditId());
+		writeString(out, itk.getSpineUserId());
+		writeString(out, itk.getSpineRoleProfileId());
+		writeString(out, itk.getSpineRoleId());
+		writeString(out, itk.getSenderAddress());
+		writeString(out, itk.getServiceId());
+		writeString(out, itk.getProfileId());
+	}
+
+	private static void writeCommon(DataOutputStream out, AuditDetails auditDetails) throws IOException {
+		writeString(out, auditDetails.getConversationId());
+		writeString(out, auditDetails.getTimestamp());
+		writeString(out, auditDetails.getType());
+		writeString(out, auditDetails.getStatus());
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static void writeLong(DataOutputStream out, Long value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeLong(value);
+		}
+	}
+
+	private static List<AuditDetails> readRecords(File file) throws IOException {
+		List<AuditDetails> records = new ArrayList<AuditDetails>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				int kind = in.read();
+				if (kind == -1) {
+					break;
+				}
+				AuditDetails auditDetails;
+				if (kind == CONVERSATION_RECORD) {
+					ConversationAuditDetails conversation = new ConversationAuditDetailsImpl();
+					readCommon(in, conversation);
+					readITK(in, conversation);
+					conversation.setResponseTrackingId(readString(in));
+					conversation.setResponsePayloadId(readString(in));
+					conversation.setResponseProfileId(readString(in));
+					conversation.setMessageId(readString(in));
+					conversation.setCreationTime(readString(in));
+					conversation.setTo(readString(in));
+					conversation.setAction(readString(in));
+					conversation.setUserId(readString(in));
+					conversation.setResponseMessageId(readString(in));
+					conversation.setSoapStatus(readString(in));
+					conversation.setAttempts(in.readInt());
+					conversation.setItkRequestTime(readString(in));
+					conversation.setSoapRequestTime(readString(in));
+					conversation.setSoapResponseTime(readString(in));
+					conversation.setItkResponseTime(readString(in));
+					conversation.setSoapElapsed(readLong(in));
+					conversation.setTotalElapsed(readLong(in));
+					auditDetails = conversation;
+				} else if (kind == SOAP_RECORD) {
+					SOAPAuditDetails soap = new SOAPAuditDetailsImpl();
+					readCommon(in, soap);
+					soap.setMessageId(readString(in));
+					soap.setCreationTime(readString(in));
+					soap.setTo(readString(in));
+					soap.setAction(readString(in));
+					soap.setUserId(readString(in));
+					auditDetails = soap;
+				} else if (kind == ITK_RECORD) {
+					ITKAuditDetails itk = new ITKAuditDetailsImpl();
+					readCommon(in, itk);
+					readITK(in, itk);
+					auditDetails = itk;
+				} else {
+					logger.error("Unrecognised record in audit spill file " + file.getAbsolutePath()
+							+ ", ignoring the rest of it");
+					break;
+				}
+				records.add(auditDetails);
+			}
+		} catch (EOFException e) {
+			// The last record was only partly written
+			logger.warn("Incomplete record at the end of audit spill file " + file.getAbsolutePath());
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	private static void readCommon(DataInputStream in, AuditDetails auditDetails) throws IOException {
+		auditDetails.setConversationId(readString(in));
+		auditDetails.setTimestamp(readString(in));
+		auditDetails.setType(readString(in));
+		auditDetails.setStatus(readString(in));
+	}
+
+	private static void readITK(DataInputStream in, ITKAuditDetails itk) throws IOException {
+		itk.setTrackingId(readString(in));
+		itk.setPayloadId(readString(in));
+		itk.setNhsNumber(readString(in));
+		itk.setLocalPatientId(readString(in));
+		itk.setLocalAuditId(readString(in));
+		itk.setSpineUserId(readString(in));
+		itk.setSpineRoleProfileId(readString(in));
+		itk.setSpineRoleId(readString(in));
+		itk.setSenderAddress(readString(in));
+		itk.setServiceId(readString(in));
+		itk.setProfileId(readString(in));
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static Long readLong(DataInputStream in) throws IOException {
+		return in.readBoolean() ? Long.valueOf(in.readLong()) : null;
+	}
+
+	/**
+	 * Writes everything in the buffer and the spill file and stops the writer. Records
+	 * audited after this are written straight away on the caller's thread.
+	 */
+	public void close() {
+		Thread stopping;
+		synchronized (this) {
+			if (buffer == null || closed) {
+				closed = true;
+				return;
+			}
+			closed = true;
+			stopping = writer;
+		}
+		LockSupport.unpark(stopping);
+		try {
+			stopping.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted waiting for the audit buffer to be written");
+			return;
+		}
+		drainAfterClose();
+		if (spilledCount.get() > 0) {
+			replaySpill();
+		}
+		synchronized (spillLock) {
+			closeSpillStream();
+		}
+	}
+
+	/**
+	 * @return the number of records waiting in the buffer
+	 */
+	public int getQueueDepth() {
+		return buffer == null ? 0 : buffer.size();
+	}
+
+	/**
+	 * @return the number of records written to the underlying service
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * @return the number of batches written to the underlying service
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * @return the number of records which found the buffer full
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+	/**
+	 * @return the number of records which could be neither written nor spilled
+	 */
+	public long getLostCount() {
+		return lostCount.get();
+	}
+
+}
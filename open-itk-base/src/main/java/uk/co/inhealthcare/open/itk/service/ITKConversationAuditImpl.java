@@ -0,0 +1,446 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.capabilities.AuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.AuditException;
+import uk.co.inhealthcare.open.itk.capabilities.AuditService;
+import uk.co.inhealthcare.open.itk.capabilities.BatchAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
+
+/**
+ * The Class ITKConversationAuditImpl.
+ * An AuditService which holds the audit records of each conversation in memory, keyed
+ * by conversation id, and writes them to the underlying AuditService together once the
+ * conversation is over. A conversation is over when its ITK response or a failure is
+ * audited, or when its SOAP request is acknowledged (HTTP 202) as there will be no ITK
+ * response. Any other conversation is written once nothing has been audited for it for
+ * the conversationTimeout, which covers failed requests that may yet be retried. Records
+ * still held are lost if the process stops without close being called.
+ * <p>
+ * If consolidate is set and the underlying service is a {@link ConversationAuditService}
+ * the conversation is written as one {@link ConversationAuditDetails} record, with the
+ * time of each stage. Otherwise the records of the individual stages are written as they
+ * would have been without this class, as one batch if the underlying service is a
+ * {@link BatchAuditService}.
+ *
+ * @author Nick Jones
+ */
+public class ITKConversationAuditImpl implements AuditService {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKConversationAuditImpl.class);
+
+	private final static String OK = "OK";
+	private final static String ACKNOWLEDGED = "202";
+	private final static String FAIL = "FAIL";
+	private final static String INCOMPLETE = "INCOMPLETE";
+
+	private AuditService auditService;
+
+	/**
+	 * Sets the AuditService the conversations are written to.
+	 *
+	 * @param auditService the underlying audit service
+	 */
+	public void setAuditService(AuditService auditService) {
+		this.auditService = auditService;
+	}
+
+	private boolean consolidate = false;
+
+	/**
+	 * Sets whether each conversation is written as one record. If not, the default, the
+	 * record of each stage is kept, as required for some compliance regimes. A consolidated
+	 * record needs the ITKConversationAudit table (auditdb/ITKConversationAudit Create.sql).
+	 *
+	 * @param consolidate true to write one record per conversation
+	 */
+	public void setConsolidate(boolean consolidate) {
+		this.consolidate = consolidate;
+	}
+
+	private long conversationTimeout = 60000;
+
+	/**
+	 * Sets how long in milliseconds a conversation which is not over is kept after the last
+	 * audit for it.
+	 *
+	 * @param conversationTimeout the conversation timeout
+	 */
+	public void setConversationTimeout(long conversationTimeout) {
+		this.conversationTimeout = conversationTimeout;
+	}
+
+	private int maxConversations = 10000;
+
+	/**
+	 * Sets the most conversations held in memory. Records for new conversations beyond this
+	 * are written straight away, one per stage.
+	 *
+	 * @param maxConversations the maximum number of conversations
+	 */
+	public void setMaxConversations(int maxConversations) {
+		this.maxConversations = maxConversations;
+	}
+
+	private ITKClock clock = ITKClock.getDefault();
+
+	/**
+	 * Sets the clock used to timestamp the audit records.
+	 *
+	 * @param clock the new clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
+
+	private final ConcurrentMap<String, Conversation> conversations = new ConcurrentHashMap<String, Conversation>();
+	// Published by start, so that recording only takes the lock before the first start
+	private volatile ScheduledExecutorService sweeper;
+	private volatile boolean closed = false;
+
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong expiredCount = new AtomicLong();
+	private final AtomicLong overflowCount = new AtomicLong();
+
+	/**
+	 * The records audited so far for one conversation.
+	 */
+	private static class Conversation {
+		private final List<AuditDetails> records = new ArrayList<AuditDetails>(4);
+		private final List<Long> times = new ArrayList<Long>(4);
+		private long lastActivity;
+		private boolean over = false;
+
+		private void add(AuditDetails auditDetails, long time) {
+			records.add(auditDetails);
+			times.add(time);
+			lastActivity = time;
+		}
+	}
+
+	@Override
+	public void auditITKRequest(ITKAuditDetails auditDetails) throws AuditException {
+		record(ITKREQUEST, auditDetails, false);
+	}
+
+	@Override
+	public void auditITKResponse(ITKAuditDetails auditDetails) throws AuditException {
+		record(ITKRESPONSE, auditDetails, true);
+	}
+
+	@Override
+	public void auditSOAPRequest(SOAPAuditDetails auditDetails) throws AuditException {
+		record(SOAPREQUEST, auditDetails, false);
+	}
+
+	@Override
+	public void auditSOAPResponse(SOAPAuditDetails auditDetails) throws AuditException {
+		record(SOAPRESPONSE, auditDetails, ACKNOWLEDGED.equals(auditDetails.getStatus()));
+	}
+
+	@Override
+	public void auditFailure(ITKAuditDetails auditDetails) throws AuditException {
+		record(FAILURE, auditDetails, true);
+	}
+
+	private void record(String type, AuditDetails auditDetails, boolean over) throws AuditException {
+		long now = clock.currentTimeMillis();
+		auditDetails.setType(type);
+		auditDetails.setTimestamp(TimestampFormat.AUDIT.format(now));
+
+		String conversationId = auditDetails.getConversationId();
+		if (conversationId == null || closed) {
+			writeStages(Collections.singletonList(auditDetails));
+			return;
+		}
+		if (sweeper == null) {
+			start();
+		}
+		while (true) {
+			Conversation conversation = conversations.get(conversationId);
+			if (conversation == null) {
+				if (conversations.size() >= maxConversations) {
+					if (overflowCount.incrementAndGet() == 1) {
+						logger.warn("More than " + maxConversations + " conversations are being audited, "
+								+ "writing the records of new ones as they arrive");
+					}
+					writeStages(Collections.singletonList(auditDetails));
+					return;
+				}
+				Conversation created = new Conversation();
+				conversation = conversations.putIfAbsent(conversationId, created);
+				if (conversation == null) {
+					conversation = created;
+				}
+			}
+			synchronized (conversation) {
+				if (conversation.over) {
+					// Written by someone else since it was looked up
+					conversations.remove(conversationId, conversation);
+					continue;
+				}
+				conversation.add(auditDetails, now);
+				if (!over) {
+					return;
+				}
+				conversation.over = true;
+			}
+			conversations.remove(conversationId, conversation);
+			write(conversation);
+			return;
+		}
+	}
+
+	/**
+	 * Starts the thread which writes conversations that have timed out. Should be the
+	 * init-method; otherwise called on first use.
+	 */
+	public synchronized void start() {
+		if (sweeper == null && !closed) {
+			ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ITK-Audit-Sweep");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			long period = Math.max(10, conversationTimeout / 4);
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sweep(clock.currentTimeMillis() - conversationTimeout);
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+			sweeper = executor;
+		}
+	}
+
+	/**
+	 * Writes every conversation with no activity since the cutoff.
+	 */
+	private void sweep(long cutoff) {
+		for (Map.Entry<String, Conversation> entry : conversations.entrySet()) {
+			Conversation conversation = entry.getValue();
+			synchronized (conversation) {
+				if (conversation.over || conversation.lastActivity > cutoff) {
+					continue;
+				}
+				conversation.over = true;
+			}
+			conversations.remove(entry.getKey(), conversation);
+			if (!closed) {
+				expiredCount.incrementAndGet();
+			}
+			try {
+				write(conversation);
+			} catch (AuditException e) {
+				logger.error("Failed to write the audit records of conversation " + entry.getKey(), e);
+			} catch (RuntimeException e) {
+				logger.error("Failed to write the audit records of conversation " + entry.getKey(), e);
+			}
+		}
+	}
+
+	private void write(Conversation conversation) throws AuditException {
+		if (consolidate && auditService instanceof ConversationAuditService) {
+			((ConversationAuditService) auditService).auditConversation(consolidate(conversation));
+		} else {
+			writeStages(conversation.records);
+		}
+		writtenCount.incrementAndGet();
+	}
+
+	/**
+	 * Writes records which have already been typed and timestamped.
+	 */
+	private void writeStages(List<AuditDetails> records) throws AuditException {
+		if (auditService == null) {
+			auditService = ITKSimpleAuditImpl.getInstance();
+		}
+		if (auditService instanceof BatchAuditService) {
+			((BatchAuditService) auditService).auditBatch(records);
+			return;
+		}
+		for (AuditDetails auditDetails : records) {
+			String type = auditDetails.getType();
+			if (SOAPREQUEST.equals(type)) {
+				auditService.auditSOAPRequest((SOAPAuditDetails) auditDetails);
+			} else if (SOAPRESPONSE.equals(type)) {
+				auditService.auditSOAPResponse((SOAPAuditDetails) auditDetails);
+			} else if (ITKREQUEST.equals(type)) {
+				auditService.auditITKRequest((ITKAuditDetails) auditDetails);
+			} else if (ITKRESPONSE.equals(type)) {
+				auditService.auditITKResponse((ITKAuditDetails) auditDetails);
+			} else {
+				auditService.auditFailure((ITKAuditDetails) auditDetails);
+			}
+		}
+	}
+
+	/**
+	 * Builds the single record for a conversation. A request which was sent more than once
+	 * is counted in attempts, and the SOAP timings are those of the last attempt.
+	 */
+	private static ConversationAuditDetails consolidate(Conversation conversation) {
+		ConversationAuditDetails row = new ConversationAuditDetailsImpl();
+		Long itkRequest = null;
+		Long soapRequest = null;
+		Long soapResponse = null;
+		String failure = null;
+		boolean responded = false;
+		long last = 0;
+		for (int i = 0; i < conversation.records.size(); i++) {
+			AuditDetails auditDetails = conversation.records.get(i);
+			long time = conversation.times.get(i);
+			String type = auditDetails.getType();
+			row.setConversationId(auditDetails.getConversationId());
+			last = time;
+			if (ITKREQUEST.equals(type)) {
+				copyRequest((ITKAuditDetails) auditDetails, row);
+				row.setItkRequestTime(auditDetails.getTimestamp());
+				itkRequest = time;
+			} else if (SOAPREQUEST.equals(type)) {
+				SOAPAuditDetails soap = (SOAPAuditDetails) auditDetails;
+				row.setMessageId(soap.getMessageId());
+				row.setCreationTime(soap.getCreationTime());
+				row.setTo(soap.getTo());
+				row.setAction(soap.getAction());
+				row.setUserId(soap.getUserId());
+				row.setSoapRequestTime(auditDetails.getTimestamp());
+				row.setAttempts(row.getAttempts() + 1);
+				soapRequest = time;
+			} else if (SOAPRESPONSE.equals(type)) {
+				SOAPAuditDetails soap = (SOAPAuditDetails) auditDetails;
+				if (soap.getMessageId() != null) {
+					row.setResponseMessageId(soap.getMessageId());
+				}
+				row.setSoapStatus(soap.getStatus());
+				row.setSoapResponseTime(auditDetails.getTimestamp());
+				soapResponse = time;
+			} else if (ITKRESPONSE.equals(type)) {
+				ITKAuditDetails itk = (ITKAuditDetails) auditDetails;
+				row.setResponseTrackingId(itk.getTrackingId());
+				row.setResponsePayloadId(itk.getPayloadId());
+				row.setResponseProfileId(itk.getProfileId());
+				row.setItkResponseTime(auditDetails.getTimestamp());
+				responded = true;
+			} else {
+				if (itkRequest == null) {
+					copyRequest((ITKAuditDetails) auditDetails, row);
+				}
+				failure = auditDetails.getStatus() != null ? auditDetails.getStatus() : FAIL;
+			}
+		}
+		if (soapRequest != null && soapResponse != null && soapResponse >= soapRequest) {
+			row.setSoapElapsed(soapResponse - soapRequest);
+		}
+		if (itkRequest != null) {
+			row.setTotalElapsed(last - itkRequest);
+		}
+		if (responded) {
+			row.setStatus(OK);
+		} else if (failure != null) {
+			row.setStatus(failure);
+		} else if (row.getSoapStatus() != null) {
+			row.setStatus(row.getSoapStatus());
+		} else {
+			row.setStatus(INCOMPLETE);
+		}
+		return row;
+	}
+
+	private static void copyRequest(ITKAuditDetails from, ITKAuditDetails to) {
+		to.setTrackingId(from.getTrackingId());
+		to.setPayloadId(from.getPayloadId());
+		to.setNhsNumber(from.getNhsNumber());
+		to.setLocalPatientId(from.getLocalPatientId());
+		to.setLocalAuditId(from.getLocalAuditId());
+		to.setSpineUserId(from.getSpineUserId());
+		to.setSpineRoleProfileId(from.getSpineRoleProfileId());
+		to.setSpineRoleId(from.getSpineRoleId());
+		to.setSenderAddress(from.getSenderAddress());
+		to.setServiceId(from.getServiceId());
+		to.setProfileId(from.getProfileId());
+	}
+
+	/**
+	 * Stops the sweeper and writes every conversation still held, whether or not it is
+	 * over. Records audited after this are written straight away, one per stage.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			if (sweeper != null) {
+				sweeper.shutdown();
+				try {
+					sweeper.awaitTermination(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		sweep(Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return the number of conversations held in memory
+	 */
+	public int getOpenConversationCount() {
+		return conversations.size();
+	}
+
+	/**
+	 * @return the number of conversations written
+	 */
+	public long getWrittenCount() {
+		return writtenCount.get();
+	}
+
+	/**
+	 * @return the number of conversations written because they timed out
+	 */
+	public long getExpiredCount() {
+		return expiredCount.get();
+	}
+
+	/**
+	 * @return the number of records written straight away because too many conversations were held
+	 */
+	public long getOverflowCount() {
+		return overflowCount.get();
+	}
+
+}
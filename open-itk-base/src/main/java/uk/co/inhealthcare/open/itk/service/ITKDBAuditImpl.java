@@ -13,38 +13,51 @@
 */
 package uk.co.inhealthcare.open.itk.service;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.TimeZone;
+import java.util.List;
 
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 
+import uk.co.inhealthcare.open.itk.capabilities.AuditDetails;
 import uk.co.inhealthcare.open.itk.capabilities.AuditException;
 import uk.co.inhealthcare.open.itk.capabilities.AuditService;
+import uk.co.inhealthcare.open.itk.capabilities.BatchAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditService;
 import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
 import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
 
 /**
  * The Class ITKDBAuditImpl 
  *
  * @author Nick Jones
  */
-public class ITKDBAuditImpl implements AuditService {
+public class ITKDBAuditImpl implements BatchAuditService, ConversationAuditService {
 
 	//private final static Logger logger = LoggerFactory.getLogger(ITKDBAuditImpl.class);
-	private static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS Z");
 	private static final ITKDBAuditImpl _INSTANCE = new ITKDBAuditImpl();
     private SqlSessionFactory sqlSessionFactory;
+	private ITKClock clock = ITKClock.getDefault();
 	 
     public ITKDBAuditImpl(){
         sqlSessionFactory = AuditDBConnectionFactory.getSqlSessionFactory();
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
     }
+
+	/**
+	 * Sets the clock used to timestamp the audit records.
+	 *
+	 * @param clock the new clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
 	
 	@Override
 	public void auditITKRequest(ITKAuditDetails auditDetails) throws AuditException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		auditDetails.setType(ITKREQUEST);
 		auditDetails.setTimestamp(timestamp);
 		this.insertITKAudit(auditDetails);
@@ -52,13 +65,13 @@ public class ITKDBAuditImpl implements AuditService {
 
 	@Override
 	public void auditITKResponse(ITKAuditDetails auditDetails) throws AuditException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		auditDetails.setType(ITKRESPONSE);
 		auditDetails.setTimestamp(timestamp);
 		this.insertITKAudit(auditDetails);
 	}
 	public void auditSOAPRequest(SOAPAuditDetails auditDetails) throws AuditException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		auditDetails.setType(SOAPREQUEST);
 		auditDetails.setTimestamp(timestamp);
 		this.insertSOAPAudit(auditDetails);
@@ -66,7 +79,7 @@ public class ITKDBAuditImpl implements AuditService {
 
 	@Override
 	public void auditSOAPResponse(SOAPAuditDetails auditDetails) throws AuditException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		auditDetails.setType(SOAPRESPONSE);
 		auditDetails.setTimestamp(timestamp);
 		this.insertSOAPAudit(auditDetails);
@@ -74,12 +87,44 @@ public class ITKDBAuditImpl implements AuditService {
 
 	@Override
 	public void auditFailure(ITKAuditDetails auditDetails) throws AuditException {
-		String timestamp = DATE_FORMAT.format(Calendar.getInstance().getTime());
+		String timestamp = clock.format(TimestampFormat.AUDIT);
 		auditDetails.setType(FAILURE);
 		auditDetails.setTimestamp(timestamp);
 		this.insertITKAudit(auditDetails);
 	}
 
+	@Override
+	public void auditConversation(ConversationAuditDetails auditDetails) throws AuditException {
+		String timestamp = clock.format(TimestampFormat.AUDIT);
+		auditDetails.setType(CONVERSATION);
+		auditDetails.setTimestamp(timestamp);
+		this.insertConversationAudit(auditDetails);
+	}
+
+	@Override
+	public void auditBatch(List<AuditDetails> auditDetails) throws AuditException {
+		// One JDBC batch and one commit for the lot
+		SqlSession session = sqlSessionFactory.openSession(ExecutorType.BATCH);
+
+		try {
+			for (AuditDetails details : auditDetails) {
+				if (details instanceof ConversationAuditDetails) {
+					session.insert("ITKConversationAudit.insert", details);
+				} else if (details instanceof SOAPAuditDetails) {
+					session.insert("SOAPAudit.insert", details);
+				} else {
+					session.insert("ITKAudit.insert", details);
+				}
+			}
+			session.commit();
+		} catch (RuntimeException e) {
+			session.rollback();
+			throw new AuditException("Failed to write a batch of " + auditDetails.size() + " audit records", e);
+		} finally {
+			session.close();
+		}
+	}
+
 	/**
 	 * Gets the single instance of ITKSimpleAudit.
 	 *
@@ -103,6 +148,21 @@ public class ITKDBAuditImpl implements AuditService {
             session.close();
         }
     }
+    /**
+     * Insert an instance of ConversationAuditDetails into the database.
+     * @param auditDetails the instance to be persisted.
+     */
+    private void insertConversationAudit(ConversationAuditDetails auditDetails){
+ 
+        SqlSession session = sqlSessionFactory.openSession();
+ 
+        try {
+            session.insert("ITKConversationAudit.insert", auditDetails);
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
     /**
      * Insert an instance of SOAPAuditDetails into the database.
      * @param auditDetails the instance to be persisted.
@@ -13,10 +13,6 @@
 */
 package uk.co.inhealthcare.open.itk.service;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.TimeZone;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +20,8 @@ import uk.co.inhealthcare.open.itk.capabilities.AuditException;
 import uk.co.inhealthcare.open.itk.capabilities.AuditService;
 import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
 import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
 
 /**
  * The Class ITKSimpleAudit. 
@@ -34,17 +32,22 @@ import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
 public class ITKSimpleAuditImpl implements AuditService {
 
 	private final static Logger logger = LoggerFactory.getLogger(ITKSimpleAuditImpl.class);
-	private static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS Z");
 	private static final ITKSimpleAuditImpl _INSTANCE = new ITKSimpleAuditImpl();
-	
-    public ITKSimpleAuditImpl(){
-        DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
+	private ITKClock clock = ITKClock.getDefault();
+
+	/**
+	 * Sets the clock used to timestamp the audit records.
+	 *
+	 * @param clock the new clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
 
 	private void auditITKWrite(String auditType, ITKAuditDetails auditDetails) throws AuditException {
 		
 		logger.warn("Auditing using default ITKSimpleAudit. Consider implementing an ITK Audit Service");
-		logger.info(DATE_FORMAT.format(Calendar.getInstance().getTime()) + " [AUDIT:"+ auditType + "] " + 
+		logger.info(clock.format(TimestampFormat.AUDIT) + " [AUDIT:"+ auditType + "] " + 
 				"[CONVID]"+auditDetails.getConversationId()+
 				"[ITK:TRKID]"+auditDetails.getTrackingId()+
 				"[ITK:PAYLID]"+auditDetails.getPayloadId()+
@@ -64,7 +67,7 @@ public class ITKSimpleAuditImpl implements AuditService {
 	private void auditSOAPWrite(String auditType, SOAPAuditDetails auditDetails) throws AuditException {
 		
 		logger.warn("Auditing using default ITKSimpleAudit. Consider implementing an ITK Audit Service");
-		logger.info(DATE_FORMAT.format(Calendar.getInstance().getTime()) + " [AUDIT:"+ auditType + "] " + 
+		logger.info(clock.format(TimestampFormat.AUDIT) + " [AUDIT:"+ auditType + "] " + 
 				"[CONVID]"+auditDetails.getConversationId()+
 				"[TRANS:MSGID]"+auditDetails.getMessageId()+
 				"[TRANS:CREATE]"+auditDetails.getCreationTime()+
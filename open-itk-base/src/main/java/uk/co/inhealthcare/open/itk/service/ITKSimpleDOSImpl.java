@@ -13,6 +13,9 @@
 */
 package uk.co.inhealthcare.open.itk.service;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +43,8 @@ public class ITKSimpleDOSImpl implements DirectoryOfServices {
 	private static final String SUPPORTS_SYNC = "supportsSync";
 	private static final String IS_BASE64 = "isBase64";
 	private static final String MIME_TYPE = "mimeType";
+	private static final String STREAMING_ENVELOPE = "streamingEnvelope";
+	private static final String IDEMPOTENT = "idempotent";
 	private static final String CHANNELID = "channelid";
 	private static final String TIME_TO_LIVE = "TimeToLive";
 	private static final String TRANSPORT_TIMEOUT = "TransportTimeout";
@@ -48,12 +53,23 @@ public class ITKSimpleDOSImpl implements DirectoryOfServices {
 	private static final String REPLY_TO = "ReplyTo";
 	private static final String ROUTE_TYPE = "RouteType";
 	private static final String PHYSICAL_DESTINATION = "PhysicalDestination";
+	private static final String COMPRESS_REQUEST = "CompressRequest";
+	private static final String ACCEPT_COMPRESSED = "AcceptCompressed";
 
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.capabilities.DirectoryOfServices#resolveDestination(java.lang.String, uk.nhs.interoperability.infrastructure.ITKAddress)
 	 */
 	@Override
 	public ITKTransportRoute resolveDestination(String serviceId, ITKAddress address) throws ITKMessagingException {
+		return resolveDestinations(serviceId, address).get(0);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.capabilities.DirectoryOfServices#resolveDestinations(java.lang.String, uk.co.inhealthcare.open.itk.infrastructure.ITKAddress)
+	 * The channelid may be a comma separated list of channels in order of preference
+	 */
+	@Override
+	public List<ITKTransportRoute> resolveDestinations(String serviceId, ITKAddress address) throws ITKMessagingException {
 		
 		if ((serviceId == null)||(serviceId.isEmpty())) {
 			String eMsg = "ServiceId not provided";
@@ -66,42 +82,62 @@ public class ITKSimpleDOSImpl implements DirectoryOfServices {
 			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
 		}
 
-		ITKTransportRoute route = null;
+		List<ITKTransportRoute> routes = new ArrayList<ITKTransportRoute>();
 		
 		String svc = serviceId;
 		String add = address.getURI();
 		String channelKey = svc + "." + add + "." + CHANNELID;
 		logger.trace("Channel Key:"+channelKey);
 		
-		String channelId = ITKDirectoryProperties.getProperty(channelKey);
+		String channelIds = ITKDirectoryProperties.getProperty(channelKey);
 		
-		if (null==channelId){
+		if (null!=channelIds){
+			for (String channelId : channelIds.split(",")) {
+				channelId = channelId.trim();
+				if (!channelId.isEmpty()) {
+					logger.trace("Channel Id:"+channelId);
+					routes.add(getRoute(channelId));
+				}
+			}
+		}
+		if (routes.isEmpty()){
 			String eMsg = "Route not found for:"+channelKey;
 			logger.error(eMsg);
 			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
-		} else {
-			logger.trace("Channel Id:"+channelId);
-			String physicalDestination = getDirectoryProperty(channelId,PHYSICAL_DESTINATION);
-			String routeType = getDirectoryProperty(channelId,ROUTE_TYPE);
-			String replyTo = getDirectoryProperty(channelId,REPLY_TO);
-			String exceptionTo = getDirectoryProperty(channelId,EXCEPTION_TO);
-			String timeToLive = getDirectoryProperty(channelId,TIME_TO_LIVE);
-			String transportTimeout = getDirectoryProperty(channelId,TRANSPORT_TIMEOUT);
-
-			// time to live
-			int ttl = 30*60; // failsafe time to live of 30 minutes
-			if (null!=timeToLive){
-				ttl = Integer.parseInt(timeToLive);
-			}
-			// transport timeout
-			int tt = 30000; // failsafe timeout of 30 seconds
-			if (null!=transportTimeout){
-				tt = Integer.parseInt(transportTimeout);
-			}
-			route = new ITKTransportRouteImpl(routeType,physicalDestination,
-											  replyTo,exceptionTo,ttl,tt);
 		}
 		
+		return routes;
+	}
+
+	/**
+	 * Gets the route for a channel.
+	 *
+	 * @param channelId the channel id
+	 * @return the route
+	 */
+	private ITKTransportRoute getRoute(String channelId) {
+		String physicalDestination = getDirectoryProperty(channelId,PHYSICAL_DESTINATION);
+		String routeType = getDirectoryProperty(channelId,ROUTE_TYPE);
+		String replyTo = getDirectoryProperty(channelId,REPLY_TO);
+		String exceptionTo = getDirectoryProperty(channelId,EXCEPTION_TO);
+		String timeToLive = getDirectoryProperty(channelId,TIME_TO_LIVE);
+		String transportTimeout = getDirectoryProperty(channelId,TRANSPORT_TIMEOUT);
+
+		// time to live
+		int ttl = 30*60; // failsafe time to live of 30 minutes
+		if (null!=timeToLive){
+			ttl = Integer.parseInt(timeToLive);
+		}
+		// transport timeout
+		int tt = 30000; // failsafe timeout of 30 seconds
+		if (null!=transportTimeout){
+			tt = Integer.parseInt(transportTimeout);
+		}
+		ITKTransportRouteImpl route = new ITKTransportRouteImpl(routeType,physicalDestination,
+										  replyTo,exceptionTo,ttl,tt);
+		route.setChannelId(channelId);
+		route.setCompressRequest(getDirectoryProperty(channelId,COMPRESS_REQUEST).equalsIgnoreCase("Y"));
+		route.setAcceptCompressed(getDirectoryProperty(channelId,ACCEPT_COMPRESSED).equalsIgnoreCase("Y"));
 		return route;
 	}
 
@@ -142,6 +178,8 @@ public class ITKSimpleDOSImpl implements DirectoryOfServices {
 		service.setSupportsSync(getServiceBooleanProperty(serviceId, SUPPORTS_SYNC));
 		service.setSupportsAsync(getServiceBooleanProperty(serviceId, SUPPORTS_ASYNC));
 		service.setMimeType(getServiceProperty(serviceId, MIME_TYPE));
+		service.setStreamingEnvelope(getServiceBooleanProperty(serviceId, STREAMING_ENVELOPE));
+		service.setIdempotent(getServiceBooleanProperty(serviceId, IDEMPOTENT));
 
 		return service;
 	}
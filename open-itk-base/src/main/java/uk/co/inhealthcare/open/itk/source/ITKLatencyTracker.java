@@ -0,0 +1,72 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent response times of a service so that a percentile of
+ * them can be estimated.
+ *
+ * @author Nick Jones
+ */
+public class ITKLatencyTracker {
+
+	private final long[] samples;
+	private int next = 0;
+	private int count = 0;
+
+	/**
+	 * Instantiates a new latency tracker.
+	 *
+	 * @param size the number of recent response times kept
+	 */
+	public ITKLatencyTracker(int size) {
+		this.samples = new long[Math.max(1, size)];
+	}
+
+	/**
+	 * Records a response time.
+	 *
+	 * @param millis the response time in milliseconds
+	 */
+	public synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+	}
+
+	/**
+	 * Gets a percentile of the recent response times.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @param minSamples the fewest response times from which to estimate it
+	 * @return the response time in milliseconds, or -1 if fewer than minSamples have been recorded
+	 */
+	public long getPercentile(double percentile, int minSamples) {
+		long[] sorted;
+		synchronized (this) {
+			if (count == 0 || count < minSamples) {
+				return -1;
+			}
+			sorted = Arrays.copyOf(samples, count);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.min(sorted.length - 1, Math.max(0, index))];
+	}
+
+}
@@ -14,46 +14,101 @@
 package uk.co.inhealthcare.open.itk.source;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.dom.DOMSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
 import org.xml.sax.SAXException;
 
 import uk.co.inhealthcare.open.itk.capabilities.AuditException;
 import uk.co.inhealthcare.open.itk.capabilities.AuditService;
 import uk.co.inhealthcare.open.itk.capabilities.DirectoryOfServices;
 import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
+import uk.co.inhealthcare.open.itk.infrastructure.DistributionEnvelopeReader;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKAddress;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKIdentity;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
 import uk.co.inhealthcare.open.itk.service.ITKAuditDetailsImpl;
 import uk.co.inhealthcare.open.itk.service.ITKService;
 import uk.co.inhealthcare.open.itk.service.ITKSimpleAuditImpl;
 import uk.co.inhealthcare.open.itk.service.ITKSimpleDOSImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKAsyncSender;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
 import uk.co.inhealthcare.open.itk.transport.ITKSender;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.util.ITKCompletions;
 import uk.co.inhealthcare.open.itk.util.ITKLogFormatter;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
 import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
-import uk.co.inhealthcare.open.itk.util.xml.XPaths;
 
 /**
- * The Class ITKMessageSenderImpl.
+ * The Class ITKMessageSenderImpl.<br/><br/>
+ *
+ * Asynchronous conversations are carried out by a bounded pool of asyncThreads. Up
+ * to asyncQueueCapacity conversations may wait for a thread; beyond that the
+ * asyncRejectionPolicy applies - ABORT fails the request with a retryable
+ * ITKMessagingException, CALLER_RUNS carries out the conversation on the calling thread.<br/><br/>
+ *
+ * sendSyncBatch carries out many conversations at once on the batchThreads, with at most
+ * batchConcurrencyPerDestination of them going to any one destination.<br/><br/>
+ *
+ * Fire and forget messages given to send are appended to the outboundJournal and
+ * sent by the dispatchThreads, so the caller does not wait for the destination.
+ * Messages which fail in a retryable way are retried, up to dispatchMaxAttempts
+ * attempts in all, and are then marked failed in the journal.
+ * Messages left in the journal by the last run are sent when the sender is started.
  *
  * @author Nick Jones
  */
-public class ITKMessageSenderImpl implements ITKMessageSender {
+public class ITKMessageSenderImpl implements ITKAsyncMessageSender, ITKBatchMessageSender {
 	
 	private final static Logger logger = LoggerFactory.getLogger(ITKMessageSenderImpl.class);
+
+	// Response times kept for each service, and the fewest from which a percentile is estimated
+	private static final int LATENCY_SAMPLES = 200;
+	private static final int MIN_LATENCY_SAMPLES = 20;
+
+	/** Rejection policy which fails a request when the async queue is full */
+	public static final String REJECT_ABORT = "ABORT";
+
+	/** Rejection policy which sends on the calling thread when the async queue is full */
+	public static final String REJECT_CALLER_RUNS = "CALLER_RUNS";
+
 	private AuditService auditService = null;
 	public void setAuditService(AuditService auditService) {
 		this.auditService = auditService;
@@ -69,6 +124,149 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 	public void setToItkTransform(String toItkTransform) {
 		this.toItkTransform = toItkTransform;
 	}
+	private long conversationTimeout = 0;
+	/**
+	 * Sets the time (in milliseconds) allowed for a synchronous conversation,
+	 * capped at the time to live of the route. Zero means the time to live, which
+	 * is usually far longer than a caller will wait, so the deadline only bounds
+	 * a conversation usefully when this is set.
+	 * 
+	 * @param conversationTimeout
+	 */
+	public void setConversationTimeout(long conversationTimeout) {
+		this.conversationTimeout = conversationTimeout;
+	}
+	private double hedgePercentile = 0;
+	/**
+	 * Sets the percentile of recent response times after which a request to an
+	 * idempotent service with more than one route is also sent to the second route,
+	 * the first response being used. Zero (the default) disables hedging.
+	 * Hedging needs an ITKAsyncSender which does not block the calling thread.
+	 * 
+	 * @param hedgePercentile e.g. 95
+	 */
+	public void setHedgePercentile(double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+	private long hedgeMinDelay = 100;
+	/**
+	 * Sets the shortest time (in milliseconds) to wait before hedging a request.
+	 * Also used until enough responses have been seen to estimate the percentile.
+	 * 
+	 * @param hedgeMinDelay
+	 */
+	public void setHedgeMinDelay(long hedgeMinDelay) {
+		this.hedgeMinDelay = hedgeMinDelay;
+	}
+
+	private int asyncThreads = 10;
+	/**
+	 * Sets the most conversations carried out at once by sendSyncAsync and sendAsync.
+	 * 
+	 * @param asyncThreads
+	 */
+	public void setAsyncThreads(int asyncThreads) {
+		this.asyncThreads = asyncThreads;
+	}
+	private int asyncQueueCapacity = 100;
+	/**
+	 * Sets the most asynchronous conversations which may wait for a thread.
+	 * 
+	 * @param asyncQueueCapacity
+	 */
+	public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+		this.asyncQueueCapacity = asyncQueueCapacity;
+	}
+	private String asyncRejectionPolicy = REJECT_ABORT;
+	/**
+	 * Sets what happens to an asynchronous request when the queue is full -
+	 * {@link #REJECT_ABORT} (the default) or {@link #REJECT_CALLER_RUNS}.
+	 * 
+	 * @param asyncRejectionPolicy
+	 */
+	public void setAsyncRejectionPolicy(String asyncRejectionPolicy) {
+		this.asyncRejectionPolicy = asyncRejectionPolicy;
+	}
+	private ITKSendCallback asyncCallback = null;
+	/**
+	 * Sets the callback given the outcome of each request sent by sendAsync.
+	 * If not set the outcome is only logged.
+	 * 
+	 * @param asyncCallback
+	 */
+	public void setAsyncCallback(ITKSendCallback asyncCallback) {
+		this.asyncCallback = asyncCallback;
+	}
+
+	private int batchThreads = 20;
+	/**
+	 * Sets the most conversations carried out at once by sendSyncBatch, across all destinations.
+	 * 
+	 * @param batchThreads
+	 */
+	public void setBatchThreads(int batchThreads) {
+		this.batchThreads = batchThreads;
+	}
+	private int batchConcurrencyPerDestination = 10;
+	/**
+	 * Sets the most conversations a batch carries out at once with any one destination.
+	 * 
+	 * @param batchConcurrencyPerDestination
+	 */
+	public void setBatchConcurrencyPerDestination(int batchConcurrencyPerDestination) {
+		this.batchConcurrencyPerDestination = batchConcurrencyPerDestination;
+	}
+
+	private ITKOutboundJournal outboundJournal = null;
+	/**
+	 * Sets the journal holding messages given to send until they are delivered.
+	 * send is not available without one.
+	 * 
+	 * @param outboundJournal
+	 */
+	public void setOutboundJournal(ITKOutboundJournal outboundJournal) {
+		this.outboundJournal = outboundJournal;
+	}
+	private int dispatchThreads = 2;
+	/**
+	 * Sets the number of threads sending the messages in the outbound journal.
+	 * 
+	 * @param dispatchThreads
+	 */
+	public void setDispatchThreads(int dispatchThreads) {
+		this.dispatchThreads = dispatchThreads;
+	}
+	private long dispatchRetryDelay = 5000;
+	/**
+	 * Sets the shortest time (in milliseconds) before a journalled message is
+	 * sent again after a retryable failure. Longer delays come from the retry
+	 * policy of the service.
+	 * 
+	 * @param dispatchRetryDelay
+	 */
+	public void setDispatchRetryDelay(long dispatchRetryDelay) {
+		this.dispatchRetryDelay = dispatchRetryDelay;
+	}
+	private int dispatchMaxAttempts = 10;
+	/**
+	 * Sets the number of attempts, including the first, at sending a journalled
+	 * message before it is marked failed. The retry policy of the service is
+	 * used instead where it allows more.
+	 * 
+	 * @param dispatchMaxAttempts
+	 */
+	public void setDispatchMaxAttempts(int dispatchMaxAttempts) {
+		this.dispatchMaxAttempts = dispatchMaxAttempts;
+	}
+
+	private final ConcurrentMap<String, ITKLatencyTracker> latencies = new ConcurrentHashMap<String, ITKLatencyTracker>();
+
+	private ThreadPoolExecutor asyncExecutor = null;
+	private final AtomicLong asyncRejected = new AtomicLong();
+	private ScheduledExecutorService dispatcher = null;
+	private ThreadPoolExecutor batchExecutor = null;
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong dispatchFailed = new AtomicLong();
 
 
 	/**
@@ -84,7 +282,105 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 	 */
 	@Override
 	public ITKMessage sendSync(ITKMessage request) throws ITKMessagingException {
-		
+		return converse(prepare(request));
+	}
+
+	/**
+	 * The state of one synchronous conversation
+	 */
+	private static class Conversation {
+		ITKMessage request;
+		ITKService service;
+		List<ITKTransportRoute> routes;
+		ITKDeadline deadline;
+		ITKSender sender;
+		ITKMessage message;
+	}
+
+	/**
+	 * Validates the request and builds the message to send.
+	 *
+	 * @param request the request
+	 * @return the conversation, ready to send
+	 * @throws ITKMessagingException if the request is invalid or cannot be routed
+	 */
+	private Conversation prepare(ITKMessage request) throws ITKMessagingException {
+		Conversation conversation = resolve(request, null, null);
+		build(conversation);
+		return conversation;
+	}
+
+	/**
+	 * Validates the request and finds its service, routes and sender.
+	 *
+	 * @param request the request
+	 * @param services services already found, by service id - or <code>null</code>
+	 * @param routes routes already found, by service id and address - or <code>null</code>
+	 * @return the conversation, ready to build
+	 * @throws ITKMessagingException if the request is invalid or cannot be routed
+	 */
+	private Conversation resolve(ITKMessage request, Map<String, ITKService> services,
+			Map<String, List<ITKTransportRoute>> routes) throws ITKMessagingException {
+		validate(request);
+
+		// Get the ITKService from the DirectoryOfService
+		String serviceId = request.getMessageProperties().getServiceId();
+		ITKService service = services == null ? null : services.get(serviceId);
+		if (service == null) {
+			service = directoryOfServices.getService(serviceId);
+			if (services != null) {
+				services.put(serviceId, service);
+			}
+		}
+
+		if (!service.supportsSync()){
+			String fLog = ITKLogFormatter.getFormattedLog("Invalid service call. Service does not support Synchronous invocation.", request); 
+			logger.error(fLog);
+			throw new ITKMessagingException("Service " + service.getServiceId() + " can not be called Synchronously");
+		}
+
+		Conversation conversation = new Conversation();
+		conversation.request = request;
+		conversation.service = service;
+		if (routes == null) {
+			conversation.routes = getRoutes(request);
+		} else {
+			ITKAddress toAddress = request.getMessageProperties().getToAddress();
+			String key = serviceId + " " + (toAddress == null ? "" : toAddress.getURI());
+			conversation.routes = routes.get(key);
+			if (conversation.routes == null) {
+				conversation.routes = getRoutes(request);
+				routes.put(key, conversation.routes);
+			}
+		}
+
+		conversation.sender = getSender(conversation.routes.get(0), request);
+
+		return conversation;
+	}
+
+	/**
+	 * Starts the clock on a conversation and builds the message to send.
+	 *
+	 * @param conversation the conversation
+	 * @throws ITKMessagingException if the message cannot be built
+	 */
+	private void build(Conversation conversation) throws ITKMessagingException {
+		ITKTransportRoute route = conversation.routes.get(0);
+
+		// The whole conversation, including any wait for the transport, must complete by this
+		conversation.deadline = createDeadline(route);
+
+		conversation.message = buildMessage(conversation.request, route, conversation.service);
+	}
+
+	/**
+	 * Validates that the sender is configured and the request is addressed.
+	 *
+	 * @param request the request
+	 * @throws ITKMessagingException if it is not
+	 */
+	private void validate(ITKMessage request) throws ITKMessagingException {
 		// validate that the injected services have been configured
 		if (itkSenderWS == null){
 			String eMsg = "ITK Sender has not been configured";
@@ -125,30 +421,37 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 			logger.error(ITKLogFormatter.getFormattedLog(eMsg, request),nullParmsException);
 			throw nullParmsException;
 		}
+	}
 
-		// Get the ITKService from the DirectoryOfService
-		String serviceId = request.getMessageProperties().getServiceId();
-		ITKService service = directoryOfServices.getService(serviceId);
-
-		if (!service.supportsSync()){
-			String fLog = ITKLogFormatter.getFormattedLog("Invalid service call. Service does not support Synchronous invocation.", request); 
-			logger.error(fLog);
-			throw new ITKMessagingException("Service " + service.getServiceId() + " can not be called Synchronously");
-		}
-
-		ITKTransportRoute route = getRoute(request);
-
-		ITKSender sender = getSender(route, request);
+	/**
+	 * Audits and sends the request, then checks and audits the response.
+	 *
+	 * @param conversation the conversation
+	 * @return the response
+	 * @throws ITKMessagingException the iTK messaging exception
+	 */
+	private ITKMessage converse(Conversation conversation) throws ITKMessagingException {
 
-		ITKMessage message = buildMessage(request, route, service);
+		ITKMessage request = conversation.request;
+		ITKMessage message = conversation.message;
+		ITKSender sender = conversation.sender;
+		List<ITKTransportRoute> routes = conversation.routes;
+		ITKDeadline deadline = conversation.deadline;
 
 		auditRequest(message);
 		
-		logger.trace("Sending via configured transport: " + message.getFullMessage());
+		if (logger.isTraceEnabled()) {
+			logger.trace("Sending via configured transport: " + message.getFullMessage());
+		}
 		
 		ITKMessage response = null;
 		try {
-			response = sender.sendSync(route, message);
+			if (isHedged(conversation.service, routes, sender)) {
+				response = sendHedged((ITKAsyncSender) sender, routes, message, deadline,
+						getLatencyTracker(conversation.service.getServiceId()));
+			} else {
+				response = sender.sendSync(routes.get(0), message, deadline);
+			}
 		} catch (ITKMessagingException itkex){
 			// Ensure lower level exceptions are logged with key ITK attributes, then re-throw
 			logger.error(ITKLogFormatter.getFormattedLog(itkex.getMessage(), request));
@@ -171,49 +474,601 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.source.ITKMessageSender#send(uk.nhs.interoperability.payload.ITKMessage)
-	 * Not implemented in this version (not required for SMSP)
+	 * The request is validated, routed, audited and appended to the outboundJournal on the
+	 * calling thread, which then returns. It is sent by one of the dispatchThreads.
 	 */
 	@Override
 	public void send(ITKMessage request) throws ITKMessagingException {
 
-		ITKMessagingException notImplementedException = 
-				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Send Not Yet Implemented");
-		throw notImplementedException;
-		
+		if (outboundJournal == null){
+			String eMsg = "No outbound journal has been configured for send";
+			ITKMessagingException nullServiceException = new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+			logger.error(ITKLogFormatter.getFormattedLog(eMsg, request),nullServiceException);
+			throw nullServiceException;
+		}
+		validate(request);
+
+		String serviceId = request.getMessageProperties().getServiceId();
+		ITKService service = directoryOfServices.getService(serviceId);
+
+		// Fail now rather than journal a message which can never be routed
+		ITKTransportRoute route = getRoutes(request).get(0);
+		getSender(route, request);
+
+		ITKMessage message = buildMessage(request, route, service);
+
+		start();
+		auditRequest(message);
+		ITKOutboundJournal.Entry entry = outboundJournal.append(message.getConversationId(), message.getFullMessage());
+		dispatch(entry, message, 1, 0);
+	}
+
+	/**
+	 * Opens the outbound journal, if there is one, and starts sending the messages
+	 * left in it by the last run. Called by the first send if not before; intended
+	 * as the init method of the bean.
+	 *
+	 * @throws ITKMessagingException if the journal cannot be opened
+	 */
+	public synchronized void start() throws ITKMessagingException {
+		if (outboundJournal == null || dispatcher != null) {
+			return;
+		}
+		List<ITKOutboundJournal.Entry> recovered = outboundJournal.open();
+		dispatcher = Executors.newScheduledThreadPool(Math.max(1, dispatchThreads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ITK-Dispatch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (!recovered.isEmpty()) {
+			logger.info("Sending " + recovered.size() + " messages recovered from the outbound journal");
+		}
+		for (ITKOutboundJournal.Entry entry : recovered) {
+			dispatch(entry, null, 1, 0);
+		}
+	}
+
+	/**
+	 * Schedules an attempt at sending a journalled message.
+	 *
+	 * @param entry the journal entry
+	 * @param message the message, or <code>null</code> to rebuild it from the journal
+	 * @param attempt the attempt, 1 for the first
+	 * @param delay the delay in milliseconds
+	 */
+	private void dispatch(final ITKOutboundJournal.Entry entry, final ITKMessage message, final int attempt, long delay) {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = dispatcher;
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					deliver(entry, message, attempt);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			// Closed - the next run will send it
+			logger.warn("Sender closed - conversation " + entry.getConversationId() + " left in the outbound journal");
+		}
+	}
+
+	/**
+	 * Sends a journalled message, through the route the DOS gives for this attempt, and
+	 * marks it delivered. A retryable failure is tried again later until the attempts
+	 * run out; any other failure marks it failed.
+	 */
+	private void deliver(ITKOutboundJournal.Entry entry, ITKMessage message, int attempt) {
+		ITKMessagingException failure;
+		try {
+			if (message == null) {
+				message = rebuildMessage(entry);
+			}
+			// Move on to the next route, if there is one, with each retry
+			List<ITKTransportRoute> routes = getRoutes(message);
+			ITKTransportRoute route = routes.get((attempt - 1) % routes.size());
+			getSender(route, message).send(route, message);
+			outboundJournal.markDelivered(entry);
+			dispatched.incrementAndGet();
+			logger.debug(ITKLogFormatter.getFormattedLog("Journalled message delivered", message));
+			return;
+		} catch (ITKMessagingException me) {
+			failure = me;
+		} catch (RuntimeException re) {
+			logger.error("Unexpected error sending conversation " + entry.getConversationId(), re);
+			failure = new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, re.getMessage(), re);
+		}
+
+		ITKRetryPolicy policy = message == null ? ITKRetryPolicy.NO_RETRY
+				: ITKRetryPolicy.forService(message.getMessageProperties().getServiceId());
+		int maxAttempts = Math.max(dispatchMaxAttempts, policy.getMaxAttempts());
+		if (message != null && attempt < maxAttempts && ITKRetryPolicy.isRetryable(failure)) {
+			long delay = Math.max(dispatchRetryDelay, policy.getDelay(attempt));
+			logger.warn(ITKLogFormatter.getFormattedLog("Attempt " + attempt + " failed (" + failure.getMessage()
+					+ ") - retrying in " + delay + "ms", message));
+			dispatch(entry, message, attempt + 1, delay);
+		} else {
+			logger.error("Unable to deliver conversation " + entry.getConversationId() + " after " + attempt
+					+ " attempts - " + failure.getMessage());
+			outboundJournal.markFailed(entry);
+			dispatchFailed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Rebuilds a message recovered from the journal, taking its properties from
+	 * the distribution envelope.
+	 */
+	private static ITKMessage rebuildMessage(ITKOutboundJournal.Entry entry) throws ITKMessagingException {
+		String fullMessage = entry.getMessage();
+		try {
+			Document distributionEnvelope = DomUtils.parse(fullMessage);
+			return new JournalledMessage(entry.getConversationId(),
+					ITKMessagePropertiesImpl.build(distributionEnvelope), fullMessage);
+		} catch (SAXException se) {
+			String eMsg = "Unable to parse journalled message";
+			logger.error(eMsg, se);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg, se);
+		} catch (IOException ioe) {
+			String eMsg = "Unable to read journalled message";
+			logger.error(eMsg, ioe);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg, ioe);
+		} catch (ParserConfigurationException pce) {
+			String eMsg = "XML Configuration Error reading journalled message";
+			logger.error(eMsg, pce);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg, pce);
+		}
+	}
+
+	/**
+	 * A message rebuilt from its distribution envelope
+	 */
+	private static class JournalledMessage extends ITKSimpleMessageImpl {
+		JournalledMessage(String conversationId, ITKMessageProperties messageProperties, String fullMessage) {
+			super(conversationId);
+			this.messageProperties = messageProperties;
+			this.fullMessage = fullMessage;
+		}
 	}
 	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.source.ITKMessageSender#sendAsync(uk.nhs.interoperability.payload.ITKMessage)
-	 * Not implemented in this version (not required for SMSP)
+	 * Carries out a synchronous conversation on the async threads. The outcome is given to the
+	 * asyncCallback if one is set, and logged if not.
 	 */
 	@Override
-	public void sendAsync(ITKMessage request) throws ITKMessagingException {
+	public void sendAsync(final ITKMessage request) throws ITKMessagingException {
 
-		ITKMessagingException notImplementedException = 
-				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Async Not Yet Implemented");
-		throw notImplementedException;
-		
+		ITKSendCallback callback = asyncCallback;
+		if (callback == null) {
+			callback = new ITKSendCallback() {
+				@Override
+				public void completed(ITKMessage response) {
+					logger.debug(ITKLogFormatter.getFormattedLog("Asynchronous request completed", request));
+				}
+
+				@Override
+				public void failed(ITKMessagingException exception) {
+					logger.error(ITKLogFormatter.getFormattedLog("Asynchronous request failed: " + exception.getMessage(), request));
+				}
+			};
+		}
+		sendSyncAsync(request, callback);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.source.ITKAsyncMessageSender#sendSyncAsync(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKSendCallback)
+	 * The request is validated and routed on the calling thread; it is audited, sent and its
+	 * response processed on one of the asyncThreads.
+	 */
+	@Override
+	public Future<ITKMessage> sendSyncAsync(ITKMessage request, final ITKSendCallback callback) throws ITKMessagingException {
+
+		final Conversation conversation = prepare(request);
+		final SettableFuture<ITKMessage> future = new SettableFuture<ITKMessage>();
+		Runnable send = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ITKCompletions.complete(future, callback, converse(conversation), null);
+				} catch (ITKMessagingException me) {
+					ITKCompletions.complete(future, callback, null, me);
+				} catch (RuntimeException re) {
+					logger.error(ITKLogFormatter.getFormattedLog("Unexpected error sending request", conversation.request), re);
+					ITKCompletions.complete(future, callback, null, new ITKMessagingException(
+							ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, re.getMessage(), re));
+				}
+			}
+		};
+
+		ThreadPoolExecutor executor = getAsyncExecutor();
+		try {
+			executor.execute(send);
+		} catch (RejectedExecutionException ree) {
+			if (executor.isShutdown()) {
+				String eMsg = "Unable to send ITK Message - sender closed";
+				logger.error(ITKLogFormatter.getFormattedLog(eMsg, request));
+				throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, eMsg);
+			}
+			asyncRejected.incrementAndGet();
+			if (!REJECT_CALLER_RUNS.equalsIgnoreCase(asyncRejectionPolicy)) {
+				String eMsg = "Unable to send ITK Message - " + asyncQueueCapacity + " requests already waiting";
+				logger.error(ITKLogFormatter.getFormattedLog(eMsg, request));
+				throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, eMsg);
+			}
+			logger.warn(ITKLogFormatter.getFormattedLog("Async queue full - sending on the calling thread", request));
+			send.run();
+		}
+		return future;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.source.ITKBatchMessageSender#sendSyncBatch(java.util.List)
+	 * Services and routes are looked up once for each distinct service id and address. The
+	 * requests are then shared out by destination, each destination being given at most
+	 * batchConcurrencyPerDestination of the batchThreads, which build and send them.
+	 */
+	@Override
+	public List<ITKBatchResult> sendSyncBatch(List<ITKMessage> requests) throws ITKMessagingException {
+
+		if (requests == null){
+			String eMsg = "Requests are null";
+			ITKMessagingException nullParmsException = new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+			logger.error(eMsg,nullParmsException);
+			throw nullParmsException;
+		}
+
+		final ITKBatchResult[] results = new ITKBatchResult[requests.size()];
+		final Conversation[] conversations = new Conversation[requests.size()];
+		Map<String, ITKService> services = new HashMap<String, ITKService>();
+		Map<String, List<ITKTransportRoute>> routes = new HashMap<String, List<ITKTransportRoute>>();
+		Map<String, Queue<Integer>> destinations = new LinkedHashMap<String, Queue<Integer>>();
+		int sending = 0;
+		for (int i = 0; i < results.length; i++) {
+			ITKMessage request = requests.get(i);
+			try {
+				conversations[i] = resolve(request, services, routes);
+			} catch (ITKMessagingException me) {
+				results[i] = new ITKBatchResult(request, null, me);
+				continue;
+			}
+			String destination = conversations[i].routes.get(0).getPhysicalAddress();
+			Queue<Integer> queue = destinations.get(destination);
+			if (queue == null) {
+				queue = new ConcurrentLinkedQueue<Integer>();
+				destinations.put(destination, queue);
+			}
+			queue.add(i);
+			sending++;
+		}
+		logger.debug("Sending batch of " + results.length + " requests to " + destinations.size() + " destinations");
+
+		final CountDownLatch done = new CountDownLatch(sending);
+		ThreadPoolExecutor executor = getBatchExecutor();
+		for (final Queue<Integer> queue : destinations.values()) {
+			Runnable worker = new Runnable() {
+				@Override
+				public void run() {
+					Integer i;
+					while ((i = queue.poll()) != null) {
+						Conversation conversation = conversations[i];
+						try {
+							build(conversation);
+							results[i] = new ITKBatchResult(conversation.request, converse(conversation), null);
+						} catch (ITKMessagingException me) {
+							results[i] = new ITKBatchResult(conversation.request, null, me);
+						} catch (RuntimeException re) {
+							logger.error(ITKLogFormatter.getFormattedLog("Unexpected error sending request", conversation.request), re);
+							results[i] = new ITKBatchResult(conversation.request, null, new ITKMessagingException(
+									ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, re.getMessage(), re));
+						} finally {
+							done.countDown();
+						}
+					}
+				}
+			};
+			int workers = Math.min(Math.max(1, batchConcurrencyPerDestination), queue.size());
+			for (int w = 0; w < workers; w++) {
+				try {
+					executor.execute(worker);
+				} catch (RejectedExecutionException ree) {
+					// Closed - finish the batch on the calling thread
+					worker.run();
+				}
+			}
+		}
+
+		try {
+			done.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			String eMsg = "Interrupted waiting for batch responses";
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		return Arrays.asList(results);
+	}
+
+	private synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (asyncExecutor == null) {
+			int threads = Math.max(1, asyncThreads);
+			asyncExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, asyncQueueCapacity)), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ITK-Async-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return asyncExecutor;
+	}
+
+	private synchronized ThreadPoolExecutor getBatchExecutor() {
+		if (batchExecutor == null) {
+			int threads = Math.max(1, batchThreads);
+			batchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ITK-Batch-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			batchExecutor.allowCoreThreadTimeOut(true);
+		}
+		return batchExecutor;
 	}
 
 	/**
-	 * Gets the route.
+	 * Stops the async threads once the requests already given to them have been sent,
+	 * and stops the dispatch threads - journalled messages not yet delivered are sent
+	 * by the next run. Intended as the destroy method of the bean.
+	 */
+	public synchronized void close() {
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+		}
+		if (dispatcher != null) {
+			dispatcher.shutdownNow();
+		}
+		if (batchExecutor != null) {
+			batchExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Gets the number of asynchronous requests waiting for a thread.
+	 *
+	 * @return the queue depth
+	 */
+	public int getAsyncQueueDepth() {
+		ThreadPoolExecutor executor = asyncExecutor;
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * Gets the number of asynchronous conversations in progress.
+	 *
+	 * @return the number of busy async threads
+	 */
+	public int getAsyncActiveCount() {
+		ThreadPoolExecutor executor = asyncExecutor;
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+
+	/**
+	 * Gets the number of asynchronous requests which found the queue full.
+	 *
+	 * @return the number of rejections
+	 */
+	public long getAsyncRejectedCount() {
+		return asyncRejected.get();
+	}
+
+	/**
+	 * Gets the number of journalled messages delivered since the sender started.
+	 *
+	 * @return the number delivered
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Gets the number of journalled messages marked failed since the sender started.
+	 *
+	 * @return the number failed
+	 */
+	public long getDispatchFailedCount() {
+		return dispatchFailed.get();
+	}
+
+	/**
+	 * Creates the deadline for a conversation.
+	 *
+	 * @param route the route
+	 * @return the deadline
+	 */
+	private ITKDeadline createDeadline(ITKTransportRoute route) {
+		long budget = route.getTimeToLive() * 1000L;
+		if (conversationTimeout > 0 && conversationTimeout < budget) {
+			budget = conversationTimeout;
+		}
+		return ITKDeadline.after(budget);
+	}
+
+	/**
+	 * Gets the routes, in order of preference.
 	 *
 	 * @param request the request
-	 * @return the route
+	 * @return the routes
 	 * @throws ITKMessagingException the iTK messaging exception
 	 */
-	private ITKTransportRoute getRoute(ITKMessage message) throws ITKMessagingException {
+	private List<ITKTransportRoute> getRoutes(ITKMessage message) throws ITKMessagingException {
 
-		ITKTransportRoute route ;
 		String serviceId = message.getMessageProperties().getServiceId();
 		ITKAddress toAddress = message.getMessageProperties().getToAddress();
 		
-		// Resolve Destination Service in terms of a TransportRoute
-		route = directoryOfServices.resolveDestination(serviceId, toAddress);
+		// Resolve Destination Service in terms of TransportRoutes
+		List<ITKTransportRoute> routes = directoryOfServices.resolveDestinations(serviceId, toAddress);
 
-		logger.debug("Found transport route:" + route);
+		logger.debug("Found transport routes:" + routes);
 
-		return route;
+		return routes;
+	}
+
+	/**
+	 * Whether a request should be hedged - sent to a second route if the first is slow.
+	 */
+	private boolean isHedged(ITKService service, List<ITKTransportRoute> routes, ITKSender sender) {
+		return hedgePercentile > 0 && routes.size() > 1 && service.isIdempotent() && sender instanceof ITKAsyncSender;
+	}
+
+	private ITKLatencyTracker getLatencyTracker(String serviceId) {
+		ITKLatencyTracker tracker = latencies.get(serviceId);
+		if (tracker == null) {
+			ITKLatencyTracker newTracker = new ITKLatencyTracker(LATENCY_SAMPLES);
+			tracker = latencies.putIfAbsent(serviceId, newTracker);
+			if (tracker == null) {
+				tracker = newTracker;
+			}
+		}
+		return tracker;
+	}
+
+	/**
+	 * Sends to the first route and, if it has not answered within the hedge delay, to
+	 * the second route as well. If the first route cannot be reached or is busy before
+	 * then the second route is sent to straight away. Whichever responds first is used. A
+	 * failure is only reported once every route sent to has failed.
+	 *
+	 * @return the first response
+	 */
+	private ITKMessage sendHedged(ITKAsyncSender sender, List<ITKTransportRoute> routes, ITKMessage message,
+			ITKDeadline deadline, ITKLatencyTracker latency) throws ITKMessagingException {
+
+		long start = System.nanoTime();
+		long delay = Math.max(hedgeMinDelay, latency.getPercentile(hedgePercentile, MIN_LATENCY_SAMPLES));
+
+		Hedge hedge = new Hedge(sender, routes.subList(0, 2), message, deadline);
+		hedge.sendNext();
+
+		ITKMessage response = null;
+		try {
+			try {
+				response = hedge.result.get(delay, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException te) {
+				ITKTransportRoute hedged = hedge.sendNext();
+				if (hedged != null) {
+					logger.info(ITKLogFormatter.getFormattedLog("No response after " + delay + "ms - also sent to "
+							+ hedged.getPhysicalAddress(), message));
+				}
+				response = hedge.result.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+			}
+		} catch (TimeoutException te) {
+			String eMsg = "Conversation deadline passed waiting for ITK Response";
+			logger.error(ITKLogFormatter.getFormattedLog(eMsg, message));
+			throw new ITKTransportTimeoutException(eMsg);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			String eMsg = "Interrupted waiting for ITK Response";
+			logger.error(ITKLogFormatter.getFormattedLog(eMsg, message));
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof ITKMessagingException) {
+				throw (ITKMessagingException) ee.getCause();
+			}
+			throw new ITKMessagingException(ee.getCause());
+		}
+
+		// A response from the second route shows the first took at least this long,
+		// so the slow tail is still counted
+		latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return response;
+	}
+
+	/**
+	 * Sends a hedged request to each of its routes in turn and collects the responses
+	 */
+	private static class Hedge implements ITKSendCallback {
+
+		private final ITKAsyncSender sender;
+		private final List<ITKTransportRoute> routes;
+		private final ITKMessage message;
+		private final ITKDeadline deadline;
+		private final SettableFuture<ITKMessage> result = new SettableFuture<ITKMessage>();
+		private int sent = 0;
+		private int outstanding = 0;
+		private ITKMessagingException failure = null;
+
+		Hedge(ITKAsyncSender sender, List<ITKTransportRoute> routes, ITKMessage message, ITKDeadline deadline) {
+			this.sender = sender;
+			this.routes = routes;
+			this.message = message;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Sends to the next route, unless the outcome is already known or every
+		 * route has been sent to
+		 *
+		 * @return the route sent to, or null if there was none
+		 */
+		ITKTransportRoute sendNext() {
+			ITKTransportRoute route;
+			synchronized (this) {
+				if (result.isDone() || sent == routes.size()) {
+					return null;
+				}
+				route = routes.get(sent++);
+				outstanding++;
+			}
+			try {
+				sender.sendSyncAsync(route, message, deadline, this);
+			} catch (ITKMessagingException me) {
+				failed(me);
+			}
+			return route;
+		}
+
+		@Override
+		public void completed(ITKMessage response) {
+			result.set(response);
+		}
+
+		@Override
+		public void failed(ITKMessagingException exception) {
+			synchronized (this) {
+				outstanding--;
+				if (failure == null) {
+					failure = exception;
+				}
+			}
+			// No need to wait out the hedge delay once a route is known to be unreachable or busy
+			boolean routeFailed = exception instanceof ITKCommsException || ITKRetryPolicy.isRetryable(exception);
+			if (routeFailed && sendNext() != null) {
+				logger.info(ITKLogFormatter.getFormattedLog("Hedged route failed (" + exception.getMessage()
+						+ ") - sent to the next route", message));
+				return;
+			}
+			synchronized (this) {
+				if (outstanding > 0) {
+					return;
+				}
+			}
+			result.setException(failure);
+		}
 	}
 	
 	/**
@@ -235,7 +1090,11 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 		}
 		request.setBase64(service.isBase64());
 		request.setMimeType(service.getMimeType());
-		request.buildFullMessage(toItkTransform);
+		if (service.isStreamingEnvelope()){
+			request.buildFullMessage();
+		} else {
+			request.buildFullMessage(toItkTransform);
+		}
 		return request;
 	}
 	
@@ -250,7 +1109,9 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 		
 		ITKSender sender = null;
 		// Resolve the sender implementation according to the transport type
-		if (route.getTransportType().equals(ITKTransportRoute.HTTP_WS)){
+		if (route.getTransportType().equals(ITKTransportRoute.HTTP_WS)
+				|| route.getTransportType().equals(ITKTransportRoute.HTTP_WS_POOLED)
+				|| route.getTransportType().equals(ITKTransportRoute.HTTP_WS_H2)){
 			sender = itkSenderWS;
 		}
 
@@ -273,36 +1134,46 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 		
 		try {
 			
-			Document responseDoc = DomUtils.parse(response.getBusinessPayload());
-			String responsePayloadName = responseDoc.getDocumentElement().getLocalName();
+			// Single pass over the response - only the first payload is materialised.
+			// Where the transport has already parsed the response its DOM is read in place.
+			DistributionEnvelopeReader responseDE;
+			if (response.hasBusinessPayloadDocument()){
+				responseDE = DistributionEnvelopeReader.read(new DOMSource(response.getBusinessPayloadDocument()));
+			} else {
+				responseDE = DistributionEnvelopeReader.read(response.getBusinessPayload());
+			}
+			String responsePayloadName = responseDE.getRootName();
 			logger.trace("Received:"+responsePayloadName);
 			
-			if (responsePayloadName.equalsIgnoreCase("DistributionEnvelope")){
+			if (responseDE.isDistributionEnvelope()){
 				logger.trace("Processing DistributionEnvelope");
 	
 				//Extract message properties from the response
-				response.setMessageProperties(ITKMessagePropertiesImpl.build(responseDoc));
+				response.setMessageProperties(responseDE.getMessageProperties());
 	
 				// Check plain payload
-				String mimetype = (String)XPaths.ITK_FIRST_MIMETYPE_XPATH.evaluate(responseDoc);
+				String mimetype = responseDE.getMimeType();
 				
 				if (mimetype.equalsIgnoreCase("text/plain")){
 					// Get the payload as a text node
-					String payload = (String)XPaths.ITK_FIRST_PAYLOAD_TEXT_XPATH.evaluate(responseDoc);
+					String payload = responseDE.getPayloadText();
 					response.setBusinessPayload(payload);
 					
 					// Check base64 encoding
-					String base64 = (String)XPaths.ITK_FIRST_BASE64_XPATH.evaluate(responseDoc);
-					if (base64.equalsIgnoreCase("true")){
+					if (responseDE.isBase64()){
 						byte[] payloadBytes = javax.xml.bind.DatatypeConverter.parseBase64Binary(payload);
 						response.setBusinessPayload(new String(payloadBytes));
 					}
 					
+				} else if (responseDE.getPayloadDocument() != null){
+					// Read from a DOM - hand the payload on without serialising it
+					response.setBusinessPayloadDocument(responseDE.getPayloadDocument());
+					
 				} else {
 					// Get the first payload from the distribution envelope
-					Document businessPayloadDocument = DomUtils.createDocumentFromNode((Node)XPaths.ITK_FIRST_PAYLOAD_XPATH.evaluate(responseDoc, XPathConstants.NODE));
+					String businessPayload = responseDE.getPayloadXML();
 					
-					if (businessPayloadDocument == null){
+					if (businessPayload == null){
 						// exception
 						ITKMessagingException unknownResponseException = new ITKMessagingException(
 								ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "No payload in Distribution Envelope");
@@ -310,10 +1181,7 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 						throw unknownResponseException;
 					}
 					
-					//Show the extracted payload in the trace log
-					String businessPayloadName = businessPayloadDocument.getDocumentElement().getLocalName();
-					logger.trace("Business Payload Name is:"+businessPayloadName);
-					response.setBusinessPayload(DomUtils.serialiseToXML(businessPayloadDocument));
+					response.setBusinessPayload(businessPayload);
 				}
 				
 		
@@ -325,18 +1193,9 @@ public class ITKMessageSenderImpl implements ITKMessageSender {
 				
 			}
 			
-		} catch (SAXException se) {
-			logger.error(ITKLogFormatter.getFormattedLog("SAXException processing response from Transport", request),se);
+		} catch (XMLStreamException xse) {
+			logger.error(ITKLogFormatter.getFormattedLog("XMLStreamException processing response from Transport", request),xse);
 			throw new ITKCommsException("XML Error Processing ITK Response");
-		} catch (IOException ioe) {
-			logger.error(ITKLogFormatter.getFormattedLog("IOException on Transport", request),ioe);
-			throw new ITKCommsException("Transport error sending ITK Message");
-		} catch (ParserConfigurationException pce) {
-			logger.error(ITKLogFormatter.getFormattedLog("ParseConfigurationException on Transport", request),pce);
-			throw new ITKCommsException("XML Configuration Error Processing ITK Response");
-		} catch (XPathExpressionException xpe) {
-			logger.error(ITKLogFormatter.getFormattedLog("XPathExpressionException reading payload on Transport Response", request),xpe);
-			throw new ITKCommsException("No Payload found in ITK Response");
 		}
 		
 		return ;
@@ -0,0 +1,586 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+
+/**
+ * An append-only journal of outbound messages, kept in memory-mapped segment files
+ * so that a message accepted by {@link ITKMessageSender#send} survives a restart.<br/><br/>
+ *
+ * Each record holds a sequence number, a state, the conversation id and the full
+ * message, guarded by a CRC. Appends are written to the mapping and made durable by
+ * a single sync thread, which forces everything appended since its last sync in one
+ * go - so many appends share each fsync. A delivered record has its state overwritten
+ * in place and a segment is deleted once none of its records are pending.<br/><br/>
+ *
+ * Opening the journal scans the segments left by the last run and returns the
+ * records still pending. A record marked delivered just before a crash may be
+ * returned again, so delivery is at least once.
+ *
+ * @author Nick Jones
+ */
+public class ITKOutboundJournal {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKOutboundJournal.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int MAGIC = 0x49544B4A;
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER = 8;
+
+	// length, crc, sequence, state
+	private static final int RECORD_HEADER = 17;
+	private static final int STATE_OFFSET = 16;
+
+	private static final byte PENDING = 0;
+	private static final byte DELIVERED = 1;
+	private static final byte FAILED = 2;
+
+	private static final Pattern SEGMENT_NAME = Pattern.compile("itk-journal-(\\d+)\\.log");
+
+	private String directory = null;
+	/**
+	 * Sets the directory holding the segment files
+	 *
+	 * @param directory
+	 */
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	private int segmentSize = 16 * 1024 * 1024;
+	/**
+	 * Sets the size in bytes of each segment file. A message too big for a
+	 * segment of this size gets a segment of its own.
+	 *
+	 * @param segmentSize
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	private long syncInterval = 0;
+	/**
+	 * Sets how long in milliseconds the sync thread waits after the first unsynced
+	 * append for others to join the same fsync. Zero (the default) syncs at once -
+	 * appends made while a sync is running still share the next one.
+	 *
+	 * @param syncInterval
+	 */
+	public void setSyncInterval(long syncInterval) {
+		this.syncInterval = syncInterval;
+	}
+
+	private boolean syncOnAppend = true;
+	/**
+	 * Sets whether append waits for its record to be synced to disk. If not, a
+	 * record survives the process failing but may be lost if the machine fails
+	 * before the next sync.
+	 *
+	 * @param syncOnAppend
+	 */
+	public void setSyncOnAppend(boolean syncOnAppend) {
+		this.syncOnAppend = syncOnAppend;
+	}
+
+	/**
+	 * A message in the journal
+	 */
+	public static class Entry {
+
+		private final Segment segment;
+		private final int position;
+		private final long sequence;
+		private final String conversationId;
+
+		private Entry(Segment segment, int position, long sequence, String conversationId) {
+			this.segment = segment;
+			this.position = position;
+			this.sequence = sequence;
+			this.conversationId = conversationId;
+		}
+
+		/**
+		 * Gets the sequence number, which gives the order messages were appended.
+		 *
+		 * @return the sequence number
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * Gets the conversation id.
+		 *
+		 * @return the conversation id
+		 */
+		public String getConversationId() {
+			return conversationId;
+		}
+
+		/**
+		 * Reads the full message back from the journal.
+		 *
+		 * @return the full message
+		 */
+		public String getMessage() {
+			ByteBuffer record = segment.buffer.duplicate();
+			int length = record.getInt(position);
+			record.position(position + RECORD_HEADER);
+			int idLength = record.getShort() & 0xFFFF;
+			byte[] message = new byte[length - 2 - idLength];
+			record.position(record.position() + idLength);
+			record.get(message);
+			return new String(message, UTF8);
+		}
+	}
+
+	/**
+	 * A mapped segment file
+	 */
+	private static class Segment {
+		final long id;
+		final File file;
+		final MappedByteBuffer buffer;
+		int pending = 0;
+		boolean sealed = false;
+
+		Segment(long id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private final Set<Segment> unsynced = new LinkedHashSet<Segment>();
+	private Segment current = null;
+	private long sequence = 0;
+	private long synced = 0;
+	private long nextSegmentId = 1;
+	private int pending = 0;
+	private long syncs = 0;
+	private boolean open = false;
+	private Thread syncThread = null;
+
+	/**
+	 * Opens the journal, recovering the segments left by the last run, and starts
+	 * the sync thread.
+	 *
+	 * @return the messages which were never delivered, in the order they were appended
+	 * @throws ITKMessagingException if the directory cannot be used
+	 */
+	public synchronized List<Entry> open() throws ITKMessagingException {
+		if (open) {
+			String eMsg = "Outbound journal is already open";
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		if (directory == null) {
+			String eMsg = "Outbound journal directory has not been configured";
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			String eMsg = "Unable to create outbound journal directory " + dir.getAbsolutePath();
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+
+		List<Entry> recovered = new ArrayList<Entry>();
+		for (File file : listSegments(dir)) {
+			Matcher m = SEGMENT_NAME.matcher(file.getName());
+			m.matches();
+			long id = Long.parseLong(m.group(1));
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+			Segment segment = recover(id, file, recovered);
+			if (segment == null) {
+				continue;
+			}
+			if (segment.pending == 0) {
+				delete(segment);
+			} else {
+				segments.add(segment);
+			}
+		}
+		synced = sequence;
+		pending = recovered.size();
+		open = true;
+		logger.info("Opened outbound journal " + dir.getAbsolutePath() + " - " + pending + " messages pending");
+
+		syncThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				syncLoop();
+			}
+		}, "ITK-Journal-Sync");
+		syncThread.setDaemon(true);
+		syncThread.start();
+		return recovered;
+	}
+
+	private static File[] listSegments(File dir) throws ITKMessagingException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			String eMsg = "Unable to list outbound journal directory " + dir.getAbsolutePath();
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		List<File> segmentFiles = new ArrayList<File>();
+		for (File file : files) {
+			if (SEGMENT_NAME.matcher(file.getName()).matches()) {
+				segmentFiles.add(file);
+			}
+		}
+		File[] sorted = segmentFiles.toArray(new File[segmentFiles.size()]);
+		// Fixed width names sort in segment order
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * Scans a segment left by the last run. Scanning stops at the first record which
+	 * is incomplete or fails its CRC - the tail of an append which was never synced.
+	 * Recovered segments are not appended to again.
+	 */
+	private Segment recover(long id, File file, List<Entry> recovered) throws ITKMessagingException {
+		Segment segment = new Segment(id, file, map(file, file.length()));
+		segment.sealed = true;
+		MappedByteBuffer buffer = segment.buffer;
+		if (buffer.capacity() < FILE_HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			logger.error("Ignoring " + file.getAbsolutePath() + " - not an outbound journal segment");
+			return null;
+		}
+		int position = FILE_HEADER;
+		while (position + RECORD_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length < 2 || position + RECORD_HEADER + length > buffer.capacity()) {
+				break;
+			}
+			long recordSequence = buffer.getLong(position + 8);
+			if (buffer.getInt(position + 4) != crc(buffer, position, length)) {
+				logger.warn("Outbound journal segment " + file.getName() + " ends with an incomplete record at " + position);
+				break;
+			}
+			sequence = Math.max(sequence, recordSequence);
+			if (buffer.get(position + STATE_OFFSET) == PENDING) {
+				ByteBuffer record = buffer.duplicate();
+				record.position(position + RECORD_HEADER);
+				byte[] conversationId = new byte[record.getShort() & 0xFFFF];
+				record.get(conversationId);
+				recovered.add(new Entry(segment, position, recordSequence, new String(conversationId, UTF8)));
+				segment.pending++;
+			}
+			position += RECORD_HEADER + length;
+		}
+		return segment;
+	}
+
+	/**
+	 * Appends a message to the journal. Unless syncOnAppend is off, this waits until
+	 * the message has been synced to disk.
+	 *
+	 * @param conversationId the conversation id
+	 * @param message the full message
+	 * @return the entry
+	 * @throws ITKMessagingException if the journal is not open or the segment cannot be created
+	 */
+	public Entry append(String conversationId, String message) throws ITKMessagingException {
+		byte[] id = conversationId.getBytes(UTF8);
+		byte[] body = message.getBytes(UTF8);
+		if (id.length > 0xFFFF) {
+			String eMsg = "Conversation id is too long for the outbound journal";
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		int length = 2 + id.length + body.length;
+
+		Entry entry;
+		synchronized (this) {
+			checkOpen();
+			if (current == null || current.buffer.remaining() < RECORD_HEADER + length) {
+				roll(RECORD_HEADER + length);
+			}
+			MappedByteBuffer buffer = current.buffer;
+			int position = buffer.position();
+			long recordSequence = ++sequence;
+			buffer.putInt(length);
+			buffer.putInt(0);
+			buffer.putLong(recordSequence);
+			buffer.put(PENDING);
+			buffer.putShort((short) id.length);
+			buffer.put(id);
+			buffer.put(body);
+			buffer.putInt(position + 4, crc(buffer, position, length));
+
+			current.pending++;
+			pending++;
+			unsynced.add(current);
+			notifyAll();
+			entry = new Entry(current, position, recordSequence, conversationId);
+		}
+		if (syncOnAppend) {
+			awaitSync(entry.sequence);
+		}
+		return entry;
+	}
+
+	private synchronized void awaitSync(long recordSequence) {
+		while (open && synced < recordSequence) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// The record is written and will be synced with the next batch
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Marks a message as delivered, so that it is not recovered by the next run.
+	 *
+	 * @param entry the entry
+	 */
+	public void markDelivered(Entry entry) {
+		mark(entry, DELIVERED);
+	}
+
+	/**
+	 * Marks a message as failed - it cannot be delivered, and is not recovered by the next run.
+	 *
+	 * @param entry the entry
+	 */
+	public void markFailed(Entry entry) {
+		mark(entry, FAILED);
+	}
+
+	private synchronized void mark(Entry entry, byte state) {
+		if (!open) {
+			// Left pending, so it is recovered and sent again by the next run
+			logger.warn("Outbound journal closed - conversation " + entry.conversationId + " left pending");
+			return;
+		}
+		Segment segment = entry.segment;
+		if (segment.buffer.get(entry.position + STATE_OFFSET) != PENDING) {
+			return;
+		}
+		segment.buffer.put(entry.position + STATE_OFFSET, state);
+		segment.pending--;
+		pending--;
+		if (segment.pending == 0 && segment.sealed) {
+			delete(segment);
+		} else {
+			unsynced.add(segment);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Starts a new segment big enough for a record of the given size.
+	 */
+	private void roll(int recordLength) throws ITKMessagingException {
+		if (current != null) {
+			current.sealed = true;
+			if (current.pending == 0) {
+				delete(current);
+			}
+		}
+		long id = nextSegmentId++;
+		File file = new File(directory, String.format("itk-journal-%019d.log", id));
+		MappedByteBuffer buffer = map(file, Math.max(segmentSize, FILE_HEADER + recordLength));
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		current = new Segment(id, file, buffer);
+		segments.add(current);
+		logger.debug("Started outbound journal segment " + file.getName());
+	}
+
+	private static MappedByteBuffer map(File file, long size) throws ITKMessagingException {
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			// The mapping stays valid after the channel is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch (IOException ioe) {
+			String eMsg = "Unable to map outbound journal segment " + file.getAbsolutePath();
+			logger.error(eMsg, ioe);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, eMsg, ioe);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					logger.warn("Error closing outbound journal segment " + file.getAbsolutePath(), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes a segment none of whose records are pending. The mapping itself is
+	 * released when it is garbage collected.
+	 */
+	private void delete(Segment segment) {
+		segments.remove(segment);
+		unsynced.remove(segment);
+		if (segment == current) {
+			current = null;
+		}
+		if (!segment.file.delete()) {
+			logger.warn("Unable to delete outbound journal segment " + segment.file.getAbsolutePath());
+		} else {
+			logger.debug("Deleted outbound journal segment " + segment.file.getName());
+		}
+	}
+
+	private static int crc(ByteBuffer buffer, int position, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer covered = buffer.duplicate();
+		covered.limit(position + 16);
+		covered.position(position + 8);
+		crc.update(covered);
+		covered.limit(position + RECORD_HEADER + length);
+		covered.position(position + RECORD_HEADER);
+		crc.update(covered);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Syncs, in one batch, every segment changed since the last sync
+	 */
+	private void syncLoop() {
+		while (true) {
+			List<Segment> batch;
+			long target;
+			synchronized (this) {
+				while (open && unsynced.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (open && syncInterval > 0) {
+					try {
+						wait(syncInterval);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (unsynced.isEmpty()) {
+					return;
+				}
+				batch = new ArrayList<Segment>(unsynced);
+				unsynced.clear();
+				target = sequence;
+			}
+			for (Segment segment : batch) {
+				segment.buffer.force();
+			}
+			synchronized (this) {
+				synced = Math.max(synced, target);
+				syncs++;
+				notifyAll();
+			}
+		}
+	}
+
+	private void checkOpen() throws ITKMessagingException {
+		if (!open) {
+			String eMsg = "Outbound journal is not open";
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, eMsg);
+		}
+	}
+
+	/**
+	 * Syncs anything outstanding and closes the journal. Messages still pending
+	 * are recovered when it is next opened.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			if (!open) {
+				return;
+			}
+			open = false;
+			thread = syncThread;
+			syncThread = null;
+			notifyAll();
+		}
+		try {
+			// The sync thread makes a last sync before it finishes
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			segments.clear();
+			current = null;
+		}
+		logger.info("Closed outbound journal - " + pending + " messages pending");
+	}
+
+	/**
+	 * Gets the number of messages not yet delivered.
+	 *
+	 * @return the number of pending messages
+	 */
+	public synchronized int getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * Gets the number of segment files in use.
+	 *
+	 * @return the number of segments
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Gets the number of syncs made. With many appends in flight this is well
+	 * below the number of appends.
+	 *
+	 * @return the number of syncs
+	 */
+	public synchronized long getSyncCount() {
+		return syncs;
+	}
+
+}
@@ -0,0 +1,183 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.util.ITKServiceProperties;
+
+/**
+ * How often, and how far apart, a failed message to a service is retried.<br/><br/>
+ *
+ * Only busy tones, transport timeouts and exceptions carrying the
+ * {@link ITKMessagingException#PROCESSING_ERROR_RETRYABLE_CODE} are retried. The delay
+ * before each retry grows exponentially up to a maximum, and a random part of it is
+ * taken off so that callers who failed together do not all retry together.<br/><br/>
+ *
+ * The policy for a service is read from service.properties, falling back to the DEFAULT
+ * entries:
+ * <pre>
+ * &lt;service&gt;.retryMaxAttempts   - attempts including the first, 1 for no retries
+ * &lt;service&gt;.retryInitialDelay  - milliseconds before the first retry
+ * &lt;service&gt;.retryMaxDelay      - cap on the delay in milliseconds
+ * &lt;service&gt;.retryMultiplier    - growth of the delay after each retry
+ * &lt;service&gt;.retryJitter        - fraction of each delay which is random, 0 to 1
+ * </pre>
+ *
+ * @author Nick Jones
+ */
+public class ITKRetryPolicy {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKRetryPolicy.class);
+
+	private static final String DEFAULT = "DEFAULT";
+
+	/**
+	 * A policy which never retries
+	 */
+	public static final ITKRetryPolicy NO_RETRY = new ITKRetryPolicy(1, 0, 0, 1, 0);
+
+	private final int maxAttempts;
+	private final long initialDelay;
+	private final long maxDelay;
+	private final double multiplier;
+	private final double jitter;
+
+	/**
+	 * Instantiates a new retry policy.
+	 *
+	 * @param maxAttempts the number of attempts including the first
+	 * @param initialDelay milliseconds before the first retry
+	 * @param maxDelay the cap on the delay in milliseconds
+	 * @param multiplier the growth of the delay after each retry
+	 * @param jitter the fraction of each delay which is random, from 0 to 1
+	 */
+	public ITKRetryPolicy(int maxAttempts, long initialDelay, long maxDelay, double multiplier, double jitter) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialDelay = Math.max(0, initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, maxDelay);
+		this.multiplier = Math.max(1, multiplier);
+		this.jitter = Math.min(1, Math.max(0, jitter));
+	}
+
+	/**
+	 * Reads the retry policy for a service from service.properties.
+	 *
+	 * @param serviceId the service id
+	 * @return the policy, {@link #NO_RETRY} if none is configured
+	 */
+	public static ITKRetryPolicy forService(String serviceId) {
+		int maxAttempts = (int) getLong(serviceId, "retryMaxAttempts", 1);
+		if (maxAttempts <= 1) {
+			return NO_RETRY;
+		}
+		return new ITKRetryPolicy(maxAttempts,
+				getLong(serviceId, "retryInitialDelay", 1000),
+				getLong(serviceId, "retryMaxDelay", 10000),
+				getDouble(serviceId, "retryMultiplier", 2),
+				getDouble(serviceId, "retryJitter", 0.5));
+	}
+
+	/**
+	 * Whether a failure is worth retrying at all - a busy tone, a timeout or
+	 * an error the sender has marked as retryable.
+	 *
+	 * @param exception the failure
+	 * @return true if it is retryable
+	 */
+	public static boolean isRetryable(ITKMessagingException exception) {
+		return exception instanceof ITKUnavailableException
+				|| exception instanceof ITKTransportTimeoutException
+				|| exception.getErrorCode() == ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE;
+	}
+
+	/**
+	 * Whether a message should be sent again.
+	 *
+	 * @param exception the failure of the last attempt
+	 * @param attempts the number of attempts made so far
+	 * @return true if it should be retried
+	 */
+	public boolean shouldRetry(ITKMessagingException exception, int attempts) {
+		return attempts < maxAttempts && isRetryable(exception);
+	}
+
+	/**
+	 * Gets the delay before a retry.
+	 *
+	 * @param retry the retry, 1 for the first
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(int retry) {
+		double delay = initialDelay;
+		for (int i = 1; i < retry && delay < maxDelay; i++) {
+			delay *= multiplier;
+		}
+		delay = Math.min(delay, maxDelay);
+		if (jitter > 0) {
+			delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+		}
+		return (long) delay;
+	}
+
+	/**
+	 * Gets the number of attempts, including the first.
+	 *
+	 * @return the maximum number of attempts
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	private static String getServiceProperty(String serviceId, String propertyName) {
+		String propertyValue = ITKServiceProperties.getProperty(serviceId + "." + propertyName);
+		if (propertyValue == null) {
+			propertyValue = ITKServiceProperties.getProperty(DEFAULT + "." + propertyName);
+		}
+		return propertyValue;
+	}
+
+	private static long getLong(String serviceId, String propertyName, long defaultValue) {
+		String propertyValue = getServiceProperty(serviceId, propertyName);
+		if (propertyValue == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(propertyValue.trim());
+		} catch (NumberFormatException nfe) {
+			logger.warn("Invalid " + propertyName + " for " + serviceId + " [" + propertyValue + "] - using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private static double getDouble(String serviceId, String propertyName, double defaultValue) {
+		String propertyValue = getServiceProperty(serviceId, propertyName);
+		if (propertyValue == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(propertyValue.trim());
+		} catch (NumberFormatException nfe) {
+			logger.warn("Invalid " + propertyName + " for " + serviceId + " [" + propertyValue + "] - using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
+
+/**
+ * Retries failed sends according to an {@link ITKRetryPolicy}.<br/><br/>
+ *
+ * Each attempt is only started, typically through {@link ITKAsyncMessageSender#sendSyncAsync},
+ * and reports its outcome to a callback. A failure the policy allows is put on a timer,
+ * whose threads just start the next attempt once its delay has passed. Neither waiting
+ * out a backoff nor waiting for a response holds a thread.
+ *
+ * @author Nick Jones
+ */
+public class ITKRetryScheduler {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKRetryScheduler.class);
+
+	/**
+	 * A single attempt at sending
+	 */
+	public interface Attempt {
+
+		/**
+		 * Starts the attempt without waiting for it to complete. The outcome
+		 * must be given to the callback.
+		 *
+		 * @param attempt the attempt number, 1 for the first
+		 * @param callback the callback to notify on completion
+		 * @throws ITKMessagingException if the attempt could not be started
+		 */
+		void start(int attempt, ITKSendCallback callback) throws ITKMessagingException;
+	}
+
+	private int threads = 2;
+	/**
+	 * Sets the number of timer threads which start retries
+	 *
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	private ScheduledExecutorService timer = null;
+	private boolean closed = false;
+
+	/**
+	 * Starts the first attempt on the calling thread and, each time an attempt fails
+	 * in a way the policy allows, schedules another until one succeeds or the policy
+	 * gives up.
+	 *
+	 * @param policy the retry policy
+	 * @param description describes what is being sent, for the log
+	 * @param attempt the attempt
+	 * @return a Future for the response of the successful attempt, failing with
+	 * the failure of the last attempt
+	 */
+	public Future<ITKMessage> execute(ITKRetryPolicy policy, String description, Attempt attempt) {
+		SettableFuture<ITKMessage> result = new SettableFuture<ITKMessage>();
+		start(policy, description, attempt, 1, result);
+		return result;
+	}
+
+	private void start(final ITKRetryPolicy policy, final String description, final Attempt attempt,
+			final int attemptNo, final SettableFuture<ITKMessage> result) {
+
+		ITKSendCallback callback = new ITKSendCallback() {
+			@Override
+			public void completed(ITKMessage response) {
+				result.set(response);
+			}
+
+			@Override
+			public void failed(ITKMessagingException exception) {
+				retry(policy, description, attempt, attemptNo, result, exception);
+			}
+		};
+		try {
+			attempt.start(attemptNo, callback);
+		} catch (ITKMessagingException me) {
+			callback.failed(me);
+		} catch (RuntimeException re) {
+			logger.error("Unexpected error starting attempt " + attemptNo + " for " + description, re);
+			result.setException(re);
+		}
+	}
+
+	private void retry(final ITKRetryPolicy policy, final String description, final Attempt attempt,
+			int failedAttemptNo, final SettableFuture<ITKMessage> result, ITKMessagingException failure) {
+
+		if (result.isDone()) {
+			// Abandoned by the caller
+			return;
+		}
+		if (!policy.shouldRetry(failure, failedAttemptNo)) {
+			if (failedAttemptNo > 1 && ITKRetryPolicy.isRetryable(failure)) {
+				logger.error("Giving up on " + description + " after " + failedAttemptNo + " attempts");
+			}
+			result.setException(failure);
+			return;
+		}
+
+		final int attemptNo = failedAttemptNo + 1;
+		long delay = policy.getDelay(failedAttemptNo);
+		logger.warn("Attempt " + failedAttemptNo + " of " + policy.getMaxAttempts() + " failed for " + description
+				+ " (" + failure.getMessage() + ") - retrying in " + delay + "ms");
+		try {
+			getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (!result.isDone()) {
+						start(policy, description, attempt, attemptNo, result);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			// Shutting down - report the last failure
+			result.setException(failure);
+		}
+	}
+
+	/**
+	 * Waits for the outcome of {@link #execute}, for callers which must give a
+	 * synchronous answer. Only the calling thread waits.
+	 *
+	 * @param result the result of execute
+	 * @param description describes what is being sent, for the log
+	 * @return the response of the successful attempt
+	 * @throws ITKMessagingException the failure of the last attempt
+	 */
+	public static ITKMessage await(Future<ITKMessage> result, String description) throws ITKMessagingException {
+		try {
+			return result.get();
+		} catch (InterruptedException ie) {
+			result.cancel(false);
+			Thread.currentThread().interrupt();
+			String eMsg = "Interrupted waiting to retry " + description;
+			logger.error(eMsg);
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof ITKMessagingException) {
+				throw (ITKMessagingException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new ITKMessagingException(cause);
+		}
+	}
+
+	private synchronized ScheduledExecutorService getTimer() {
+		if (closed) {
+			throw new RejectedExecutionException("Retry scheduler closed");
+		}
+		if (timer == null) {
+			timer = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ITK-Retry-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timer;
+	}
+
+	/**
+	 * Stops the timer. Retries already scheduled are still started, but any which
+	 * fail are not retried again.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (timer != null) {
+			timer.shutdown();
+			timer = null;
+		}
+	}
+
+}
@@ -13,21 +13,27 @@
 */
 package uk.co.inhealthcare.open.itk.transform;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
 
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 
@@ -40,9 +46,121 @@ public class TransformManager {
 	
 	private final static Logger logger = LoggerFactory.getLogger(TransformManager.class);
 
-	// This class would benefit from optimisation, but is kept simple for now
 	// It will need some rationalisation w.r.t. template locations at least for RI
+
+	// Compiled stylesheets keyed by resource name. Templates objects are thread
+	// safe so a single instance is shared; each call takes its own Transformer.
+	private static final ConcurrentMap<String, Templates> templatesCache = new ConcurrentHashMap<String, Templates>();
+
+	// TransformerFactory is not thread safe, so access is synchronised on it.
+	private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+	/** Package into which stylesheets are precompiled at build time (see TransletCompiler). */
+	public static final String TRANSLET_PACKAGE = "uk.co.inhealthcare.open.itk.transform.translets";
+
+	/** System property used to enable loading of precompiled translets (Y/N). */
+	public static final String USE_TRANSLETS_PROPERTY = "ITK.UseTranslets";
+
+	// XSLTC factory attributes used when loading precompiled translets
+	private static final String XSLTC_USE_CLASSPATH = "use-classpath";
+	private static final String XSLTC_PACKAGE_NAME = "package-name";
+	private static final String XSLTC_TRANSLET_NAME = "translet-name";
+
+	// Translets extend the XSLTC runtime inside the JDK. From Java 9 the java.xml module
+	// does not export it, so a translet class cannot even be loaded.
+	private static final boolean transletSupported = System.getProperty("java.specification.version", "").startsWith("1.");
+
+	private static volatile boolean useTranslets = "Y".equalsIgnoreCase(System.getProperty(USE_TRANSLETS_PROPERTY))
+			&& checkTransletSupported();
+
+	// Separate factory for translet loading so the compiling factory is left untouched.
+	private static TransformerFactory transletFactory;
+
+	/**
+	 * Enables or disables loading of precompiled translets. When enabled a stylesheet
+	 * is first looked up as a translet class on the classpath and only compiled from
+	 * source if no translet is available. Already cached stylesheets are unaffected.
+	 * Translets cannot be enabled on a JDK which does not support them.
+	 *
+	 * @param enabled true to load precompiled translets
+	 */
+	public static void setUseTranslets(boolean enabled) {
+		useTranslets = enabled && checkTransletSupported();
+	}
+
+	/**
+	 * Checks whether precompiled translets can be used on this JDK. They can only be
+	 * loaded on Java 8 and earlier, where the XSLTC runtime they extend is accessible.
+	 *
+	 * @return true, if translets are supported
+	 */
+	public static boolean isTransletSupported() {
+		return transletSupported;
+	}
+
+	private static boolean checkTransletSupported() {
+		if (!transletSupported) {
+			logger.warn("Precompiled translets are not supported on Java "
+					+ System.getProperty("java.specification.version") + ". Compiling stylesheets at runtime.");
+		}
+		return transletSupported;
+	}
+
+	/**
+	 * Checks whether precompiled translets are used.
+	 *
+	 * @return true, if translets are used
+	 */
+	public static boolean isUseTranslets() {
+		return useTranslets;
+	}
 	
+	/**
+	 * Eagerly compiles and caches the named stylesheets.
+	 *
+	 * @param tnames the stylesheet resource names
+	 * @throws ITKMessagingException if any stylesheet cannot be loaded or compiled
+	 */
+	public static void preload(String... tnames) throws ITKMessagingException {
+		if (tnames == null) {
+			return;
+		}
+		for (String tname : tnames) {
+			checkName(tname);
+			getTemplates(tname);
+		}
+	}
+
+	/**
+	 * Removes the named stylesheet from the cache so that it is recompiled on next use.
+	 *
+	 * @param tname the stylesheet resource name
+	 */
+	public static void invalidate(String tname) {
+		if (tname != null) {
+			templatesCache.remove(tname);
+			logger.debug("Transformer invalidated:"+tname);
+		}
+	}
+
+	/**
+	 * Removes all compiled stylesheets from the cache.
+	 */
+	public static void invalidateAll() {
+		templatesCache.clear();
+		logger.debug("All transformers invalidated");
+	}
+
+	/**
+	 * Checks whether the named stylesheet is currently held in compiled form.
+	 *
+	 * @param tname the stylesheet resource name
+	 * @return true, if cached
+	 */
+	public static boolean isCached(String tname) {
+		return tname != null && templatesCache.containsKey(tname);
+	}
+
 	/**
 	 * Do transform.
 	 *
@@ -66,42 +184,69 @@ public class TransformManager {
 	 */
 	public static String doTransform(String tname, String input, Map<String, String> parameters) throws ITKMessagingException {
 		
-		if ((tname == null)||(tname.isEmpty())) {
-			String eMsg = "Transformer name not provided";
+		checkName(tname);
+		if ((input == null)||(input.isEmpty())) {
+			String eMsg = "Transformation Input not provided";
 			logger.error(eMsg);
 			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
 		}
-		if ((input == null)||(input.isEmpty())) {
+
+		return transform(tname, new StreamSource(new StringReader(input)), parameters);
+	}
+
+	/**
+	 * Do transform on an already parsed document, avoiding a re-parse of its serialised form.
+	 *
+	 * @param tname the tname
+	 * @param input the input node
+	 * @return the string
+	 * @throws ITKMessagingException the iTK messaging exception
+	 */
+	public static String doTransformDocument(String tname, Node input) throws ITKMessagingException {
+		return doTransformDocument(tname, input, null);
+	}
+
+	/**
+	 * Do transform on an already parsed document, avoiding a re-parse of its serialised form.
+	 *
+	 * @param tname the tname
+	 * @param input the input node
+	 * @param parameters the parameters
+	 * @return the string
+	 * @throws ITKMessagingException the iTK messaging exception
+	 */
+	public static String doTransformDocument(String tname, Node input, Map<String, String> parameters) throws ITKMessagingException {
+		
+		checkName(tname);
+		if (input == null) {
 			String eMsg = "Transformation Input not provided";
 			logger.error(eMsg);
 			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
 		}
 
+		return transform(tname, new DOMSource(input), parameters);
+	}
+
+	private static String transform(String tname, Source source, Map<String, String> parameters) throws ITKMessagingException {
+
 		logger.trace("Transformation requested:"+tname);
     	String output = "";
-    	
-	    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-	    InputStream tis = TransformManager.class.getResourceAsStream("/"+tname);
-        StreamSource s = new StreamSource(tis);
 
-        Templates t = null;
         try {
-			t = transformerFactory.newTemplates(s);
-	        Transformer tf = t.newTransformer();
+	        Transformer tf = getTemplates(tname).newTransformer();
 	        
 	        //Set any stylesheet parameters as appropriate
 	        if (parameters != null) {
-				for (Map.Entry<String, String> entry: parameters.entrySet()) {;
+				for (Map.Entry<String, String> entry: parameters.entrySet()) {
 					logger.trace("Found a stylesheet parameter " + entry);
 					tf.setParameter(entry.getKey(), entry.getValue());
 				}
 			}
 	        
-	        StreamSource s2 = new StreamSource(new StringReader(input));
 	        StringWriter w = new StringWriter();
 	        StreamResult r = new StreamResult(w);
 
-	        tf.transform(s2, r);
+	        tf.transform(source, r);
 	        output = w.getBuffer().toString();
 	        logger.trace("Transformation complete. Transformer:"+tname);
 		} catch (TransformerConfigurationException tce) {
@@ -116,4 +261,121 @@ public class TransformManager {
 
      }
 
+	/**
+	 * Gets the compiled stylesheet, compiling and caching it on first use.
+	 *
+	 * @param tname the stylesheet resource name
+	 * @return the templates
+	 * @throws ITKMessagingException if the stylesheet cannot be loaded or compiled
+	 */
+	private static Templates getTemplates(String tname) throws ITKMessagingException {
+		Templates t = templatesCache.get(tname);
+		if (t != null) {
+			return t;
+		}
+
+		if (useTranslets) {
+			t = loadTranslet(tname);
+			if (t != null) {
+				return cacheTemplates(tname, t, "Translet loaded and cached:");
+			}
+		}
+
+		InputStream tis = TransformManager.class.getResourceAsStream("/"+tname);
+		if (tis == null) {
+			String eMsg = "Transformer not found:"+tname;
+			logger.error(eMsg);
+			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+		try {
+			synchronized (transformerFactory) {
+				t = transformerFactory.newTemplates(new StreamSource(tis));
+			}
+		} catch (TransformerConfigurationException tce) {
+			logger.error("Error compiling transformer:"+tname,tce);
+			throw new ITKMessagingException("Transformer Configuration Exception");
+		} finally {
+			try {
+				tis.close();
+			} catch (IOException ioe) {
+				logger.warn("Error closing transformer resource:"+tname,ioe);
+			}
+		}
+
+		return cacheTemplates(tname, t, "Transformer compiled and cached:");
+	}
+
+	private static Templates cacheTemplates(String tname, Templates t, String logMsg) {
+		// Another thread may have loaded the same stylesheet concurrently
+		Templates existing = templatesCache.putIfAbsent(tname, t);
+		if (existing != null) {
+			return existing;
+		}
+		logger.debug(logMsg+tname);
+		return t;
+	}
+
+	/**
+	 * Loads the precompiled translet for the named stylesheet.
+	 *
+	 * @param tname the stylesheet resource name
+	 * @return the templates, or null if no usable translet is available
+	 */
+	private static synchronized Templates loadTranslet(String tname) {
+		try {
+			if (transletFactory == null) {
+				transletFactory = TransformerFactory.newInstance();
+			}
+			transletFactory.setAttribute(XSLTC_USE_CLASSPATH, Boolean.TRUE);
+			transletFactory.setAttribute(XSLTC_PACKAGE_NAME, TRANSLET_PACKAGE);
+			transletFactory.setAttribute(XSLTC_TRANSLET_NAME, getTransletName(tname));
+			return transletFactory.newTemplates(new StreamSource(tname));
+		} catch (IllegalArgumentException iae) {
+			// Not an XSLTC based factory - translets can never be used
+			logger.warn("Transformer factory does not support translets. Compiling stylesheets at runtime.");
+			useTranslets = false;
+		} catch (TransformerConfigurationException tce) {
+			logger.debug("No translet available for:"+tname);
+		} catch (LinkageError le) {
+			// The translets do not match this runtime, so none of them will load
+			logger.error("Translet could not be loaded for:"+tname+". Compiling stylesheets at runtime.",le);
+			useTranslets = false;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the translet class name (without package) for a stylesheet resource name,
+	 * e.g. xslt/smsc/ToGetNHSNumberRequest.xslt becomes xslt_smsc_ToGetNHSNumberRequest.
+	 *
+	 * @param tname the stylesheet resource name
+	 * @return the translet name
+	 */
+	static String getTransletName(String tname) {
+		String name = tname;
+		if (name.startsWith("/")) {
+			name = name.substring(1);
+		}
+		int dot = name.lastIndexOf('.');
+		if (dot > name.lastIndexOf('/') + 1) {
+			name = name.substring(0, dot);
+		}
+		StringBuilder sb = new StringBuilder(name.length() + 1);
+		if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+			sb.append('_');
+		}
+		for (char c : name.toCharArray()) {
+			sb.append(Character.isJavaIdentifierPart(c) ? c : '_');
+		}
+		return sb.toString();
+	}
+
+	private static void checkName(String tname) throws ITKMessagingException {
+		if ((tname == null)||(tname.isEmpty())) {
+			String eMsg = "Transformer name not provided";
+			logger.error(eMsg);
+			throw new ITKMessagingException(null, ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, eMsg);
+		}
+	}
+
 }
@@ -0,0 +1,112 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Build time utility that compiles every .xslt stylesheet beneath a resource
+ * directory into XSLTC translet classes. The translets are written to the
+ * TransformManager translet package using the names TransformManager expects,
+ * so they can be loaded from the jar when translets are enabled. Nothing is
+ * compiled on a JDK where TransformManager cannot load translets.
+ * 
+ * Usage: TransletCompiler &lt;stylesheet root&gt; [&lt;class output directory&gt;]
+ *
+ * @author Nick Jones
+ */
+public class TransletCompiler {
+
+	private final static Logger logger = LoggerFactory.getLogger(TransletCompiler.class);
+
+	private static final String STYLESHEET_SUFFIX = ".xslt";
+
+	// XSLTC factory attributes used to generate translets
+	private static final String XSLTC_GENERATE_TRANSLET = "generate-translet";
+	private static final String XSLTC_DESTINATION_DIRECTORY = "destination-directory";
+	private static final String XSLTC_PACKAGE_NAME = "package-name";
+	private static final String XSLTC_TRANSLET_NAME = "translet-name";
+
+	private TransletCompiler() {
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the stylesheet root directory and optionally the output directory
+	 * @throws TransformerConfigurationException if any stylesheet fails to compile
+	 */
+	public static void main(String[] args) throws TransformerConfigurationException {
+		if (args.length < 1) {
+			throw new IllegalArgumentException("Usage: TransletCompiler <stylesheet root> [<class output directory>]");
+		}
+		File root = new File(args[0]);
+		File destination = args.length > 1 ? new File(args[1]) : root;
+		int count = compile(root, destination);
+		logger.info("Precompiled "+count+" stylesheet(s) from "+root);
+	}
+
+	/**
+	 * Compiles all stylesheets found beneath the root directory.
+	 *
+	 * @param root the stylesheet root directory
+	 * @param destination the class output directory
+	 * @return the number of stylesheets compiled
+	 * @throws TransformerConfigurationException if any stylesheet fails to compile
+	 */
+	public static int compile(File root, File destination) throws TransformerConfigurationException {
+		if (!TransformManager.isTransletSupported()) {
+			logger.info("Skipping translet precompilation - translets are not supported on Java "
+					+ System.getProperty("java.specification.version"));
+			return 0;
+		}
+		List<String> names = new ArrayList<String>();
+		findStylesheets(root, "", names);
+
+		for (String tname : names) {
+			TransformerFactory tf = TransformerFactory.newInstance();
+			tf.setAttribute(XSLTC_GENERATE_TRANSLET, Boolean.TRUE);
+			tf.setAttribute(XSLTC_DESTINATION_DIRECTORY, destination.getAbsolutePath());
+			tf.setAttribute(XSLTC_PACKAGE_NAME, TransformManager.TRANSLET_PACKAGE);
+			tf.setAttribute(XSLTC_TRANSLET_NAME, TransformManager.getTransletName(tname));
+			logger.debug("Compiling translet for:"+tname);
+			tf.newTemplates(new StreamSource(new File(root, tname)));
+		}
+		return names.size();
+	}
+
+	private static void findStylesheets(File dir, String prefix, List<String> names) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.isDirectory()) {
+				findStylesheets(f, prefix + f.getName() + "/", names);
+			} else if (f.getName().endsWith(STYLESHEET_SUFFIX)) {
+				names.add(prefix + f.getName());
+			}
+		}
+	}
+
+}
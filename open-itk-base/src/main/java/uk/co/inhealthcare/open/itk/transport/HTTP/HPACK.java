@@ -0,0 +1,384 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression (RFC 7541) for the HTTP/2 transport.<br/><br/>
+ *
+ * Headers are always sent as literals without indexing, which needs no state to be
+ * kept in step with the server. Received header blocks are fully decoded, including
+ * the dynamic table and Huffman coded strings.
+ *
+ * @author Nick Jones
+ */
+class HPACK {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** The default size of the dynamic table */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	/** Each entry of the dynamic table is charged this much over its name and value */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+			{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+			{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+			{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+			{ "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+			{ "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+			{ "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+			{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+			{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+			{ "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+			{ "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+			{ "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+			{ "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+			{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+			{ "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+			{ "www-authenticate", "" } };
+
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	static {
+		for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+			STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+		}
+	}
+
+	// The Huffman code (RFC 7541 Appendix B) of each octet, right aligned, and its length in bits
+	private static final int[] HUFFMAN_CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee };
+
+	private static final byte[] HUFFMAN_LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26 };
+
+	/** The code of the end of string symbol, which may only appear as padding */
+	private static final int EOS = 256;
+
+	private static final Node HUFFMAN_TREE = buildTree();
+
+	/**
+	 * Signals a header block which cannot be decoded. It is a connection error.
+	 */
+	static class CompressionException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		CompressionException(String message) {
+			super(message);
+		}
+	}
+
+	private HPACK() {
+	}
+
+	/**
+	 * Encodes a header as a literal without indexing. The name is taken from the
+	 * static table where it is there.
+	 *
+	 * @param out the header block
+	 * @param name the header name, in lower case
+	 * @param value the header value
+	 */
+	static void encode(ByteArrayOutputStream out, String name, String value) {
+		Integer index = STATIC_NAMES.get(name);
+		if (index != null) {
+			encodeInteger(out, 0x00, 4, index);
+		} else {
+			out.write(0x00);
+			encodeString(out, name);
+		}
+		encodeString(out, value);
+	}
+
+	private static void encodeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(ISO_8859_1);
+		encodeInteger(out, 0x00, 7, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void encodeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+		int max = (1 << prefixBits) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Decodes the header blocks received on one connection. They must be passed in the
+	 * order they arrived, as each may change the dynamic table used by the next.
+	 */
+	static class Decoder {
+
+		private final int maxTableSize;
+		private int tableSize;
+		private int tableUsed = 0;
+		private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+
+		/**
+		 * Instantiates a new decoder.
+		 *
+		 * @param maxTableSize the largest dynamic table the server may use
+		 */
+		Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			this.tableSize = maxTableSize;
+		}
+
+		/**
+		 * Decodes a header block.
+		 *
+		 * @param block the header block
+		 * @return the header names and values, in order
+		 * @throws CompressionException if the block is not valid
+		 */
+		List<String[]> decode(byte[] block) throws CompressionException {
+			List<String[]> headers = new ArrayList<String[]>();
+			int[] pos = { 0 };
+			while (pos[0] < block.length) {
+				int b = block[pos[0]] & 0xff;
+				if ((b & 0x80) != 0) {
+					headers.add(lookup(decodeInteger(block, pos, 7)));
+				} else if ((b & 0xc0) == 0x40) {
+					String[] header = decodeLiteral(block, pos, 6);
+					add(header);
+					headers.add(header);
+				} else if ((b & 0xe0) == 0x20) {
+					int size = decodeInteger(block, pos, 5);
+					if (size > maxTableSize) {
+						throw new CompressionException("Dynamic table size " + size + " exceeds " + maxTableSize);
+					}
+					tableSize = size;
+					evict(0);
+				} else {
+					headers.add(decodeLiteral(block, pos, 4));
+				}
+			}
+			return headers;
+		}
+
+		private String[] decodeLiteral(byte[] block, int[] pos, int prefixBits) throws CompressionException {
+			int index = decodeInteger(block, pos, prefixBits);
+			String name = index == 0 ? decodeString(block, pos) : lookup(index)[0];
+			return new String[] { name, decodeString(block, pos) };
+		}
+
+		private String[] lookup(int index) throws CompressionException {
+			if (index <= 0) {
+				throw new CompressionException("Invalid header index " + index);
+			}
+			if (index <= STATIC_TABLE.length) {
+				return STATIC_TABLE[index - 1];
+			}
+			index -= STATIC_TABLE.length + 1;
+			if (index >= dynamicTable.size()) {
+				throw new CompressionException("Header index beyond the dynamic table");
+			}
+			return dynamicTable.get(index);
+		}
+
+		/**
+		 * Gets the entries of the dynamic table, newest first.
+		 *
+		 * @return the dynamic table
+		 */
+		List<String[]> getDynamicTable() {
+			return Collections.unmodifiableList(dynamicTable);
+		}
+
+		/**
+		 * Gets the size of the dynamic table, as counted against its limit.
+		 *
+		 * @return the size of the dynamic table
+		 */
+		int getTableUsed() {
+			return tableUsed;
+		}
+
+		private void add(String[] header) {
+			int size = header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+			evict(size);
+			if (size <= tableSize) {
+				dynamicTable.addFirst(header);
+				tableUsed += size;
+			}
+		}
+
+		private void evict(int space) {
+			while (!dynamicTable.isEmpty() && tableUsed + space > tableSize) {
+				String[] header = dynamicTable.removeLast();
+				tableUsed -= header[0].length() + header[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+	}
+
+	private static int decodeInteger(byte[] block, int[] pos, int prefixBits) throws CompressionException {
+		int max = (1 << prefixBits) - 1;
+		int value = block[pos[0]++] & max;
+		if (value < max) {
+			return value;
+		}
+		int shift = 0;
+		int b;
+		do {
+			if (pos[0] >= block.length) {
+				throw new CompressionException("Truncated integer");
+			}
+			if (shift > 21) {
+				throw new CompressionException("Integer overflow");
+			}
+			b = block[pos[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static String decodeString(byte[] block, int[] pos) throws CompressionException {
+		if (pos[0] >= block.length) {
+			throw new CompressionException("Truncated string");
+		}
+		boolean huffman = (block[pos[0]] & 0x80) != 0;
+		int length = decodeInteger(block, pos, 7);
+		if (length > block.length - pos[0]) {
+			throw new CompressionException("Truncated string");
+		}
+		String value = huffman ? decodeHuffman(block, pos[0], length) : new String(block, pos[0], length, ISO_8859_1);
+		pos[0] += length;
+		return value;
+	}
+
+	/**
+	 * A node of the tree used to decode Huffman coded strings
+	 */
+	private static class Node {
+		final Node[] children = new Node[2];
+		int symbol = -1;
+	}
+
+	private static Node buildTree() {
+		Node root = new Node();
+		for (int symbol = 0; symbol <= EOS; symbol++) {
+			int code = symbol == EOS ? 0x3fffffff : HUFFMAN_CODES[symbol];
+			int length = symbol == EOS ? 30 : HUFFMAN_LENGTHS[symbol];
+			Node node = root;
+			for (int bit = length - 1; bit >= 0; bit--) {
+				int branch = (code >>> bit) & 1;
+				if (node.children[branch] == null) {
+					node.children[branch] = new Node();
+				}
+				node = node.children[branch];
+			}
+			node.symbol = symbol;
+		}
+		return root;
+	}
+
+	private static String decodeHuffman(byte[] block, int offset, int length) throws CompressionException {
+		StringBuilder sb = new StringBuilder(length * 8 / 5);
+		Node node = HUFFMAN_TREE;
+		int paddingBits = 0;
+		boolean paddingOnes = true;
+		for (int i = offset; i < offset + length; i++) {
+			int b = block[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				int branch = (b >>> bit) & 1;
+				node = node.children[branch];
+				if (node == null) {
+					throw new CompressionException("Invalid Huffman code");
+				}
+				paddingBits++;
+				paddingOnes &= branch == 1;
+				if (node.symbol >= 0) {
+					if (node.symbol == EOS) {
+						throw new CompressionException("EOS in Huffman coded string");
+					}
+					sb.append((char) node.symbol);
+					node = HUFFMAN_TREE;
+					paddingBits = 0;
+					paddingOnes = true;
+				}
+			}
+		}
+		if (node != HUFFMAN_TREE && (paddingBits > 7 || !paddingOnes)) {
+			throw new CompressionException("Invalid Huffman padding");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,793 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
+
+/**
+ * A client HTTP/2 connection which carries many requests at once, each on its own
+ * stream.<br/><br/>
+ *
+ * Requests are sent by the calling threads. A single reader thread per connection reads
+ * every frame the server sends and hands each response to the thread waiting for it.
+ * The number of open streams is kept within the limit set by the server and the local
+ * limit, and request bodies are only sent as fast as the flow control windows of the
+ * server allow.
+ *
+ * @author Nick Jones
+ */
+class HTTP2Connection implements Runnable {
+
+	private final static Logger logger = LoggerFactory.getLogger(HTTP2Connection.class);
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * Signals that the server did not process a request, so it is safe to send
+	 * it again on another connection.
+	 */
+	static class RefusedStreamException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RefusedStreamException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * The state of one request and its response
+	 */
+	private static class Stream {
+		final int id;
+		final SettableFuture<HTTPResponse> result = new SettableFuture<HTTPResponse>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+		long sendWindow;
+		int unacknowledged = 0;
+		int status = -1;
+		Map<String, String> headers;
+		boolean localClosed = false;
+		boolean remoteClosed = false;
+
+		Stream(int id, long sendWindow) {
+			this.id = id;
+			this.sendWindow = sendWindow;
+		}
+	}
+
+	private final String name;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final Object writeLock = new Object();
+	private final HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+	private final int maxStreams;
+	private final int streamReceiveWindow;
+	private final int connectionReceiveWindow;
+	private final long maxResponseSize;
+
+	// Guarded by this
+	private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+	private int nextStreamId = 1;
+	private int reservedStreams = 0;
+	private int peerMaxStreams = Integer.MAX_VALUE;
+	private int peerInitialWindow = HTTP2Frame.DEFAULT_WINDOW_SIZE;
+	private int peerMaxFrameSize = HTTP2Frame.DEFAULT_MAX_FRAME_SIZE;
+	private long sendWindow = HTTP2Frame.DEFAULT_WINDOW_SIZE;
+	private boolean goingAway = false;
+	private IOException failure = null;
+	private long streamsOpened = 0;
+	private int peakStreams = 0;
+	private long streamLimitWaits = 0;
+	private long flowControlWaits = 0;
+
+	// Only used by the reader thread
+	private int connectionUnacknowledged = 0;
+
+	/**
+	 * Opens an HTTP/2 connection over a connected socket and starts its reader thread.
+	 *
+	 * @param socket the connected socket, with any TLS handshake done
+	 * @param name describes the destination, for the log
+	 * @param maxStreams the most streams to have open at once
+	 * @param streamReceiveWindow the bytes of a response the server may send before it must wait
+	 * @param maxResponseSize the maximum size of a response body
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	HTTP2Connection(Socket socket, String name, int maxStreams, int streamReceiveWindow, long maxResponseSize)
+			throws IOException {
+		this.socket = socket;
+		this.name = name;
+		this.maxStreams = Math.max(1, maxStreams);
+		this.streamReceiveWindow = Math.max(HTTP2Frame.DEFAULT_WINDOW_SIZE, streamReceiveWindow);
+		this.connectionReceiveWindow = (int) Math.min(HTTP2Frame.MAX_WINDOW_SIZE,
+				(long) this.streamReceiveWindow * this.maxStreams);
+		this.maxResponseSize = maxResponseSize;
+		this.in = new BufferedInputStream(socket.getInputStream(), 16384);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+
+		synchronized (writeLock) {
+			out.write(HTTP2Frame.PREFACE);
+			byte[] settings = HTTP2Frame.settings(HTTP2Frame.SETTINGS_ENABLE_PUSH, 0,
+					HTTP2Frame.SETTINGS_INITIAL_WINDOW_SIZE, this.streamReceiveWindow);
+			HTTP2Frame.write(out, HTTP2Frame.SETTINGS, 0, 0, settings, 0, settings.length);
+			int increment = connectionReceiveWindow - HTTP2Frame.DEFAULT_WINDOW_SIZE;
+			if (increment > 0) {
+				HTTP2Frame.write(out, HTTP2Frame.WINDOW_UPDATE, 0, 0, HTTP2Frame.intPayload(increment), 0, 4);
+			}
+			out.flush();
+		}
+		Thread reader = new Thread(this, "ITK-H2-" + threadCount.incrementAndGet());
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sends a request and waits for its response.
+	 *
+	 * @param headers the request headers, including the pseudo headers, with lower case names
+	 * @param body the request body
+	 * @param timeout milliseconds allowed for the whole exchange
+	 * @return the response
+	 * @throws IOException Signals that an I/O exception has occurred. A RefusedStreamException
+	 * means the request was not processed.
+	 */
+	HTTPResponse exchange(List<String[]> headers, byte[] body, long timeout) throws IOException {
+		long end = System.currentTimeMillis() + timeout;
+		ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+		for (String[] header : headers) {
+			HPACK.encode(block, header[0], header[1]);
+		}
+		reserveStream(end);
+		Stream stream = null;
+		try {
+			stream = openStream(block.toByteArray(), body.length == 0);
+			if (body.length > 0) {
+				sendData(stream, body, end);
+			}
+			return await(stream, end);
+		} finally {
+			release(stream);
+		}
+	}
+
+	private synchronized void reserveStream(long end) throws IOException {
+		boolean waited = false;
+		while (true) {
+			checkOpen();
+			if (reservedStreams < Math.min(peerMaxStreams, maxStreams)) {
+				reservedStreams++;
+				peakStreams = Math.max(peakStreams, reservedStreams);
+				return;
+			}
+			if (!waited) {
+				streamLimitWaits++;
+				waited = true;
+			}
+			waitUntil(end, "Timed out waiting for a free HTTP/2 stream");
+		}
+	}
+
+	private Stream openStream(byte[] block, boolean endStream) throws IOException {
+		synchronized (writeLock) {
+			Stream stream;
+			int maxFrameSize;
+			synchronized (this) {
+				checkOpen();
+				if (nextStreamId < 0) {
+					// Stream ids used up - new streams go on a new connection
+					goingAway = true;
+					throw new RefusedStreamException("HTTP/2 stream ids exhausted");
+				}
+				stream = new Stream(nextStreamId, peerInitialWindow);
+				nextStreamId += 2;
+				streams.put(stream.id, stream);
+				streamsOpened++;
+				maxFrameSize = peerMaxFrameSize;
+			}
+			stream.localClosed = endStream;
+			int pos = 0;
+			do {
+				int length = Math.min(maxFrameSize, block.length - pos);
+				boolean last = pos + length == block.length;
+				int flags = last ? HTTP2Frame.FLAG_END_HEADERS : 0;
+				if (pos == 0 && endStream) {
+					flags |= HTTP2Frame.FLAG_END_STREAM;
+				}
+				write(pos == 0 ? HTTP2Frame.HEADERS : HTTP2Frame.CONTINUATION, flags, stream.id, block, pos, length,
+						last);
+				pos += length;
+			} while (pos < block.length);
+			return stream;
+		}
+	}
+
+	private void sendData(Stream stream, byte[] body, long end) throws IOException {
+		int pos = 0;
+		while (pos < body.length) {
+			int length = acquireSendWindow(stream, body.length - pos, end);
+			if (length < 0) {
+				// The server has already answered or reset the stream
+				return;
+			}
+			boolean last = pos + length == body.length;
+			synchronized (writeLock) {
+				write(HTTP2Frame.DATA, last ? HTTP2Frame.FLAG_END_STREAM : 0, stream.id, body, pos, length, true);
+			}
+			pos += length;
+		}
+		stream.localClosed = true;
+	}
+
+	private synchronized int acquireSendWindow(Stream stream, int wanted, long end) throws IOException {
+		boolean waited = false;
+		while (true) {
+			if (failure != null) {
+				throw new IOException("HTTP/2 connection failed: " + failure.getMessage());
+			}
+			if (stream.result.isDone()) {
+				return -1;
+			}
+			long available = Math.min(sendWindow, stream.sendWindow);
+			if (available > 0) {
+				int length = (int) Math.min(Math.min(available, wanted), peerMaxFrameSize);
+				sendWindow -= length;
+				stream.sendWindow -= length;
+				return length;
+			}
+			if (!waited) {
+				flowControlWaits++;
+				waited = true;
+			}
+			waitUntil(end, "Timed out waiting for the HTTP/2 flow control window");
+		}
+	}
+
+	private HTTPResponse await(Stream stream, long end) throws IOException {
+		try {
+			return stream.result.get(Math.max(1, end - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			throw new SocketTimeoutException("Timed out waiting for the HTTP/2 response");
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the HTTP/2 response");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			throw new IOException(ee.getCause());
+		}
+	}
+
+	private void release(Stream stream) {
+		boolean reset = false;
+		synchronized (this) {
+			reservedStreams--;
+			if (stream != null && streams.remove(stream.id) != null) {
+				reset = failure == null && !(stream.localClosed && stream.remoteClosed);
+			}
+			notifyAll();
+		}
+		if (reset) {
+			try {
+				synchronized (writeLock) {
+					write(HTTP2Frame.RST_STREAM, 0, stream.id, HTTP2Frame.intPayload(HTTP2Frame.CANCEL), 0, 4, true);
+				}
+			} catch (IOException ioe) {
+				// The connection has failed, which fails the other streams
+			}
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (failure != null || goingAway) {
+			throw new RefusedStreamException("HTTP/2 connection to " + name + " is closing");
+		}
+	}
+
+	private void waitUntil(long end, String timeoutMessage) throws IOException {
+		long wait = end - System.currentTimeMillis();
+		if (wait <= 0) {
+			throw new SocketTimeoutException(timeoutMessage);
+		}
+		try {
+			wait(wait);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for an HTTP/2 stream");
+		}
+	}
+
+	/**
+	 * Writes a frame. The caller must hold the write lock.
+	 */
+	private void write(int type, int flags, int streamId, byte[] payload, int offset, int length, boolean flush)
+			throws IOException {
+		try {
+			HTTP2Frame.write(out, type, flags, streamId, payload, offset, length);
+			if (flush) {
+				out.flush();
+			}
+		} catch (IOException ioe) {
+			fail(ioe);
+			throw ioe;
+		}
+	}
+
+	private void writeControl(int type, int flags, int streamId, byte[] payload) throws IOException {
+		synchronized (writeLock) {
+			write(type, flags, streamId, payload, 0, payload.length, true);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 * Reads frames until the connection closes
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				handle(HTTP2Frame.read(in, HTTP2Frame.DEFAULT_MAX_FRAME_SIZE));
+			}
+		} catch (HTTP2Frame.ProtocolException pe) {
+			logger.error("HTTP/2 protocol error from " + name + ": " + pe.getMessage());
+			try {
+				byte[] payload = new byte[8];
+				HTTP2Frame.putInt(payload, 4, pe.getErrorCode());
+				writeControl(HTTP2Frame.GOAWAY, 0, 0, payload);
+			} catch (IOException ioe) {
+				// Closing anyway
+			}
+			fail(pe);
+		} catch (IOException ioe) {
+			fail(ioe);
+		} catch (RuntimeException re) {
+			logger.error("Unexpected error reading from HTTP/2 connection to " + name, re);
+			fail(new IOException(re));
+		}
+	}
+
+	private void handle(HTTP2Frame frame) throws IOException {
+		switch (frame.type) {
+		case HTTP2Frame.DATA:
+			handleData(frame);
+			break;
+		case HTTP2Frame.HEADERS:
+			handleHeaders(frame);
+			break;
+		case HTTP2Frame.RST_STREAM:
+			handleReset(frame);
+			break;
+		case HTTP2Frame.SETTINGS:
+			handleSettings(frame);
+			break;
+		case HTTP2Frame.PING:
+			if (frame.payload.length != 8) {
+				throw new HTTP2Frame.ProtocolException(HTTP2Frame.FRAME_SIZE_ERROR, "Invalid PING");
+			}
+			if (!frame.hasFlag(HTTP2Frame.FLAG_ACK)) {
+				writeControl(HTTP2Frame.PING, HTTP2Frame.FLAG_ACK, 0, frame.payload);
+			}
+			break;
+		case HTTP2Frame.GOAWAY:
+			handleGoAway(frame);
+			break;
+		case HTTP2Frame.WINDOW_UPDATE:
+			handleWindowUpdate(frame);
+			break;
+		case HTTP2Frame.PUSH_PROMISE:
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Server push was not enabled");
+		case HTTP2Frame.CONTINUATION:
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+		default:
+			// PRIORITY and unknown frames are ignored
+			break;
+		}
+	}
+
+	private void handleData(HTTP2Frame frame) throws IOException {
+		if (frame.streamId == 0) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		int offset = 0;
+		int length = frame.payload.length;
+		if (frame.hasFlag(HTTP2Frame.FLAG_PADDED)) {
+			int padding = length > 0 ? frame.payload[0] & 0xff : 0;
+			if (length == 0 || padding >= length) {
+				throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Invalid DATA padding");
+			}
+			offset = 1;
+			length -= padding + 1;
+		}
+
+		// The whole frame, padding included, counts against the connection window
+		connectionUnacknowledged += frame.payload.length;
+		if (connectionUnacknowledged >= connectionReceiveWindow / 2) {
+			writeControl(HTTP2Frame.WINDOW_UPDATE, 0, 0, HTTP2Frame.intPayload(connectionUnacknowledged));
+			connectionUnacknowledged = 0;
+		}
+
+		Stream stream = getStream(frame.streamId);
+		if (stream == null || stream.remoteClosed) {
+			return;
+		}
+		if (stream.status < 0) {
+			resetStream(stream, HTTP2Frame.PROTOCOL_ERROR, new IOException("HTTP/2 DATA before the response headers"));
+			return;
+		}
+		if (stream.body.size() + length > maxResponseSize) {
+			resetStream(stream, HTTP2Frame.CANCEL, new LimitedInputStream.LimitExceededException(maxResponseSize));
+			return;
+		}
+		stream.body.write(frame.payload, offset, length);
+		if (frame.hasFlag(HTTP2Frame.FLAG_END_STREAM)) {
+			complete(stream);
+			return;
+		}
+		stream.unacknowledged += frame.payload.length;
+		if (stream.unacknowledged >= streamReceiveWindow / 2) {
+			writeControl(HTTP2Frame.WINDOW_UPDATE, 0, stream.id, HTTP2Frame.intPayload(stream.unacknowledged));
+			stream.unacknowledged = 0;
+		}
+	}
+
+	private void handleHeaders(HTTP2Frame frame) throws IOException {
+		if (frame.streamId == 0) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int offset = 0;
+		int length = frame.payload.length;
+		if (frame.hasFlag(HTTP2Frame.FLAG_PADDED)) {
+			int padding = length > 0 ? frame.payload[0] & 0xff : 0;
+			offset = 1;
+			length -= padding + 1;
+		}
+		if (frame.hasFlag(HTTP2Frame.FLAG_PRIORITY)) {
+			offset += 5;
+			length -= 5;
+		}
+		if (length < 0) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Invalid HEADERS padding");
+		}
+		ByteArrayOutputStream block = new ByteArrayOutputStream(Math.max(length, 64));
+		block.write(frame.payload, offset, length);
+		boolean endHeaders = frame.hasFlag(HTTP2Frame.FLAG_END_HEADERS);
+		while (!endHeaders) {
+			HTTP2Frame continuation = HTTP2Frame.read(in, HTTP2Frame.DEFAULT_MAX_FRAME_SIZE);
+			if (continuation.type != HTTP2Frame.CONTINUATION || continuation.streamId != frame.streamId) {
+				throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Expected CONTINUATION");
+			}
+			block.write(continuation.payload, 0, continuation.payload.length);
+			endHeaders = continuation.hasFlag(HTTP2Frame.FLAG_END_HEADERS);
+		}
+
+		List<String[]> headers;
+		try {
+			// Always decoded, as the block may change the dynamic table
+			headers = decoder.decode(block.toByteArray());
+		} catch (HPACK.CompressionException ce) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.COMPRESSION_ERROR, ce.getMessage());
+		}
+
+		Stream stream = getStream(frame.streamId);
+		if (stream == null || stream.remoteClosed) {
+			return;
+		}
+		if (stream.status < 0) {
+			Map<String, String> fields = new HashMap<String, String>();
+			int status = -1;
+			for (String[] header : headers) {
+				if (header[0].equals(":status")) {
+					try {
+						status = Integer.parseInt(header[1]);
+					} catch (NumberFormatException nfe) {
+						status = -1;
+					}
+				} else if (!header[0].startsWith(":")) {
+					String name = header[0].toLowerCase(Locale.ENGLISH);
+					String existing = fields.get(name);
+					fields.put(name, existing == null ? header[1] : existing + ", " + header[1]);
+				}
+			}
+			if (status < 100) {
+				resetStream(stream, HTTP2Frame.PROTOCOL_ERROR, new IOException("HTTP/2 response without a status"));
+				return;
+			}
+			if (status >= 200) {
+				stream.status = status;
+				stream.headers = fields;
+			}
+			// Otherwise an interim 1xx response - the real one follows
+		}
+		// Anything after the response headers is a trailer, which is not needed
+		if (frame.hasFlag(HTTP2Frame.FLAG_END_STREAM)) {
+			complete(stream);
+		}
+	}
+
+	private void handleReset(HTTP2Frame frame) throws IOException {
+		if (frame.payload.length != 4) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.FRAME_SIZE_ERROR, "Invalid RST_STREAM");
+		}
+		Stream stream = getStream(frame.streamId);
+		if (stream == null) {
+			return;
+		}
+		int errorCode = HTTP2Frame.getInt(frame.payload, 0);
+		synchronized (this) {
+			stream.localClosed = true;
+			stream.remoteClosed = true;
+			notifyAll();
+		}
+		if (errorCode == HTTP2Frame.REFUSED_STREAM) {
+			stream.result.setException(new RefusedStreamException("HTTP/2 stream refused by " + name));
+		} else {
+			stream.result.setException(new IOException("HTTP/2 stream reset by " + name + " - error code " + errorCode));
+		}
+	}
+
+	private void handleSettings(HTTP2Frame frame) throws IOException {
+		if (frame.streamId != 0) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "SETTINGS on a stream");
+		}
+		if (frame.hasFlag(HTTP2Frame.FLAG_ACK)) {
+			return;
+		}
+		if (frame.payload.length % 6 != 0) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.FRAME_SIZE_ERROR, "Invalid SETTINGS");
+		}
+		synchronized (this) {
+			for (int pos = 0; pos < frame.payload.length; pos += 6) {
+				int id = ((frame.payload[pos] & 0xff) << 8) | (frame.payload[pos + 1] & 0xff);
+				int value = HTTP2Frame.getInt(frame.payload, pos + 2);
+				if (id == HTTP2Frame.SETTINGS_MAX_CONCURRENT_STREAMS) {
+					peerMaxStreams = value < 0 ? Integer.MAX_VALUE : value;
+				} else if (id == HTTP2Frame.SETTINGS_INITIAL_WINDOW_SIZE) {
+					if (value < 0) {
+						throw new HTTP2Frame.ProtocolException(HTTP2Frame.FLOW_CONTROL_ERROR, "Initial window too large");
+					}
+					// Applies to the streams already open as well as new ones
+					for (Stream stream : streams.values()) {
+						stream.sendWindow += value - peerInitialWindow;
+					}
+					peerInitialWindow = value;
+				} else if (id == HTTP2Frame.SETTINGS_MAX_FRAME_SIZE) {
+					if (value < HTTP2Frame.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+						throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Invalid maximum frame size");
+					}
+					peerMaxFrameSize = value;
+				}
+			}
+			notifyAll();
+		}
+		writeControl(HTTP2Frame.SETTINGS, HTTP2Frame.FLAG_ACK, 0, new byte[0]);
+	}
+
+	private void handleGoAway(HTTP2Frame frame) throws IOException {
+		if (frame.payload.length < 8) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.FRAME_SIZE_ERROR, "Invalid GOAWAY");
+		}
+		int lastStreamId = HTTP2Frame.getInt(frame.payload, 0) & 0x7fffffff;
+		int errorCode = HTTP2Frame.getInt(frame.payload, 4);
+		if (errorCode == HTTP2Frame.NO_ERROR) {
+			logger.debug("HTTP/2 connection to " + name + " going away");
+		} else {
+			logger.warn("HTTP/2 connection to " + name + " going away - error code " + errorCode);
+		}
+		List<Stream> unprocessed = new ArrayList<Stream>();
+		synchronized (this) {
+			goingAway = true;
+			for (Stream stream : streams.values()) {
+				if (stream.id > lastStreamId) {
+					unprocessed.add(stream);
+				}
+			}
+			notifyAll();
+		}
+		for (Stream stream : unprocessed) {
+			stream.result.setException(new RefusedStreamException("HTTP/2 stream not processed before GOAWAY"));
+		}
+	}
+
+	private void handleWindowUpdate(HTTP2Frame frame) throws IOException {
+		if (frame.payload.length != 4) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+		}
+		int increment = HTTP2Frame.getInt(frame.payload, 0) & 0x7fffffff;
+		if (increment == 0) {
+			throw new HTTP2Frame.ProtocolException(HTTP2Frame.PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+		}
+		synchronized (this) {
+			if (frame.streamId == 0) {
+				sendWindow += increment;
+				if (sendWindow > HTTP2Frame.MAX_WINDOW_SIZE) {
+					throw new HTTP2Frame.ProtocolException(HTTP2Frame.FLOW_CONTROL_ERROR, "Connection window overflow");
+				}
+			} else {
+				Stream stream = streams.get(frame.streamId);
+				if (stream != null) {
+					stream.sendWindow += increment;
+				}
+			}
+			notifyAll();
+		}
+	}
+
+	private synchronized Stream getStream(int streamId) {
+		return streams.get(streamId);
+	}
+
+	private void complete(Stream stream) {
+		synchronized (this) {
+			stream.remoteClosed = true;
+			notifyAll();
+		}
+		if (stream.status < 0) {
+			stream.result.setException(new IOException("HTTP/2 stream ended without a response"));
+			return;
+		}
+		HTTPResponse response = new HTTPResponse(stream.status, stream.headers, true);
+		response.setBody(stream.body.toByteArray());
+		stream.result.set(response);
+	}
+
+	private void resetStream(Stream stream, int errorCode, IOException cause) throws IOException {
+		synchronized (this) {
+			stream.localClosed = true;
+			stream.remoteClosed = true;
+			notifyAll();
+		}
+		stream.result.setException(cause);
+		writeControl(HTTP2Frame.RST_STREAM, 0, stream.id, HTTP2Frame.intPayload(errorCode));
+	}
+
+	private void fail(IOException cause) {
+		List<Stream> open;
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = cause;
+			goingAway = true;
+			open = new ArrayList<Stream>(streams.values());
+			notifyAll();
+		}
+		logger.debug("HTTP/2 connection to " + name + " closed: " + cause.getMessage());
+		for (Stream stream : open) {
+			stream.result.setException(cause);
+		}
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			// Already closed
+		}
+	}
+
+	/**
+	 * Checks whether new requests may be sent on the connection.
+	 *
+	 * @return true if the connection is open and the server has not asked for it to be closed
+	 */
+	synchronized boolean isUsable() {
+		return failure == null && !goingAway;
+	}
+
+	/**
+	 * Checks whether the connection has closed.
+	 *
+	 * @return true if it has closed
+	 */
+	synchronized boolean isClosed() {
+		return failure != null;
+	}
+
+	/**
+	 * Closes the connection. Any requests in progress fail.
+	 */
+	void close() {
+		try {
+			writeControl(HTTP2Frame.GOAWAY, 0, 0, new byte[8]);
+		} catch (IOException ioe) {
+			// Closing anyway
+		}
+		fail(new IOException("HTTP/2 connection closed"));
+	}
+
+	/**
+	 * Gets the number of streams open or waiting to open.
+	 *
+	 * @return the number of streams
+	 */
+	synchronized int getActiveStreamCount() {
+		return reservedStreams;
+	}
+
+	/**
+	 * Gets the most streams that have been open at once.
+	 *
+	 * @return the most streams open at once
+	 */
+	synchronized int getPeakStreamCount() {
+		return peakStreams;
+	}
+
+	/**
+	 * Gets the number of streams opened.
+	 *
+	 * @return the number of streams opened
+	 */
+	synchronized long getStreamsOpened() {
+		return streamsOpened;
+	}
+
+	/**
+	 * Gets the number of requests which had to wait because the stream limit was reached.
+	 *
+	 * @return the number of waits
+	 */
+	synchronized long getStreamLimitWaits() {
+		return streamLimitWaits;
+	}
+
+	/**
+	 * Gets the number of requests whose body had to wait for the server to open its
+	 * flow control window.
+	 *
+	 * @return the number of waits
+	 */
+	synchronized long getFlowControlWaits() {
+		return flowControlWaits;
+	}
+
+	/**
+	 * Gets the streams the server allows open at once.
+	 *
+	 * @return the limit set by the server
+	 */
+	synchronized int getPeerMaxStreams() {
+		return peerMaxStreams;
+	}
+
+	/**
+	 * Gets the bytes which may be sent before the server opens the connection window further.
+	 *
+	 * @return the connection send window
+	 */
+	synchronized long getSendWindow() {
+		return sendWindow;
+	}
+
+}
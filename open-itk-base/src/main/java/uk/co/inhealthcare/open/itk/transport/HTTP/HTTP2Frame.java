@@ -0,0 +1,208 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A frame of an HTTP/2 connection (RFC 7540), and the constants needed to read
+ * and write one.
+ *
+ * @author Nick Jones
+ */
+class HTTP2Frame {
+
+	/** The connection preface sent by a client before its first frame */
+	static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(Charset.forName("US-ASCII"));
+
+	// Frame types
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+
+	// Flags
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	// Settings
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	// Error codes
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	/** The frame size every endpoint must accept, and the largest this transport reads */
+	static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+	/** The initial flow control window of a connection and its streams */
+	static final int DEFAULT_WINDOW_SIZE = 65535;
+
+	/** The largest flow control window allowed */
+	static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * Signals a breach of the protocol by the other endpoint, which ends the connection.
+	 */
+	static class ProtocolException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int errorCode;
+
+		ProtocolException(int errorCode, String message) {
+			super(message);
+			this.errorCode = errorCode;
+		}
+
+		int getErrorCode() {
+			return errorCode;
+		}
+	}
+
+	final int type;
+	final int flags;
+	final int streamId;
+	final byte[] payload;
+
+	HTTP2Frame(int type, int flags, int streamId, byte[] payload) {
+		this.type = type;
+		this.flags = flags;
+		this.streamId = streamId;
+		this.payload = payload;
+	}
+
+	boolean hasFlag(int flag) {
+		return (flags & flag) != 0;
+	}
+
+	/**
+	 * Reads a frame.
+	 *
+	 * @param in the stream to read
+	 * @param maxFrameSize the largest payload which may be received
+	 * @return the frame
+	 * @throws IOException Signals that an I/O exception has occurred, including the end of the stream.
+	 */
+	static HTTP2Frame read(InputStream in, int maxFrameSize) throws IOException {
+		byte[] header = new byte[9];
+		readFully(in, header, 0, header.length);
+		int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+		if (length > maxFrameSize) {
+			throw new ProtocolException(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds " + maxFrameSize);
+		}
+		byte[] payload = new byte[length];
+		readFully(in, payload, 0, length);
+		return new HTTP2Frame(header[3] & 0xff, header[4] & 0xff, getInt(header, 5) & 0x7fffffff, payload);
+	}
+
+	/**
+	 * Writes a frame. The caller must make sure frames are not interleaved.
+	 *
+	 * @param out the stream to write to
+	 * @param type the frame type
+	 * @param flags the flags
+	 * @param streamId the stream id, 0 for the connection
+	 * @param payload the payload
+	 * @param offset the start of the payload in the array
+	 * @param length the length of the payload
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static void write(OutputStream out, int type, int flags, int streamId, byte[] payload, int offset, int length)
+			throws IOException {
+		byte[] header = new byte[9];
+		header[0] = (byte) (length >>> 16);
+		header[1] = (byte) (length >>> 8);
+		header[2] = (byte) length;
+		header[3] = (byte) type;
+		header[4] = (byte) flags;
+		putInt(header, 5, streamId);
+		out.write(header);
+		out.write(payload, offset, length);
+	}
+
+	/**
+	 * Builds the payload of a SETTINGS frame.
+	 *
+	 * @param settings pairs of setting ids and values
+	 * @return the payload
+	 */
+	static byte[] settings(int... settings) {
+		byte[] payload = new byte[settings.length * 3];
+		for (int i = 0; i < settings.length; i += 2) {
+			int pos = i * 3;
+			payload[pos] = (byte) (settings[i] >>> 8);
+			payload[pos + 1] = (byte) settings[i];
+			putInt(payload, pos + 2, settings[i + 1]);
+		}
+		return payload;
+	}
+
+	/**
+	 * Builds a four byte payload, as used by WINDOW_UPDATE and RST_STREAM.
+	 *
+	 * @param value the value
+	 * @return the payload
+	 */
+	static byte[] intPayload(int value) {
+		byte[] payload = new byte[4];
+		putInt(payload, 0, value);
+		return payload;
+	}
+
+	static int getInt(byte[] bytes, int pos) {
+		return ((bytes[pos] & 0xff) << 24) | ((bytes[pos + 1] & 0xff) << 16) | ((bytes[pos + 2] & 0xff) << 8)
+				| (bytes[pos + 3] & 0xff);
+	}
+
+	static void putInt(byte[] bytes, int pos, int value) {
+		bytes[pos] = (byte) (value >>> 24);
+		bytes[pos + 1] = (byte) (value >>> 16);
+		bytes[pos + 2] = (byte) (value >>> 8);
+		bytes[pos + 3] = (byte) value;
+	}
+
+	private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = in.read(bytes, offset, length);
+			if (read == -1) {
+				throw new EOFException("HTTP/2 connection closed");
+			}
+			offset += read;
+			length -= read;
+		}
+	}
+
+}
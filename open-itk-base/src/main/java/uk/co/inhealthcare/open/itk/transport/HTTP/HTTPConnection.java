@@ -0,0 +1,174 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A persistent HTTP/1.1 connection to a single host, leased from and returned to
+ * an HTTPConnectionPool. Not thread safe - a connection is only used by the thread
+ * which leased it.
+ *
+ * @author Nick Jones
+ */
+class HTTPConnection {
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private long lastUsed;
+	private int requestCount = 0;
+
+	// Reused for every request body sent on this connection
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+	// Reused for every response read on this connection
+	private final byte[] buffer = new byte[8192];
+
+	/**
+	 * Signals that the connection was closed before any of the response was received,
+	 * which is what happens when a server drops an idle keep-alive connection.
+	 */
+	static class NoResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NoResponseException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Instantiates a new HTTP connection over a connected socket.
+	 *
+	 * @param socket the connected socket
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	HTTPConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = socket.getInputStream();
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the buffer to write the request body to. The buffer is emptied
+	 * for each request.
+	 *
+	 * @return the request body buffer
+	 */
+	ByteArrayOutputStream getRequestBody() {
+		body.reset();
+		return body;
+	}
+
+	/**
+	 * Sends a request with the body previously written to getRequestBody and
+	 * reads the response.
+	 *
+	 * @param requestHead the request line and headers, without the Content-Length
+	 * @param readTimeout the read timeout in milliseconds
+	 * @param maxResponseSize the maximum size in bytes of the response body
+	 * @return the response
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	HTTPResponse execute(String requestHead, int readTimeout, long maxResponseSize) throws IOException {
+		socket.setSoTimeout(readTimeout);
+
+		try {
+			out.write(requestHead.getBytes(ASCII));
+			out.write(("Content-Length: " + body.size()).getBytes(ASCII));
+			out.write(CRLF);
+			out.write(CRLF);
+			body.writeTo(out);
+			out.flush();
+		} catch (SocketException se) {
+			throw new NoResponseException("Connection closed before the request was sent:" + se.getMessage());
+		}
+
+		// The same parser as the NIO transport, which also bounds the status line and headers
+		HTTPResponseParser parser = new HTTPResponseParser(maxResponseSize);
+		boolean received = false;
+		while (true) {
+			int read;
+			try {
+				read = in.read(buffer);
+			} catch (SocketException se) {
+				if (!received) {
+					throw new NoResponseException("Connection reset without a response:" + se.getMessage());
+				}
+				throw se;
+			}
+			if (read == -1) {
+				parser.endOfStream();
+				break;
+			}
+			received = true;
+			if (parser.feed(ByteBuffer.wrap(buffer, 0, read))) {
+				break;
+			}
+		}
+		lastUsed = System.currentTimeMillis();
+		requestCount++;
+		return parser.getResponse();
+	}
+
+	/**
+	 * Gets the time this connection was last used.
+	 *
+	 * @return the time in milliseconds since the epoch
+	 */
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Checks whether a request has already completed on this connection.
+	 *
+	 * @return true if the connection has been used before
+	 */
+	boolean hasBeenUsed() {
+		return requestCount > 0;
+	}
+
+	/**
+	 * Checks whether the connection can still be used.
+	 *
+	 * @return true if the socket is still open
+	 */
+	boolean isOpen() {
+		return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+	}
+
+	/**
+	 * Closes the connection, ignoring any errors.
+	 */
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			// Nothing more to do - the connection is being discarded
+		}
+	}
+
+}
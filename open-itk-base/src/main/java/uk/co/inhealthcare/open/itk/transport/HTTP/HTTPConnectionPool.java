@@ -0,0 +1,288 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of keep-alive HTTP connections to a single host and port. The number of
+ * connections is bounded, connections idle for longer than the idle timeout are
+ * closed rather than reused, and the pool counts how often connections are created,
+ * reused and evicted.
+ *
+ * Idle connections are reused most recently used first, so under light load the
+ * older connections reach the idle timeout and are evicted.
+ *
+ * @author Nick Jones
+ */
+public class HTTPConnectionPool {
+
+	private final static Logger logger = LoggerFactory.getLogger(HTTPConnectionPool.class);
+
+	/**
+	 * Signals that every connection stayed leased for the whole wait.
+	 */
+	static class PoolTimeoutException extends SocketTimeoutException {
+		private static final long serialVersionUID = 1L;
+
+		PoolTimeoutException(String message) {
+			super(message);
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final SSLSocketFactory sslSocketFactory;
+	private final boolean verifyHostname;
+	private final int maxConnections;
+	private final long idleTimeout;
+
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<HTTPConnection> idle = new LinkedBlockingDeque<HTTPConnection>();
+	private volatile boolean closed = false;
+
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * Instantiates a new HTTP connection pool.
+	 *
+	 * @param host the host
+	 * @param port the port
+	 * @param sslSocketFactory the factory for TLS connections, or null for plain HTTP
+	 * @param verifyHostname whether to check the server certificate matches the host
+	 * @param maxConnections the maximum number of connections, leased and idle
+	 * @param idleTimeout how long in milliseconds a connection may be idle and still be reused
+	 */
+	HTTPConnectionPool(String host, int port, SSLSocketFactory sslSocketFactory, boolean verifyHostname,
+			int maxConnections, long idleTimeout) {
+		this.host = host;
+		this.port = port;
+		this.sslSocketFactory = sslSocketFactory;
+		this.verifyHostname = verifyHostname;
+		this.maxConnections = maxConnections;
+		this.idleTimeout = idleTimeout;
+		this.permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * Leases a connection, reusing an idle connection where possible. The connection
+	 * must be given back with release.
+	 *
+	 * @param timeout the time in milliseconds to wait for a connection, also used as the connect timeout
+	 * @return the connection
+	 * @throws IOException if no connection could be leased or opened
+	 */
+	HTTPConnection lease(int timeout) throws IOException {
+		if (closed) {
+			throw new IOException("Connection pool for " + host + ":" + port + " is closed");
+		}
+		try {
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				throw new PoolTimeoutException("Timed out waiting for a connection to " + host + ":" + port);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + host + ":" + port);
+		}
+
+		try {
+			long now = System.currentTimeMillis();
+			HTTPConnection conn;
+			while ((conn = idle.pollFirst()) != null) {
+				if (conn.isOpen() && now - conn.getLastUsed() < idleTimeout) {
+					reused.incrementAndGet();
+					return conn;
+				}
+				conn.close();
+				evicted.incrementAndGet();
+			}
+			conn = connect(timeout);
+			created.incrementAndGet();
+			return conn;
+		} catch (IOException ioe) {
+			permits.release();
+			throw ioe;
+		} catch (RuntimeException re) {
+			permits.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Gives a leased connection back to the pool.
+	 *
+	 * @param conn the connection
+	 * @param reusable false if the connection must be closed rather than reused
+	 */
+	void release(HTTPConnection conn, boolean reusable) {
+		try {
+			if (reusable && !closed && conn.isOpen()) {
+				idle.offerFirst(conn);
+			} else {
+				conn.close();
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Closes any connections which have been idle for longer than the idle timeout.
+	 *
+	 * @return the number of connections closed
+	 */
+	int evictIdle() {
+		long now = System.currentTimeMillis();
+		int count = 0;
+		Iterator<HTTPConnection> it = idle.iterator();
+		while (it.hasNext()) {
+			HTTPConnection conn = it.next();
+			if ((!conn.isOpen() || now - conn.getLastUsed() >= idleTimeout) && idle.removeFirstOccurrence(conn)) {
+				conn.close();
+				evicted.incrementAndGet();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Closes the pool and all its idle connections. Leased connections are closed
+	 * when they are released.
+	 */
+	void close() {
+		closed = true;
+		HTTPConnection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			conn.close();
+		}
+	}
+
+	private HTTPConnection connect(int timeout) throws IOException {
+		logger.debug("Opening connection to " + host + ":" + port);
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			if (sslSocketFactory != null) {
+				socket.setSoTimeout(timeout);
+				SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+				if (verifyHostname) {
+					SSLParameters params = sslSocket.getSSLParameters();
+					params.setEndpointIdentificationAlgorithm("HTTPS");
+					sslSocket.setSSLParameters(params);
+				}
+				sslSocket.startHandshake();
+				socket = sslSocket;
+			}
+			return new HTTPConnection(socket);
+		} catch (IOException ioe) {
+			socket.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Gets the host.
+	 *
+	 * @return the host
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * Gets the port.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Gets the maximum number of connections.
+	 *
+	 * @return the maximum number of connections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Gets the number of connections opened.
+	 *
+	 * @return the number of connections opened
+	 */
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	/**
+	 * Gets the number of times an idle connection was reused.
+	 *
+	 * @return the number of times a connection was reused
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	/**
+	 * Gets the number of idle connections closed because they had expired
+	 * or been closed by the server.
+	 *
+	 * @return the number of connections evicted
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	/**
+	 * Gets the number of connections currently leased.
+	 *
+	 * @return the number of leased connections
+	 */
+	public int getLeasedCount() {
+		return maxConnections - permits.availablePermits();
+	}
+
+	/**
+	 * Gets the number of idle connections available for reuse.
+	 *
+	 * @return the number of idle connections
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+}
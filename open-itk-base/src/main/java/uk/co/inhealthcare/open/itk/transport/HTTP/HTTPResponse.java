@@ -0,0 +1,151 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An HTTP response read from an HTTPConnection.
+ *
+ * @author Nick Jones
+ */
+class HTTPResponse {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The gzip content coding */
+	static final String GZIP = "gzip";
+
+	private final int statusCode;
+	private final Map<String, String> headers;
+	private boolean keepAlive;
+	private byte[] body;
+
+	/**
+	 * Instantiates a new HTTP response.
+	 *
+	 * @param statusCode the status code
+	 * @param headers the headers, keyed by lower case name
+	 * @param keepAlive whether the connection may be reused
+	 */
+	HTTPResponse(int statusCode, Map<String, String> headers, boolean keepAlive) {
+		this.statusCode = statusCode;
+		this.headers = headers;
+		this.keepAlive = keepAlive;
+	}
+
+	int getStatusCode() {
+		return statusCode;
+	}
+
+	String getHeader(String name) {
+		return headers.get(name.toLowerCase(Locale.ENGLISH));
+	}
+
+	boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	byte[] getBody() {
+		return body;
+	}
+
+	void setBody(byte[] body) {
+		this.body = body;
+	}
+
+	/**
+	 * Gets the body as text, using the charset from the Content-Type
+	 * header or UTF-8 if there isn't one.
+	 *
+	 * @return the body text
+	 */
+	String getBodyAsString() {
+		return decode(body, getCharset(getHeader("content-type")));
+	}
+
+	/**
+	 * Gets the charset parameter of a Content-Type header.
+	 *
+	 * @param contentType the Content-Type header, may be null
+	 * @return the charset name, or null if there isn't one
+	 */
+	static String getCharset(String contentType) {
+		if (contentType != null) {
+			for (String param : contentType.split(";")) {
+				param = param.trim();
+				if (param.toLowerCase(Locale.ENGLISH).startsWith("charset=")) {
+					return param.substring("charset=".length()).replace("\"", "").trim();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes a response body in one pass.
+	 *
+	 * @param bytes the body
+	 * @param charset the charset name, or null for UTF-8
+	 * @return the body text
+	 */
+	static String decode(byte[] bytes, String charset) {
+		Charset cs = UTF8;
+		if (charset != null) {
+			try {
+				cs = Charset.forName(charset);
+			} catch (IllegalArgumentException iae) {
+				// Unknown charset - stay with UTF-8
+			}
+		}
+		return new String(bytes, cs);
+	}
+
+	/**
+	 * Checks whether a Content-Encoding header is gzip.
+	 *
+	 * @param contentEncoding the Content-Encoding header, may be null
+	 * @return true if the body is gzip compressed
+	 */
+	static boolean isGzip(String contentEncoding) {
+		return contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.trim());
+	}
+
+	/**
+	 * Opens a response body for reading, decompressing it as it is read if it is gzip
+	 * encoded. The limit applies to the decompressed body.
+	 *
+	 * @param is the body as received
+	 * @param contentEncoding the Content-Encoding header, may be null
+	 * @param limit the maximum number of bytes which may be read
+	 * @return the stream to read the body from
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static InputStream openBody(InputStream is, String contentEncoding, long limit) throws IOException {
+		if (isGzip(contentEncoding)) {
+			is = new GZIPInputStream(is, 8192);
+		}
+		return new LimitedInputStream(is, limit);
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKSaturatedException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.transport.WS.ITKSOAPException;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+
+/**
+ * Turns HTTP responses and I/O failures into the Documents and exceptions
+ * returned by the socket based HTTP senders.
+ *
+ * @author Nick Jones
+ */
+class HTTPResponseHandler {
+
+	private final static Logger logger = LoggerFactory.getLogger(HTTPResponseHandler.class);
+
+	private HTTPResponseHandler() {
+	}
+
+	/**
+	 * Gets the response document, or throws the exception the status code calls for.
+	 *
+	 * @param response the response
+	 * @param maxResponseSize the maximum size of a decompressed response body
+	 * @return the document, or null for an HTTP 202
+	 * @throws ITKMessagingException the iTK messaging exception
+	 */
+	static Document toDocument(HTTPResponse response, long maxResponseSize) throws ITKMessagingException {
+
+		Document responseDoc = null;
+		try {
+			if (HTTPResponse.isGzip(response.getHeader("content-encoding"))) {
+				response.setBody(LimitedInputStream.readFully(HTTPResponse.openBody(
+						new ByteArrayInputStream(response.getBody()), HTTPResponse.GZIP, maxResponseSize), maxResponseSize));
+			}
+			int responseCode = response.getStatusCode();
+			logger.trace("HTTP Response Code:"+responseCode);
+			if (responseCode == HttpURLConnection.HTTP_ACCEPTED){
+
+				logger.trace("SIMPLE HTTP ACCEPT (202)");
+
+			} else if (responseCode == HttpURLConnection.HTTP_OK) {
+				logger.trace("HTTP 200");
+				if (logger.isTraceEnabled()) {
+					logger.trace("Response was:"+response.getBodyAsString());
+				}
+				// Let the parser decode the bytes rather than building a String first
+				responseDoc = DomUtils.parse(new ByteArrayInputStream(response.getBody()),
+						HTTPResponse.getCharset(response.getHeader("content-type")));
+
+			} else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+				logger.error("HTTP 503");
+				throw new ITKUnavailableException("HTTP Unavailable Response / ITK Busy Tone");
+
+			} else if (responseCode == HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				logger.error("HTTP 500");
+				String responseString = response.getBodyAsString();
+				//Understand why an error has occurred - do we have a SOAP fault?
+				if (responseString.contains("http://www.w3.org/2005/08/addressing/fault")) {
+					//SOAP fault
+					throw ITKSOAPException.parseSOAPFault(responseString);
+				} else {
+					throw new ITKCommsException("HTTP Internal server error");
+				}
+			} else {
+
+				logger.error("Unrecognized HTTP response code:"+responseCode);
+				throw new ITKCommsException("Unrecognized HTTP response code:"+responseCode);
+			}
+
+		} catch (LimitedInputStream.LimitExceededException lee) {
+			throw toException(lee, maxResponseSize);
+		} catch (IOException ioe) {
+			logger.error("IOException processing response from WS-CALL", ioe);
+			throw new ITKCommsException("XML Error Processing ITK Response");
+		} catch (SAXException se) {
+			logger.error("SAXException processing response from WS-CALL", se);
+			throw new ITKCommsException("XML Error Processing ITK Response");
+		} catch (ParserConfigurationException pce) {
+			logger.error("ParseConfigurationException on WS-CALL", pce);
+			throw new ITKCommsException("XML Configuration Error Processing ITK Response");
+		}
+
+		return responseDoc;
+	}
+
+	/**
+	 * Gets the exception to report for an I/O failure sending a message.
+	 *
+	 * @param ioe the I/O failure
+	 * @param maxResponseSize the maximum response size in force
+	 * @return the exception to throw
+	 */
+	static ITKMessagingException toException(IOException ioe, long maxResponseSize) {
+		if (ioe instanceof MalformedURLException) {
+			logger.error("MalformedURLException on WS-CALL", ioe);
+			return new ITKCommsException("Configuration error sending ITK Message");
+		} else if (ioe instanceof LimitedInputStream.LimitExceededException) {
+			String eMsg = "ITK Response exceeded the maximum size of " + maxResponseSize + " bytes";
+			logger.error(eMsg, ioe);
+			return new ITKCommsException(eMsg);
+		} else if (ioe instanceof HTTPConnectionPool.PoolTimeoutException) {
+			String eMsg = "No connection free sending ITK Message";
+			logger.error(eMsg, ioe);
+			return new ITKSaturatedException(eMsg);
+		} else if (ioe instanceof SocketTimeoutException) {
+			logger.error("Timeout on WS-CALL", ioe);
+			return new ITKTransportTimeoutException("Transport timeout sending ITK Message");
+		}
+		logger.error("IOException on WS-CALL", ioe);
+		return new ITKCommsException("Transport error sending ITK Message");
+	}
+
+}
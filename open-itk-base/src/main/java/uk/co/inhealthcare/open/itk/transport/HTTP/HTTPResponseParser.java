@@ -0,0 +1,268 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads an HTTP/1.1 response from bytes as they arrive, skipping 1xx responses
+ * and handling chunked bodies and bodies delimited by the server closing the
+ * connection. Both the blocking HTTPConnection and the non-blocking NIOExchange
+ * read their responses with it.
+ *
+ * @author Nick Jones
+ */
+class HTTPResponseParser {
+
+	// Guards against a server sending an endless status line or headers
+	private static final int MAX_LINE_LENGTH = 8192;
+	private static final int MAX_HEAD_SIZE = 65536;
+
+	private enum State { STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE }
+
+	private final long maxResponseSize;
+	private State state = State.STATUS_LINE;
+	private final StringBuilder line = new StringBuilder(64);
+	private int headSize = 0;
+	private boolean received = false;
+
+	private String version;
+	private int statusCode;
+	private Map<String, String> headers;
+	private ByteArrayOutputStream content;
+	private long remaining;
+	private HTTPResponse response;
+
+	/**
+	 * Instantiates a new HTTP response parser.
+	 *
+	 * @param maxResponseSize the maximum size in bytes of the response body
+	 */
+	HTTPResponseParser(long maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	/**
+	 * Reads as much of the response as the buffer holds.
+	 *
+	 * @param buffer the bytes received, ready for reading
+	 * @return true if the response is complete
+	 * @throws IOException if the response is invalid or too large
+	 */
+	boolean feed(ByteBuffer buffer) throws IOException {
+		if (buffer.hasRemaining()) {
+			received = true;
+		}
+		while (buffer.hasRemaining() && state != State.DONE) {
+			switch (state) {
+			case BODY:
+			case CHUNK_DATA:
+				int length = (int) Math.min(remaining, buffer.remaining());
+				copy(buffer, length);
+				remaining -= length;
+				if (remaining == 0) {
+					state = state == State.BODY ? State.DONE : State.CHUNK_END;
+				}
+				break;
+			case UNTIL_CLOSE:
+				copy(buffer, buffer.remaining());
+				break;
+			default:
+				String text = readLine(buffer);
+				if (text != null) {
+					processLine(text);
+				}
+			}
+		}
+		if (state == State.DONE) {
+			finish();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called when the server closes the connection.
+	 *
+	 * @return true if the response is complete
+	 * @throws IOException if the connection closed part way through the response
+	 */
+	boolean endOfStream() throws IOException {
+		if (state == State.DONE) {
+			return true;
+		}
+		if (state == State.UNTIL_CLOSE) {
+			finish();
+			response.setKeepAlive(false);
+			state = State.DONE;
+			return true;
+		}
+		if (!received) {
+			throw new HTTPConnection.NoResponseException("Connection closed without a response");
+		}
+		throw new EOFException("Connection closed before the end of the response");
+	}
+
+	/**
+	 * Gets the response once it is complete.
+	 *
+	 * @return the response, or null if it is not yet complete
+	 */
+	HTTPResponse getResponse() {
+		return state == State.DONE ? response : null;
+	}
+
+	private void processLine(String text) throws IOException {
+		switch (state) {
+		case STATUS_LINE:
+			String[] parts = text.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("Invalid HTTP status line:" + text);
+			}
+			try {
+				statusCode = Integer.parseInt(parts[1]);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Invalid HTTP status line:" + text);
+			}
+			version = parts[0];
+			headers = new HashMap<String, String>();
+			state = State.HEADERS;
+			break;
+		case HEADERS:
+			if (text.length() > 0) {
+				int colon = text.indexOf(':');
+				if (colon > 0) {
+					headers.put(text.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), text.substring(colon + 1).trim());
+				}
+			} else {
+				endOfHeaders();
+			}
+			break;
+		case CHUNK_SIZE:
+			int extension = text.indexOf(';');
+			String size = extension >= 0 ? text.substring(0, extension) : text;
+			try {
+				remaining = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Invalid chunk size:" + text);
+			}
+			checkLimit(remaining);
+			state = remaining > 0 ? State.CHUNK_DATA : State.TRAILERS;
+			break;
+		case CHUNK_END:
+			state = State.CHUNK_SIZE;
+			break;
+		case TRAILERS:
+			if (text.length() == 0) {
+				state = State.DONE;
+			}
+			break;
+		default:
+			throw new IllegalStateException(state.toString());
+		}
+	}
+
+	private void endOfHeaders() throws IOException {
+		if (statusCode / 100 == 1) {
+			// Interim response - the real one follows
+			headSize = 0;
+			state = State.STATUS_LINE;
+			return;
+		}
+
+		String connection = headers.get("connection");
+		boolean keepAlive = version.equals("HTTP/1.0")
+				? "keep-alive".equalsIgnoreCase(connection)
+				: !"close".equalsIgnoreCase(connection);
+		response = new HTTPResponse(statusCode, headers, keepAlive);
+
+		String transferEncoding = headers.get("transfer-encoding");
+		String contentLength = headers.get("content-length");
+		if (statusCode == 204 || statusCode == 304) {
+			content = new ByteArrayOutputStream(0);
+			state = State.DONE;
+		} else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+			content = new ByteArrayOutputStream(8192);
+			state = State.CHUNK_SIZE;
+		} else if (contentLength != null) {
+			try {
+				remaining = Long.parseLong(contentLength);
+			} catch (NumberFormatException nfe) {
+				throw new IOException("Invalid Content-Length:" + contentLength);
+			}
+			if (remaining > maxResponseSize) {
+				throw new LimitedInputStream.LimitExceededException(maxResponseSize);
+			}
+			content = new ByteArrayOutputStream((int) remaining);
+			state = remaining > 0 ? State.BODY : State.DONE;
+		} else {
+			content = new ByteArrayOutputStream(8192);
+			state = State.UNTIL_CLOSE;
+		}
+	}
+
+	private String readLine(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			byte b = buffer.get();
+			if (state == State.STATUS_LINE || state == State.HEADERS) {
+				if (++headSize > MAX_HEAD_SIZE) {
+					throw new IOException("HTTP response headers exceeded " + MAX_HEAD_SIZE + " bytes");
+				}
+			}
+			if (b == '\n') {
+				String text = line.toString();
+				line.setLength(0);
+				return text;
+			}
+			if (b != '\r') {
+				if (line.length() == MAX_LINE_LENGTH) {
+					throw new IOException("HTTP response line exceeded " + MAX_LINE_LENGTH + " bytes");
+				}
+				line.append((char) (b & 0xff));
+			}
+		}
+		return null;
+	}
+
+	private void copy(ByteBuffer buffer, int length) throws IOException {
+		checkLimit(length);
+		if (buffer.hasArray()) {
+			content.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				content.write(buffer.get());
+			}
+		}
+	}
+
+	private void checkLimit(long more) throws IOException {
+		if (content.size() + more > maxResponseSize) {
+			throw new LimitedInputStream.LimitExceededException(maxResponseSize);
+		}
+	}
+
+	private void finish() {
+		if (response.getBody() == null) {
+			response.setBody(content.toByteArray());
+		}
+	}
+
+}
@@ -0,0 +1,317 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.util.ITKDirectoryProperties;
+
+/**
+ * The TLS settings of a directory channel.<br/><br/>
+ *
+ * Each distinct configuration gets one SSLContext, built the first time a route
+ * uses it and shared by every sender from then on, so its session cache lets
+ * later connections resume a session instead of making a full handshake. Nothing
+ * JVM wide is changed. The settings are read from directory.properties, falling
+ * back to the DEFAULT entries:
+ * <pre>
+ * &lt;channel&gt;.KeyStore            - client key store, a file or classpath resource
+ * &lt;channel&gt;.KeyStorePassword
+ * &lt;channel&gt;.KeyStoreType        - JKS if not set
+ * &lt;channel&gt;.TrustStore          - trust store, a file or classpath resource
+ * &lt;channel&gt;.TrustStorePassword
+ * &lt;channel&gt;.TrustStoreType      - JKS if not set
+ * &lt;channel&gt;.TLSProtocol         - TLS if not set
+ * &lt;channel&gt;.TLSSessionCacheSize - sessions kept for resumption
+ * &lt;channel&gt;.TLSSessionTimeout   - seconds a session may be resumed for
+ * </pre>
+ * Without a key store the one named by the javax.net.ssl.keyStore system properties
+ * is used, as it would be by the JVM default context, so the client certificate is
+ * still presented. Without a trust store the JVM default trust managers are used,
+ * which read the javax.net.ssl.trustStore system properties. Either way the context
+ * has a session cache of the configured size.
+ *
+ * @author Nick Jones
+ */
+public class ITKTLSContexts {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKTLSContexts.class);
+
+	private static final String DEFAULT = "DEFAULT";
+	private static final String KEY_STORE = "KeyStore";
+	private static final String KEY_STORE_PASSWORD = "KeyStorePassword";
+	private static final String KEY_STORE_TYPE = "KeyStoreType";
+	private static final String TRUST_STORE = "TrustStore";
+	private static final String TRUST_STORE_PASSWORD = "TrustStorePassword";
+	private static final String TRUST_STORE_TYPE = "TrustStoreType";
+	private static final String TLS_PROTOCOL = "TLSProtocol";
+	private static final String SESSION_CACHE_SIZE = "TLSSessionCacheSize";
+	private static final String SESSION_TIMEOUT = "TLSSessionTimeout";
+
+	private static final String SYSTEM_KEY_STORE = "javax.net.ssl.keyStore";
+	private static final String SYSTEM_KEY_STORE_PASSWORD = "javax.net.ssl.keyStorePassword";
+	private static final String SYSTEM_KEY_STORE_TYPE = "javax.net.ssl.keyStoreType";
+
+	/** The default number of sessions cached per context */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+
+	/** The default session timeout - 1 hour */
+	public static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+	private static final ConcurrentMap<String, ITKTLSContexts> contexts = new ConcurrentHashMap<String, ITKTLSContexts>();
+	private static final ConcurrentMap<String, ITKTLSContexts> channels = new ConcurrentHashMap<String, ITKTLSContexts>();
+
+	private static final boolean verifyHostname = readVerifyHostname();
+
+	private static final HostnameVerifier ANY_HOSTNAME = new HostnameVerifier() {
+		@Override
+		public boolean verify(String hostname, SSLSession sslSession) {
+			return true;
+		}
+	};
+
+	private final String name;
+	private final SSLContext sslContext;
+	private final SSLSocketFactory socketFactory;
+
+	private ITKTLSContexts(String name, SSLContext sslContext) {
+		this.name = name;
+		this.sslContext = sslContext;
+		this.socketFactory = sslContext.getSocketFactory();
+	}
+
+	/**
+	 * Gets the TLS settings for a route, building them the first time they are used.
+	 *
+	 * @param route the route
+	 * @return the TLS settings
+	 * @throws ITKCommsException if the key store or trust store cannot be loaded
+	 */
+	public static ITKTLSContexts forRoute(ITKTransportRoute route) throws ITKCommsException {
+		String channelId = route.getChannelId() != null ? route.getChannelId() : DEFAULT;
+		ITKTLSContexts tls = channels.get(channelId);
+		if (tls == null) {
+			tls = create(channelId);
+			channels.putIfAbsent(channelId, tls);
+		}
+		return tls;
+	}
+
+	private static ITKTLSContexts create(String channelId) throws ITKCommsException {
+		String keyStore = getDirectoryProperty(channelId, KEY_STORE);
+		String keyStorePassword = getDirectoryProperty(channelId, KEY_STORE_PASSWORD);
+		String keyStoreType = getDirectoryProperty(channelId, KEY_STORE_TYPE);
+		if (keyStore == null) {
+			// As the JVM default context would, so the client certificate is not lost
+			keyStore = getSystemProperty(SYSTEM_KEY_STORE);
+			keyStorePassword = getSystemProperty(SYSTEM_KEY_STORE_PASSWORD);
+			keyStoreType = getSystemProperty(SYSTEM_KEY_STORE_TYPE);
+			if (keyStoreType == null) {
+				keyStoreType = KeyStore.getDefaultType();
+			}
+		}
+		String trustStore = getDirectoryProperty(channelId, TRUST_STORE);
+		String trustStorePassword = getDirectoryProperty(channelId, TRUST_STORE_PASSWORD);
+		String trustStoreType = getDirectoryProperty(channelId, TRUST_STORE_TYPE);
+		String protocol = getDirectoryProperty(channelId, TLS_PROTOCOL);
+		String cacheSize = getDirectoryProperty(channelId, SESSION_CACHE_SIZE);
+		String timeout = getDirectoryProperty(channelId, SESSION_TIMEOUT);
+
+		// Channels with the same settings share a context, and so a session cache
+		String name = "keyStore=" + keyStore + ",trustStore=" + trustStore + ",protocol=" + protocol;
+		String key = name + "," + keyStoreType + "," + trustStoreType + "," + cacheSize + "," + timeout + ","
+				+ keyStorePassword + "," + trustStorePassword;
+		ITKTLSContexts tls = contexts.get(key);
+		if (tls != null) {
+			return tls;
+		}
+		try {
+			KeyManager[] keyManagers = null;
+			if (keyStore != null) {
+				char[] password = keyStorePassword != null ? keyStorePassword.toCharArray() : null;
+				KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				kmf.init(loadStore(keyStore, keyStoreType, password), password);
+				keyManagers = kmf.getKeyManagers();
+			}
+			TrustManager[] trustManagers = null;
+			if (trustStore != null) {
+				char[] password = trustStorePassword != null ? trustStorePassword.toCharArray() : null;
+				TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				tmf.init(loadStore(trustStore, trustStoreType, password));
+				trustManagers = tmf.getTrustManagers();
+			}
+			SSLContext sslContext = SSLContext.getInstance(protocol != null ? protocol : "TLS");
+			sslContext.init(keyManagers, trustManagers, null);
+			sslContext.getClientSessionContext().setSessionCacheSize(
+					getInt(channelId, SESSION_CACHE_SIZE, cacheSize, DEFAULT_SESSION_CACHE_SIZE));
+			sslContext.getClientSessionContext().setSessionTimeout(
+					getInt(channelId, SESSION_TIMEOUT, timeout, DEFAULT_SESSION_TIMEOUT));
+			tls = new ITKTLSContexts(name, sslContext);
+		} catch (GeneralSecurityException gse) {
+			String eMsg = "Could not create the TLS context for channel " + channelId;
+			logger.error(eMsg, gse);
+			throw new ITKCommsException(eMsg);
+		} catch (IOException ioe) {
+			String eMsg = "Could not load the TLS key or trust store for channel " + channelId;
+			logger.error(eMsg, ioe);
+			throw new ITKCommsException(eMsg);
+		}
+		ITKTLSContexts existing = contexts.putIfAbsent(key, tls);
+		if (existing != null) {
+			return existing;
+		}
+		logger.info("Created TLS context [" + name + "] for channel " + channelId);
+		return tls;
+	}
+
+	/**
+	 * Gets a name for the settings. It does not include the passwords.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the SSLContext.
+	 *
+	 * @return the SSLContext
+	 */
+	public SSLContext getSSLContext() {
+		return sslContext;
+	}
+
+	/**
+	 * Gets the socket factory. The same factory is always returned, which lets
+	 * HttpsURLConnection reuse kept alive connections made with it.
+	 *
+	 * @return the socket factory
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return socketFactory;
+	}
+
+	/**
+	 * Sets up a connection to use these settings rather than the JVM wide defaults.
+	 *
+	 * @param conn the connection
+	 */
+	public void configure(HttpsURLConnection conn) {
+		conn.setSSLSocketFactory(socketFactory);
+		if (!verifyHostname) {
+			conn.setHostnameVerifier(ANY_HOSTNAME);
+		}
+	}
+
+	/**
+	 * Checks whether the hostname of a TLS destination should be checked against its certificate.
+	 * The system property is read once, when the class is loaded.
+	 *
+	 * @return false if JSAT.OverrideHostnameVerification is set to Y
+	 */
+	public static boolean isVerifyHostname() {
+		return verifyHostname;
+	}
+
+	private static boolean readVerifyHostname() {
+		// Allows test certificates where the CN name does not match the hostname
+		if ("Y".equalsIgnoreCase(System.getProperty("JSAT.OverrideHostnameVerification"))) {
+			logger.warn("JSAT configured to override hostname verification. Do not use this setting in Live");
+			return false;
+		}
+		return true;
+	}
+
+	private static KeyStore loadStore(String location, String type, char[] password)
+			throws IOException, GeneralSecurityException {
+		if ("NONE".equals(location)) {
+			// A key store with no file, such as PKCS11
+			KeyStore store = KeyStore.getInstance(type != null ? type : "JKS");
+			store.load(null, password);
+			return store;
+		}
+		InputStream is;
+		File file = new File(location);
+		if (file.isFile()) {
+			is = new FileInputStream(file);
+		} else {
+			is = ITKTLSContexts.class.getResourceAsStream(location.startsWith("/") ? location : "/" + location);
+			if (is == null) {
+				throw new IOException("Key store not found:" + location);
+			}
+		}
+		try {
+			KeyStore store = KeyStore.getInstance(type != null ? type : "JKS");
+			store.load(is, password);
+			return store;
+		} finally {
+			is.close();
+		}
+	}
+
+	private static int getInt(String channelId, String propertyName, String propertyValue, int defaultValue) {
+		if (propertyValue == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(propertyValue);
+		} catch (NumberFormatException nfe) {
+			logger.warn("Invalid " + propertyName + " for " + channelId + " [" + propertyValue + "] - using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	private static String getSystemProperty(String propertyName) {
+		String propertyValue = System.getProperty(propertyName);
+		return propertyValue != null && !propertyValue.trim().isEmpty() ? propertyValue.trim() : null;
+	}
+
+	private static String getDirectoryProperty(String channelId, String propertyName) {
+		String propertyValue = ITKDirectoryProperties.getProperty(channelId + "." + propertyName);
+		if (propertyValue == null) {
+			propertyValue = ITKDirectoryProperties.getProperty(DEFAULT + "." + propertyName);
+		}
+		if (propertyValue != null) {
+			propertyValue = propertyValue.trim();
+			if (propertyValue.isEmpty()) {
+				propertyValue = null;
+			}
+		}
+		return propertyValue;
+	}
+
+}
@@ -0,0 +1,498 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportSender;
+
+/**
+ * An HTTP/2 sender. Each destination host has one connection, and every message
+ * sent to it at the same time travels on its own stream of that connection, so
+ * concurrent senders do not each need a connection (and a TLS handshake).<br/><br/>
+ *
+ * Plain http destinations are spoken to in HTTP/2 straight away (prior knowledge).
+ * For https destinations HTTP/2 is agreed during the TLS handshake (ALPN), which
+ * needs Java 8u252 or later. A destination which does not agree is an error -
+ * use a WS or WSP route for it instead.<br/><br/>
+ *
+ * The transport timeout of the route, or the time left before the deadline if that
+ * is less, is used as the connect timeout and as the time allowed for the whole
+ * exchange, including any wait for a free stream or for flow control.
+ *
+ * Used for routes with a RouteType of {@link ITKTransportRoute#HTTP_WS_H2}.
+ *
+ * @author Nick Jones
+ */
+public class ITKTransportSenderHTTP2Impl implements ITKTransportSender {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKTransportSenderHTTP2Impl.class);
+
+	private static final String H2 = "h2";
+
+	private final ConcurrentMap<String, HTTP2Connection> connections = new ConcurrentHashMap<String, HTTP2Connection>();
+	private final ConcurrentMap<String, FutureTask<HTTP2Connection>> connecting = new ConcurrentHashMap<String, FutureTask<HTTP2Connection>>();
+	private final List<HTTP2Connection> retired = new ArrayList<HTTP2Connection>();
+	private boolean closed = false;
+	private final AtomicLong connectionsCreated = new AtomicLong();
+	private final AtomicLong streamsRefused = new AtomicLong();
+
+	private long maxResponseSize = ITKTransportSenderHTTPImpl.DEFAULT_MAX_RESPONSE_SIZE;
+	/**
+	 * Sets the maximum size (in bytes) of a response body. Larger responses
+	 * are rejected as they are read.
+	 *
+	 * @param maxResponseSize
+	 */
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	private int maxConcurrentStreams = 100;
+	/**
+	 * Sets the most messages in progress at once on the connection to a destination.
+	 * The lower of this and the limit set by the server is used; further senders wait.
+	 *
+	 * @param maxConcurrentStreams
+	 */
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	private int initialWindowSize = 1024 * 1024;
+	/**
+	 * Sets how much of a response (in bytes) the server may send before waiting for
+	 * it to be read.
+	 *
+	 * @param initialWindowSize
+	 */
+	public void setInitialWindowSize(int initialWindowSize) {
+		this.initialWindowSize = initialWindowSize;
+	}
+
+	private SSLContext sslContext = null;
+	/**
+	 * Sets the SSLContext for all https destinations. The TLS settings of each route's channel are used if not set.
+	 *
+	 * @param sslContext
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties)
+			throws ITKMessagingException {
+		return transportSend(message, destination, httpProperties, ITKDeadline.forRoute(destination));
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map, uk.co.inhealthcare.open.itk.transport.ITKDeadline)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties,
+			ITKDeadline deadline) throws ITKMessagingException {
+
+		deadline.check();
+
+		try {
+			URL url = new URL(destination.getPhysicalAddress());
+			ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+			ITKTransportSenderPooledHTTPImpl.writeBody(message, body, destination);
+			List<String[]> headers = buildHeaders(url, destination, httpProperties, body.size());
+			HTTPResponse response = execute(url, destination, headers, body.toByteArray(), deadline);
+			return HTTPResponseHandler.toDocument(response, maxResponseSize);
+
+		} catch (IOException ioe) {
+			throw HTTPResponseHandler.toException(ioe, maxResponseSize);
+		}
+	}
+
+	/**
+	 * Sends the request on the connection to the destination. A request the server
+	 * refused without processing is sent again, once, on a new connection.
+	 */
+	private HTTPResponse execute(URL url, ITKTransportRoute destination, List<String[]> headers, byte[] body,
+			ITKDeadline deadline) throws IOException, ITKMessagingException {
+
+		int timeout = destination.getTransportTimeout();
+		boolean retried = false;
+		while (true) {
+			HTTP2Connection conn = getConnection(url, destination, deadline.timeout(timeout));
+			try {
+				return conn.exchange(headers, body, deadline.timeout(timeout));
+			} catch (HTTP2Connection.RefusedStreamException rse) {
+				streamsRefused.incrementAndGet();
+				if (retried) {
+					throw rse;
+				}
+				logger.debug("HTTP/2 request not processed (" + rse.getMessage() + ") - retrying on a new connection");
+				retried = true;
+			}
+		}
+	}
+
+	/**
+	 * Builds the request headers of a POST, in the lower case HTTP/2 requires.
+	 *
+	 * @param url the destination
+	 * @param destination the route, for its compression settings
+	 * @param httpProperties any further headers
+	 * @param contentLength the length of the request body
+	 * @return the request headers
+	 */
+	static List<String[]> buildHeaders(URL url, ITKTransportRoute destination, Map<String, String> httpProperties,
+			int contentLength) {
+		List<String[]> headers = new ArrayList<String[]>();
+		String path = url.getFile();
+		String authority = url.getHost() + (url.getPort() != -1 ? ":" + url.getPort() : "");
+		headers.add(new String[] { ":method", "POST" });
+		headers.add(new String[] { ":scheme", url.getProtocol().toLowerCase(Locale.ENGLISH) });
+		headers.add(new String[] { ":authority", authority });
+		headers.add(new String[] { ":path", path.length() == 0 ? "/" : path });
+		headers.add(new String[] { "content-type", "text/xml" });
+		headers.add(new String[] { "accept-charset", "UTF-8" });
+		if (destination.isCompressRequest()) {
+			headers.add(new String[] { "content-encoding", HTTPResponse.GZIP });
+		}
+		if (destination.isAcceptCompressed()) {
+			headers.add(new String[] { "accept-encoding", HTTPResponse.GZIP });
+		}
+		headers.add(new String[] { "content-length", Integer.toString(contentLength) });
+		for (Map.Entry<String, String> entry : httpProperties.entrySet()) {
+			String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+			// Connection specific headers are not allowed in HTTP/2
+			if (!name.equals("connection") && !name.equals("keep-alive") && !name.equals("transfer-encoding")
+					&& !name.equals("upgrade") && !name.equals("host") && !name.equals("content-length")) {
+				headers.add(new String[] { name, entry.getValue() });
+			}
+		}
+		return headers;
+	}
+
+	private HTTP2Connection getConnection(URL url, ITKTransportRoute destination, int timeout)
+			throws IOException, ITKCommsException {
+		boolean secure = url.getProtocol().equalsIgnoreCase("https");
+		if (!secure && !url.getProtocol().equalsIgnoreCase("http")) {
+			throw new MalformedURLException("Unsupported protocol:" + url.getProtocol());
+		}
+		String key = connectionKey(url);
+		SSLContext context = null;
+		if (secure) {
+			if (sslContext != null) {
+				context = sslContext;
+			} else {
+				// Destinations reached with different TLS settings need their own connections
+				ITKTLSContexts tls = ITKTLSContexts.forRoute(destination);
+				context = tls.getSSLContext();
+				key = key + " [" + tls.getName() + "]";
+			}
+		}
+		HTTP2Connection conn = connections.get(key);
+		if (conn != null && conn.isUsable()) {
+			return conn;
+		}
+
+		// One caller connects to each destination, outside the lock, so that a slow or
+		// unreachable destination does not hold up connections to any other
+		FutureTask<HTTP2Connection> task = new FutureTask<HTTP2Connection>(
+				new Connector(url, context, timeout, key));
+		FutureTask<HTTP2Connection> connecting = this.connecting.putIfAbsent(key, task);
+		if (connecting == null) {
+			try {
+				task.run();
+			} finally {
+				this.connecting.remove(key, task);
+			}
+			connecting = task;
+		}
+		try {
+			return connecting.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			throw new SocketTimeoutException("Timed out waiting for a connection to " + key);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + key);
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof ITKCommsException) {
+				throw (ITKCommsException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Failed to connect to " + key, cause);
+		}
+	}
+
+	/**
+	 * Opens a connection to a destination and makes it the one used for it, unless
+	 * another caller already has
+	 */
+	private class Connector implements Callable<HTTP2Connection> {
+
+		private final URL url;
+		private final SSLContext context;
+		private final int timeout;
+		private final String key;
+
+		Connector(URL url, SSLContext context, int timeout, String key) {
+			this.url = url;
+			this.context = context;
+			this.timeout = timeout;
+			this.key = key;
+		}
+
+		@Override
+		public HTTP2Connection call() throws IOException, ITKCommsException {
+			HTTP2Connection conn = connections.get(key);
+			if (conn != null && conn.isUsable()) {
+				return conn;
+			}
+			conn = connect(url, context, timeout, key);
+			synchronized (ITKTransportSenderHTTP2Impl.this) {
+				if (closed) {
+					conn.close();
+					throw new IOException("HTTP/2 sender is closed");
+				}
+				HTTP2Connection previous = connections.put(key, conn);
+				if (previous != null) {
+					// Let the streams still open on it finish
+					retired.add(previous);
+				}
+				pruneRetired();
+			}
+			connectionsCreated.incrementAndGet();
+			logger.info("Created HTTP/2 connection to " + key);
+			return conn;
+		}
+	}
+
+	private HTTP2Connection connect(URL url, SSLContext context, int timeout, String key)
+			throws IOException, ITKCommsException {
+		String host = url.getHost();
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		logger.debug("Opening HTTP/2 connection to " + host + ":" + port);
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			if (context != null) {
+				socket.setSoTimeout(timeout);
+				SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+				SSLParameters params = sslSocket.getSSLParameters();
+				if (ITKTLSContexts.isVerifyHostname()) {
+					params.setEndpointIdentificationAlgorithm("HTTPS");
+				}
+				setApplicationProtocols(params, key);
+				sslSocket.setSSLParameters(params);
+				sslSocket.startHandshake();
+				socket = sslSocket;
+				if (!H2.equals(getApplicationProtocol(sslSocket))) {
+					String eMsg = "Destination did not agree to HTTP/2:" + key;
+					logger.error(eMsg);
+					throw new ITKCommsException(eMsg);
+				}
+			}
+			// The reader thread waits for frames for as long as the connection is open
+			socket.setSoTimeout(0);
+			return new HTTP2Connection(socket, key, maxConcurrentStreams, initialWindowSize, maxResponseSize);
+		} catch (IOException ioe) {
+			socket.close();
+			throw ioe;
+		} catch (ITKCommsException ice) {
+			socket.close();
+			throw ice;
+		}
+	}
+
+	/**
+	 * ALPN is only in the API from Java 8u252, so it is called reflectively.
+	 */
+	private static void setApplicationProtocols(SSLParameters params, String key) throws ITKCommsException {
+		try {
+			Method method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			method.invoke(params, (Object) new String[] { H2 });
+		} catch (Exception e) {
+			String eMsg = "This Java runtime cannot negotiate HTTP/2 over TLS (ALPN):" + key;
+			logger.error(eMsg, e);
+			throw new ITKCommsException(eMsg);
+		}
+	}
+
+	private static String getApplicationProtocol(SSLSocket sslSocket) {
+		try {
+			Method method = SSLSocket.class.getMethod("getApplicationProtocol");
+			return (String) method.invoke(sslSocket);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static String connectionKey(URL url) {
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+	private void pruneRetired() {
+		for (int i = retired.size() - 1; i >= 0; i--) {
+			HTTP2Connection conn = retired.get(i);
+			if (conn.isClosed()) {
+				retired.remove(i);
+			} else if (conn.getActiveStreamCount() == 0) {
+				conn.close();
+				retired.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Closes all the connections. Intended as the destroy method of the bean.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for (HTTP2Connection conn : connections.values()) {
+			conn.close();
+		}
+		connections.clear();
+		for (HTTP2Connection conn : retired) {
+			conn.close();
+		}
+		retired.clear();
+	}
+
+	/**
+	 * Gets the number of connections opened across all destinations.
+	 *
+	 * @return the number of connections opened
+	 */
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+
+	/**
+	 * Gets the number of streams open now across all destinations.
+	 *
+	 * @return the number of streams in use
+	 */
+	public int getActiveStreamCount() {
+		int total = 0;
+		for (HTTP2Connection conn : connections.values()) {
+			total += conn.getActiveStreamCount();
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the most streams that have been open at once on any one connection.
+	 *
+	 * @return the peak stream concurrency
+	 */
+	public int getPeakActiveStreamCount() {
+		int peak = 0;
+		for (HTTP2Connection conn : connections.values()) {
+			peak = Math.max(peak, conn.getPeakStreamCount());
+		}
+		return peak;
+	}
+
+	/**
+	 * Gets the number of streams opened on the current connections.
+	 *
+	 * @return the number of streams opened
+	 */
+	public long getStreamsOpened() {
+		long total = 0;
+		for (HTTP2Connection conn : connections.values()) {
+			total += conn.getStreamsOpened();
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of requests which the server refused to process, or did not
+	 * process before closing the connection.
+	 *
+	 * @return the number of refused streams
+	 */
+	public long getStreamsRefused() {
+		return streamsRefused.get();
+	}
+
+	/**
+	 * Gets the number of requests on the current connections which waited for a free stream.
+	 *
+	 * @return the number of waits for a stream
+	 */
+	public long getStreamLimitStalls() {
+		long total = 0;
+		for (HTTP2Connection conn : connections.values()) {
+			total += conn.getStreamLimitWaits();
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of requests on the current connections whose body waited for
+	 * the server to open its flow control window.
+	 *
+	 * @return the number of flow control waits
+	 */
+	public long getFlowControlStalls() {
+		long total = 0;
+		for (HTTP2Connection conn : connections.values()) {
+			total += conn.getFlowControlWaits();
+		}
+		return total;
+	}
+
+}
@@ -13,10 +13,10 @@
 */
 package uk.co.inhealthcare.open.itk.transport.HTTP;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
@@ -24,6 +24,7 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.Map;
 
+import javax.net.ssl.HttpsURLConnection;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.slf4j.Logger;
@@ -36,6 +37,7 @@ import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportSender;
 import uk.co.inhealthcare.open.itk.transport.WS.ITKSOAPException;
@@ -50,8 +52,22 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 
 	private final static Logger logger = LoggerFactory.getLogger(ITKTransportSenderHTTPImpl.class);
 
+	/** The default maximum response size - 10MB */
+	public static final long DEFAULT_MAX_RESPONSE_SIZE = 10 * 1024 * 1024;
+
+	private long maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
 	/**
-	 * Transport send.
+	 * Sets the maximum size (in bytes) of a response body. Larger responses
+	 * are rejected as they are read.
+	 *
+	 * @param maxResponseSize
+	 */
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	/**
+	 * Transport send, with a deadline taken from the time to live of the destination.
 	 *
 	 * @param message The ITKMessage object
 	 * @param destination the destination
@@ -60,28 +76,34 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 	 */
 	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties)
 			throws ITKMessagingException {
+		return transportSend(message, destination, httpProperties, ITKDeadline.forRoute(destination));
+	}
+
+	/**
+	 * Transport send. The connect and read timeouts are the transport timeout of the
+	 * destination or the time left before the deadline, whichever is less.
+	 *
+	 * @param message The ITKMessage object
+	 * @param destination the destination
+	 * @param deadline the deadline for the conversation
+	 * @return the document
+	 * @throws ITKMessagingException the iTK messaging exception
+	 */
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties,
+			ITKDeadline deadline) throws ITKMessagingException {
 		
 		Document responseDoc = null;
+		int transportTimeout = destination.getTransportTimeout();
+		deadline.check();
 		
-		// The following code allows test certificates where the CN name does not match the hostname
-		// Consider if there is a more elegant way of achieving this.
-		String allowLocalHost = System.getProperty("JSAT.OverrideHostnameVerification");
-		if (allowLocalHost.equalsIgnoreCase("Y")) {
-			logger.warn("JSAT configured to override hostname verification. Do not use this setting in Live");
-			javax.net.ssl.HttpsURLConnection.setDefaultHostnameVerifier(
-				    new javax.net.ssl.HostnameVerifier(){
-				 
-				        public boolean verify(String hostname, javax.net.ssl.SSLSession sslSession) {
-				        	logger.warn("Hostname is:"+hostname);
-			                return true;
-				        }
-				    });
-		}
-			
 		// Post the msg
 		String serviceEndpoint = destination.getPhysicalAddress();
 		try {
 			URLConnection urlConnection = new URL(serviceEndpoint).openConnection();
+			if (urlConnection instanceof HttpsURLConnection) {
+				// The TLS settings of the channel, rather than the JVM wide defaults
+				ITKTLSContexts.forRoute(destination).configure((HttpsURLConnection) urlConnection);
+			}
             
 			HttpURLConnection conn = (HttpURLConnection) urlConnection;
 			conn.setUseCaches(false);
@@ -90,15 +112,32 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 			conn.setRequestMethod("POST");
 			conn.setRequestProperty("Content-type","text/xml");
 			conn.setRequestProperty("accept-charset","UTF-8");
+			if (destination.isCompressRequest()) {
+				conn.setRequestProperty("Content-Encoding",HTTPResponse.GZIP);
+			}
+			if (destination.isAcceptCompressed()) {
+				conn.setRequestProperty("Accept-Encoding",HTTPResponse.GZIP);
+			}
 			
 			for (Map.Entry<String, String> entry : httpProperties.entrySet()) {
 			    conn.setRequestProperty(entry.getKey(), entry.getValue());
 			}
 
-			conn.setConnectTimeout(destination.getTransportTimeout()); 
-			PrintWriter pw = new PrintWriter(conn.getOutputStream());
-			pw.write(message.getFullMessage());
-			pw.close();
+			conn.setConnectTimeout(deadline.timeout(transportTimeout)); 
+			conn.setReadTimeout(deadline.timeout(transportTimeout));
+			// Stream the body rather than letting the connection buffer all of it to work
+			// out the Content-Length. A streamed POST is not resent on a stale keep-alive
+			// connection, nor redirected or authenticated by the connection itself - those
+			// fail with an IOException instead
+			conn.setChunkedStreamingMode(0);
+			OutputStream os = conn.getOutputStream();
+			try {
+				ITKTransportSenderPooledHTTPImpl.writeBody(message, os, destination);
+			} finally {
+				os.close();
+			}
+			// Only wait for the response for whatever is left after connecting
+			conn.setReadTimeout(deadline.timeout(transportTimeout));
 			int responseCode = conn.getResponseCode();
 			logger.trace("HTTP Response Code:"+responseCode);
 			if (responseCode == HttpURLConnection.HTTP_ACCEPTED){
@@ -107,8 +146,7 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 				
 			} else if (responseCode == HttpURLConnection.HTTP_OK) {
 				logger.trace("HTTP 200");
-				String responseString = readInput(conn.getInputStream());
-				responseDoc = DomUtils.parse(responseString);
+				responseDoc = readDocument(conn);
 				
 			} else if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
 				logger.error("HTTP 503");
@@ -116,9 +154,9 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 				
 			} else if (responseCode == HttpURLConnection.HTTP_INTERNAL_ERROR) {
 				logger.error("HTTP 500");
-				String responseString = readInput(conn.getErrorStream());
+				String responseString = readInput(conn.getErrorStream(), conn);
 				//Understand why an error has occurred - do we have a SOAP fault?				
-				if (responseString != null && responseString.contains("http://www.w3.org/2005/08/addressing/fault")) {
+				if (responseString.contains("http://www.w3.org/2005/08/addressing/fault")) {
 					//SOAP fault
 					throw ITKSOAPException.parseSOAPFault(responseString);
 				} else {
@@ -133,6 +171,10 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 		} catch (MalformedURLException mue) {
 			logger.error("MalformedURLException on WS-CALL", mue);
 			throw new ITKCommsException("Configuration error sending ITK Message");
+		} catch (LimitedInputStream.LimitExceededException lee) {
+			String eMsg = "ITK Response exceeded the maximum size of " + maxResponseSize + " bytes";
+			logger.error(eMsg, lee);
+			throw new ITKCommsException(eMsg);
 		} catch (SocketTimeoutException ste) {
 			logger.error("Timeout on WS-CALL", ste);
 			throw new ITKTransportTimeoutException("Transport timeout sending ITK Message");
@@ -151,24 +193,49 @@ public class ITKTransportSenderHTTPImpl implements ITKTransportSender {
 		
 	}
 	
+	/**
+	 * Parses the response body straight from the connection, decompressing it on
+	 * the way if it is gzip encoded. The body is only buffered when it is to be logged.
+	 *
+	 * @param conn the connection
+	 * @return the document
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws SAXException the sAX exception
+	 * @throws ParserConfigurationException the parser configuration exception
+	 */
+	private Document readDocument(HttpURLConnection conn) throws IOException, SAXException, ParserConfigurationException {
+		if (conn.getContentLengthLong() > maxResponseSize) {
+			throw new LimitedInputStream.LimitExceededException(maxResponseSize);
+		}
+		String charset = HTTPResponse.getCharset(conn.getContentType());
+		InputStream is = HTTPResponse.openBody(conn.getInputStream(), conn.getContentEncoding(), maxResponseSize);
+		if (logger.isTraceEnabled()) {
+			byte[] body = LimitedInputStream.readFully(is, maxResponseSize);
+			logger.trace("Response was:"+HTTPResponse.decode(body, charset));
+			return DomUtils.parse(new ByteArrayInputStream(body), charset);
+		}
+		try {
+			return DomUtils.parse(is, charset);
+		} finally {
+			is.close();
+		}
+	}
+
 	/**
 	 * Read input from a stream
 	 *
-	 * @param is the is
+	 * @param is the stream, may be null
+	 * @param conn the connection, for the content type and encoding of the response
 	 * @return the string
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	private String readInput(InputStream is) throws IOException {
-		BufferedInputStream bis = new BufferedInputStream(is);
-		byte[] contents = new byte[1024];
-		int bytesRead = 0;
-		String responseString = "";
-		while ((bytesRead = bis.read(contents)) != -1) {
-			responseString = responseString + new String(contents, 0, bytesRead);
+	private String readInput(InputStream is, HttpURLConnection conn) throws IOException {
+		if (is != null) {
+			is = HTTPResponse.openBody(is, conn.getContentEncoding(), maxResponseSize);
 		}
+		String responseString = HTTPResponse.decode(LimitedInputStream.readFully(is, maxResponseSize),
+				HTTPResponse.getCharset(conn.getContentType()));
 		logger.trace("Response was:"+responseString);
-		bis.close();
-		
 		return responseString ;
 	}
 	
@@ -0,0 +1,369 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKSaturatedException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKAsyncTransportSender;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.util.ITKCompletions;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
+
+/**
+ * An HTTP sender built on non-blocking sockets. A small number of I/O threads
+ * carry every message in flight, so a caller can have hundreds of slow Spine
+ * calls outstanding without a thread waiting on each of them.
+ *
+ * Responses are turned into Documents, and callbacks run, on a separate pool of
+ * completion threads so that XML parsing never holds up the I/O threads. Each
+ * message uses its own connection, which is closed once the response has been read.
+ *
+ * The transport timeout of the route is how long the server may go without sending
+ * or accepting anything, and the exchange is always abandoned at the deadline.
+ *
+ * @author Nick Jones
+ */
+public class ITKTransportSenderNIOHTTPImpl implements ITKAsyncTransportSender {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKTransportSenderNIOHTTPImpl.class);
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger nextReactor = new AtomicInteger();
+	private NIOReactor[] reactors = null;
+	private boolean ownExecutor = false;
+
+	private int ioThreads = 2;
+	/**
+	 * Sets the number of I/O threads
+	 *
+	 * @param ioThreads
+	 */
+	public void setIoThreads(int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	private int maxInFlight = 500;
+	/**
+	 * Sets the maximum number of messages in flight at once. Further messages
+	 * fail straight away with an ITKSaturatedException.
+	 *
+	 * @param maxInFlight
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	private long maxResponseSize = ITKTransportSenderHTTPImpl.DEFAULT_MAX_RESPONSE_SIZE;
+	/**
+	 * Sets the maximum size (in bytes) of a response body. Larger responses
+	 * are rejected as they are read.
+	 *
+	 * @param maxResponseSize
+	 */
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	private SSLContext sslContext = null;
+	/**
+	 * Sets the SSLContext for all https destinations. The TLS settings of each route's channel are used if not set.
+	 *
+	 * @param sslContext
+	 */
+	public void setSslContext(SSLContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	private ExecutorService completionExecutor = null;
+	/**
+	 * Sets the executor that parses responses and runs callbacks. If not set a
+	 * fixed pool of daemon threads is created, sized by completionThreads.
+	 *
+	 * @param completionExecutor
+	 */
+	public void setCompletionExecutor(ExecutorService completionExecutor) {
+		this.completionExecutor = completionExecutor;
+	}
+
+	private int completionThreads = 4;
+	/**
+	 * Sets the number of completion threads created when no completionExecutor is set
+	 *
+	 * @param completionThreads
+	 */
+	public void setCompletionThreads(int completionThreads) {
+		this.completionThreads = completionThreads;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties)
+			throws ITKMessagingException {
+		return transportSend(message, destination, httpProperties, ITKDeadline.forRoute(destination));
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map, uk.co.inhealthcare.open.itk.transport.ITKDeadline)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties,
+			ITKDeadline deadline) throws ITKMessagingException {
+
+		Future<Document> future = transportSendAsync(message, destination, httpProperties, deadline, null);
+		try {
+			return future.get();
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof ITKMessagingException) {
+				throw (ITKMessagingException) ee.getCause();
+			}
+			String eMsg = "Unexpected error sending ITK Message";
+			logger.error(eMsg, ee.getCause());
+			throw new ITKCommsException(eMsg);
+		} catch (InterruptedException ie) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			String eMsg = "Interrupted sending ITK Message";
+			logger.error(eMsg);
+			throw new ITKCommsException(eMsg);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKAsyncTransportSender#transportSendAsync(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map, uk.co.inhealthcare.open.itk.transport.ITKDeadline, uk.co.inhealthcare.open.itk.transport.ITKTransportCallback)
+	 */
+	@Override
+	public Future<Document> transportSendAsync(ITKMessage message, ITKTransportRoute destination,
+			Map<String, String> httpProperties, ITKDeadline deadline, ITKTransportCallback callback) {
+
+		SettableFuture<Document> future = new SettableFuture<Document>();
+		Completion completion = new Completion(future, callback);
+		boolean submitted = false;
+		try {
+			deadline.check();
+			NIOReactor reactor = getReactor();
+
+			URL url = new URL(destination.getPhysicalAddress());
+			boolean secure = url.getProtocol().equalsIgnoreCase("https");
+			if (!secure && !url.getProtocol().equalsIgnoreCase("http")) {
+				throw new MalformedURLException("Unsupported protocol:" + url.getProtocol());
+			}
+			int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			// Resolved here so that a slow DNS lookup never holds up an I/O thread
+			InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+			if (address.isUnresolved()) {
+				throw new UnknownHostException(url.getHost());
+			}
+			ByteBuffer request = buildRequest(url, message, destination, httpProperties);
+			SSLEngine engine = secure ? createEngine(url.getHost(), port, destination) : null;
+
+			if (inFlight.incrementAndGet() > maxInFlight) {
+				inFlight.decrementAndGet();
+				String eMsg = "Too many ITK Messages in flight (" + maxInFlight + ")";
+				logger.error(eMsg);
+				throw new ITKSaturatedException(eMsg);
+			}
+			submitted = true;
+			reactor.submit(new NIOExchange(address, request, engine, maxResponseSize,
+					destination.getTransportTimeout(), deadline, completion));
+
+		} catch (ITKMessagingException e) {
+			completion.finish(null, e);
+		} catch (IOException ioe) {
+			completion.finish(null, HTTPResponseHandler.toException(ioe, maxResponseSize));
+		} catch (RuntimeException re) {
+			logger.error("Unexpected error sending ITK Message", re);
+			if (submitted) {
+				inFlight.decrementAndGet();
+			}
+			completion.finish(null, new ITKCommsException("Unexpected error sending ITK Message"));
+		}
+		return future;
+	}
+
+	private ByteBuffer buildRequest(URL url, ITKMessage message, ITKTransportRoute destination,
+			Map<String, String> httpProperties) throws IOException, ITKMessagingException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+		ITKTransportSenderPooledHTTPImpl.writeBody(message, body, destination);
+		byte[] head = (ITKTransportSenderPooledHTTPImpl.buildRequestHead(url, "close", destination, httpProperties)
+				+ "Content-Length: " + body.size() + "\r\n\r\n").getBytes(ASCII);
+		ByteBuffer request = ByteBuffer.allocate(head.length + body.size());
+		request.put(head);
+		request.put(body.toByteArray());
+		request.flip();
+		return request;
+	}
+
+	private SSLEngine createEngine(String host, int port, ITKTransportRoute destination) throws ITKCommsException {
+		SSLContext context = sslContext;
+		if (context == null) {
+			context = ITKTLSContexts.forRoute(destination).getSSLContext();
+		}
+		// Giving the host and port lets the engine resume a cached session
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		if (ITKTLSContexts.isVerifyHostname()) {
+			SSLParameters params = engine.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			engine.setSSLParameters(params);
+		}
+		return engine;
+	}
+
+	private synchronized NIOReactor getReactor() throws IOException {
+		if (reactors == null) {
+			if (completionExecutor == null) {
+				completionExecutor = Executors.newFixedThreadPool(completionThreads, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "ITK-NIO-Completion-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				ownExecutor = true;
+			}
+			NIOReactor[] started = new NIOReactor[ioThreads];
+			for (int i = 0; i < ioThreads; i++) {
+				started[i] = new NIOReactor("ITK-NIO-" + (i + 1));
+			}
+			reactors = started;
+			logger.info("Started " + ioThreads + " HTTP I/O threads");
+		}
+		return reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+	}
+
+	/**
+	 * Stops the I/O threads, failing any messages still in flight. Intended as the
+	 * destroy method of the bean.
+	 */
+	public synchronized void close() {
+		if (reactors != null) {
+			for (NIOReactor reactor : reactors) {
+				reactor.close();
+			}
+			reactors = null;
+		}
+		if (ownExecutor) {
+			completionExecutor.shutdown();
+			completionExecutor = null;
+			ownExecutor = false;
+		}
+	}
+
+	/**
+	 * Gets the number of messages in flight.
+	 *
+	 * @return the number of messages awaiting a response
+	 */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Completes the future and notifies the callback of a single message.
+	 */
+	private class Completion implements NIOExchange.Handler {
+
+		private final SettableFuture<Document> future;
+		private final ITKTransportCallback callback;
+
+		Completion(SettableFuture<Document> future, ITKTransportCallback callback) {
+			this.future = future;
+			this.callback = callback;
+		}
+
+		@Override
+		public void completed(final HTTPResponse response) {
+			inFlight.decrementAndGet();
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						finish(HTTPResponseHandler.toDocument(response, maxResponseSize), null);
+					} catch (ITKMessagingException e) {
+						finish(null, e);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void failed(final IOException exception) {
+			inFlight.decrementAndGet();
+			dispatch(new Runnable() {
+				@Override
+				public void run() {
+					finish(null, HTTPResponseHandler.toException(exception, maxResponseSize));
+				}
+			});
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+
+		void finish(Document response, ITKMessagingException exception) {
+			ITKCompletions.complete(future, callback, response, exception);
+		}
+
+		private void dispatch(Runnable task) {
+			ExecutorService executor = completionExecutor;
+			try {
+				if (executor != null) {
+					executor.execute(task);
+					return;
+				}
+			} catch (RejectedExecutionException ree) {
+				// Closing down - complete on this thread instead
+			}
+			task.run();
+		}
+	}
+
+}
@@ -0,0 +1,366 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportSender;
+
+/**
+ * An HTTP sender which keeps connections open between messages. Each physical
+ * destination host has its own pool of keep-alive connections, so a conversation
+ * normally reuses a connection (and its TLS session) rather than opening a new one.
+ *
+ * The transport timeout of the route, or the time left before the deadline if that
+ * is less, is used as the connect timeout, the read timeout and the time to wait for
+ * a free connection when the pool is fully leased.
+ *
+ * Used for routes with a RouteType of {@link ITKTransportRoute#HTTP_WS_POOLED}.
+ *
+ * @author Nick Jones
+ */
+public class ITKTransportSenderPooledHTTPImpl implements ITKTransportSender {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKTransportSenderPooledHTTPImpl.class);
+
+	private final ConcurrentMap<String, HTTPConnectionPool> pools = new ConcurrentHashMap<String, HTTPConnectionPool>();
+	private Timer evictor = null;
+
+	private int maxConnectionsPerDestination = 10;
+	/**
+	 * Sets the maximum number of connections to each destination host
+	 *
+	 * @param maxConnectionsPerDestination
+	 */
+	public void setMaxConnectionsPerDestination(int maxConnectionsPerDestination) {
+		this.maxConnectionsPerDestination = maxConnectionsPerDestination;
+	}
+
+	private long idleTimeout = 30000;
+	/**
+	 * Sets how long (in milliseconds) a connection may be idle before it is closed.
+	 * This should be shorter than the keep-alive timeout of the server.
+	 *
+	 * @param idleTimeout
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	private long evictionInterval = 10000;
+	/**
+	 * Sets how often (in milliseconds) idle connections are checked for eviction
+	 *
+	 * @param evictionInterval
+	 */
+	public void setEvictionInterval(long evictionInterval) {
+		this.evictionInterval = evictionInterval;
+	}
+
+	private long maxResponseSize = ITKTransportSenderHTTPImpl.DEFAULT_MAX_RESPONSE_SIZE;
+	/**
+	 * Sets the maximum size (in bytes) of a response body. Larger responses
+	 * are rejected as they are read.
+	 *
+	 * @param maxResponseSize
+	 */
+	public void setMaxResponseSize(long maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+
+	private SSLSocketFactory sslSocketFactory = null;
+	/**
+	 * Sets the socket factory for all https destinations. The TLS settings of each route's channel are used if not set.
+	 *
+	 * @param sslSocketFactory
+	 */
+	public void setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory = sslSocketFactory;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties)
+			throws ITKMessagingException {
+		return transportSend(message, destination, httpProperties, ITKDeadline.forRoute(destination));
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map, uk.co.inhealthcare.open.itk.transport.ITKDeadline)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> httpProperties,
+			ITKDeadline deadline) throws ITKMessagingException {
+
+		deadline.check();
+
+		try {
+			URL url = new URL(destination.getPhysicalAddress());
+			HTTPConnectionPool pool = getPool(url, destination);
+			HTTPResponse response = execute(pool, buildRequestHead(url, "keep-alive", destination, httpProperties),
+					message, destination, deadline);
+			return HTTPResponseHandler.toDocument(response, maxResponseSize);
+
+		} catch (IOException ioe) {
+			throw HTTPResponseHandler.toException(ioe, maxResponseSize);
+		}
+	}
+
+	/**
+	 * Sends the message on a pooled connection. If a reused connection turns out to have
+	 * been closed by the server before the request reached it, the message is sent again
+	 * on another connection.
+	 */
+	private HTTPResponse execute(HTTPConnectionPool pool, String requestHead, ITKMessage message,
+			ITKTransportRoute destination, ITKDeadline deadline) throws IOException, ITKMessagingException {
+
+		int timeout = destination.getTransportTimeout();
+		while (true) {
+			HTTPConnection conn = pool.lease(deadline.timeout(timeout));
+			boolean reusable = true;
+			try {
+				writeBody(message, conn.getRequestBody(), destination);
+				int readTimeout = deadline.timeout(timeout);
+				reusable = false;
+				HTTPResponse response = conn.execute(requestHead, readTimeout, maxResponseSize);
+				reusable = response.isKeepAlive();
+				return response;
+			} catch (HTTPConnection.NoResponseException nre) {
+				if (!conn.hasBeenUsed()) {
+					throw nre;
+				}
+				logger.debug("Pooled connection was closed by the server - retrying on another connection");
+			} finally {
+				pool.release(conn, reusable);
+			}
+		}
+	}
+
+	/**
+	 * Builds the request line and headers of a POST, apart from the Content-Length.
+	 *
+	 * @param url the destination
+	 * @param connection the value of the Connection header
+	 * @param destination the route, for its compression settings
+	 * @param httpProperties any further headers
+	 * @return the request head
+	 */
+	static String buildRequestHead(URL url, String connection, ITKTransportRoute destination,
+			Map<String, String> httpProperties) {
+		String path = url.getFile();
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("POST ").append(path.length() == 0 ? "/" : path).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(url.getHost());
+		if (url.getPort() != -1) {
+			sb.append(':').append(url.getPort());
+		}
+		sb.append("\r\n");
+		sb.append("Connection: ").append(connection).append("\r\n");
+		sb.append("Content-type: text/xml\r\n");
+		sb.append("accept-charset: UTF-8\r\n");
+		if (destination.isCompressRequest()) {
+			sb.append("Content-Encoding: gzip\r\n");
+		}
+		if (destination.isAcceptCompressed()) {
+			sb.append("Accept-Encoding: gzip\r\n");
+		}
+		for (Map.Entry<String, String> entry : httpProperties.entrySet()) {
+			sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the full message as a request body, gzip compressed if the route calls for it.
+	 *
+	 * @param message the message
+	 * @param os the request body
+	 * @param destination the route
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws ITKMessagingException the iTK messaging exception
+	 */
+	static void writeBody(ITKMessage message, OutputStream os, ITKTransportRoute destination)
+			throws IOException, ITKMessagingException {
+		if (destination.isCompressRequest()) {
+			GZIPOutputStream gzip = new GZIPOutputStream(os, 8192);
+			message.writeFullMessage(gzip);
+			gzip.finish();
+		} else {
+			message.writeFullMessage(os);
+		}
+	}
+
+	private HTTPConnectionPool getPool(URL url, ITKTransportRoute destination)
+			throws MalformedURLException, ITKCommsException {
+		boolean secure = url.getProtocol().equalsIgnoreCase("https");
+		if (!secure && !url.getProtocol().equalsIgnoreCase("http")) {
+			throw new MalformedURLException("Unsupported protocol:" + url.getProtocol());
+		}
+		ITKTLSContexts tls = tlsFor(url, destination);
+		String key = poolKey(url, tls);
+		SSLSocketFactory factory = null;
+		if (secure) {
+			factory = tls != null ? tls.getSocketFactory() : sslSocketFactory;
+		}
+		HTTPConnectionPool pool = pools.get(key);
+		if (pool == null) {
+			int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			HTTPConnectionPool newPool = new HTTPConnectionPool(url.getHost(), port, factory, ITKTLSContexts.isVerifyHostname(),
+					maxConnectionsPerDestination, idleTimeout);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+				logger.info("Created connection pool for " + key);
+				startEvictor();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets the TLS settings for an https destination, unless a socket factory has been set.
+	 */
+	private ITKTLSContexts tlsFor(URL url, ITKTransportRoute destination) throws ITKCommsException {
+		if (sslSocketFactory != null || !url.getProtocol().equalsIgnoreCase("https")) {
+			return null;
+		}
+		return ITKTLSContexts.forRoute(destination);
+	}
+
+	private static String poolKey(URL url, ITKTLSContexts tls) {
+		int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+		String key = url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+		// Destinations reached with different TLS settings need their own connections
+		return tls == null ? key : key + " [" + tls.getName() + "]";
+	}
+
+	private synchronized void startEvictor() {
+		if (evictor == null) {
+			evictor = new Timer("ITK-HTTP-Evictor", true);
+			evictor.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					for (HTTPConnectionPool pool : pools.values()) {
+						int evicted = pool.evictIdle();
+						if (evicted > 0) {
+							logger.debug("Evicted " + evicted + " idle connections to " + pool.getHost() + ":" + pool.getPort());
+						}
+					}
+				}
+			}, evictionInterval, evictionInterval);
+		}
+	}
+
+	/**
+	 * Closes all the pooled connections. Intended as the destroy method of the bean.
+	 */
+	public synchronized void close() {
+		if (evictor != null) {
+			evictor.cancel();
+			evictor = null;
+		}
+		for (HTTPConnectionPool pool : pools.values()) {
+			pool.close();
+		}
+		pools.clear();
+	}
+
+	/**
+	 * Gets the connection pool for a route.
+	 *
+	 * @param route the route to a destination
+	 * @return the connection pool, or null if nothing has been sent to that host with the route's TLS settings
+	 * @throws MalformedURLException if the address is not a valid URL
+	 * @throws ITKCommsException if the TLS settings of an https route cannot be loaded
+	 */
+	public HTTPConnectionPool getConnectionPool(ITKTransportRoute route) throws MalformedURLException, ITKCommsException {
+		URL url = new URL(route.getPhysicalAddress());
+		return pools.get(poolKey(url, tlsFor(url, route)));
+	}
+
+	/**
+	 * Gets the connection pool for a physical address, reached over https with the default TLS settings.
+	 *
+	 * @param physicalAddress the physical address of a destination
+	 * @return the connection pool, or null if nothing has been sent to that host
+	 * @throws MalformedURLException if the address is not a valid URL
+	 * @throws ITKCommsException if the default TLS settings cannot be loaded
+	 */
+	public HTTPConnectionPool getConnectionPool(String physicalAddress) throws MalformedURLException, ITKCommsException {
+		return getConnectionPool(new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_POOLED, physicalAddress));
+	}
+
+	/**
+	 * Gets the number of connections opened across all destinations.
+	 *
+	 * @return the number of connections opened
+	 */
+	public long getConnectionsCreated() {
+		long total = 0;
+		for (HTTPConnectionPool pool : pools.values()) {
+			total += pool.getCreatedCount();
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of times a connection was reused across all destinations.
+	 *
+	 * @return the number of times a connection was reused
+	 */
+	public long getConnectionsReused() {
+		long total = 0;
+		for (HTTPConnectionPool pool : pools.values()) {
+			total += pool.getReusedCount();
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of idle connections evicted across all destinations.
+	 *
+	 * @return the number of connections evicted
+	 */
+	public long getConnectionsEvicted() {
+		long total = 0;
+		for (HTTPConnectionPool pool : pools.values()) {
+			total += pool.getEvictedCount();
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which fails once more than a maximum number of bytes
+ * have been read, so an oversized response is rejected as it arrives
+ * rather than after it has been buffered.
+ *
+ * @author Nick Jones
+ */
+class LimitedInputStream extends FilterInputStream {
+
+	/**
+	 * Signals that a response was larger than the maximum allowed.
+	 */
+	static class LimitExceededException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LimitExceededException(long limit) {
+			super("Response exceeded the maximum size of " + limit + " bytes");
+		}
+	}
+
+	private final long limit;
+	private long count = 0;
+
+	/**
+	 * Instantiates a new limited input stream.
+	 *
+	 * @param in the stream to read
+	 * @param limit the maximum number of bytes which may be read
+	 */
+	LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0) {
+			count(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void count(long read) throws LimitExceededException {
+		count += read;
+		if (count > limit) {
+			throw new LimitExceededException(limit);
+		}
+	}
+
+	/**
+	 * Reads a stream to the end into a byte array, failing if it is longer than the limit.
+	 *
+	 * @param is the stream, which is closed when read. May be null.
+	 * @param limit the maximum number of bytes
+	 * @return the bytes read, empty if the stream was null
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static byte[] readFully(InputStream is, long limit) throws IOException {
+		if (is == null) {
+			return new byte[0];
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(8192);
+		InputStream in = new LimitedInputStream(is, limit);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				bos.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return bos.toByteArray();
+	}
+
+}
@@ -0,0 +1,358 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+
+/**
+ * A single HTTP request and response carried over a non-blocking socket channel,
+ * driven by an NIOReactor. Apart from fail, which a closing reactor may call from
+ * the submitting thread, every method is called on the reactor thread, so only
+ * the finished flag needs to be safe across threads.
+ *
+ * The connection is closed once the response has been read. With TLS the session
+ * is resumed from the SSLContext session cache, so later exchanges with the same
+ * host skip the full handshake.
+ *
+ * @author Nick Jones
+ */
+class NIOExchange {
+
+	/**
+	 * Notified when an exchange completes. Exactly one method is called, on the
+	 * reactor thread.
+	 */
+	interface Handler {
+		void completed(HTTPResponse response);
+		void failed(IOException exception);
+		boolean isCancelled();
+	}
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final InetSocketAddress address;
+	private final ByteBuffer request;
+	private final SSLEngine engine;
+	private final HTTPResponseParser parser;
+	private final int transportTimeout;
+	private final ITKDeadline deadline;
+	private final Handler handler;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private long expiry;
+	private final AtomicBoolean finished = new AtomicBoolean();
+
+	// Used for TLS - network buffers are kept ready for writing, as SSLEngine expects
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	private ByteBuffer appIn;
+
+	/**
+	 * Instantiates a new exchange.
+	 *
+	 * @param address the resolved address to connect to
+	 * @param request the whole request, ready for reading
+	 * @param engine the client mode SSLEngine, or null for plain HTTP
+	 * @param maxResponseSize the maximum size in bytes of the response body
+	 * @param transportTimeout the longest time in milliseconds to wait for the server to do anything
+	 * @param deadline the deadline for the whole exchange
+	 * @param handler the handler to notify on completion
+	 */
+	NIOExchange(InetSocketAddress address, ByteBuffer request, SSLEngine engine, long maxResponseSize,
+			int transportTimeout, ITKDeadline deadline, Handler handler) {
+		this.address = address;
+		this.request = request;
+		this.engine = engine;
+		this.parser = new HTTPResponseParser(maxResponseSize);
+		this.transportTimeout = transportTimeout;
+		this.deadline = deadline;
+		this.handler = handler;
+		if (engine != null) {
+			int packetSize = engine.getSession().getPacketBufferSize();
+			netIn = ByteBuffer.allocate(packetSize);
+			netOut = ByteBuffer.allocate(packetSize);
+			appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		} else {
+			appIn = ByteBuffer.allocate(8192);
+		}
+	}
+
+	/**
+	 * Opens the connection and registers it with the selector.
+	 *
+	 * @param selector the selector of the reactor
+	 */
+	void start(Selector selector) {
+		try {
+			progress();
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			if (channel.connect(address)) {
+				connected();
+			}
+		} catch (IOException ioe) {
+			fail(ioe);
+		}
+	}
+
+	/**
+	 * Carries on with the exchange when the channel is ready.
+	 */
+	void ready() {
+		try {
+			if (key.isConnectable()) {
+				if (!channel.finishConnect()) {
+					return;
+				}
+				connected();
+			} else {
+				process();
+			}
+		} catch (IOException ioe) {
+			fail(ioe);
+		}
+	}
+
+	/**
+	 * Fails the exchange if the server has taken too long or the caller has
+	 * given up on it.
+	 *
+	 * @param now the current value of System.nanoTime
+	 */
+	void checkTimeout(long now) {
+		if (finished.get()) {
+			return;
+		}
+		if (handler.isCancelled()) {
+			fail(new IOException("Exchange cancelled"));
+		} else if (now - expiry > 0) {
+			fail(new SocketTimeoutException("No response within the transport timeout"));
+		}
+	}
+
+	/**
+	 * Fails the exchange, closing the connection.
+	 *
+	 * @param ioe the cause
+	 */
+	void fail(IOException ioe) {
+		if (finished.compareAndSet(false, true)) {
+			close();
+			handler.failed(ioe);
+		}
+	}
+
+	private void connected() throws IOException {
+		if (engine != null) {
+			engine.beginHandshake();
+		}
+		progress();
+		process();
+	}
+
+	private void process() throws IOException {
+		if (engine == null) {
+			processPlain();
+		} else {
+			processTLS();
+		}
+		if (!finished.get()) {
+			boolean writing = engine == null ? request.hasRemaining() : netOut.position() > 0;
+			key.interestOps(writing ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	private void processPlain() throws IOException {
+		if (request.hasRemaining() && channel.write(request) > 0) {
+			progress();
+		}
+		int read;
+		while ((read = channel.read(appIn)) > 0) {
+			progress();
+			if (parse()) {
+				return;
+			}
+		}
+		if (read == -1) {
+			endOfStream();
+		}
+	}
+
+	private void processTLS() throws IOException {
+		boolean eof = false;
+		boolean more = true;
+		while (more && !finished.get()) {
+			more = false;
+			int read = channel.read(netIn);
+			if (read > 0) {
+				progress();
+			} else if (read == -1) {
+				eof = true;
+			}
+
+			SSLEngineResult result;
+			switch (engine.getHandshakeStatus()) {
+			case NEED_TASK:
+				// Certificate checks - quick enough to run on the reactor thread
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+				more = true;
+				break;
+			case NEED_WRAP:
+				result = engine.wrap(EMPTY, netOut);
+				more = result.getStatus() == SSLEngineResult.Status.OK;
+				break;
+			case NEED_UNWRAP:
+				more = unwrap();
+				break;
+			default:
+				if (request.hasRemaining()) {
+					result = engine.wrap(request, netOut);
+					more = result.bytesConsumed() > 0;
+				}
+				more |= unwrap();
+				if (parse()) {
+					return;
+				}
+			}
+			more |= flush();
+		}
+		if (eof && !finished.get()) {
+			if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+				throw new EOFException("Connection closed during the TLS handshake");
+			}
+			endOfStream();
+		}
+	}
+
+	private boolean unwrap() throws IOException {
+		netIn.flip();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+		}
+		if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+			endOfStream();
+			return false;
+		}
+		if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			// Make room by handing what has been decrypted to the parser
+			return parse() ? false : appIn.position() == 0;
+		}
+		return result.getStatus() == SSLEngineResult.Status.OK
+				&& (result.bytesConsumed() > 0 || result.bytesProduced() > 0);
+	}
+
+	private boolean flush() throws IOException {
+		if (netOut.position() == 0) {
+			return false;
+		}
+		netOut.flip();
+		int written;
+		try {
+			written = channel.write(netOut);
+		} finally {
+			netOut.compact();
+		}
+		if (written > 0) {
+			progress();
+			return true;
+		}
+		return false;
+	}
+
+	private boolean parse() throws IOException {
+		if (finished.get() || appIn.position() == 0) {
+			return finished.get();
+		}
+		appIn.flip();
+		boolean complete;
+		try {
+			complete = parser.feed(appIn);
+		} finally {
+			appIn.compact();
+		}
+		if (complete) {
+			complete();
+		}
+		return complete;
+	}
+
+	private void endOfStream() throws IOException {
+		if (!finished.get() && parser.endOfStream()) {
+			complete();
+		}
+	}
+
+	private void complete() {
+		if (finished.compareAndSet(false, true)) {
+			close();
+			handler.completed(parser.getResponse());
+		}
+	}
+
+	private void close() {
+		if (key != null) {
+			key.cancel();
+		}
+		if (engine != null) {
+			engine.closeOutbound();
+			try {
+				engine.closeInbound();
+			} catch (SSLException ssle) {
+				// Expected when the server has not sent close_notify
+			}
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				// Nothing more to do - the connection is being discarded
+			}
+		}
+	}
+
+	/**
+	 * Moves the expiry on whenever the server does something, without going
+	 * past the deadline.
+	 */
+	private void progress() {
+		long remaining = deadline.remainingMillis();
+		long timeout = transportTimeout > 0 ? Math.min(transportTimeout, remaining) : remaining;
+		expiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+}
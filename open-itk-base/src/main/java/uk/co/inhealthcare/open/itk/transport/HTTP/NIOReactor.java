@@ -0,0 +1,148 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread which drives any number of NIOExchanges through one Selector.
+ *
+ * @author Nick Jones
+ */
+class NIOReactor implements Runnable {
+
+	private final static Logger logger = LoggerFactory.getLogger(NIOReactor.class);
+
+	// How often exchanges are checked for timeouts
+	private static final long SWEEP_INTERVAL = 100;
+
+	private final Selector selector;
+	private final Queue<NIOExchange> pending = new ConcurrentLinkedQueue<NIOExchange>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * Instantiates and starts a new reactor.
+	 *
+	 * @param name the name of the reactor thread
+	 * @throws IOException if the selector cannot be opened
+	 */
+	NIOReactor(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Hands an exchange to the reactor, which starts it on the reactor thread.
+	 *
+	 * @param exchange the exchange
+	 */
+	void submit(NIOExchange exchange) {
+		pending.add(exchange);
+		selector.wakeup();
+		if (!running) {
+			failPending();
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastSweep = System.nanoTime();
+		while (running) {
+			try {
+				selector.select(SWEEP_INTERVAL);
+			} catch (IOException ioe) {
+				logger.error("Selector failed", ioe);
+				break;
+			}
+
+			NIOExchange exchange;
+			while ((exchange = pending.poll()) != null) {
+				try {
+					exchange.start(selector);
+				} catch (RuntimeException re) {
+					logger.error("Unexpected error starting HTTP exchange", re);
+					exchange.fail(new IOException(re));
+				}
+			}
+
+			Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+			while (selected.hasNext()) {
+				SelectionKey key = selected.next();
+				selected.remove();
+				if (key.isValid()) {
+					exchange = (NIOExchange) key.attachment();
+					try {
+						exchange.ready();
+					} catch (RuntimeException re) {
+						logger.error("Unexpected error driving HTTP exchange", re);
+						exchange.fail(new IOException(re));
+					}
+				}
+			}
+
+			long now = System.nanoTime();
+			if (now - lastSweep >= SWEEP_INTERVAL * 1000000L) {
+				lastSweep = now;
+				for (SelectionKey key : selector.keys()) {
+					if (key.isValid()) {
+						((NIOExchange) key.attachment()).checkTimeout(now);
+					}
+				}
+			}
+		}
+
+		running = false;
+		for (SelectionKey key : selector.keys()) {
+			((NIOExchange) key.attachment()).fail(new IOException("HTTP transport closed"));
+		}
+		failPending();
+		try {
+			selector.close();
+		} catch (IOException ioe) {
+			// Nothing more to do - the reactor is stopping
+		}
+	}
+
+	private void failPending() {
+		NIOExchange exchange;
+		while ((exchange = pending.poll()) != null) {
+			exchange.fail(new IOException("HTTP transport closed"));
+		}
+	}
+
+	/**
+	 * Stops the reactor, failing any exchanges still in progress.
+	 */
+	void close() {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.util.ITKCompletions;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
+
+/**
+ * Wraps an {@link ITKAsyncTransportSender} with a circuit breaker for each physical
+ * destination, as {@link ITKTransportSenderCircuitBreakerImpl} does for a blocking
+ * sender. Asynchronous sends stay asynchronous, the outcome being recorded when the
+ * wrapped sender calls back.
+ *
+ * @author Nick Jones
+ */
+public class ITKAsyncTransportSenderCircuitBreakerImpl extends ITKTransportSenderCircuitBreakerImpl
+		implements ITKAsyncTransportSender {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKAsyncTransportSenderCircuitBreakerImpl.class);
+
+	private ITKAsyncTransportSender asyncTransportService = null;
+	/**
+	 * Sets the sender to wrap, which must be an ITKAsyncTransportSender
+	 *
+	 * @param transportService
+	 */
+	@Override
+	public void setTransportService(ITKTransportSender transportService) {
+		if (!(transportService instanceof ITKAsyncTransportSender)) {
+			String eMsg = "An ITKAsyncTransportSenderCircuitBreakerImpl can only wrap an ITKAsyncTransportSender";
+			logger.error(eMsg);
+			throw new IllegalArgumentException(eMsg);
+		}
+		super.setTransportService(transportService);
+		this.asyncTransportService = (ITKAsyncTransportSender) transportService;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKAsyncTransportSender#transportSendAsync(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map, uk.co.inhealthcare.open.itk.transport.ITKDeadline, uk.co.inhealthcare.open.itk.transport.ITKTransportCallback)
+	 */
+	@Override
+	public Future<Document> transportSendAsync(ITKMessage message, ITKTransportRoute destination,
+			Map<String, String> transportProperties, ITKDeadline deadline, final ITKTransportCallback callback) {
+
+		final SettableFuture<Document> future = new SettableFuture<Document>();
+		final ITKCircuitBreaker breaker;
+		try {
+			deadline.check();
+			breaker = acquire(destination);
+		} catch (ITKMessagingException me) {
+			ITKCompletions.complete(future, callback, null, me);
+			return future;
+		}
+
+		try {
+			asyncTransportService.transportSendAsync(message, destination, transportProperties, deadline,
+					new ITKTransportCallback() {
+				@Override
+				public void completed(Document response) {
+					breaker.recordSuccess();
+					ITKCompletions.complete(future, callback, response, null);
+				}
+
+				@Override
+				public void failed(ITKMessagingException exception) {
+					recordFailure(breaker, exception);
+					ITKCompletions.complete(future, callback, null, exception);
+				}
+			});
+		} catch (RuntimeException re) {
+			breaker.release();
+			throw re;
+		}
+		return future;
+	}
+
+}
@@ -0,0 +1,195 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+
+/**
+ * The circuit breaker state of a single physical destination.<br/><br/>
+ *
+ * The circuit opens after a run of consecutive busy tones or comms failures, and
+ * while it is open messages are refused without being sent. Once the open duration
+ * has passed a single message is let through as a probe - if it gets a response the
+ * circuit closes, otherwise it opens again.
+ *
+ * @author Nick Jones
+ */
+public class ITKCircuitBreaker {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKCircuitBreaker.class);
+
+	/**
+	 * The circuit states
+	 */
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String destination;
+	private final int busyToneThreshold;
+	private final int commsFailureThreshold;
+	private final long openDuration;
+	private final ITKClock clock;
+
+	private State state = State.CLOSED;
+	private int busyTones = 0;
+	private int commsFailures = 0;
+	private long openedAt = 0;
+	private boolean probing = false;
+	private long shortCircuitCount = 0;
+
+	/**
+	 * Instantiates a new circuit breaker.
+	 *
+	 * @param destination the physical address of the destination
+	 * @param busyToneThreshold the number of consecutive busy tones that open the circuit, 0 to ignore busy tones
+	 * @param commsFailureThreshold the number of consecutive comms failures or timeouts that open the circuit, 0 to ignore them
+	 * @param openDuration how long (in milliseconds) the circuit stays open before a probe is let through
+	 * @param clock the clock
+	 */
+	public ITKCircuitBreaker(String destination, int busyToneThreshold, int commsFailureThreshold,
+			long openDuration, ITKClock clock) {
+		this.destination = destination;
+		this.busyToneThreshold = busyToneThreshold;
+		this.commsFailureThreshold = commsFailureThreshold;
+		this.openDuration = openDuration;
+		this.clock = clock;
+	}
+
+	/**
+	 * Asks whether a message may be sent to the destination.
+	 *
+	 * @return true if the message may be sent, in which case the outcome must be
+	 * reported through recordSuccess, recordFailure or release
+	 */
+	public synchronized boolean tryAcquire() {
+		switch (state) {
+		case OPEN:
+			if (clock.currentTimeMillis() - openedAt >= openDuration) {
+				logger.info("Circuit half open for " + destination + " - sending a probe");
+				state = State.HALF_OPEN;
+				probing = true;
+				return true;
+			}
+			break;
+		case HALF_OPEN:
+			if (!probing) {
+				probing = true;
+				return true;
+			}
+			break;
+		default:
+			return true;
+		}
+		shortCircuitCount++;
+		return false;
+	}
+
+	/**
+	 * Records that the destination responded.
+	 */
+	public synchronized void recordSuccess() {
+		if (state != State.CLOSED) {
+			logger.info("Circuit closed for " + destination);
+		}
+		state = State.CLOSED;
+		busyTones = 0;
+		commsFailures = 0;
+		probing = false;
+	}
+
+	/**
+	 * Records that a message failed. Busy tones, comms failures and timeouts count
+	 * towards opening the circuit. Anything else, such as a SOAP fault, means the
+	 * destination is responding and is treated as a success.
+	 *
+	 * @param exception the failure
+	 */
+	public synchronized void recordFailure(ITKMessagingException exception) {
+		boolean busy = exception instanceof ITKUnavailableException;
+		boolean comms = exception instanceof ITKCommsException || exception instanceof ITKTransportTimeoutException;
+		if (!busy && !comms) {
+			recordSuccess();
+			return;
+		}
+		if (state == State.HALF_OPEN) {
+			logger.warn("Circuit probe failed for " + destination + " - reopening");
+			open();
+			return;
+		}
+		if (busy) {
+			busyTones++;
+		} else {
+			commsFailures++;
+		}
+		if (state == State.CLOSED) {
+			if (busyToneThreshold > 0 && busyTones >= busyToneThreshold) {
+				logger.warn("Circuit opened for " + destination + " after " + busyTones + " consecutive busy tones");
+				open();
+			} else if (commsFailureThreshold > 0 && commsFailures >= commsFailureThreshold) {
+				logger.warn("Circuit opened for " + destination + " after " + commsFailures + " consecutive comms failures");
+				open();
+			}
+		}
+	}
+
+	/**
+	 * Releases the probe, if this message was one, without recording an outcome.
+	 * Used when sending fails for a reason that says nothing about the destination.
+	 */
+	public synchronized void release() {
+		probing = false;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAt = clock.currentTimeMillis();
+		busyTones = 0;
+		commsFailures = 0;
+		probing = false;
+	}
+
+	/**
+	 * Gets the current state.
+	 *
+	 * @return the state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Gets the number of messages refused while the circuit was open.
+	 *
+	 * @return the number of messages refused
+	 */
+	public synchronized long getShortCircuitCount() {
+		return shortCircuitCount;
+	}
+
+	/**
+	 * Gets the physical address of the destination.
+	 *
+	 * @return the destination
+	 */
+	public String getDestination() {
+		return destination;
+	}
+
+}
@@ -1,13 +1,13 @@
 package uk.co.inhealthcare.open.itk.transport;
 
-import javax.xml.xpath.XPathExpressionException;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
-import uk.co.inhealthcare.open.itk.util.xml.XPaths;
+import uk.co.inhealthcare.open.itk.util.xml.XMLNamespaceContext;
 
 /**
  * The Class ITKTransportPropertiesImpl.
@@ -196,49 +196,118 @@ public class ITKTransportPropertiesImpl implements ITKTransportProperties {
 		
 		//Construct an empty itkTransportProperties
 		ITKTransportProperties itkTransportProperties = new ITKTransportPropertiesImpl();
+
+		//Extract some key properties from the SOAP envelope in a single pass over the header
+		String[] values = new String[HEADER_VALUE_COUNT];
+		Element envelope = soapDocument.getDocumentElement();
+		if (isElement(envelope, XMLNamespaceContext.SOAPENVNAMESPACE, "Envelope")) {
+			Element header = firstChild(envelope, XMLNamespaceContext.SOAPENVNAMESPACE, "Header");
+			for (Element e = firstChild(header, null, null); e != null; e = nextSibling(e)) {
+				readHeaderElement(e, values);
+			}
+		}
+
+		/*
+		 * Set the WSA properties
+		 * (not part of interface specification but useful internally within reference implementation)
+		 */
+		itkTransportProperties.setTransportMessageId(valueOf(values, MESSAGE_ID));
+		itkTransportProperties.setTransportAction(valueOf(values, ACTION));
+
+		itkTransportProperties.setTransportTo(valueOf(values, TO));
+		itkTransportProperties.setTransportFrom(valueOf(values, FROM));
+
+		itkTransportProperties.setTransportReplyTo(valueOf(values, REPLY_TO));
+		itkTransportProperties.setTransportFaultTo(valueOf(values, FAULT_TO));
+
+		itkTransportProperties.setTransportRelatesTo(valueOf(values, RELATES_TO));
 		
-		try {
-			//Extract some key properties from the SOAP envelope
-
-			String transportMessageId = XPaths.WSA_MSGID_XPATH.evaluate(soapDocument);
-			String transportAction = XPaths.WSA_ACTION_XPATH.evaluate(soapDocument);
-			
-			String transportTo = XPaths.WSA_TO_XPATH.evaluate(soapDocument);
-			String transportFrom = XPaths.WSA_FROM_XPATH.evaluate(soapDocument);
-
-			String transportReplyTo = XPaths.WSA_REPLY_TO_XPATH.evaluate(soapDocument);
-			String transportFaultTo = XPaths.WSA_FAULT_TO_XPATH.evaluate(soapDocument);
-
-			String transportRelatesTo = XPaths.WSA_RELATES_TO_XPATH.evaluate(soapDocument);
-			String transportUsername = XPaths.WSA_SECURITY_USERNAME_XPATH.evaluate(soapDocument);
-
-			String transportCreatedTime = XPaths.WSA_SECURITY_CREATED_XPATH.evaluate(soapDocument);
-			String transportExpiresTime = XPaths.WSA_SECURITY_EXPIRES_XPATH.evaluate(soapDocument);
-
-			/*
-			 * Set the WSA properties
-			 * (not part of interface specification but useful internally within reference implementation)
-			 */
-			itkTransportProperties.setTransportMessageId(transportMessageId);
-			itkTransportProperties.setTransportAction(transportAction);
-
-			itkTransportProperties.setTransportTo(transportTo);
-			itkTransportProperties.setTransportFrom(transportFrom);
-
-			itkTransportProperties.setTransportReplyTo(transportReplyTo);
-			itkTransportProperties.setTransportFaultTo(transportFaultTo);
-
-			itkTransportProperties.setTransportRelatesTo(transportRelatesTo);
-			
-			itkTransportProperties.setTransportUsername(transportUsername);
-			itkTransportProperties.setTransportCreatedTime(transportCreatedTime);
-			itkTransportProperties.setTransportExpiresTime(transportExpiresTime);
-			
-			return itkTransportProperties;
-			
-		} catch (XPathExpressionException e) {
-			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Could not extract values from request", e);
-		} 
+		itkTransportProperties.setTransportUsername(valueOf(values, USERNAME));
+		itkTransportProperties.setTransportCreatedTime(valueOf(values, CREATED));
+		itkTransportProperties.setTransportExpiresTime(valueOf(values, EXPIRES));
+		
+		return itkTransportProperties;
+	}
+
+	// Indexes of the header values extracted by buildFromSoap
+	private static final int MESSAGE_ID = 0;
+	private static final int ACTION = 1;
+	private static final int TO = 2;
+	private static final int FROM = 3;
+	private static final int REPLY_TO = 4;
+	private static final int FAULT_TO = 5;
+	private static final int RELATES_TO = 6;
+	private static final int USERNAME = 7;
+	private static final int CREATED = 8;
+	private static final int EXPIRES = 9;
+	private static final int HEADER_VALUE_COUNT = 10;
+
+	private static void readHeaderElement(Element e, String[] values) {
+		String ns = e.getNamespaceURI();
+		String name = e.getLocalName();
+		if (XMLNamespaceContext.WSANAMESPACE.equals(ns)) {
+			if ("MessageID".equals(name)) {
+				setFirst(values, MESSAGE_ID, e);
+			} else if ("Action".equals(name)) {
+				setFirst(values, ACTION, e);
+			} else if ("To".equals(name)) {
+				setFirst(values, TO, e);
+			} else if ("RelatesTo".equals(name)) {
+				setFirst(values, RELATES_TO, e);
+			} else if ("From".equals(name)) {
+				setFirst(values, FROM, firstChild(e, XMLNamespaceContext.WSANAMESPACE, "Address"));
+			} else if ("ReplyTo".equals(name)) {
+				setFirst(values, REPLY_TO, firstChild(e, XMLNamespaceContext.WSANAMESPACE, "Address"));
+			} else if ("FaultTo".equals(name)) {
+				setFirst(values, FAULT_TO, firstChild(e, XMLNamespaceContext.WSANAMESPACE, "Address"));
+			}
+		} else if (XMLNamespaceContext.WSSENAMESPACE.equals(ns) && "Security".equals(name)) {
+			for (Element s = firstChild(e, null, null); s != null; s = nextSibling(s)) {
+				if (isElement(s, XMLNamespaceContext.WSUNAMESPACE, "Timestamp")) {
+					setFirst(values, CREATED, firstChild(s, XMLNamespaceContext.WSUNAMESPACE, "Created"));
+					setFirst(values, EXPIRES, firstChild(s, XMLNamespaceContext.WSUNAMESPACE, "Expires"));
+				} else if (isElement(s, XMLNamespaceContext.WSSENAMESPACE, "UsernameToken")) {
+					setFirst(values, USERNAME, firstChild(s, XMLNamespaceContext.WSSENAMESPACE, "Username"));
+				}
+			}
+		}
+	}
+
+	private static void setFirst(String[] values, int index, Element e) {
+		// As with an XPath string value, the first matching element wins
+		if (values[index] == null && e != null) {
+			values[index] = e.getTextContent();
+		}
+	}
+
+	private static String valueOf(String[] values, int index) {
+		return values[index] == null ? "" : values[index];
+	}
+
+	private static boolean isElement(Node n, String ns, String localName) {
+		return n != null && n.getNodeType() == Node.ELEMENT_NODE
+				&& (ns == null || (ns.equals(n.getNamespaceURI()) && localName.equals(n.getLocalName())));
+	}
+
+	private static Element firstChild(Node parent, String ns, String localName) {
+		if (parent == null) {
+			return null;
+		}
+		for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+			if (isElement(n, ns, localName)) {
+				return (Element) n;
+			}
+		}
+		return null;
+	}
+
+	private static Element nextSibling(Element e) {
+		for (Node n = e.getNextSibling(); n != null; n = n.getNextSibling()) {
+			if (n.getNodeType() == Node.ELEMENT_NODE) {
+				return (Element) n;
+			}
+		}
+		return null;
 	}
 	
-}
\ No newline at end of file
+}
@@ -28,6 +28,9 @@ public class ITKTransportRouteImpl implements ITKTransportRoute {
 	private String exceptionToAddress;
 	private int timeToLive;
 	private int transportTimeout;
+	private String channelId;
+	private boolean compressRequest;
+	private boolean acceptCompressed;
 	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.transport.ITKTransportRoute#getTransportType()
@@ -106,5 +109,56 @@ public class ITKTransportRouteImpl implements ITKTransportRoute {
 	public int getTimeToLive() {
 		return timeToLive;
 	}
-	
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportRoute#getChannelId()
+	 */
+	@Override
+	public String getChannelId() {
+		return channelId;
+	}
+
+	/**
+	 * Sets the id of the directory channel the route was resolved from.
+	 *
+	 * @param channelId the channel id
+	 */
+	public void setChannelId(String channelId) {
+		this.channelId = channelId;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportRoute#isCompressRequest()
+	 */
+	@Override
+	public boolean isCompressRequest() {
+		return compressRequest;
+	}
+
+	/**
+	 * Sets whether request bodies are gzip compressed.
+	 *
+	 * @param compressRequest true to compress requests
+	 */
+	public void setCompressRequest(boolean compressRequest) {
+		this.compressRequest = compressRequest;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportRoute#isAcceptCompressed()
+	 */
+	@Override
+	public boolean isAcceptCompressed() {
+		return acceptCompressed;
+	}
+
+	/**
+	 * Sets whether gzip compressed responses are accepted.
+	 *
+	 * @param acceptCompressed true to accept compressed responses
+	 */
+	public void setAcceptCompressed(boolean acceptCompressed) {
+		this.acceptCompressed = acceptCompressed;
+	}
+
 }
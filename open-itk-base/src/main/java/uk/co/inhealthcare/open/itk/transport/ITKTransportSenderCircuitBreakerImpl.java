@@ -0,0 +1,175 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKDeadlineExceededException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKSaturatedException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+
+/**
+ * Wraps an {@link ITKTransportSender} with a circuit breaker for each physical
+ * destination. When a destination keeps returning the busy tone or failing, messages
+ * to it are refused with an ITKUnavailableException without being sent, until a
+ * probe message shows it has recovered. See {@link ITKCircuitBreaker}.
+ *
+ * An {@link ITKAsyncTransportSender} is wrapped with an
+ * {@link ITKAsyncTransportSenderCircuitBreakerImpl} instead, so that it can still
+ * be told apart from a blocking sender.
+ *
+ * @author Nick Jones
+ */
+public class ITKTransportSenderCircuitBreakerImpl implements ITKTransportSender {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKTransportSenderCircuitBreakerImpl.class);
+
+	private final ConcurrentMap<String, ITKCircuitBreaker> breakers = new ConcurrentHashMap<String, ITKCircuitBreaker>();
+
+	private ITKTransportSender transportService = null;
+	/**
+	 * Sets the sender to wrap
+	 *
+	 * @param transportService
+	 */
+	public void setTransportService(ITKTransportSender transportService) {
+		this.transportService = transportService;
+	}
+
+	private int busyToneThreshold = 3;
+	/**
+	 * Sets the number of consecutive busy tones from a destination which open
+	 * its circuit. Zero means busy tones never open it.
+	 *
+	 * @param busyToneThreshold
+	 */
+	public void setBusyToneThreshold(int busyToneThreshold) {
+		this.busyToneThreshold = busyToneThreshold;
+	}
+
+	private int commsFailureThreshold = 5;
+	/**
+	 * Sets the number of consecutive comms failures or timeouts from a destination
+	 * which open its circuit. Zero means they never open it.
+	 *
+	 * @param commsFailureThreshold
+	 */
+	public void setCommsFailureThreshold(int commsFailureThreshold) {
+		this.commsFailureThreshold = commsFailureThreshold;
+	}
+
+	private long openDuration = 30000;
+	/**
+	 * Sets how long (in milliseconds) a circuit stays open before a probe
+	 * message is sent
+	 *
+	 * @param openDuration
+	 */
+	public void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	private ITKClock clock = ITKClock.getDefault();
+	/**
+	 * Sets the clock used to time how long a circuit has been open
+	 *
+	 * @param clock
+	 */
+	public void setClock(ITKClock clock) {
+		this.clock = clock;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> transportProperties)
+			throws ITKMessagingException {
+		return transportSend(message, destination, transportProperties, ITKDeadline.forRoute(destination));
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKTransportSender#transportSend(uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, java.util.Map, uk.co.inhealthcare.open.itk.transport.ITKDeadline)
+	 */
+	@Override
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> transportProperties,
+			ITKDeadline deadline) throws ITKMessagingException {
+
+		deadline.check();
+
+		ITKCircuitBreaker breaker = acquire(destination);
+		try {
+			Document response = transportService.transportSend(message, destination, transportProperties, deadline);
+			breaker.recordSuccess();
+			return response;
+		} catch (ITKMessagingException me) {
+			recordFailure(breaker, me);
+			throw me;
+		} catch (RuntimeException re) {
+			breaker.release();
+			throw re;
+		}
+	}
+
+	/**
+	 * Records a failure against the destination, unless the sender ran out of
+	 * connections or the deadline ran out - neither says anything about the destination
+	 */
+	static void recordFailure(ITKCircuitBreaker breaker, ITKMessagingException exception) {
+		if (exception instanceof ITKSaturatedException || exception instanceof ITKDeadlineExceededException) {
+			breaker.release();
+		} else {
+			breaker.recordFailure(exception);
+		}
+	}
+
+	ITKCircuitBreaker acquire(ITKTransportRoute destination) throws ITKUnavailableException {
+		ITKCircuitBreaker breaker = getCircuitBreaker(destination.getPhysicalAddress());
+		if (!breaker.tryAcquire()) {
+			String eMsg = "Circuit open for " + destination.getPhysicalAddress() + " - ITK Busy Tone";
+			logger.warn(eMsg);
+			throw new ITKUnavailableException(eMsg);
+		}
+		return breaker;
+	}
+
+	/**
+	 * Gets the circuit breaker for a physical destination, creating it if need be.
+	 *
+	 * @param physicalAddress the physical address of the destination
+	 * @return the circuit breaker
+	 */
+	public ITKCircuitBreaker getCircuitBreaker(String physicalAddress) {
+		ITKCircuitBreaker breaker = breakers.get(physicalAddress);
+		if (breaker == null) {
+			ITKCircuitBreaker newBreaker = new ITKCircuitBreaker(physicalAddress, busyToneThreshold,
+					commsFailureThreshold, openDuration, clock);
+			breaker = breakers.putIfAbsent(physicalAddress, newBreaker);
+			if (breaker == null) {
+				breaker = newBreaker;
+			}
+		}
+		return breaker;
+	}
+
+}
@@ -15,6 +15,12 @@ package uk.co.inhealthcare.open.itk.transport.WS;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathConstants;
@@ -30,16 +36,23 @@ import uk.co.inhealthcare.open.itk.capabilities.AuditService;
 import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
 import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
 import uk.co.inhealthcare.open.itk.service.ITKSimpleAuditImpl;
 import uk.co.inhealthcare.open.itk.service.SOAPAuditDetailsImpl;
-import uk.co.inhealthcare.open.itk.transport.ITKSender;
+import uk.co.inhealthcare.open.itk.transport.ITKAsyncSender;
+import uk.co.inhealthcare.open.itk.transport.ITKAsyncTransportSender;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportCallback;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportPropertiesImpl;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportSender;
+import uk.co.inhealthcare.open.itk.util.ITKCompletions;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
 import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
 import uk.co.inhealthcare.open.itk.util.xml.XPaths;
 
@@ -48,7 +61,7 @@ import uk.co.inhealthcare.open.itk.util.xml.XPaths;
  *
  * @author Nick Jones
  */
-public class ITKSenderWSImpl implements ITKSender {
+public class ITKSenderWSImpl implements ITKAsyncSender {
 
 	private final static Logger logger = LoggerFactory.getLogger(ITKSenderWSImpl.class);
 
@@ -80,6 +93,17 @@ public class ITKSenderWSImpl implements ITKSender {
 		this.toSoapTransform = toSoapTransform;
 	}
 
+	private boolean streamingEnvelope = false;
+	/**
+	 * Writes the SOAP envelope directly to the transport rather than
+	 * transforming with toSoapTransform
+	 * 
+	 * @param streamingEnvelope
+	 */
+	public void setStreamingEnvelope(boolean streamingEnvelope) {
+		this.streamingEnvelope = streamingEnvelope;
+	}
+
 	private AuditService auditService = null;
 	/**
 	 * 
@@ -98,12 +122,214 @@ public class ITKSenderWSImpl implements ITKSender {
 		this.transportService = transportService;
 	}
 
+	private ITKTransportSender pooledTransportService = null;
+	/**
+	 * The transport used for routes with a RouteType of WSP. Falls
+	 * back to transportService if not set.
+	 * 
+	 * @param pooledTransportService
+	 */
+	public void setPooledTransportService(ITKTransportSender pooledTransportService) {
+		this.pooledTransportService = pooledTransportService;
+	}
+
+	private ITKTransportSender http2TransportService = null;
+	/**
+	 * The transport used for routes with a RouteType of WSH2. Falls
+	 * back to transportService if not set.
+	 * 
+	 * @param http2TransportService
+	 */
+	public void setHttp2TransportService(ITKTransportSender http2TransportService) {
+		this.http2TransportService = http2TransportService;
+	}
+
+	private int blockingSendThreads = 0;
+	/**
+	 * Sets the number of threads used by sendSyncAsync to send through a transport
+	 * which blocks. Zero (the default) sends on the calling thread.
+	 * 
+	 * @param blockingSendThreads
+	 */
+	public void setBlockingSendThreads(int blockingSendThreads) {
+		this.blockingSendThreads = blockingSendThreads;
+	}
+
+	private ExecutorService blockingSendExecutor = null;
+
+	private ITKTransportSender getTransportService(ITKTransportRoute destination) {
+		if (ITKTransportRoute.HTTP_WS_POOLED.equals(destination.getTransportType())) {
+			if (pooledTransportService != null) {
+				return pooledTransportService;
+			}
+			logger.warn("No pooled transport configured - using the default transport");
+		} else if (ITKTransportRoute.HTTP_WS_H2.equals(destination.getTransportType())) {
+			if (http2TransportService != null) {
+				return http2TransportService;
+			}
+			logger.warn("No HTTP/2 transport configured - using the default transport");
+		}
+		return transportService;
+	}
+
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.transport.ITKSender#sendSync(uk.nhs.interoperability.transport.ITKTransportRoute, uk.nhs.interoperability.payload.ITKMessage)
 	 */
 	@Override
 	public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+		return sendSync(destination, request, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKSender#sendSync(uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKDeadline)
+	 */
+	@Override
+	public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline) throws ITKMessagingException {
+
+		validate(destination, request);
+
+		if (deadline == null){
+			deadline = ITKDeadline.forRoute(destination);
+		}
+
+		WSSOAPMessageImpl message = prepareMessage(destination, request);
+		
+		Document responseDoc = null;
+		try {
+			responseDoc = getTransportService(destination).transportSend(message, destination, buildHttpProperties(request), deadline);
+		} catch (ITKMessagingException me) {
+			auditFailure(request, me);
+			throw me;
+		} catch (Throwable t){
+			// cat
+			auditSOAPFailure(request.getConversationId(),"FAIL");
+			throw t;
+		}
+
+		return processResponse(request, responseDoc);
+	}
+
+	/**
+	 * Sends a synchronous request without blocking the calling thread. See
+	 * {@link #sendSyncAsync(ITKTransportRoute, ITKMessage, ITKDeadline, ITKSendCallback)}.
+	 * 
+	 * @param destination the route
+	 * @param request the request
+	 * @param deadline the deadline for the conversation, or <code>null</code> to use the time to live of the route
+	 * @return A <code>Future</code> for the response, failing with the <code>ITKMessagingException</code>
+	 * sendSync would have thrown
+	 * @throws ITKMessagingException if the request is invalid or cannot be audited, in which case nothing is sent
+	 */
+	public Future<ITKMessage> sendSyncAsync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline)
+			throws ITKMessagingException {
+		return sendSyncAsync(destination, request, deadline, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.transport.ITKAsyncSender#sendSyncAsync(uk.co.inhealthcare.open.itk.transport.ITKTransportRoute, uk.co.inhealthcare.open.itk.payload.ITKMessage, uk.co.inhealthcare.open.itk.transport.ITKDeadline, uk.co.inhealthcare.open.itk.transport.ITKSendCallback)
+	 * Where the transport for the route is an ITKAsyncTransportSender the response is processed
+	 * and audited on a thread belonging to the transport. With any other transport the message
+	 * is sent on one of the blockingSendThreads or, if there are none, on the calling thread in
+	 * which case the returned Future is already complete.
+	 */
+	@Override
+	public Future<ITKMessage> sendSyncAsync(final ITKTransportRoute destination, final ITKMessage request,
+			ITKDeadline deadline, final ITKSendCallback callback) throws ITKMessagingException {
+
+		validate(destination, request);
+
+		final SettableFuture<ITKMessage> future = new SettableFuture<ITKMessage>();
+		ITKTransportSender transport = getTransportService(destination);
+		if (!(transport instanceof ITKAsyncTransportSender)) {
+			final ITKDeadline blockingDeadline = deadline;
+			Runnable send = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ITKCompletions.complete(future, callback, sendSync(destination, request, blockingDeadline), null);
+					} catch (ITKMessagingException me) {
+						ITKCompletions.complete(future, callback, null, me);
+					} catch (RuntimeException re) {
+						logger.error("Unexpected error sending request", re);
+						ITKCompletions.complete(future, callback, null, new ITKMessagingException(
+								ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, re.getMessage(), re));
+					}
+				}
+			};
+			ExecutorService executor = getBlockingSendExecutor();
+			if (executor == null) {
+				send.run();
+			} else {
+				try {
+					executor.execute(send);
+				} catch (RejectedExecutionException ree) {
+					String eMsg = "Unable to send ITK Message - sender closed";
+					logger.error(eMsg);
+					throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, eMsg);
+				}
+			}
+			return future;
+		}
+
+		if (deadline == null){
+			deadline = ITKDeadline.forRoute(destination);
+		}
+
+		WSSOAPMessageImpl message = prepareMessage(destination, request);
+
+		((ITKAsyncTransportSender) transport).transportSendAsync(message, destination, buildHttpProperties(request), deadline,
+				new ITKTransportCallback() {
+			@Override
+			public void completed(Document response) {
+				try {
+					ITKCompletions.complete(future, callback, processResponse(request, response), null);
+				} catch (ITKMessagingException me) {
+					ITKCompletions.complete(future, callback, null, me);
+				} catch (RuntimeException re) {
+					logger.error("Unexpected error processing response", re);
+					ITKCompletions.complete(future, callback, null, new ITKMessagingException(
+							ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, re.getMessage(), re));
+				}
+			}
+
+			@Override
+			public void failed(ITKMessagingException exception) {
+				try {
+					auditFailure(request, exception);
+					ITKCompletions.complete(future, callback, null, exception);
+				} catch (ITKMessagingException me) {
+					ITKCompletions.complete(future, callback, null, me);
+				}
+			}
+		});
+		return future;
+	}
 
+	private synchronized ExecutorService getBlockingSendExecutor() {
+		if (blockingSendExecutor == null && blockingSendThreads > 0) {
+			blockingSendExecutor = Executors.newFixedThreadPool(blockingSendThreads, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ITK-WS-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return blockingSendExecutor;
+	}
+
+	/**
+	 * Stops the blockingSendThreads once the requests already given to them have been sent
+	 */
+	public synchronized void close() {
+		if (blockingSendExecutor != null) {
+			blockingSendExecutor.shutdown();
+		}
+	}
+
+	private void validate(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
 		if (destination == null){
 			ITKMessagingException nullParmsException = new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Destination is null.");
 			logger.error("Destination is null:",nullParmsException);
@@ -114,6 +340,9 @@ public class ITKSenderWSImpl implements ITKSender {
 			logger.error("Request is null:",nullParmsException);
 			throw nullParmsException;
 		}
+	}
+
+	private WSSOAPMessageImpl prepareMessage(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
 
 		// Add the soap wrappers
 		WSSOAPMessageImpl message = new WSSOAPMessageImpl(destination, request, WSSOAPMessageImpl.SYNCREQ);
@@ -126,17 +355,22 @@ public class ITKSenderWSImpl implements ITKSender {
 		}
 
 		auditSOAPRequest(message);
-		
-		String responsePayloadString = null;
+		return message;
+	}
+
+	private Map<String, String> buildHttpProperties(ITKMessage request) {
+		// Set the transport properties
+		Map <String, String> httpProperties = new HashMap<String,String>();
+		httpProperties.put("SOAPAction", request.getMessageProperties().getServiceId());
+		return httpProperties;
+	}
+
+	private ITKMessage processResponse(ITKMessage request, Document responseDoc) throws ITKMessagingException {
+
+		Document responsePayloadDocument = null;
 		ITKTransportProperties responseTransportProperties = null;
 
 		try {
-
-			// Set the transport properties
-			Map <String, String> httpProperties = new HashMap<String,String>();
-			httpProperties.put("SOAPAction", request.getMessageProperties().getServiceId());
-			Document responseDoc = this.transportService.transportSend(message, destination, httpProperties);
-			
 			if (responseDoc == null) {
 				auditSOAPFailure(request.getConversationId(),"202");
 				// No responseDoc means the call received a 202 - this is an exception for Synchronous.
@@ -147,7 +381,9 @@ public class ITKSenderWSImpl implements ITKSender {
 			} else {
 				
 				// Pretty print the response message
-				logger.trace(DomUtils.serialiseToXML(responseDoc, DomUtils.PRETTY_PRINT));
+				if (logger.isTraceEnabled()) {
+					logger.trace(DomUtils.serialiseToXML(responseDoc, DomUtils.PRETTY_PRINT));
+				}
 
 				// Extract the SOAP Body Content
 				Document businessPayloadDocument = DomUtils.createDocumentFromNode((Node)XPaths.SOAP_BODY_CONTENT_XPATH.evaluate(responseDoc, XPathConstants.NODE));
@@ -162,7 +398,8 @@ public class ITKSenderWSImpl implements ITKSender {
 				}
 				responseTransportProperties = ITKTransportPropertiesImpl.buildFromSoap(responseDoc);
 
-				responsePayloadString = DomUtils.serialiseToXML(businessPayloadDocument);
+				// Pass the parsed payload on rather than serialising it for the next layer to re-parse
+				responsePayloadDocument = businessPayloadDocument;
 
 			}
 		} catch (ParserConfigurationException pce) {
@@ -173,16 +410,9 @@ public class ITKSenderWSImpl implements ITKSender {
 			auditSOAPFailure(request.getConversationId(),"FAIL:XPATH");
 			logger.error("XPathExpressionException reading payload on WS Response", xpe);
 			throw new ITKCommsException("No Payload found in ITK Response");
-		} catch (ITKSOAPException spe){
-			auditSOAPFailure(request.getConversationId(),"FAIL:SOAP"+spe.getErrorCode());
-			throw spe;
-		} catch (ITKCommsException ce){
-			auditSOAPFailure(request.getConversationId(),"FAIL:COMMS");
-			throw ce;
-		} catch (ITKUnavailableException ue){
-			// ITK Busy Tone - audit and throw
-			auditSOAPFailure(request.getConversationId(),"FAIL:BUSY");
-			throw ue;
+		} catch (ITKMessagingException me) {
+			auditFailure(request, me);
+			throw me;
 		} catch (Throwable t){
 			// cat
 			auditSOAPFailure(request.getConversationId(),"FAIL");
@@ -191,7 +421,7 @@ public class ITKSenderWSImpl implements ITKSender {
 
 		// Construct the Response message
 		ITKMessage response = new ITKSimpleMessageImpl(request.getConversationId());
-		response.setBusinessPayload(responsePayloadString);
+		response.setBusinessPayloadDocument(responsePayloadDocument);
 		response.setTransportProperties(responseTransportProperties);
 		
 		// Audit the constructed response
@@ -199,32 +429,76 @@ public class ITKSenderWSImpl implements ITKSender {
 		
 		return response;
 	}
+
+	private void auditFailure(ITKMessage request, ITKMessagingException me) throws ITKMessagingException {
+		if (me instanceof ITKSOAPException) {
+			auditSOAPFailure(request.getConversationId(),"FAIL:SOAP"+((ITKSOAPException) me).getErrorCode());
+		} else if (me instanceof ITKCommsException) {
+			auditSOAPFailure(request.getConversationId(),"FAIL:COMMS");
+		} else if (me instanceof ITKTransportTimeoutException) {
+			auditSOAPFailure(request.getConversationId(),"FAIL:TIMEOUT");
+		} else if (me instanceof ITKUnavailableException) {
+			// ITK Busy Tone
+			auditSOAPFailure(request.getConversationId(),"FAIL:BUSY");
+		} else {
+			auditSOAPFailure(request.getConversationId(),"FAIL");
+		}
+	}
 	
 	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.transport.ITKSender#sendAysnc(uk.nhs.interoperability.transport.ITKTransportRoute, uk.nhs.interoperability.payload.ITKMessage)
-	 * Not implemented in this version (not required for SMSP)
+	 * Starts the request as for sendSyncAsync and returns without waiting for the response.
+	 * The outcome is audited as for sendSync and any failure is logged.
 	 */
 	@Override
-	public void sendAsync(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+	public void sendAsync(ITKTransportRoute destination, final ITKMessage request) throws ITKMessagingException {
+
+		sendSyncAsync(destination, request, null, new ITKSendCallback() {
+			@Override
+			public void completed(ITKMessage response) {
+				logger.debug("Asynchronous request completed for conversation " + request.getConversationId());
+			}
 
-		ITKMessagingException notImplementedException = 
-				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not Yet Implemented");
-		throw notImplementedException;
+			@Override
+			public void failed(ITKMessagingException exception) {
+				logger.error("Asynchronous request failed for conversation " + request.getConversationId() + ": "
+						+ exception.getMessage());
+			}
+		});
 	
 	}
 	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.transport.ITKSender#send(uk.nhs.interoperability.transport.ITKTransportRoute, uk.nhs.interoperability.payload.ITKMessage)
-	 * Not implemented in this version (not required for SMSP)
+	 * Sends as for sendSync but an HTTP acknowledgement (202) is success, as is any response
+	 * which sendSync would accept. The response itself is discarded.
 	 */
 	@Override
 	public void send(ITKTransportRoute destination, ITKMessage request)	throws ITKMessagingException {
 
-		ITKMessagingException notImplementedException = 
-				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not Yet Implemented");
-		throw notImplementedException;
-		
+		validate(destination, request);
+
+		ITKDeadline deadline = ITKDeadline.forRoute(destination);
+		WSSOAPMessageImpl message = prepareMessage(destination, request);
+
+		Document responseDoc = null;
+		try {
+			responseDoc = getTransportService(destination).transportSend(message, destination, buildHttpProperties(request), deadline);
+		} catch (ITKMessagingException me) {
+			auditFailure(request, me);
+			throw me;
+		} catch (Throwable t){
+			// cat
+			auditSOAPFailure(request.getConversationId(),"FAIL");
+			throw t;
+		}
+
+		if (responseDoc == null) {
+			auditSOAPFailure(request.getConversationId(),"202");
+		} else {
+			processResponse(request, responseDoc);
+		}
 	}
 
 	private void auditSOAPRequest(WSSOAPMessageImpl message) throws ITKMessagingException {
@@ -296,7 +570,11 @@ public class ITKSenderWSImpl implements ITKSender {
 	private void configureMessage(WSSOAPMessageImpl message) throws ITKMessagingException{
 		message.getTransportProperties().setTransportFrom(soapFromAddress);
 		message.getTransportProperties().setTransportUsername(soapUsername);
-		message.buildFullMessage(toSoapTransform);	
+		if (streamingEnvelope) {
+			message.buildFullMessage();
+		} else {
+			message.buildFullMessage(toSoapTransform);
+		}
 	}
 	
 }
@@ -0,0 +1,197 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.WS;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
+import uk.co.inhealthcare.open.itk.util.xml.StaxUtils;
+import uk.co.inhealthcare.open.itk.util.xml.XMLNamespaceContext;
+
+/**
+ * Writes a SOAP 1.1 envelope with the WS-Addressing and WS-Security headers directly
+ * with StAX, producing the same envelope as ToSOAP.xslt. The envelope can be written
+ * straight to the HTTP request stream so the SOAP message need never be held as a String.
+ *
+ * @author Nick Jones
+ */
+public class SOAPEnvelopeWriter {
+
+	private final static Logger logger = LoggerFactory.getLogger(SOAPEnvelopeWriter.class);
+
+	private static final String SOAPNS = XMLNamespaceContext.SOAPENVNAMESPACE;
+	private static final String SOAPPREFIX = "soap";
+	private static final String WSANS = XMLNamespaceContext.WSANAMESPACE;
+	private static final String WSAPREFIX = XMLNamespaceContext.WSANAMESPACE_DEFAULT_PREFIX;
+	private static final String WSSENS = XMLNamespaceContext.WSSENAMESPACE;
+	private static final String WSSEPREFIX = XMLNamespaceContext.WSSENAMESPACE_DEFAULT_PREFIX;
+	private static final String WSUNS = XMLNamespaceContext.WSUNAMESPACE;
+	private static final String WSUPREFIX = XMLNamespaceContext.WSUNAMESPACE_DEFAULT_PREFIX;
+	private static final String ITKNS = XMLNamespaceContext.ITKNAMESPACE;
+	private static final String ITKPREFIX = XMLNamespaceContext.ITKNAMESPACE_DEFAULT_PREFIX;
+
+	// As used by ToSOAP.xslt
+	private static final String TIMESTAMP_ID = "D6CD5232-14CF-11DF-9423-1F9A910D4703";
+
+	private SOAPEnvelopeWriter() {
+	}
+
+	/**
+	 * Writes the SOAP envelope for the message to a String.
+	 *
+	 * @param message the message
+	 * @return the SOAP envelope
+	 * @throws ITKMessagingException if the envelope cannot be written
+	 */
+	public static String toXML(WSSOAPMessageImpl message) throws ITKMessagingException {
+		StringWriter sw = new StringWriter();
+		try {
+			write(message, StaxUtils.getOutputFactory().createXMLStreamWriter(sw));
+		} catch (XMLStreamException e) {
+			throw writeError(message, e);
+		}
+		return sw.toString();
+	}
+
+	/**
+	 * Writes the SOAP envelope for the message to a byte stream as UTF-8.
+	 *
+	 * @param message the message
+	 * @param out the out
+	 * @throws IOException if the stream cannot be written to
+	 * @throws ITKMessagingException if the envelope cannot be written
+	 */
+	public static void write(WSSOAPMessageImpl message, OutputStream out) throws IOException, ITKMessagingException {
+		try {
+			write(message, StaxUtils.getOutputFactory().createXMLStreamWriter(out, "UTF-8"));
+		} catch (XMLStreamException e) {
+			// Let the transport see failures of the underlying stream, e.g. timeouts
+			if (e.getNestedException() instanceof IOException) {
+				throw (IOException) e.getNestedException();
+			}
+			throw writeError(message, e);
+		}
+	}
+
+	private static void write(WSSOAPMessageImpl message, XMLStreamWriter writer) throws XMLStreamException {
+
+		ITKTransportProperties props = message.getTransportProperties();
+		String msgType = message.getMsgType();
+
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeStartElement(SOAPPREFIX, "Envelope", SOAPNS);
+		writer.writeNamespace(SOAPPREFIX, SOAPNS);
+		writer.writeNamespace(WSAPREFIX, WSANS);
+		writer.writeNamespace(ITKPREFIX, ITKNS);
+
+		writer.writeStartElement(SOAPPREFIX, "Header", SOAPNS);
+		writeTextElement(writer, "MessageID", props.getTransportMessageId());
+		writeTextElement(writer, "Action", props.getTransportAction());
+		writeTextElement(writer, "To", props.getTransportTo());
+
+		// A sync response needs neither the from header nor the security header
+		if (WSSOAPMessageImpl.SYNCREQ.equals(msgType) || WSSOAPMessageImpl.ASYNCREQ.equals(msgType)
+				|| WSSOAPMessageImpl.ASYNCRESP.equals(msgType)) {
+			writeAddressElement(writer, "From", props.getTransportFrom());
+
+			// Async requests may specify where the replies and faults should go
+			if (WSSOAPMessageImpl.ASYNCREQ.equals(msgType)) {
+				if (!isEmpty(props.getTransportReplyTo())) {
+					writeAddressElement(writer, "ReplyTo", props.getTransportReplyTo());
+				}
+				if (!isEmpty(props.getTransportFaultTo())) {
+					writeAddressElement(writer, "FaultTo", props.getTransportFaultTo());
+				}
+			}
+
+			String expires = message.getExpiryDateString();
+			String username = props.getTransportUsername();
+			if (!isEmpty(expires) || !isEmpty(username)) {
+				writeSecurity(writer, message.getCreatedDateString(), expires, username);
+			}
+		}
+		writer.writeEndElement();
+
+		writer.writeStartElement(SOAPPREFIX, "Body", SOAPNS);
+		String payload = message.getBusinessPayload();
+		if (!isEmpty(payload)) {
+			StaxUtils.copyContent(payload, writer);
+		}
+		writer.writeEndElement();
+
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.flush();
+	}
+
+	private static void writeSecurity(XMLStreamWriter writer, String created, String expires, String username) throws XMLStreamException {
+		writer.writeStartElement(WSSEPREFIX, "Security", WSSENS);
+		writer.writeNamespace(WSSEPREFIX, WSSENS);
+
+		writer.writeStartElement(WSUPREFIX, "Timestamp", WSUNS);
+		writer.writeNamespace(WSUPREFIX, WSUNS);
+		writer.writeAttribute(WSUPREFIX, WSUNS, "Id", TIMESTAMP_ID);
+		writer.writeStartElement(WSUPREFIX, "Created", WSUNS);
+		writer.writeCharacters(nullToEmpty(created));
+		writer.writeEndElement();
+		writer.writeStartElement(WSUPREFIX, "Expires", WSUNS);
+		writer.writeCharacters(nullToEmpty(expires));
+		writer.writeEndElement();
+		writer.writeEndElement();
+
+		writer.writeStartElement(WSSEPREFIX, "UsernameToken", WSSENS);
+		writer.writeStartElement(WSSEPREFIX, "Username", WSSENS);
+		writer.writeCharacters(nullToEmpty(username));
+		writer.writeEndElement();
+		writer.writeEndElement();
+
+		writer.writeEndElement();
+	}
+
+	private static void writeTextElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+		writer.writeStartElement(WSAPREFIX, name, WSANS);
+		writer.writeCharacters(nullToEmpty(value));
+		writer.writeEndElement();
+	}
+
+	private static void writeAddressElement(XMLStreamWriter writer, String name, String address) throws XMLStreamException {
+		writer.writeStartElement(WSAPREFIX, name, WSANS);
+		writeTextElement(writer, "Address", address);
+		writer.writeEndElement();
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.isEmpty();
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static ITKMessagingException writeError(WSSOAPMessageImpl message, XMLStreamException e) {
+		logger.error("Error writing SOAP Envelope", e);
+		return new ITKMessagingException(message.getMessageProperties(), ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE,
+				"Error writing SOAP Envelope");
+	}
+
+}
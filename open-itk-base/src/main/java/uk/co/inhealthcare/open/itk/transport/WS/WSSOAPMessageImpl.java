@@ -13,9 +13,9 @@
 */
 package uk.co.inhealthcare.open.itk.transport.WS;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Calendar;
-import java.util.TimeZone;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -28,6 +28,8 @@ import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
 import uk.co.inhealthcare.open.itk.transform.TransformManager;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportPropertiesImpl;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
 
 /**
  * The Class WSSOAPMessageImpl. 
@@ -50,25 +52,26 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 	/** The Constant ASYNCRESP. */
 	public static final String ASYNCRESP = "ASYNCRESP";
 	
-	private static final SimpleDateFormat DATE_FORMAT = getDateFormat();
-	private Calendar created;
-	private Calendar expires;
+	private static final long NOT_SET = Long.MIN_VALUE;
+	private long created;
+	private long expires = NOT_SET;
 	private int ttl;
 	private String msgType;
+	private boolean streamed;
 
-	private static SimpleDateFormat getDateFormat(){
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-		// ITK-REQUIREMENT: MSCA-AUD-07
-		sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-		return sdf;
+	private static Calendar toCalendar(long millis) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(millis);
+		return cal;
 	}
+
 	/**
 	 * Gets the created date
 	 *
 	 * @return the created
 	 */
 	public Calendar getCreated() {
-		return created;
+		return toCalendar(created);
 	}
 	
 	/**
@@ -77,7 +80,7 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 	 * @return the created date string
 	 */
 	public String getCreatedDateString() {
-		return DATE_FORMAT.format(this.created.getTime());
+		return TimestampFormat.SOAP.format(this.created);
 	}
 
 	/**
@@ -86,10 +89,10 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 	 * @return the expiry date string
 	 */
 	public String getExpiryDateString() {
-		if (null==expires){
+		if (expires == NOT_SET){
 			return "";
 		} else {
-			return DATE_FORMAT.format(this.expires.getTime());
+			return TimestampFormat.SOAP.format(this.expires);
 		}
 	}
 
@@ -99,7 +102,7 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 	 * @return the expires
 	 */
 	public Calendar getExpires() {
-		return expires;
+		return expires == NOT_SET ? null : toCalendar(expires);
 	}
 
 	/**
@@ -137,8 +140,7 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 	 */
 	public void setTimeToLive(int ttl) {
 		this.ttl = ttl;
-		expires = (Calendar)created.clone();
-		expires.add(Calendar.SECOND,ttl);
+		expires = created + ttl * 1000L;
 	}
 	
 	/**
@@ -169,7 +171,7 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 		}
 
 		//Initialise all variables
-		this.created = Calendar.getInstance();
+		this.created = ITKClock.getDefault().currentTimeMillis();
 		this.setMsgType(messageType);
 		this.setTimeToLive(destination.getTimeToLive());
 
@@ -195,6 +197,7 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 	 */
 	@Override
 	public void buildFullMessage(String templateName) throws ITKMessagingException{
+		this.streamed = false;
 		String soapXML = "<SOAPMessage>";
 		soapXML += "<MessageType>"+msgType+"</MessageType>";
 		soapXML += "<MessageId>"+transportProperties.getTransportMessageId()+"</MessageId>";
@@ -215,4 +218,45 @@ public class WSSOAPMessageImpl extends ITKSimpleMessageImpl {
 
 	}
 	
+	/**
+	 * Build Full Message for writing directly. Nothing is serialised here - the SOAP
+	 * envelope is written straight to the transport stream by writeFullMessage.
+	 *
+	 */
+	@Override
+	public void buildFullMessage() throws ITKMessagingException{
+		this.streamed = true;
+		this.fullMessage = null;
+	}
+
+	/**
+	 * Gets the full message, writing the SOAP envelope to a String if the message
+	 * was built for writing directly.
+	 *
+	 * @return the full message, or null if it could not be written
+	 */
+	@Override
+	public String getFullMessage() {
+		if (streamed && fullMessage == null) {
+			try {
+				this.fullMessage = SOAPEnvelopeWriter.toXML(this);
+			} catch (ITKMessagingException e) {
+				logger.error("Could not write SOAP message", e);
+			}
+		}
+		return this.fullMessage;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl#writeFullMessage(java.io.OutputStream)
+	 */
+	@Override
+	public void writeFullMessage(OutputStream out) throws IOException, ITKMessagingException {
+		if (streamed && fullMessage == null) {
+			SOAPEnvelopeWriter.write(this, out);
+		} else {
+			super.writeFullMessage(out);
+		}
+	}
+	
 }
@@ -0,0 +1,64 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+/**
+ * The source of the current time for timestamps written by the audit, logging and
+ * transport classes. Those classes take their clock by setter injection, falling back
+ * to the default, so tests can substitute a clock returning a fixed time.
+ *
+ * @author Nick Jones
+ */
+public class ITKClock {
+
+	private static volatile ITKClock _DEFAULT = new ITKClock();
+
+	/**
+	 * Gets the default clock.
+	 *
+	 * @return the default clock
+	 */
+	public static ITKClock getDefault() {
+		return _DEFAULT;
+	}
+
+	/**
+	 * Sets the default clock, used by classes which are not given a clock.
+	 *
+	 * @param clock the new default clock
+	 */
+	public static void setDefault(ITKClock clock) {
+		_DEFAULT = clock;
+	}
+
+	/**
+	 * Gets the current time.
+	 *
+	 * @return the current time in milliseconds since the epoch
+	 */
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Formats the current time.
+	 *
+	 * @param format the format
+	 * @return the formatted timestamp
+	 */
+	public String format(TimestampFormat format) {
+		return format.format(currentTimeMillis());
+	}
+
+}
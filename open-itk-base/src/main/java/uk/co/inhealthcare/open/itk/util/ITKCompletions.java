@@ -0,0 +1,95 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportCallback;
+
+/**
+ * Completes the future of an asynchronous send and then notifies its callback, if
+ * there is one. A callback that throws is logged rather than allowed to disturb the
+ * thread completing the send.
+ *
+ * @author Nick Jones
+ */
+public final class ITKCompletions {
+
+	private final static Logger logger = LoggerFactory.getLogger(ITKCompletions.class);
+
+	private ITKCompletions() {
+	}
+
+	/**
+	 * Completes an asynchronous message send.
+	 *
+	 * @param future the future of the send
+	 * @param callback the callback of the send, or null
+	 * @param response the response, used when there is no exception
+	 * @param exception the failure, or null if the send succeeded
+	 */
+	public static void complete(SettableFuture<ITKMessage> future, ITKSendCallback callback,
+			ITKMessage response, ITKMessagingException exception) {
+		set(future, response, exception);
+		if (callback != null) {
+			try {
+				if (exception == null) {
+					callback.completed(response);
+				} else {
+					callback.failed(exception);
+				}
+			} catch (RuntimeException re) {
+				logger.error("ITKSendCallback failed", re);
+			}
+		}
+	}
+
+	/**
+	 * Completes an asynchronous transport send.
+	 *
+	 * @param future the future of the send
+	 * @param callback the callback of the send, or null
+	 * @param response the response, used when there is no exception
+	 * @param exception the failure, or null if the send succeeded
+	 */
+	public static void complete(SettableFuture<Document> future, ITKTransportCallback callback,
+			Document response, ITKMessagingException exception) {
+		set(future, response, exception);
+		if (callback != null) {
+			try {
+				if (exception == null) {
+					callback.completed(response);
+				} else {
+					callback.failed(exception);
+				}
+			} catch (RuntimeException re) {
+				logger.error("ITKTransportCallback failed", re);
+			}
+		}
+	}
+
+	private static <V> void set(SettableFuture<V> future, V response, ITKMessagingException exception) {
+		if (exception == null) {
+			future.set(response);
+		} else {
+			future.setException(exception);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue for many producers and a single consumer.
+ * Producers claim a slot by advancing the tail and then publish into it; the
+ * consumer takes published elements in order from the head. Only one thread
+ * may call drainTo at a time.
+ *
+ * @author Nick Jones
+ */
+public class ITKRingBuffer<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+
+	/**
+	 * Creates a ring buffer.
+	 *
+	 * @param capacity the minimum number of elements held, rounded up to a power of two
+	 */
+	public ITKRingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Ring buffer capacity must be between 1 and 2^30: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Adds an element if there is room, without waiting.
+	 *
+	 * @param element the element, which must not be null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException("Ring buffer elements must not be null");
+		}
+		long t;
+		do {
+			t = tail.get();
+			if (t - head.get() > mask) {
+				return false;
+			}
+		} while (!tail.compareAndSet(t, t + 1));
+		slots.lazySet((int) t & mask, element);
+		return true;
+	}
+
+	/**
+	 * Moves elements from the head of the buffer to a collection. Stops early at
+	 * a slot which has been claimed but not yet published, so order is kept.
+	 *
+	 * @param target the collection to add to
+	 * @param max the most elements to move
+	 * @return the number of elements moved
+	 */
+	public int drainTo(Collection<? super E> target, int max) {
+		long h = head.get();
+		int count = 0;
+		while (count < max) {
+			int index = (int) h & mask;
+			E element = slots.get(index);
+			if (element == null) {
+				break;
+			}
+			slots.lazySet(index, null);
+			target.add(element);
+			h++;
+			count++;
+			head.lazySet(h);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of elements claimed but not yet drained
+	 */
+	public int size() {
+		return (int) Math.max(0, tail.get() - head.get());
+	}
+
+	/**
+	 * @return true if nothing is waiting to be drained
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of elements the buffer can hold
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+}
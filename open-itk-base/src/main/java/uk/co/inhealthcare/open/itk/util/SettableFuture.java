@@ -0,0 +1,121 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future which is completed by whoever holds it rather than by running a task.
+ * Only the first call to set, setException or cancel has any effect.
+ *
+ * @author Nick Jones
+ */
+public class SettableFuture<V> implements Future<V> {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile V value;
+	private volatile Throwable exception;
+	private volatile boolean cancelled;
+	private boolean completed = false;
+
+	/**
+	 * Completes the future with a value.
+	 *
+	 * @param value the value
+	 * @return true if this call completed the future
+	 */
+	public boolean set(V value) {
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			this.value = value;
+			completed = true;
+		}
+		done.countDown();
+		return true;
+	}
+
+	/**
+	 * Completes the future with an exception, which get throws as the cause
+	 * of an ExecutionException.
+	 *
+	 * @param exception the exception
+	 * @return true if this call completed the future
+	 */
+	public boolean setException(Throwable exception) {
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			this.exception = exception;
+			completed = true;
+		}
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			cancelled = true;
+			completed = true;
+		}
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public V get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private V result() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return value;
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * An immutable, thread safe timestamp format. Unlike a shared SimpleDateFormat
+ * it can be used from any number of threads.
+ *
+ * Everything except the milliseconds only changes once a second, so the formatted
+ * text either side of the milliseconds is cached for the current second and
+ * most calls just append the milliseconds.
+ *
+ * @author Nick Jones
+ */
+public final class TimestampFormat {
+
+	/** Audit and logging timestamps, e.g. 2014/06/30 13:45:01.123 +0000 */
+	public static final TimestampFormat AUDIT = new TimestampFormat("yyyy/MM/dd HH:mm:ss.SSS Z", TimeZone.getTimeZone("GMT"));
+
+	/** WS-Security timestamps, e.g. 2014-06-30T13:45:01Z */
+	// ITK-REQUIREMENT: MSCA-AUD-07
+	public static final TimestampFormat SOAP = new TimestampFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", TimeZone.getTimeZone("GMT"));
+
+	/** HL7 v2 message timestamps in local time, e.g. 20140630144501 */
+	public static final TimestampFormat HL7 = new TimestampFormat("yyyyMMddHHmmss", TimeZone.getDefault());
+
+	/** Human readable timestamps in local time, e.g. 2014/06/30 14:45:01 */
+	public static final TimestampFormat DISPLAY = new TimestampFormat("yyyy/MM/dd HH:mm:ss", TimeZone.getDefault());
+
+	private static final String MILLIS = "SSS";
+
+	private final String prefixPattern;
+	private final String suffixPattern;
+	private final boolean hasMillis;
+	private final TimeZone timeZone;
+
+	// Replaced, never modified, so safe to share without locking
+	private volatile CachedSecond cached;
+
+	private static final class CachedSecond {
+		private final long second;
+		private final String prefix;
+		private final String suffix;
+
+		private CachedSecond(long second, String prefix, String suffix) {
+			this.second = second;
+			this.prefix = prefix;
+			this.suffix = suffix;
+		}
+	}
+
+	/**
+	 * Instantiates a new timestamp format. Milliseconds may only appear as SSS.
+	 *
+	 * @param pattern the SimpleDateFormat pattern
+	 * @param timeZone the time zone
+	 */
+	public TimestampFormat(String pattern, TimeZone timeZone) {
+		int millis = pattern.indexOf(MILLIS);
+		this.hasMillis = millis >= 0;
+		this.prefixPattern = hasMillis ? pattern.substring(0, millis) : pattern;
+		this.suffixPattern = hasMillis ? pattern.substring(millis + MILLIS.length()) : "";
+		this.timeZone = (TimeZone) timeZone.clone();
+	}
+
+	/**
+	 * Formats the time.
+	 *
+	 * @param millis the time in milliseconds since the epoch
+	 * @return the formatted timestamp
+	 */
+	public String format(long millis) {
+		long second = millis / 1000;
+		int milliOfSecond = (int) (millis % 1000);
+		if (milliOfSecond < 0) {
+			second--;
+			milliOfSecond += 1000;
+		}
+
+		CachedSecond c = cached;
+		if (c == null || c.second != second) {
+			c = formatSecond(second);
+			cached = c;
+		}
+		if (!hasMillis) {
+			return c.prefix;
+		}
+
+		StringBuilder sb = new StringBuilder(c.prefix.length() + 3 + c.suffix.length());
+		sb.append(c.prefix);
+		if (milliOfSecond < 100) {
+			sb.append('0');
+		}
+		if (milliOfSecond < 10) {
+			sb.append('0');
+		}
+		sb.append(milliOfSecond);
+		sb.append(c.suffix);
+		return sb.toString();
+	}
+
+	private CachedSecond formatSecond(long second) {
+		Date date = new Date(second * 1000);
+		String prefix = newFormat(prefixPattern).format(date);
+		String suffix = suffixPattern.isEmpty() ? "" : newFormat(suffixPattern).format(date);
+		return new CachedSecond(second, prefix, suffix);
+	}
+
+	private SimpleDateFormat newFormat(String pattern) {
+		SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+		sdf.setTimeZone(timeZone);
+		return sdf;
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util.xml;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.xml.sax.InputSource;
+
+/**
+ * A thread safe XPathExpression. JAXP compiled expressions must not be evaluated
+ * concurrently, so each thread compiles and keeps its own copy of the expression
+ * the first time it is evaluated on that thread.
+ *
+ * @author Nick Jones
+ */
+final class CachedXPathExpression implements XPathExpression {
+
+	private final String xPath;
+
+	private final ThreadLocal<XPathExpression> compiled = new ThreadLocal<XPathExpression>();
+
+	/**
+	 * Instantiates a new cached x path expression.
+	 *
+	 * @param xPath the x path
+	 * @param initial an expression already compiled by the calling thread
+	 */
+	CachedXPathExpression(String xPath, XPathExpression initial) {
+		this.xPath = xPath;
+		this.compiled.set(initial);
+	}
+
+	/**
+	 * Gets the x path.
+	 *
+	 * @return the x path
+	 */
+	String getXPath() {
+		return xPath;
+	}
+
+	private XPathExpression get() throws XPathExpressionException {
+		XPathExpression xpe = compiled.get();
+		if (xpe == null) {
+			xpe = XPaths.getXPath().compile(xPath);
+			compiled.set(xpe);
+		}
+		return xpe;
+	}
+
+	@Override
+	public Object evaluate(Object item, QName returnType) throws XPathExpressionException {
+		return get().evaluate(item, returnType);
+	}
+
+	@Override
+	public String evaluate(Object item) throws XPathExpressionException {
+		return get().evaluate(item);
+	}
+
+	@Override
+	public Object evaluate(InputSource source, QName returnType) throws XPathExpressionException {
+		return get().evaluate(source, returnType);
+	}
+
+	@Override
+	public String evaluate(InputSource source) throws XPathExpressionException {
+		return get().evaluate(source);
+	}
+
+	@Override
+	public String toString() {
+		return xPath;
+	}
+
+}
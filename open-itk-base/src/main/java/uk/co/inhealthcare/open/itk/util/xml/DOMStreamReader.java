@@ -0,0 +1,500 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * An XMLStreamReader over a DOM Document or Element, so that StAX code can read
+ * a tree the transport has already parsed without serialising it again. The
+ * JDK's own StAX implementation does not accept a DOMSource.
+ *
+ * Namespace declarations are reported from the xmlns attributes present on
+ * each element, as a parser would report them. The node behind the current
+ * event is available from getCurrentNode.
+ *
+ * @author Nick Jones
+ */
+public class DOMStreamReader implements XMLStreamReader {
+
+	private static final Location NO_LOCATION = new Location() {
+		public int getLineNumber() { return -1; }
+		public int getColumnNumber() { return -1; }
+		public int getCharacterOffset() { return -1; }
+		public String getPublicId() { return null; }
+		public String getSystemId() { return null; }
+	};
+
+	private final Node root;
+	private final Document document;
+
+	private Node current;
+	private int event = XMLStreamConstants.START_DOCUMENT;
+
+	// Attributes and namespace declarations of the current element, split on first use
+	private Node attributesOf;
+	private List<Attr> attributes;
+	private List<Attr> namespaces;
+
+	private char[] text;
+
+	/**
+	 * Instantiates a new DOM stream reader.
+	 *
+	 * @param node the Document or Element to read
+	 */
+	public DOMStreamReader(Node node) {
+		if (node == null || (node.getNodeType() != Node.DOCUMENT_NODE && node.getNodeType() != Node.ELEMENT_NODE)) {
+			throw new IllegalArgumentException("A DOMStreamReader can only read a Document or an Element");
+		}
+		this.root = node;
+		this.document = node.getNodeType() == Node.DOCUMENT_NODE ? (Document) node : node.getOwnerDocument();
+	}
+
+	/**
+	 * Gets the DOM node behind the current event - the element for START_ELEMENT
+	 * and END_ELEMENT, the text node for CHARACTERS and so on.
+	 *
+	 * @return the current node, or null at the start or end of the document
+	 */
+	public Node getCurrentNode() {
+		return current;
+	}
+
+	public int next() throws XMLStreamException {
+		if (event == XMLStreamConstants.END_DOCUMENT) {
+			throw new XMLStreamException("No more events - already at the end of the document");
+		}
+		text = null;
+
+		// The next node to visit, and the element to close if there is none
+		Node n;
+		Node parent;
+		if (event == XMLStreamConstants.START_DOCUMENT) {
+			n = root.getNodeType() == Node.DOCUMENT_NODE ? root.getFirstChild() : root;
+			parent = null;
+		} else if (event == XMLStreamConstants.START_ELEMENT) {
+			n = current.getFirstChild();
+			parent = current;
+		} else {
+			n = nextSibling(current);
+			parent = isTop(current) ? null : current.getParentNode();
+		}
+
+		// Skip anything StAX has no event for, such as a DocumentType
+		while (n != null && eventFor(n) < 0) {
+			n = nextSibling(n);
+		}
+		if (n != null) {
+			current = n;
+			return event = eventFor(n);
+		}
+
+		// No more siblings - close the parent, or end the document at the top
+		current = parent;
+		return event = parent == null ? XMLStreamConstants.END_DOCUMENT : XMLStreamConstants.END_ELEMENT;
+	}
+
+	private boolean isTop(Node n) {
+		return root.getNodeType() == Node.DOCUMENT_NODE ? n.getParentNode() == root : n == root;
+	}
+
+	private Node nextSibling(Node n) {
+		return n == root ? null : n.getNextSibling();
+	}
+
+	private static int eventFor(Node n) {
+		switch (n.getNodeType()) {
+		case Node.ELEMENT_NODE:
+			return XMLStreamConstants.START_ELEMENT;
+		case Node.TEXT_NODE:
+			return XMLStreamConstants.CHARACTERS;
+		case Node.CDATA_SECTION_NODE:
+			return XMLStreamConstants.CDATA;
+		case Node.COMMENT_NODE:
+			return XMLStreamConstants.COMMENT;
+		case Node.PROCESSING_INSTRUCTION_NODE:
+			return XMLStreamConstants.PROCESSING_INSTRUCTION;
+		default:
+			return -1;
+		}
+	}
+
+	public void require(int type, String namespaceURI, String localName) throws XMLStreamException {
+		if (type != event) {
+			throw new XMLStreamException("Expected event " + type + " but was " + event);
+		}
+		if (namespaceURI != null && !namespaceURI.equals(nullToEmpty(getNamespaceURI()))) {
+			throw new XMLStreamException("Expected namespace " + namespaceURI + " but was " + getNamespaceURI());
+		}
+		if (localName != null && !localName.equals(getLocalName())) {
+			throw new XMLStreamException("Expected element " + localName + " but was " + getLocalName());
+		}
+	}
+
+	public String getElementText() throws XMLStreamException {
+		if (event != XMLStreamConstants.START_ELEMENT) {
+			throw new XMLStreamException("getElementText requires a START_ELEMENT");
+		}
+		StringBuilder sb = new StringBuilder();
+		while (next() != XMLStreamConstants.END_ELEMENT) {
+			switch (event) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				sb.append(getText());
+				break;
+			case XMLStreamConstants.COMMENT:
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				break;
+			default:
+				throw new XMLStreamException("Element text cannot contain child elements");
+			}
+		}
+		return sb.toString();
+	}
+
+	public int nextTag() throws XMLStreamException {
+		next();
+		while ((isCharacters() && isWhiteSpace()) || event == XMLStreamConstants.COMMENT
+				|| event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+			next();
+		}
+		if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+			throw new XMLStreamException("Expected a start or end tag but found event " + event);
+		}
+		return event;
+	}
+
+	public boolean hasNext() throws XMLStreamException {
+		return event != XMLStreamConstants.END_DOCUMENT;
+	}
+
+	public void close() throws XMLStreamException {
+		// Nothing to release - the DOM belongs to the caller
+	}
+
+	public Object getProperty(String name) {
+		if (name == null) {
+			throw new IllegalArgumentException("Property name must not be null");
+		}
+		return null;
+	}
+
+	public int getEventType() {
+		return event;
+	}
+
+	public boolean isStartElement() {
+		return event == XMLStreamConstants.START_ELEMENT;
+	}
+
+	public boolean isEndElement() {
+		return event == XMLStreamConstants.END_ELEMENT;
+	}
+
+	public boolean isCharacters() {
+		return event == XMLStreamConstants.CHARACTERS;
+	}
+
+	public boolean isWhiteSpace() {
+		if (!isCharacters() && event != XMLStreamConstants.SPACE) {
+			return false;
+		}
+		String value = current.getNodeValue();
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isWhitespace(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Attributes
+
+	private void splitAttributes() {
+		if (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+			throw new IllegalStateException("Attributes and namespaces are only available on an element");
+		}
+		if (attributesOf == current) {
+			return;
+		}
+		attributesOf = current;
+		NamedNodeMap map = current.getAttributes();
+		if (map.getLength() == 0) {
+			attributes = Collections.emptyList();
+			namespaces = Collections.emptyList();
+			return;
+		}
+		attributes = new ArrayList<Attr>(map.getLength());
+		namespaces = new ArrayList<Attr>(2);
+		for (int i = 0; i < map.getLength(); i++) {
+			Attr attr = (Attr) map.item(i);
+			if (isNamespaceDeclaration(attr)) {
+				namespaces.add(attr);
+			} else {
+				attributes.add(attr);
+			}
+		}
+	}
+
+	private static boolean isNamespaceDeclaration(Attr attr) {
+		if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI())) {
+			return true;
+		}
+		String name = attr.getName();
+		return name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":");
+	}
+
+	private Attr attribute(int index) {
+		if (event != XMLStreamConstants.START_ELEMENT) {
+			throw new IllegalStateException("Attributes are only available on a START_ELEMENT");
+		}
+		splitAttributes();
+		return attributes.get(index);
+	}
+
+	public String getAttributeValue(String namespaceURI, String localName) {
+		if (event != XMLStreamConstants.START_ELEMENT) {
+			throw new IllegalStateException("Attributes are only available on a START_ELEMENT");
+		}
+		splitAttributes();
+		for (Attr attr : attributes) {
+			if (localName.equals(localName(attr))
+					&& (namespaceURI == null || namespaceURI.equals(nullToEmpty(attr.getNamespaceURI())))) {
+				return attr.getValue();
+			}
+		}
+		return null;
+	}
+
+	public int getAttributeCount() {
+		if (event != XMLStreamConstants.START_ELEMENT) {
+			throw new IllegalStateException("Attributes are only available on a START_ELEMENT");
+		}
+		splitAttributes();
+		return attributes.size();
+	}
+
+	public QName getAttributeName(int index) {
+		Attr attr = attribute(index);
+		return new QName(nullToEmpty(attr.getNamespaceURI()), localName(attr), nullToEmpty(attr.getPrefix()));
+	}
+
+	public String getAttributeNamespace(int index) {
+		return attribute(index).getNamespaceURI();
+	}
+
+	public String getAttributeLocalName(int index) {
+		return localName(attribute(index));
+	}
+
+	public String getAttributePrefix(int index) {
+		return nullToEmpty(attribute(index).getPrefix());
+	}
+
+	public String getAttributeType(int index) {
+		attribute(index);
+		return "CDATA";
+	}
+
+	public String getAttributeValue(int index) {
+		return attribute(index).getValue();
+	}
+
+	public boolean isAttributeSpecified(int index) {
+		return attribute(index).getSpecified();
+	}
+
+	// Namespaces
+
+	public int getNamespaceCount() {
+		splitAttributes();
+		return namespaces.size();
+	}
+
+	public String getNamespacePrefix(int index) {
+		splitAttributes();
+		Attr decl = namespaces.get(index);
+		String name = decl.getName();
+		return name.equals(XMLConstants.XMLNS_ATTRIBUTE) ? null : name.substring(XMLConstants.XMLNS_ATTRIBUTE.length() + 1);
+	}
+
+	public String getNamespaceURI(int index) {
+		splitAttributes();
+		return namespaces.get(index).getValue();
+	}
+
+	public String getNamespaceURI(String prefix) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("Prefix must not be null");
+		}
+		Node context = current != null && current.getNodeType() == Node.ELEMENT_NODE ? current : null;
+		if (context == null && current != null) {
+			context = current.getParentNode();
+		}
+		return context == null ? null : context.lookupNamespaceURI(prefix.isEmpty() ? null : prefix);
+	}
+
+	public NamespaceContext getNamespaceContext() {
+		final Node context = current;
+		return new NamespaceContext() {
+			public String getNamespaceURI(String prefix) {
+				if (context == null) {
+					return XMLConstants.NULL_NS_URI;
+				}
+				String uri = context.lookupNamespaceURI(prefix.isEmpty() ? null : prefix);
+				return uri == null ? XMLConstants.NULL_NS_URI : uri;
+			}
+
+			public String getPrefix(String namespaceURI) {
+				return context == null ? null : context.lookupPrefix(namespaceURI);
+			}
+
+			public Iterator<String> getPrefixes(String namespaceURI) {
+				String prefix = getPrefix(namespaceURI);
+				return prefix == null ? Collections.<String>emptyList().iterator()
+						: Collections.singletonList(prefix).iterator();
+			}
+		};
+	}
+
+	// Names
+
+	public QName getName() {
+		if (!hasName()) {
+			throw new IllegalStateException("Names are only available on an element");
+		}
+		return new QName(nullToEmpty(getNamespaceURI()), getLocalName(), getPrefix());
+	}
+
+	public String getLocalName() {
+		if (!hasName()) {
+			throw new IllegalStateException("Names are only available on an element");
+		}
+		return localName(current);
+	}
+
+	public boolean hasName() {
+		return event == XMLStreamConstants.START_ELEMENT || event == XMLStreamConstants.END_ELEMENT;
+	}
+
+	public String getNamespaceURI() {
+		return hasName() ? current.getNamespaceURI() : null;
+	}
+
+	public String getPrefix() {
+		return hasName() ? nullToEmpty(current.getPrefix()) : null;
+	}
+
+	private static String localName(Node n) {
+		// A DOM built without namespace awareness has no local names
+		return n.getLocalName() != null ? n.getLocalName() : n.getNodeName();
+	}
+
+	private static String nullToEmpty(String s) {
+		return s == null ? "" : s;
+	}
+
+	// Text
+
+	public boolean hasText() {
+		return event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+				|| event == XMLStreamConstants.SPACE || event == XMLStreamConstants.COMMENT;
+	}
+
+	public String getText() {
+		if (!hasText()) {
+			throw new IllegalStateException("Text is not available for event " + event);
+		}
+		return current.getNodeValue();
+	}
+
+	public char[] getTextCharacters() {
+		if (text == null) {
+			text = getText().toCharArray();
+		}
+		return text;
+	}
+
+	public int getTextCharacters(int sourceStart, char[] target, int targetStart, int length) throws XMLStreamException {
+		char[] chars = getTextCharacters();
+		int count = Math.min(length, chars.length - sourceStart);
+		if (count <= 0) {
+			return 0;
+		}
+		System.arraycopy(chars, sourceStart, target, targetStart, count);
+		return count;
+	}
+
+	public int getTextStart() {
+		return 0;
+	}
+
+	public int getTextLength() {
+		return getTextCharacters().length;
+	}
+
+	public String getPITarget() {
+		return event == XMLStreamConstants.PROCESSING_INSTRUCTION ? ((ProcessingInstruction) current).getTarget() : null;
+	}
+
+	public String getPIData() {
+		return event == XMLStreamConstants.PROCESSING_INSTRUCTION ? ((ProcessingInstruction) current).getData() : null;
+	}
+
+	// Document
+
+	public Location getLocation() {
+		return NO_LOCATION;
+	}
+
+	public String getEncoding() {
+		return document == null ? null : document.getInputEncoding();
+	}
+
+	public String getVersion() {
+		return document == null ? null : document.getXmlVersion();
+	}
+
+	public boolean isStandalone() {
+		return document != null && document.getXmlStandalone();
+	}
+
+	public boolean standaloneSet() {
+		return false;
+	}
+
+	public String getCharacterEncodingScheme() {
+		return document == null ? null : document.getXmlEncoding();
+	}
+
+}
@@ -14,6 +14,7 @@
 package uk.co.inhealthcare.open.itk.util.xml;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 
@@ -47,6 +48,49 @@ public class DomUtils {
 	
 	/** The Constant PRETTY_PRINT. */
 	public static final boolean PRETTY_PRINT = true;
+
+	// All parser feature configuration is held here. The factory is only used
+	// to create builders; each thread then keeps and reuses its own builder.
+	private static final DocumentBuilderFactory factory = createFactory();
+
+	private static final ThreadLocal<DocumentBuilder> threadBuilder = new ThreadLocal<DocumentBuilder>();
+
+	private static DocumentBuilderFactory createFactory() {
+		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setNamespaceAware(true);
+		return dbf;
+	}
+
+	/**
+	 * Gets the document builder for the current thread, reset ready for use.
+	 * The builder must not be retained or shared with another thread.
+	 *
+	 * @return the document builder
+	 * @throws ParserConfigurationException the parser configuration exception
+	 */
+	public static final DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+		DocumentBuilder builder = threadBuilder.get();
+		if (builder == null) {
+			// DocumentBuilderFactory is not guaranteed to be thread safe
+			synchronized (factory) {
+				builder = factory.newDocumentBuilder();
+			}
+			threadBuilder.set(builder);
+		} else {
+			builder.reset();
+		}
+		return builder;
+	}
+
+	/**
+	 * Creates a new empty document.
+	 *
+	 * @return the document
+	 * @throws ParserConfigurationException the parser configuration exception
+	 */
+	public static final Document newDocument() throws ParserConfigurationException {
+		return getDocumentBuilder().newDocument();
+	}
 	
 	/**
 	 * Serialise to xml.
@@ -97,9 +141,7 @@ public class DomUtils {
 	 */
 	public static final Document createDocumentFromNode(Node node) throws ParserConfigurationException {
 		if (node != null) {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder builder = factory.newDocumentBuilder();
-			Document doc =  builder.newDocument();
+			Document doc = newDocument();
 			Node clone = node.cloneNode(true);
 			doc.adoptNode(clone);
 			doc.appendChild(clone);
@@ -119,13 +161,30 @@ public class DomUtils {
 	 */
 	public static final Document parse(String xmlString) throws SAXException, IOException, ParserConfigurationException {
 		if (xmlString != null) {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			factory.setNamespaceAware(true);
-			DocumentBuilder builder = factory.newDocumentBuilder();			
 			InputSource is = new InputSource(new StringReader(xmlString));
-			return builder.parse(is);
+			return getDocumentBuilder().parse(is);
 		}
 		return null;
 	}
 
+	/**
+	 * Parses XML from a byte stream and returns a Document. The bytes are decoded
+	 * by the parser, so nothing is held as a String.
+	 *
+	 * @param is the stream
+	 * @param encoding the character encoding, or null to detect it from the
+	 * XML declaration (defaulting to UTF-8)
+	 * @return the document
+	 * @throws SAXException the sAX exception
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws ParserConfigurationException the parser configuration exception
+	 */
+	public static final Document parse(InputStream is, String encoding) throws SAXException, IOException, ParserConfigurationException {
+		InputSource source = new InputSource(is);
+		if (encoding != null) {
+			source.setEncoding(encoding);
+		}
+		return getDocumentBuilder().parse(source);
+	}
+
 }
@@ -0,0 +1,144 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util.xml;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * StAX helpers used when writing ITK wrappers directly rather than through XSLT.
+ *
+ * @author Nick Jones
+ */
+public class StaxUtils {
+
+	// StAX factories are thread safe once configured
+	private static final XMLInputFactory inputFactory = createInputFactory();
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		xif.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		xif.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return xif;
+	}
+
+	/**
+	 * Gets the shared output factory.
+	 *
+	 * @return the output factory
+	 */
+	public static XMLOutputFactory getOutputFactory() {
+		return outputFactory;
+	}
+
+	/**
+	 * Copies the content of an XML document into the writer at its current position.
+	 * The XML declaration, DTD and anything else outside the elements is dropped,
+	 * so the content is copied in the same way as an XSLT copy-of its elements.
+	 *
+	 * @param xml the xml
+	 * @param writer the writer
+	 * @throws XMLStreamException if the xml is not well formed
+	 */
+	public static void copyContent(String xml, XMLStreamWriter writer) throws XMLStreamException {
+
+		XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(xml));
+		try {
+			int depth = 0;
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					copyStartElement(reader, writer);
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					writer.writeEndElement();
+					depth--;
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.SPACE:
+					if (depth > 0) {
+						writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					}
+					break;
+				case XMLStreamConstants.CDATA:
+					writer.writeCData(reader.getText());
+					break;
+				case XMLStreamConstants.COMMENT:
+					if (depth > 0) {
+						writer.writeComment(reader.getText());
+					}
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					if (depth > 0) {
+						writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+					}
+					break;
+				default:
+					break;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void copyStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+		String prefix = reader.getPrefix();
+		String ns = reader.getNamespaceURI();
+		if (ns == null) {
+			writer.writeStartElement(reader.getLocalName());
+		} else {
+			writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), ns);
+		}
+		for (int i = 0; i < reader.getNamespaceCount(); i++) {
+			String declPrefix = reader.getNamespacePrefix(i);
+			String declUri = reader.getNamespaceURI(i);
+			if (declPrefix == null || declPrefix.isEmpty()) {
+				writer.writeDefaultNamespace(declUri == null ? "" : declUri);
+			} else {
+				writer.writeNamespace(declPrefix, declUri);
+			}
+		}
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String attNs = reader.getAttributeNamespace(i);
+			if (attNs == null || attNs.isEmpty()) {
+				writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			} else {
+				writer.writeAttribute(reader.getAttributePrefix(i), attNs, reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			}
+		}
+	}
+
+	/**
+	 * Writes an attribute, writing an empty value rather than failing when the value is null.
+	 *
+	 * @param writer the writer
+	 * @param name the attribute name
+	 * @param value the value
+	 * @throws XMLStreamException the XML stream exception
+	 */
+	public static void writeAttribute(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+		writer.writeAttribute(name, value == null ? "" : value);
+	}
+
+}
@@ -13,6 +13,9 @@
 */
 package uk.co.inhealthcare.open.itk.util.xml;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
@@ -25,7 +28,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * The Class XPaths.
+ * The Class XPaths. Also acts as the registry of compiled XPath expressions: every
+ * expression returned by compileXPath is cached by its text and is safe to evaluate
+ * from multiple threads.
  *
  * @author Nick Jones
  */
@@ -34,6 +39,24 @@ public class XPaths {
 	private final static Logger logger = LoggerFactory.getLogger(XPaths.class);
 	
 	private static XPathFactory xpathFactory;
+
+	private static final NamespaceContext NS_CONTEXT = new XMLNamespaceContext();
+
+	// Registry of thread safe compiled expressions keyed by XPath text
+	private static final ConcurrentMap<String, XPathExpression> registry = new ConcurrentHashMap<String, XPathExpression>();
+
+	// XPath objects are not thread safe, so each thread has its own
+	private static final ThreadLocal<XPath> threadXPath = new ThreadLocal<XPath>() {
+		@Override
+		protected XPath initialValue() {
+			XPath xp;
+			synchronized (xpathFactory) {
+				xp = xpathFactory.newXPath();
+			}
+			xp.setNamespaceContext(NS_CONTEXT);
+			return xp;
+		}
+	};
 	
 	static {
 		try {
@@ -107,7 +130,6 @@ public class XPaths {
     private static final String WSA_SOAP_ERROR_DETAIL_CODE = "itk:itkErrorInfo/itk:ErrorCode";
     private static final String WSA_SOAP_ERROR_DETAIL_TEXT = "itk:itkErrorInfo/itk:ErrorText";
     private static final String WSA_SOAP_ERROR_DETAIL_DIAGNOSTIC = "itk:itkErrorInfo/itk:ErrorDiagnosticText";
-    private static final NamespaceContext NS_CONTEXT = new XMLNamespaceContext();	
     
     public static final XPathExpression ROOT_XPATH = compileXPath(ROOT);
     public static final XPathExpression WSA_MSGID_XPATH = compileXPath(WSA_MSG_ID);
@@ -160,22 +182,34 @@ public class XPaths {
     public static final XPathExpression WSA_SOAP_ERROR_DETAIL_DIAGNOSTIC_XPATH = compileXPath(WSA_SOAP_ERROR_DETAIL_DIAGNOSTIC);
     
 	/**
-	 * Compile x path.
+	 * Compile x path. The compiled expression is held in the registry so repeated
+	 * calls for the same XPath do not recompile it, and it may be shared between threads.
 	 *
 	 * @param xPath the x path
-	 * @return the x path expression
+	 * @return the x path expression, or null if the XPath is invalid
 	 */
 	public static XPathExpression compileXPath(String xPath) {
-		XPath xp = xpathFactory.newXPath();
-		xp.setNamespaceContext(NS_CONTEXT);
+		XPathExpression xpe = registry.get(xPath);
+		if (xpe != null) {
+			return xpe;
+		}
 		try {
-			return xp.compile(xPath);
+			xpe = new CachedXPathExpression(xPath, getXPath().compile(xPath));
 		} catch (XPathExpressionException e) {
 			logger.error("Error compiling XPath \"" + xPath + "\"", e);
+			return null;
 		}
-		return null;
+		XPathExpression existing = registry.putIfAbsent(xPath, xpe);
+		return existing != null ? existing : xpe;
+	}
+
+	/**
+	 * Gets the XPath object for the current thread.
+	 *
+	 * @return the x path
+	 */
+	static XPath getXPath() {
+		return threadXPath.get();
 	}
-	
-	
 
 }
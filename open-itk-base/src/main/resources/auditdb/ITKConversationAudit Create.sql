@@ -0,0 +1,46 @@
+-- Table: "ITKConversationAudit"
+
+DROP TABLE "ITKConversationAudit";
+
+CREATE TABLE "ITKConversationAudit"
+(
+  id serial NOT NULL,
+  "timestamp" character(29),
+  "type" character(12),
+  "status" character varying(20),
+  "conversationId" character(36),
+  "trackingId" character(36),
+  "payloadId" character(41),
+  "serviceId" character varying(100),
+  "profileId" character varying(100),
+  "senderAddress" character varying(100),
+  "nhsNumber" character(10),
+  "localPatientId" character varying(50),
+  "localAuditId" character varying(100),
+  "spineRoleProfileId" character varying(50),
+  "spineRoleId" character varying(50),
+  "spineUserId" character varying(50),
+  "responseTrackingId" character(36),
+  "responsePayloadId" character(41),
+  "responseProfileId" character varying(100),
+  "messageId" character(36),
+  "creationTime" character(30),
+  "to" character varying(100),
+  "action" character varying(100),
+  "userId" character varying(100),
+  "responseMessageId" character(36),
+  "soapStatus" character varying(20),
+  "attempts" integer,
+  "itkRequestTime" character(29),
+  "soapRequestTime" character(29),
+  "soapResponseTime" character(29),
+  "itkResponseTime" character(29),
+  "soapElapsed" bigint,
+  "totalElapsed" bigint,
+  CONSTRAINT "ITKConversationAudit_pkey" PRIMARY KEY (id)
+)
+WITH (
+  OIDS=FALSE
+);
+ALTER TABLE "ITKConversationAudit"
+  OWNER TO postgres;
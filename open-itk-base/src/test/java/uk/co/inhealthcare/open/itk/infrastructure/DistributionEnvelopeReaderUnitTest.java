@@ -0,0 +1,185 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.infrastructure;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.dom.DOMSource;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class DistributionEnvelopeReaderUnitTest extends TestCase {
+
+	private static final String DE_START = "<itk:DistributionEnvelope xmlns:itk=\"urn:nhs-itk:ns:201005\" xmlns:hl7=\"urn:hl7-org:v3\">"
+			+ "<itk:header service=\"svc\" trackingid=\"T1\">"
+			+ "<itk:manifest count=\"1\"><itk:manifestitem id=\"uuid_P1\" mimetype=\"MIME\" base64=\"B64\" profileid=\"prof\"/></itk:manifest>"
+			+ "</itk:header>";
+
+	@Test
+	public void testMatchesBuild() throws IOException, SAXException, ParserConfigurationException, XMLStreamException, ITKMessagingException {
+		for (String file : new String[]{"HappyDayDistEnv.xml", "HappyDayDistEnv_WithTypes.xml", "HappyDayDistEnv_ExplicitDefaultTypes.xml"}) {
+			String testMessage = readTestMessage(file);
+			Document deDoc = DomUtils.parse(testMessage);
+			ITKMessageProperties expected = ITKMessagePropertiesImpl.build(deDoc);
+
+			DistributionEnvelopeReader de = DistributionEnvelopeReader.read(testMessage);
+			assertTrue(de.isDistributionEnvelope());
+			assertEquals(1, de.getPayloadCount());
+			assertEquals("text/xml", de.getMimeType());
+			assertFalse(de.isBase64());
+
+			ITKMessageProperties actual = de.getMessageProperties();
+			assertEquals(expected.getItkPayloadId(), actual.getItkPayloadId());
+			assertEquals(expected.getTrackingId(), actual.getTrackingId());
+			assertEquals(expected.getServiceId(), actual.getServiceId());
+			assertEquals(expected.getProfileId(), actual.getProfileId());
+			assertEquals(expected.getFromAddress().getURI(), actual.getFromAddress().getURI());
+			assertEquals(expected.getFromAddress().getType(), actual.getFromAddress().getType());
+			assertEquals(expected.getToAddress().getURI(), actual.getToAddress().getURI());
+			assertEquals(expected.getToAddress().getType(), actual.getToAddress().getType());
+			assertEquals(expected.getAuditIdentities().get(0).getURI(), actual.getAuditIdentities().get(0).getURI());
+			assertEquals(expected.getAuditIdentities().get(0).getType(), actual.getAuditIdentities().get(0).getType());
+			assertEquals(expected.getHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY),
+					actual.getHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY));
+
+			Document payload = DomUtils.parse(de.getPayloadXML());
+			assertEquals("getNHSNumberResponse-v1-0", payload.getDocumentElement().getLocalName());
+			assertEquals("urn:hl7-org:v3", payload.getDocumentElement().getNamespaceURI());
+		}
+	}
+
+	@Test
+	public void testInheritedNamespaces() throws XMLStreamException, SAXException, IOException, ParserConfigurationException {
+		String xml = DE_START + "<itk:payloads count=\"1\"><itk:payload id=\"uuid_P1\">"
+				+ "<hl7:Outer attr=\"a&amp;b\"><hl7:Inner xmlns:x=\"urn:x\" x:y=\"z\">text&lt;</hl7:Inner><!-- c --></hl7:Outer>"
+				+ "</itk:payload></itk:payloads></itk:DistributionEnvelope>";
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(xml);
+		Document payload = DomUtils.parse(de.getPayloadXML());
+		assertEquals("urn:hl7-org:v3", payload.getDocumentElement().getNamespaceURI());
+		assertEquals("a&b", payload.getDocumentElement().getAttribute("attr"));
+		assertEquals("z", payload.getDocumentElement().getFirstChild().getAttributes().getNamedItemNS("urn:x", "y").getNodeValue());
+		assertEquals("text<", payload.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testReadDocument() throws IOException, SAXException, ParserConfigurationException, XMLStreamException, ITKMessagingException {
+		String testMessage = readTestMessage("HappyDayDistEnv.xml");
+		DistributionEnvelopeReader expected = DistributionEnvelopeReader.read(testMessage);
+		DistributionEnvelopeReader actual = DistributionEnvelopeReader.read(new DOMSource(DomUtils.parse(testMessage)));
+
+		assertTrue(actual.isDistributionEnvelope());
+		assertEquals(expected.getPayloadCount(), actual.getPayloadCount());
+		assertEquals(expected.getMimeType(), actual.getMimeType());
+		assertEquals(expected.getMessageProperties().getTrackingId(), actual.getMessageProperties().getTrackingId());
+		assertEquals(expected.getMessageProperties().getServiceId(), actual.getMessageProperties().getServiceId());
+		assertEquals(expected.getMessageProperties().getToAddress().getURI(), actual.getMessageProperties().getToAddress().getURI());
+		assertEquals(expected.getMessageProperties().getAuditIdentities().get(0).getURI(), actual.getMessageProperties().getAuditIdentities().get(0).getURI());
+
+		// The payload stays a DOM rather than being serialised
+		assertNull(actual.getPayloadXML());
+		Document payload = actual.getPayloadDocument();
+		assertEquals("getNHSNumberResponse-v1-0", payload.getDocumentElement().getLocalName());
+		assertEquals("urn:hl7-org:v3", payload.getDocumentElement().getNamespaceURI());
+		assertEquals(DomUtils.parse(expected.getPayloadXML()).getDocumentElement().getTextContent(),
+				payload.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testReadDocumentTextPayload() throws XMLStreamException, SAXException, IOException, ParserConfigurationException {
+		String xml = DE_START + "<itk:payloads count=\"1\"><itk:payload id=\"uuid_P1\">SGVsbG8=</itk:payload></itk:payloads></itk:DistributionEnvelope>";
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(new DOMSource(DomUtils.parse(xml)));
+		assertEquals("SGVsbG8=", de.getPayloadText());
+		assertNull(de.getPayloadDocument());
+		assertEquals(1, de.getPayloadCount());
+	}
+
+	@Test
+	public void testTextPayload() throws XMLStreamException {
+		String xml = DE_START + "<itk:payloads count=\"1\"><itk:payload id=\"uuid_P1\">SGVsbG8=</itk:payload></itk:payloads></itk:DistributionEnvelope>";
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(xml);
+		assertEquals("SGVsbG8=", de.getPayloadText());
+		assertNull(de.getPayloadXML());
+		assertEquals("MIME", de.getMimeType());
+	}
+
+	@Test
+	public void testMultiplePayloads() throws XMLStreamException {
+		String xml = DE_START + "<itk:payloads count=\"2\"><itk:payload id=\"uuid_P1\"><A/></itk:payload><itk:payload id=\"uuid_P2\"><B/></itk:payload></itk:payloads></itk:DistributionEnvelope>";
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(xml);
+		assertEquals(2, de.getPayloadCount());
+		try {
+			de.getMessageProperties();
+			fail("Failed to reject multiple payloads");
+		} catch (ITKMessagingException e) {
+			assertEquals(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testNotDistributionEnvelope() throws XMLStreamException {
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read("<itk:SimpleMessageResponse xmlns:itk=\"urn:nhs-itk:ns:201005\">OK</itk:SimpleMessageResponse>");
+		assertFalse(de.isDistributionEnvelope());
+		assertEquals("SimpleMessageResponse", de.getRootName());
+	}
+
+	@Test
+	public void testDistributionEnvelopeOutsideITKNamespace() throws XMLStreamException {
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read("<DistributionEnvelope xmlns=\"urn:other\"/>");
+		assertFalse(de.isDistributionEnvelope());
+		assertEquals("DistributionEnvelope", de.getRootName());
+		de = DistributionEnvelopeReader.read("<itk:distributionenvelope xmlns:itk=\"urn:nhs-itk:ns:201005\"/>");
+		assertFalse(de.isDistributionEnvelope());
+	}
+
+	@Test
+	public void testBadXML() {
+		try {
+			DistributionEnvelopeReader.read(DE_START + "<itk:payloads>");
+			fail("Failed to reject bad XML");
+		} catch (XMLStreamException e) {
+			assertTrue(true);
+		}
+	}
+
+	private String readTestMessage(String testMessageFile) throws IOException {
+		
+	    InputStream tis = DistributionEnvelopeReaderUnitTest.class.getResourceAsStream(testMessageFile);
+
+		BufferedInputStream bis = new BufferedInputStream(tis);
+		byte[] contents = new byte[1024];
+		int bytesRead = 0;
+		String messageString = "";
+		while ((bytesRead = bis.read(contents)) != -1) {
+			messageString = messageString + new String(contents, 0, bytesRead);
+		}
+		bis.close();
+		
+		return messageString ;
+	}
+
+}
@@ -0,0 +1,146 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.infrastructure;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class DistributionEnvelopeWriterUnitTest extends TestCase {
+
+	private static final String PAYLOAD = "<getNHSNumberResponse-v1-0 xmlns=\"urn:hl7-org:v3\" xmlns:x=\"urn:x\" moodCode=\"EVN\">"
+			+ "<value code=\"SMSP-0000\" x:flag=\"a&amp;b\"/><text>caf\u00e9 &lt;ok&gt;</text></getNHSNumberResponse-v1-0>";
+
+	private ITKMessage buildMessage(String payload, String mimeType) {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId("urn:nhs-itk:services:201005:testService-v1-0");
+		props.setProfileId("urn:nhs-en:profile:testProfile-v1-0");
+		props.setToAddress(new ITKAddressImpl("urn:nhs-uk:addressing:ods:XXXX:toAddress"));
+		props.setFromAddress(new ITKAddressImpl("urn:nhs-uk:addressing:ods:XXXX:fromAddress", "2.16.840.1.113883.2.1.3.2.4.18.44"));
+		props.addAuditIdentity(new ITKIdentityImpl("urn:nhs-uk:identity:ods:XXXX:Fred.Smith"));
+		props.addHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY, "true");
+		msg.setMessageProperties(props);
+		msg.setMimeType(mimeType);
+		msg.setBusinessPayload(payload);
+		return msg;
+	}
+
+	private void assertSameEnvelope(DistributionEnvelopeReader expected, DistributionEnvelopeReader actual) throws ITKMessagingException {
+		assertTrue(actual.isDistributionEnvelope());
+		assertEquals(expected.getPayloadCount(), actual.getPayloadCount());
+		assertEquals(expected.getMimeType(), actual.getMimeType());
+		assertEquals(expected.isBase64(), actual.isBase64());
+
+		ITKMessageProperties e = expected.getMessageProperties();
+		ITKMessageProperties a = actual.getMessageProperties();
+		assertEquals(e.getItkPayloadId(), a.getItkPayloadId());
+		assertEquals(e.getTrackingId(), a.getTrackingId());
+		assertEquals(e.getServiceId(), a.getServiceId());
+		assertEquals(e.getProfileId(), a.getProfileId());
+		assertEquals(e.getFromAddress().getURI(), a.getFromAddress().getURI());
+		assertEquals(e.getFromAddress().getType(), a.getFromAddress().getType());
+		assertEquals(e.getToAddress().getURI(), a.getToAddress().getURI());
+		assertEquals(e.getToAddress().getType(), a.getToAddress().getType());
+		assertEquals(e.getAuditIdentities().get(0).getURI(), a.getAuditIdentities().get(0).getURI());
+		assertEquals(e.getAuditIdentities().get(0).getType(), a.getAuditIdentities().get(0).getType());
+		assertEquals(e.getHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY),
+				a.getHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY));
+	}
+
+	@Test
+	public void testMatchesTemplate() throws ITKMessagingException, XMLStreamException, SAXException, IOException, ParserConfigurationException {
+		ITKMessage msg = buildMessage(PAYLOAD, "text/xml");
+		msg.buildFullMessage(null);
+		DistributionEnvelopeReader expected = DistributionEnvelopeReader.read(msg.getFullMessage());
+
+		msg.buildFullMessage();
+		DistributionEnvelopeReader actual = DistributionEnvelopeReader.read(msg.getFullMessage());
+		assertSameEnvelope(expected, actual);
+
+		// The template indents its output, so ignore whitespace between elements
+		Document expectedPayload = DomUtils.parse(expected.getPayloadXML().replaceAll(">\\s+<", "><"));
+		Document actualPayload = DomUtils.parse(actual.getPayloadXML());
+		assertTrue(expectedPayload.getDocumentElement().isEqualNode(actualPayload.getDocumentElement()));
+	}
+
+	@Test
+	public void testTextPayload() throws ITKMessagingException, XMLStreamException {
+		ITKMessage msg = buildMessage("PID|1||<&>", "text/plain");
+		msg.buildFullMessage();
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(msg.getFullMessage());
+		assertEquals("text/plain", de.getMimeType());
+		assertEquals("PID|1||<&>", de.getPayloadText());
+	}
+
+	@Test
+	public void testBase64Payload() throws ITKMessagingException, XMLStreamException {
+		ITKMessage msg = buildMessage("UElEfDE=", "text/xml");
+		msg.setBase64(true);
+		msg.buildFullMessage();
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(msg.getFullMessage());
+		assertTrue(de.isBase64());
+		assertEquals("UElEfDE=", de.getPayloadText());
+	}
+
+	@Test
+	public void testWriteToStream() throws ITKMessagingException, XMLStreamException, IOException {
+		ITKMessage msg = buildMessage(PAYLOAD, "text/xml");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DistributionEnvelopeWriter.write(msg, out);
+
+		DistributionEnvelopeReader de = DistributionEnvelopeReader.read(out.toString("UTF-8"));
+		assertTrue(de.getPayloadXML().contains("caf\u00e9"));
+		assertEquals(DistributionEnvelopeWriter.toXML(msg), out.toString("UTF-8"));
+	}
+
+	@Test
+	public void testNoMessageProperties() {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		try {
+			msg.buildFullMessage();
+			fail("ITKMessagingException expected");
+		} catch (ITKMessagingException e) {
+			assertEquals(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testPayloadNotWellFormed() {
+		ITKMessage msg = buildMessage("<broken>", "text/xml");
+		try {
+			msg.buildFullMessage();
+			fail("ITKMessagingException expected");
+		} catch (ITKMessagingException e) {
+			assertEquals(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, e.getErrorCode());
+		}
+	}
+
+}
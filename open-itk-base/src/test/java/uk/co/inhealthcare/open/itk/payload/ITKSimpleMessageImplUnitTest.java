@@ -136,4 +136,46 @@ public class ITKSimpleMessageImplUnitTest extends TestCase {
 		
 	}
 
+	@Test
+	public void testBusinessPayloadParsedOnDemand() throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setBusinessPayload("<test xmlns=\"urn:test\"><value>1</value></test>");
+		assertFalse(msg.hasBusinessPayloadDocument());
+		
+		Document doc = msg.getBusinessPayloadDocument();
+		assertTrue(msg.hasBusinessPayloadDocument());
+		assertEquals("test", doc.getDocumentElement().getLocalName());
+		assertEquals("urn:test", doc.getDocumentElement().getNamespaceURI());
+		
+		// The parsed form is kept for later layers
+		assertSame(doc, msg.getBusinessPayloadDocument());
+	}
+
+	@Test
+	public void testBusinessPayloadSerialisedOnDemand() throws Exception {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setBusinessPayloadDocument(DomUtils.parse("<test><value>1</value></test>"));
+		assertTrue(msg.hasBusinessPayloadDocument());
+		
+		String payload = msg.getBusinessPayload();
+		assertTrue(payload.contains("<value>1</value>"));
+		
+		// Setting a new string payload discards the stale document
+		msg.setBusinessPayload("<other/>");
+		assertFalse(msg.hasBusinessPayloadDocument());
+		assertEquals("other", msg.getBusinessPayloadDocument().getDocumentElement().getNodeName());
+	}
+
+	@Test
+	public void testBusinessPayloadNotWellFormed() {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setBusinessPayload("<test>");
+		try {
+			msg.getBusinessPayloadDocument();
+			fail("ITKMessagingException expected");
+		} catch (ITKMessagingException e) {
+			assertEquals(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, e.getErrorCode());
+		}
+	}
+
 }
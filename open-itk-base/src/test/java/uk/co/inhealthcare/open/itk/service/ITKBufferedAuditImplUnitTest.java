@@ -0,0 +1,339 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import uk.co.inhealthcare.open.itk.capabilities.AuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.AuditException;
+import uk.co.inhealthcare.open.itk.capabilities.AuditService;
+import uk.co.inhealthcare.open.itk.capabilities.BatchAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKBufferedAuditImplUnitTest extends TestCase {
+
+	private File spillFile;
+	private BatchAudit_Mock batchAudit;
+	private ITKBufferedAuditImpl audit;
+
+	@Override
+	protected void setUp() throws Exception {
+		spillFile = File.createTempFile("itk-audit", ".spill");
+		spillFile.delete();
+		batchAudit = new BatchAudit_Mock();
+		audit = new ITKBufferedAuditImpl();
+		audit.setAuditService(batchAudit);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		batchAudit.release();
+		audit.close();
+		spillFile.delete();
+		new File(spillFile.getPath() + ".replay").delete();
+	}
+
+	private static ITKAuditDetails itk(String conversationId) {
+		ITKAuditDetails aud = new ITKAuditDetailsImpl();
+		aud.setConversationId(conversationId);
+		aud.setTrackingId("TRACK-" + conversationId);
+		aud.setNhsNumber("9999999999");
+		return aud;
+	}
+
+	private static SOAPAuditDetails soap(String conversationId) {
+		SOAPAuditDetails aud = new SOAPAuditDetailsImpl();
+		aud.setConversationId(conversationId);
+		aud.setMessageId("MSG-" + conversationId);
+		aud.setTo("http://127.0.0.1/syncsoap");
+		return aud;
+	}
+
+	@Test
+	public void testBatched() throws Exception {
+		batchAudit.hold();
+		audit.auditITKRequest(itk("CONV-0"));
+		assertTrue(batchAudit.awaitHeld());
+		// These wait in the buffer while the first batch is being written
+		for (int i = 1; i < 10; i++) {
+			audit.auditITKRequest(itk("CONV-" + i));
+			audit.auditSOAPRequest(soap("CONV-" + i));
+		}
+		assertEquals(18, audit.getQueueDepth());
+		batchAudit.release();
+		audit.close();
+
+		assertEquals(19, batchAudit.records.size());
+		assertEquals(2, batchAudit.batchSizes.size());
+		assertEquals(Integer.valueOf(18), batchAudit.batchSizes.get(1));
+		assertEquals(19, audit.getWrittenCount());
+		AuditDetails first = batchAudit.records.get(0);
+		assertEquals(AuditService.ITKREQUEST, first.getType());
+		assertNotNull(first.getTimestamp());
+		assertEquals("CONV-1", batchAudit.records.get(1).getConversationId());
+		assertEquals(AuditService.SOAPREQUEST, batchAudit.records.get(2).getType());
+	}
+
+	@Test
+	public void testBatchSize() throws Exception {
+		audit.setBatchSize(4);
+		batchAudit.hold();
+		audit.auditFailure(itk("CONV-0"));
+		assertTrue(batchAudit.awaitHeld());
+		for (int i = 1; i < 10; i++) {
+			audit.auditITKResponse(itk("CONV-" + i));
+		}
+		batchAudit.release();
+		audit.close();
+		assertEquals(10, batchAudit.records.size());
+		for (Integer batchSize : batchAudit.batchSizes) {
+			assertTrue(batchSize <= 4);
+		}
+		assertEquals(AuditService.FAILURE, batchAudit.records.get(0).getType());
+		assertEquals(AuditService.ITKRESPONSE, batchAudit.records.get(9).getType());
+	}
+
+	@Test
+	public void testNotBatchService() throws Exception {
+		ITKSimpleAudit_Mock simpleAudit = new ITKSimpleAudit_Mock();
+		audit.setAuditService(simpleAudit);
+		audit.auditITKRequest(itk("CONV-1"));
+		audit.auditSOAPRequest(soap("CONV-1"));
+		audit.auditSOAPResponse(soap("CONV-1"));
+		audit.auditITKResponse(itk("CONV-1"));
+		audit.close();
+		assertEquals(4, simpleAudit.parm_requestAuditType.size());
+		assertEquals(AuditService.ITKREQUEST, simpleAudit.parm_requestAuditType.get(0));
+		assertEquals(AuditService.SOAPREQUEST, simpleAudit.parm_requestAuditType.get(1));
+		assertEquals(AuditService.SOAPRESPONSE, simpleAudit.parm_requestAuditType.get(2));
+		assertEquals(AuditService.ITKRESPONSE, simpleAudit.parm_requestAuditType.get(3));
+	}
+
+	@Test
+	public void testOverflowBlock() throws Exception {
+		audit.setBufferSize(2);
+		batchAudit.hold();
+		audit.auditITKRequest(itk("CONV-0"));
+		assertTrue(batchAudit.awaitHeld());
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 1; i < 6; i++) {
+						audit.auditITKRequest(itk("CONV-" + i));
+					}
+					done.countDown();
+				} catch (AuditException e) {
+					// Leaves the latch alone
+				}
+			}
+		});
+		producer.start();
+		// The producer waits for room rather than losing records
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		assertTrue(audit.getOverflowCount() > 0);
+		batchAudit.release();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		audit.close();
+		assertEquals(6, batchAudit.records.size());
+		for (int i = 0; i < 6; i++) {
+			assertEquals("CONV-" + i, batchAudit.records.get(i).getConversationId());
+		}
+	}
+
+	@Test
+	public void testOverflowSpill() throws Exception {
+		audit.setBufferSize(2);
+		audit.setOverflowPolicy(ITKBufferedAuditImpl.OVERFLOW_SPILL);
+		audit.setSpillFile(spillFile.getPath());
+		audit.setSpillReplayInterval(60000);
+		batchAudit.hold();
+		audit.auditITKRequest(itk("CONV-0"));
+		assertTrue(batchAudit.awaitHeld());
+		// Two go in the buffer and the rest are spilled without waiting
+		for (int i = 1; i < 6; i++) {
+			audit.auditITKRequest(itk("CONV-" + i));
+		}
+		audit.auditSOAPResponse(soap("CONV-6"));
+		assertEquals(4, audit.getOverflowCount());
+		assertTrue(spillFile.length() > 0);
+		batchAudit.release();
+		audit.close();
+
+		assertEquals(7, batchAudit.records.size());
+		assertFalse(spillFile.exists());
+		AuditDetails spilled = batchAudit.find("CONV-3");
+		assertTrue(spilled instanceof ITKAuditDetails);
+		assertEquals("TRACK-CONV-3", ((ITKAuditDetails) spilled).getTrackingId());
+		assertEquals(AuditService.ITKREQUEST, spilled.getType());
+		assertNull(((ITKAuditDetails) spilled).getLocalPatientId());
+		AuditDetails spilledSOAP = batchAudit.find("CONV-6");
+		assertTrue(spilledSOAP instanceof SOAPAuditDetails);
+		assertEquals("MSG-CONV-6", ((SOAPAuditDetails) spilledSOAP).getMessageId());
+		assertEquals(AuditService.SOAPRESPONSE, spilledSOAP.getType());
+	}
+
+	@Test
+	public void testFailedBatchSpilled() throws Exception {
+		audit.setSpillFile(spillFile.getPath());
+		audit.setSpillReplayInterval(60000);
+		batchAudit.failures = 1;
+		audit.auditITKRequest(itk("CONV-1"));
+		audit.auditITKResponse(itk("CONV-1"));
+		audit.close();
+		// Written again from the spill file on close
+		assertEquals(2, batchAudit.records.size());
+		assertEquals(0, audit.getLostCount());
+		assertFalse(spillFile.exists());
+	}
+
+	@Test
+	public void testConversationSpilled() throws Exception {
+		audit.setSpillFile(spillFile.getPath());
+		audit.setSpillReplayInterval(60000);
+		batchAudit.failures = 1;
+		ConversationAuditDetails row = new ConversationAuditDetailsImpl();
+		row.setConversationId("CONV-1");
+		row.setStatus("OK");
+		row.setTrackingId("TRACK-CONV-1");
+		row.setResponseMessageId("MSG-RSP");
+		row.setAttempts(2);
+		row.setTotalElapsed(Long.valueOf(107));
+		audit.auditConversation(row);
+		audit.close();
+
+		AuditDetails spilled = batchAudit.find("CONV-1");
+		assertTrue(spilled instanceof ConversationAuditDetails);
+		ConversationAuditDetails replayed = (ConversationAuditDetails) spilled;
+		assertEquals(AuditService.CONVERSATION, replayed.getType());
+		assertEquals("OK", replayed.getStatus());
+		assertEquals("TRACK-CONV-1", replayed.getTrackingId());
+		assertEquals("MSG-RSP", replayed.getResponseMessageId());
+		assertEquals(2, replayed.getAttempts());
+		assertEquals(Long.valueOf(107), replayed.getTotalElapsed());
+		assertNull(replayed.getSoapElapsed());
+	}
+
+	@Test
+	public void testFailedBatchLost() throws Exception {
+		batchAudit.failures = 1;
+		audit.auditITKRequest(itk("CONV-1"));
+		audit.close();
+		assertEquals(0, batchAudit.records.size());
+		assertEquals(1, audit.getLostCount());
+	}
+
+	@Test
+	public void testAuditAfterClose() throws Exception {
+		audit.auditITKRequest(itk("CONV-1"));
+		audit.close();
+		audit.auditITKResponse(itk("CONV-1"));
+		assertEquals(2, batchAudit.records.size());
+		assertEquals(AuditService.ITKRESPONSE, batchAudit.records.get(1).getType());
+	}
+
+	/**
+	 * Records batches, and can be held mid batch or primed to fail
+	 */
+	private static class BatchAudit_Mock implements BatchAuditService {
+
+		public final List<AuditDetails> records = Collections.synchronizedList(new ArrayList<AuditDetails>());
+		public final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		public volatile int failures = 0;
+		private volatile CountDownLatch held = new CountDownLatch(0);
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		public void hold() {
+			held = new CountDownLatch(1);
+			gate = new CountDownLatch(1);
+		}
+
+		public boolean awaitHeld() throws InterruptedException {
+			return held.await(5, TimeUnit.SECONDS);
+		}
+
+		public void release() {
+			gate.countDown();
+		}
+
+		public AuditDetails find(String conversationId) {
+			synchronized (records) {
+				for (AuditDetails auditDetails : records) {
+					if (conversationId.equals(auditDetails.getConversationId())) {
+						return auditDetails;
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void auditBatch(List<AuditDetails> auditDetails) throws AuditException {
+			held.countDown();
+			try {
+				gate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new AuditException(e);
+			}
+			if (failures > 0) {
+				failures--;
+				throw new AuditException("PRIMED TO FAIL");
+			}
+			batchSizes.add(auditDetails.size());
+			records.addAll(auditDetails);
+		}
+
+		@Override
+		public void auditITKRequest(ITKAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditITKResponse(ITKAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditSOAPRequest(SOAPAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditSOAPResponse(SOAPAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditFailure(ITKAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+	}
+
+}
@@ -0,0 +1,323 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import uk.co.inhealthcare.open.itk.capabilities.AuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.AuditException;
+import uk.co.inhealthcare.open.itk.capabilities.AuditService;
+import uk.co.inhealthcare.open.itk.capabilities.BatchAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.ConversationAuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+import uk.co.inhealthcare.open.itk.util.TimestampFormat;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKConversationAuditImplUnitTest extends TestCase {
+
+	private final AtomicLong now = new AtomicLong(1000000);
+	private ConversationAudit_Mock conversationAudit;
+	private ITKConversationAuditImpl audit;
+
+	@Override
+	protected void setUp() throws Exception {
+		conversationAudit = new ConversationAudit_Mock();
+		audit = new ITKConversationAuditImpl();
+		audit.setAuditService(conversationAudit);
+		audit.setConsolidate(true);
+		audit.setClock(new ITKClock() {
+			@Override
+			public long currentTimeMillis() {
+				return now.get();
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		audit.close();
+	}
+
+	private static ITKAuditDetails itk(String conversationId, String trackingId) {
+		ITKAuditDetails aud = new ITKAuditDetailsImpl();
+		aud.setConversationId(conversationId);
+		aud.setTrackingId(trackingId);
+		aud.setProfileId("urn:nhs-en:profile:" + trackingId);
+		aud.setNhsNumber("9999999999");
+		return aud;
+	}
+
+	private static SOAPAuditDetails soap(String conversationId, String messageId, String status) {
+		SOAPAuditDetails aud = new SOAPAuditDetailsImpl();
+		aud.setConversationId(conversationId);
+		aud.setMessageId(messageId);
+		aud.setTo("http://127.0.0.1/syncsoap");
+		aud.setStatus(status);
+		return aud;
+	}
+
+	private void converse(String conversationId) throws AuditException {
+		audit.auditITKRequest(itk(conversationId, "REQ"));
+		now.addAndGet(5);
+		audit.auditSOAPRequest(soap(conversationId, "MSG-REQ", null));
+		now.addAndGet(100);
+		audit.auditSOAPResponse(soap(conversationId, "MSG-RSP", "OK"));
+		now.addAndGet(2);
+		audit.auditITKResponse(itk(conversationId, "RSP"));
+	}
+
+	@Test
+	public void testConsolidated() throws AuditException {
+		converse("CONV-1");
+		assertEquals(1, conversationAudit.conversations.size());
+		assertTrue(conversationAudit.records.isEmpty());
+		assertEquals(0, audit.getOpenConversationCount());
+
+		ConversationAuditDetails row = conversationAudit.conversations.get(0);
+		assertEquals("CONV-1", row.getConversationId());
+		assertEquals("OK", row.getStatus());
+		assertEquals("REQ", row.getTrackingId());
+		assertEquals("9999999999", row.getNhsNumber());
+		assertEquals("RSP", row.getResponseTrackingId());
+		assertEquals("urn:nhs-en:profile:RSP", row.getResponseProfileId());
+		assertEquals("MSG-REQ", row.getMessageId());
+		assertEquals("MSG-RSP", row.getResponseMessageId());
+		assertEquals("OK", row.getSoapStatus());
+		assertEquals(1, row.getAttempts());
+		assertEquals(Long.valueOf(100), row.getSoapElapsed());
+		assertEquals(Long.valueOf(107), row.getTotalElapsed());
+		assertNotNull(row.getItkRequestTime());
+		assertNotNull(row.getSoapRequestTime());
+		assertNotNull(row.getSoapResponseTime());
+		assertNotNull(row.getItkResponseTime());
+	}
+
+	@Test
+	public void testStages() throws AuditException {
+		audit.setConsolidate(false);
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		audit.auditSOAPRequest(soap("CONV-1", "MSG-REQ", null));
+		assertTrue(conversationAudit.batches.isEmpty());
+		audit.auditSOAPResponse(soap("CONV-1", "MSG-RSP", "OK"));
+		audit.auditITKResponse(itk("CONV-1", "RSP"));
+
+		// The four records of the conversation are written together
+		assertEquals(1, conversationAudit.batches.size());
+		assertEquals(4, conversationAudit.records.size());
+		assertEquals(AuditService.ITKREQUEST, conversationAudit.records.get(0).getType());
+		assertEquals(AuditService.SOAPREQUEST, conversationAudit.records.get(1).getType());
+		assertEquals(AuditService.SOAPRESPONSE, conversationAudit.records.get(2).getType());
+		assertEquals(AuditService.ITKRESPONSE, conversationAudit.records.get(3).getType());
+		assertNotNull(conversationAudit.records.get(0).getTimestamp());
+		assertTrue(conversationAudit.conversations.isEmpty());
+	}
+
+	@Test
+	public void testStagesByDefault() throws AuditException {
+		ITKConversationAuditImpl stages = new ITKConversationAuditImpl();
+		stages.setAuditService(conversationAudit);
+		try {
+			stages.auditITKRequest(itk("CONV-1", "REQ"));
+			stages.auditITKResponse(itk("CONV-1", "RSP"));
+		} finally {
+			stages.close();
+		}
+		assertEquals(2, conversationAudit.records.size());
+		assertTrue(conversationAudit.conversations.isEmpty());
+	}
+
+	@Test
+	public void testStagesBuffered() throws AuditException {
+		ITKBufferedAuditImpl buffered = new ITKBufferedAuditImpl();
+		buffered.setAuditService(conversationAudit);
+		buffered.setClock(new ITKClock() {
+			@Override
+			public long currentTimeMillis() {
+				// Well after the conversation, as when the buffer is flushed
+				return now.get() + 3600000;
+			}
+		});
+		audit.setAuditService(buffered);
+		audit.setConsolidate(false);
+		long start = now.get();
+		converse("CONV-1");
+		buffered.close();
+
+		// Each stage keeps the time it was audited, not the time it was written
+		assertEquals(4, conversationAudit.records.size());
+		assertEquals(TimestampFormat.AUDIT.format(start), conversationAudit.records.get(0).getTimestamp());
+		assertEquals(TimestampFormat.AUDIT.format(start + 5), conversationAudit.records.get(1).getTimestamp());
+		assertEquals(TimestampFormat.AUDIT.format(start + 105), conversationAudit.records.get(2).getTimestamp());
+		assertEquals(TimestampFormat.AUDIT.format(start + 107), conversationAudit.records.get(3).getTimestamp());
+		assertEquals(AuditService.ITKRESPONSE, conversationAudit.records.get(3).getType());
+	}
+
+	@Test
+	public void testNotConversationService() throws AuditException {
+		ITKSimpleAudit_Mock simpleAudit = new ITKSimpleAudit_Mock();
+		audit.setAuditService(simpleAudit);
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		assertTrue(simpleAudit.parm_requestAuditType.isEmpty());
+		audit.auditSOAPRequest(soap("CONV-1", "MSG-REQ", null));
+		audit.auditSOAPResponse(soap("CONV-1", "MSG-RSP", "OK"));
+		audit.auditITKResponse(itk("CONV-1", "RSP"));
+		assertEquals(4, simpleAudit.parm_requestAuditType.size());
+		assertEquals(AuditService.ITKREQUEST, simpleAudit.parm_requestAuditType.get(0));
+		assertEquals(AuditService.ITKRESPONSE, simpleAudit.parm_requestAuditType.get(3));
+	}
+
+	@Test
+	public void testRetried() throws AuditException {
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		audit.auditSOAPRequest(soap("CONV-1", "MSG-1", null));
+		now.addAndGet(30);
+		audit.auditSOAPResponse(soap("CONV-1", null, "FAIL:BUSY"));
+		now.addAndGet(1000);
+		audit.auditSOAPRequest(soap("CONV-1", "MSG-2", null));
+		now.addAndGet(50);
+		audit.auditSOAPResponse(soap("CONV-1", "MSG-RSP", "OK"));
+		audit.auditITKResponse(itk("CONV-1", "RSP"));
+
+		ConversationAuditDetails row = conversationAudit.conversations.get(0);
+		assertEquals("OK", row.getStatus());
+		assertEquals(2, row.getAttempts());
+		assertEquals("MSG-2", row.getMessageId());
+		assertEquals(Long.valueOf(50), row.getSoapElapsed());
+		assertEquals(Long.valueOf(1080), row.getTotalElapsed());
+	}
+
+	@Test
+	public void testAcknowledged() throws AuditException {
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		audit.auditSOAPRequest(soap("CONV-1", "MSG-REQ", null));
+		audit.auditSOAPResponse(soap("CONV-1", null, "202"));
+
+		// There will be no ITK response to wait for
+		ConversationAuditDetails row = conversationAudit.conversations.get(0);
+		assertEquals("202", row.getStatus());
+		assertNull(row.getItkResponseTime());
+		assertNull(row.getResponseTrackingId());
+	}
+
+	@Test
+	public void testFailure() throws AuditException {
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		ITKAuditDetails failure = itk("CONV-1", "REQ");
+		failure.setStatus("FAIL:TRANSFORM");
+		audit.auditFailure(failure);
+		assertEquals("FAIL:TRANSFORM", conversationAudit.conversations.get(0).getStatus());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		audit.setConversationTimeout(100);
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		audit.auditSOAPRequest(soap("CONV-1", "MSG-REQ", null));
+		audit.auditSOAPResponse(soap("CONV-1", null, "FAIL:TIMEOUT"));
+		assertEquals(1, audit.getOpenConversationCount());
+		now.addAndGet(100);
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (conversationAudit.conversations.isEmpty() && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, conversationAudit.conversations.size());
+		assertEquals("FAIL:TIMEOUT", conversationAudit.conversations.get(0).getStatus());
+		assertEquals(1, audit.getExpiredCount());
+		assertEquals(0, audit.getOpenConversationCount());
+	}
+
+	@Test
+	public void testClose() throws AuditException {
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		audit.close();
+		assertEquals("INCOMPLETE", conversationAudit.conversations.get(0).getStatus());
+		assertEquals(0, audit.getExpiredCount());
+		// Written as it arrives once closed
+		audit.auditITKResponse(itk("CONV-1", "RSP"));
+		assertEquals(1, conversationAudit.records.size());
+	}
+
+	@Test
+	public void testMaxConversations() throws AuditException {
+		audit.setMaxConversations(1);
+		audit.auditITKRequest(itk("CONV-1", "REQ"));
+		audit.auditITKRequest(itk("CONV-2", "REQ"));
+		assertEquals(1, audit.getOverflowCount());
+		assertEquals(1, conversationAudit.records.size());
+		assertEquals("CONV-2", conversationAudit.records.get(0).getConversationId());
+		audit.auditITKResponse(itk("CONV-1", "RSP"));
+		assertEquals(1, conversationAudit.conversations.size());
+	}
+
+	/**
+	 * Records conversations and batches
+	 */
+	private static class ConversationAudit_Mock implements ConversationAuditService, BatchAuditService {
+
+		public final List<ConversationAuditDetails> conversations = Collections.synchronizedList(new ArrayList<ConversationAuditDetails>());
+		public final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+		public final List<AuditDetails> records = Collections.synchronizedList(new ArrayList<AuditDetails>());
+
+		@Override
+		public void auditConversation(ConversationAuditDetails auditDetails) throws AuditException {
+			conversations.add(auditDetails);
+		}
+
+		@Override
+		public void auditBatch(List<AuditDetails> auditDetails) throws AuditException {
+			batches.add(auditDetails.size());
+			records.addAll(auditDetails);
+		}
+
+		@Override
+		public void auditITKRequest(ITKAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditITKResponse(ITKAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditSOAPRequest(SOAPAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditSOAPResponse(SOAPAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+		@Override
+		public void auditFailure(ITKAuditDetails auditDetails) throws AuditException {
+			throw new AuditException("Only batches are expected");
+		}
+
+	}
+
+}
@@ -13,6 +13,8 @@
 */
 package uk.co.inhealthcare.open.itk.service;
 
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -35,6 +37,7 @@ public class ITKSimpleDOSImplUnitTest extends TestCase {
 
 	private final static String ADDRESS_URI = "urn:nhs-uk:addressing:ods:TKW";
 	private final static String EXPLICIT_ADDRESS_URI = "urn:nhs-uk:addressing:ods:EXPLICIT";
+	private final static String HEDGED_ADDRESS_URI = "urn:nhs-uk:addressing:ods:HEDGED";
 	private final static String UNK_ADDRESS_URI = "urn:nhs-uk:addressing:ods:unknown";
 
 	@Test
@@ -148,6 +151,25 @@ public class ITKSimpleDOSImplUnitTest extends TestCase {
 		assertTrue(route.getTransportTimeout()==1000000);
 		assertTrue(route.getReplyToAddress().equals("ExplicitReplyTo.com"));
 		assertTrue(route.getExceptionToAddress().equals("ExplicitExceptionTo.com"));
+		assertTrue(route.isAcceptCompressed());
+		assertFalse(route.isCompressRequest());
+		assertEquals("EXPLICIT.ALL", route.getChannelId());
+	}
+	
+	@Test
+	public void testResolveDestinations() throws ITKMessagingException {
+		ITKSimpleDOSImpl dos = new ITKSimpleDOSImpl();
+		
+		List<ITKTransportRoute> routes = dos.resolveDestinations(SERVICE_ID, new ITKAddressImpl(HEDGED_ADDRESS_URI));
+		assertEquals(2, routes.size());
+		// In order of preference
+		assertEquals("https://localhost:4848/syncsoap", routes.get(0).getPhysicalAddress());
+		assertEquals("https://localhost:4848/Explicit", routes.get(1).getPhysicalAddress());
+		assertEquals("https://localhost:4848/syncsoap",
+				dos.resolveDestination(SERVICE_ID, new ITKAddressImpl(HEDGED_ADDRESS_URI)).getPhysicalAddress());
+
+		// A single channel gives a single route
+		assertEquals(1, dos.resolveDestinations(SERVICE_ID, new ITKAddressImpl(ADDRESS_URI)).size());
 	}
 	
 	@Test
@@ -214,6 +236,8 @@ public class ITKSimpleDOSImplUnitTest extends TestCase {
 		assertTrue(service.supportsSync());
 		assertFalse(service.supportsAsync());
 		assertFalse(service.isBase64());
+		assertFalse(service.isStreamingEnvelope());
+		assertTrue(service.isIdempotent());
 		
 	}
 	
@@ -233,6 +257,8 @@ public class ITKSimpleDOSImplUnitTest extends TestCase {
 		assertFalse(service.supportsSync());
 		assertTrue(service.supportsAsync());
 		assertTrue(service.isBase64());
+		assertTrue(service.isStreamingEnvelope());
+		assertFalse(service.isIdempotent());
 		
 	}
 	
@@ -1,5 +1,16 @@
 package uk.co.inhealthcare.open.itk.source;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -8,6 +19,7 @@ import uk.co.inhealthcare.open.itk.capabilities.AuditService;
 import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKAddress;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKAddressImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKIdentity;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKIdentityImpl;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
@@ -18,6 +30,11 @@ import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
 import uk.co.inhealthcare.open.itk.service.ITKSimpleAudit_Mock;
 import uk.co.inhealthcare.open.itk.source.ITKMessageSender;
 import uk.co.inhealthcare.open.itk.source.ITKMessageSenderImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.WS.ITKAsyncSenderWSImpl_Mock;
 import uk.co.inhealthcare.open.itk.transport.WS.ITKSenderWSImpl_Mock;
 
 public class ITKMessageSenderImplUnitTest extends TestCase {
@@ -26,6 +43,9 @@ public class ITKMessageSenderImplUnitTest extends TestCase {
 	private final static String SERVICE_ID_NO_SYNC = "urn:nhs-itk:services:201005:testServiceD-v1-0";
 	private final static String PROFILE_ID = "testProfile";
 	private final static String SERVICE_PROVIDER = "urn:nhs-uk:addressing:ods:TKW";
+	private final static String HEDGED_SERVICE_PROVIDER = "urn:nhs-uk:addressing:ods:HEDGED";
+	private final static String PRIMARY = "https://localhost:4848/syncsoap";
+	private final static String SECONDARY = "https://localhost:4848/Explicit";
 	private final static String FROM_ADDRESS = "fromAddress";
 	
 	private final static String RESPONSE_SERVICE_ID = "urn:nhs-itk:services:201005:getNHSNumber-v1-0Response";
@@ -43,21 +63,272 @@ public class ITKMessageSenderImplUnitTest extends TestCase {
 	private final static String LOCAL_PATIENT_ID = "LocalPatientId.0001";
 	private final static String NHS_NUMBER = "1234512345";
 
-	public void testAsyncNotImplemented() throws ITKMessagingException {
+	public void testSendSyncAsync() throws Exception {
 		
-		//Configure Sender
 		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
 		sender.setItkSenderWS(new ITKSenderWSImpl_Mock());
+		ITKSimpleAudit_Mock auditService = new ITKSimpleAudit_Mock();
+		sender.setAuditService(auditService);
+
+		final List<ITKMessage> callbackResponses = Collections.synchronizedList(new ArrayList<ITKMessage>());
+		final CountDownLatch called = new CountDownLatch(1);
+		Future<ITKMessage> future = sender.sendSyncAsync(getGoodRequest(), new ITKSendCallback() {
+			public void completed(ITKMessage response) {
+				callbackResponses.add(response);
+				called.countDown();
+			}
+			public void failed(ITKMessagingException exception) {
+			}
+		});
+		ITKMessage response = future.get(5, TimeUnit.SECONDS);
+		assertEquals(RESPONSE_PROFILE_ID, response.getMessageProperties().getProfileId());
+		// The future is completed just before the callback is called
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+		assertEquals(1, callbackResponses.size());
+		// Request and response are both audited, as for sendSync
+		assertEquals(AuditService.ITKREQUEST, auditService.parm_requestAuditType.get(0));
+		assertEquals(AuditService.ITKRESPONSE, auditService.parm_requestAuditType.get(1));
+		sender.close();
+	}
+
+	public void testSendSyncAsyncInvalid() {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock());
+
+		ITKMessage request = getGoodRequest();
+		request.getMessageProperties().setServiceId(null);
+		try {
+			sender.sendSyncAsync(request, null);
+			fail("Should throw an ITKMessagingException");
+		} catch (ITKMessagingException e) {
+			assertTrue(e.getMessage().contains("Service Id is null"));
+		}
+	}
+
+	public void testSendSyncAsyncBadResponseProfile() throws Exception {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKSenderWSImpl_Mock itkSender = new ITKSenderWSImpl_Mock();
+		itkSender.primeResponse("BadProfileDE.xml");
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+
+		Future<ITKMessage> future = sender.sendSyncAsync(getGoodRequest(), null);
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Should throw an ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause().getMessage().contains("ProfileId not supported"));
+		}
+		sender.close();
+	}
+
+	public void testSendSyncAsyncUnexpectedError() throws Exception {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock() {
+			@Override
+			public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline) {
+				throw new IllegalStateException("Unexpected");
+			}
+		});
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+
+		final List<ITKMessagingException> failures = Collections.synchronizedList(new ArrayList<ITKMessagingException>());
+		final CountDownLatch called = new CountDownLatch(1);
+		Future<ITKMessage> future = sender.sendSyncAsync(getGoodRequest(), new ITKSendCallback() {
+			public void completed(ITKMessage response) {
+			}
+			public void failed(ITKMessagingException exception) {
+				failures.add(exception);
+				called.countDown();
+			}
+		});
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Should throw an ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ITKMessagingException);
+		}
+		// The callback hears about it too
+		assertTrue(called.await(5, TimeUnit.SECONDS));
+		assertEquals(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, failures.get(0).getErrorCode());
+		assertTrue(failures.get(0).getCause() instanceof IllegalStateException);
+		sender.close();
+	}
+
+	public void testSendAsync() throws Exception {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock());
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		final CountDownLatch completed = new CountDownLatch(1);
+		sender.setAsyncCallback(new ITKSendCallback() {
+			public void completed(ITKMessage response) {
+				completed.countDown();
+			}
+			public void failed(ITKMessagingException exception) {
+			}
+		});
+
+		sender.sendAsync(getGoodRequest());
+		assertTrue(completed.await(5, TimeUnit.SECONDS));
+		sender.close();
+	}
+
+	public void testAsyncQueueFull() throws Exception {
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(blockingSender(release, 2));
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setAsyncThreads(1);
+		sender.setAsyncQueueCapacity(1);
+
+		Future<ITKMessage> first = sender.sendSyncAsync(getGoodRequest(), null);
+		Future<ITKMessage> second = sender.sendSyncAsync(getGoodRequest(), null);
+		try {
+			sender.sendSyncAsync(getGoodRequest(), null);
+			fail("Should throw an ITKMessagingException");
+		} catch (ITKMessagingException e) {
+			assertTrue(e.getMessage().contains("already waiting"));
+			assertEquals(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, e.getErrorCode());
+		}
+		assertEquals(1, sender.getAsyncRejectedCount());
+		assertEquals(1, sender.getAsyncQueueDepth());
+
+		release.countDown();
+		assertNotNull(first.get(5, TimeUnit.SECONDS));
+		assertNotNull(second.get(5, TimeUnit.SECONDS));
+		sender.close();
+	}
+
+	public void testAsyncQueueFullCallerRuns() throws Exception {
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(blockingSender(release, 2));
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setAsyncThreads(1);
+		sender.setAsyncQueueCapacity(1);
+		sender.setAsyncRejectionPolicy(ITKMessageSenderImpl.REJECT_CALLER_RUNS);
+
+		Future<ITKMessage> first = sender.sendSyncAsync(getGoodRequest(), null);
+		Future<ITKMessage> second = sender.sendSyncAsync(getGoodRequest(), null);
+		// Sent on this thread, so already complete
+		Future<ITKMessage> third = sender.sendSyncAsync(getGoodRequest(), null);
+		assertTrue(third.isDone());
+		assertNotNull(third.get());
+		assertEquals(1, sender.getAsyncRejectedCount());
+
+		release.countDown();
+		assertNotNull(first.get(5, TimeUnit.SECONDS));
+		assertNotNull(second.get(5, TimeUnit.SECONDS));
+		sender.close();
+	}
+
+	/**
+	 * A sender whose first few sends wait to be released
+	 */
+	private ITKSenderWSImpl_Mock blockingSender(final CountDownLatch release, final int blocked) {
+		final AtomicInteger sends = new AtomicInteger();
+		return new ITKSenderWSImpl_Mock() {
+			@Override
+			public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline)
+					throws ITKMessagingException {
+				if (sends.incrementAndGet() <= blocked) {
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return super.sendSync(destination, request, deadline);
+			}
+		};
+	}
+
+	public void testSendSyncBatch() throws ITKMessagingException {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock());
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+
+		List<ITKMessage> requests = new ArrayList<ITKMessage>();
+		for (int i = 0; i < 6; i++) {
+			requests.add(getGoodRequest());
+		}
+		requests.get(2).getMessageProperties().setServiceId(null);
+
+		List<ITKBatchResult> results = sender.sendSyncBatch(requests);
+		assertEquals(6, results.size());
+		for (int i = 0; i < 6; i++) {
+			ITKBatchResult result = results.get(i);
+			// Results are in the order of the requests
+			assertSame(requests.get(i), result.getRequest());
+			if (i == 2) {
+				assertFalse(result.isSuccess());
+				assertTrue(result.getException().getMessage().contains("Service Id is null"));
+			} else {
+				assertTrue(result.isSuccess());
+				assertEquals(RESPONSE_PROFILE_ID, result.getResponse().getMessageProperties().getProfileId());
+			}
+		}
+		sender.close();
+	}
+
+	public void testSendSyncBatchConcurrencyPerDestination() throws ITKMessagingException {
+		
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger peak = new AtomicInteger();
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock() {
+			@Override
+			public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline)
+					throws ITKMessagingException {
+				int now = active.incrementAndGet();
+				synchronized (peak) {
+					peak.set(Math.max(peak.get(), now));
+				}
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				active.decrementAndGet();
+				return super.sendSync(destination, request, deadline);
+			}
+		});
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setBatchConcurrencyPerDestination(2);
+
+		List<ITKMessage> requests = new ArrayList<ITKMessage>();
+		for (int i = 0; i < 8; i++) {
+			requests.add(getGoodRequest());
+		}
+		long start = System.currentTimeMillis();
+		for (ITKBatchResult result : sender.sendSyncBatch(requests)) {
+			assertTrue(result.isSuccess());
+		}
+		assertEquals(2, peak.get());
+		assertTrue(System.currentTimeMillis() - start >= 400);
+		sender.close();
+	}
 
+	public void testSendSyncBatchNull() {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock());
 		try {
-			sender.sendAsync(getGoodRequest());
+			sender.sendSyncBatch(null);
 			fail("Should throw an ITKMessagingException");
 		} catch (ITKMessagingException e) {
-			assertTrue(e.getMessage().contains("Async Not Yet Implemented"));
+			assertTrue(e.getMessage().contains("Requests are null"));
 		}
 	}
 
-	public void testSendNotImplemented() throws ITKMessagingException {
+	public void testSendNoJournal() throws ITKMessagingException {
 		
 		//Configure Sender
 		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
@@ -67,9 +338,156 @@ public class ITKMessageSenderImplUnitTest extends TestCase {
 			sender.send(getGoodRequest());
 			fail("Should throw an ITKMessagingException");
 		} catch (ITKMessagingException e) {
-			assertTrue(e.getMessage().contains("Send Not Yet Implemented"));
+			assertTrue(e.getMessage().contains("No outbound journal"));
 		}
 	}
+
+	public void testSendJournalled() throws Exception {
+
+		File directory = Files.createTempDirectory("itk-journal").toFile();
+		ITKOutboundJournal journal = newJournal(directory);
+		ITKSenderWSImpl_Mock itkSender = failingSender(0);
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(itkSender);
+		ITKSimpleAudit_Mock auditService = new ITKSimpleAudit_Mock();
+		sender.setAuditService(auditService);
+		sender.setOutboundJournal(journal);
+
+		ITKMessage request = getGoodRequest();
+		sender.send(request);
+		// The request is audited before send returns
+		assertEquals(AuditService.ITKREQUEST, auditService.parm_requestAuditType.get(0));
+
+		awaitDelivery(sender, journal, 1);
+		assertEquals(request.getConversationId(), itkSender.parm_request.getConversationId());
+		assertEquals(PRIMARY, itkSender.parm_destination.getPhysicalAddress());
+		sender.close();
+		journal.close();
+		deleteDirectory(directory);
+	}
+
+	public void testSendRetried() throws Exception {
+
+		File directory = Files.createTempDirectory("itk-journal").toFile();
+		ITKOutboundJournal journal = newJournal(directory);
+		ITKSenderWSImpl_Mock itkSender = failingSender(2);
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setOutboundJournal(journal);
+		sender.setDispatchRetryDelay(10);
+
+		sender.send(getGoodRequest());
+		awaitDelivery(sender, journal, 1);
+		sender.close();
+		journal.close();
+		deleteDirectory(directory);
+	}
+
+	public void testSendGivesUp() throws Exception {
+
+		File directory = Files.createTempDirectory("itk-journal").toFile();
+		ITKOutboundJournal journal = newJournal(directory);
+		final AtomicInteger sends = new AtomicInteger();
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(new ITKSenderWSImpl_Mock() {
+			@Override
+			public void send(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+				sends.incrementAndGet();
+				throw new ITKUnavailableException("Busy");
+			}
+		});
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setOutboundJournal(journal);
+		sender.setDispatchRetryDelay(10);
+		sender.setDispatchMaxAttempts(3);
+
+		sender.send(getGoodRequest());
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (sender.getDispatchFailedCount() == 0 && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, sender.getDispatchFailedCount());
+		assertEquals(0, sender.getDispatchedCount());
+		assertEquals(3, sends.get());
+		assertEquals(0, journal.getPendingCount());
+		sender.close();
+		journal.close();
+		deleteDirectory(directory);
+	}
+
+	public void testSendRecovered() throws Exception {
+
+		File directory = Files.createTempDirectory("itk-journal").toFile();
+		ITKOutboundJournal journal = newJournal(directory);
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(failingSender(Integer.MAX_VALUE));
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setOutboundJournal(journal);
+		sender.setDispatchRetryDelay(60000);
+
+		ITKMessage request = getGoodRequest();
+		sender.send(request);
+		// Stopped before the destination accepts the message
+		sender.close();
+		journal.close();
+
+		journal = newJournal(directory);
+		ITKSenderWSImpl_Mock itkSender = failingSender(0);
+		sender = new ITKMessageSenderImpl();
+		sender.setItkSenderWS(itkSender);
+		sender.setOutboundJournal(journal);
+		sender.start();
+
+		awaitDelivery(sender, journal, 1);
+		// The message is rebuilt from the journal
+		assertEquals(request.getConversationId(), itkSender.parm_request.getConversationId());
+		assertEquals(SERVICE_ID, itkSender.parm_request.getMessageProperties().getServiceId());
+		assertEquals(request.getFullMessage(), itkSender.parm_request.getFullMessage());
+		sender.close();
+		journal.close();
+		deleteDirectory(directory);
+	}
+
+	/**
+	 * A sender whose send fails with a busy tone the given number of times
+	 */
+	private ITKSenderWSImpl_Mock failingSender(final int failures) {
+		final AtomicInteger sends = new AtomicInteger();
+		return new ITKSenderWSImpl_Mock() {
+			@Override
+			public void send(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+				if (sends.incrementAndGet() <= failures) {
+					throw new ITKUnavailableException("Busy");
+				}
+				super.send(destination, request);
+			}
+		};
+	}
+
+	private ITKOutboundJournal newJournal(File directory) {
+		ITKOutboundJournal journal = new ITKOutboundJournal();
+		journal.setDirectory(directory.getAbsolutePath());
+		journal.setSegmentSize(64 * 1024);
+		return journal;
+	}
+
+	private void awaitDelivery(ITKMessageSenderImpl sender, ITKOutboundJournal journal, int messages)
+			throws InterruptedException {
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (sender.getDispatchedCount() < messages && System.currentTimeMillis() < giveUp) {
+			Thread.sleep(10);
+		}
+		assertEquals(messages, sender.getDispatchedCount());
+		assertEquals(0, journal.getPendingCount());
+	}
+
+	private void deleteDirectory(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
 	public void testNoRequest() {
 		//Configure Sender
 		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
@@ -234,6 +652,32 @@ public class ITKMessageSenderImplUnitTest extends TestCase {
 		}
 	}
 
+	@Test
+	public void testConversationDeadline() throws ITKMessagingException {
+		
+		ITKAddress provider = new ITKAddressImpl(SERVICE_PROVIDER);
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		request.setMessageProperties(props);
+		props.setToAddress(provider);
+		props.setServiceId(SERVICE_ID);
+		props.setProfileId(PROFILE_ID);
+		props.setFromAddress(new ITKAddressImpl(FROM_ADDRESS));
+		
+		//Configure Sender
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKSenderWSImpl_Mock itkSender = new ITKSenderWSImpl_Mock();
+		sender.setItkSenderWS(itkSender);
+		sender.setConversationTimeout(5000);
+		sender.sendSync(request);
+
+		// The deadline is passed down to the transport sender
+		assertNotNull(itkSender.parm_deadline);
+		assertTrue(itkSender.parm_deadline.remainingMillis() <= 5000);
+		assertTrue(itkSender.parm_deadline.remainingMillis() > 0);
+	}
+
 	@SuppressWarnings("static-access")
 	@Test
 	public void testAuditFailure()  {
@@ -368,6 +812,102 @@ public class ITKMessageSenderImplUnitTest extends TestCase {
 		assertTrue(response!=null);
 	}
 
+	public void testHedgedSlowPrimary() throws ITKMessagingException {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKAsyncSenderWSImpl_Mock itkSender = new ITKAsyncSenderWSImpl_Mock();
+		itkSender.primeDelay(PRIMARY, 2000);
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setHedgePercentile(95);
+		sender.setHedgeMinDelay(50);
+		
+		ITKMessage request = getGoodRequest();
+		request.getMessageProperties().setToAddress(new ITKAddressImpl(HEDGED_SERVICE_PROVIDER));
+		long start = System.currentTimeMillis();
+		ITKMessage response = sender.sendSync(request);
+		assertTrue(response!=null);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(2, itkSender.parm_sentTo.size());
+		assertEquals(PRIMARY, itkSender.parm_sentTo.get(0));
+		assertEquals(SECONDARY, itkSender.parm_sentTo.get(1));
+	}
+
+	public void testHedgedFastPrimary() throws Exception {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKAsyncSenderWSImpl_Mock itkSender = new ITKAsyncSenderWSImpl_Mock();
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setHedgePercentile(95);
+		sender.setHedgeMinDelay(500);
+		
+		ITKMessage request = getGoodRequest();
+		request.getMessageProperties().setToAddress(new ITKAddressImpl(HEDGED_SERVICE_PROVIDER));
+		assertTrue(sender.sendSync(request)!=null);
+		Thread.sleep(600);
+		assertEquals(1, itkSender.parm_sentTo.size());
+	}
+
+	public void testHedgedFailedPrimary() throws ITKMessagingException {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKAsyncSenderWSImpl_Mock itkSender = new ITKAsyncSenderWSImpl_Mock();
+		itkSender.primeFailure(PRIMARY, new ITKCommsException("Connection refused"));
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setHedgePercentile(95);
+		sender.setHedgeMinDelay(5000);
+		
+		ITKMessage request = getGoodRequest();
+		request.getMessageProperties().setToAddress(new ITKAddressImpl(HEDGED_SERVICE_PROVIDER));
+		long start = System.currentTimeMillis();
+		ITKMessage response = sender.sendSync(request);
+		assertTrue(response!=null);
+		// The second route is sent to without waiting for the hedge delay
+		assertTrue(System.currentTimeMillis() - start < 2000);
+		assertEquals(2, itkSender.parm_sentTo.size());
+		assertEquals(SECONDARY, itkSender.parm_sentTo.get(1));
+	}
+
+	public void testHedgedBothFail() throws ITKMessagingException {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKAsyncSenderWSImpl_Mock itkSender = new ITKAsyncSenderWSImpl_Mock();
+		itkSender.primeDelay(PRIMARY, 200);
+		itkSender.primeFailure(PRIMARY, new ITKUnavailableException("Primary busy"));
+		itkSender.primeFailure(SECONDARY, new ITKUnavailableException("Secondary busy"));
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		sender.setHedgePercentile(95);
+		sender.setHedgeMinDelay(50);
+		
+		ITKMessage request = getGoodRequest();
+		request.getMessageProperties().setToAddress(new ITKAddressImpl(HEDGED_SERVICE_PROVIDER));
+		try {
+			sender.sendSync(request);
+			fail("Should throw an ITKUnavailableException");
+		} catch (ITKUnavailableException e) {
+			// The first failure to arrive is reported once both have failed
+			assertTrue(e.getMessage().contains("Secondary busy"));
+		}
+		assertEquals(2, itkSender.parm_sentTo.size());
+	}
+
+	public void testNotHedgedByDefault() throws Exception {
+		
+		ITKMessageSenderImpl sender = new ITKMessageSenderImpl();
+		ITKAsyncSenderWSImpl_Mock itkSender = new ITKAsyncSenderWSImpl_Mock();
+		sender.setItkSenderWS(itkSender);
+		sender.setAuditService(new ITKSimpleAudit_Mock());
+		
+		ITKMessage request = getGoodRequest();
+		request.getMessageProperties().setToAddress(new ITKAddressImpl(HEDGED_SERVICE_PROVIDER));
+		assertTrue(sender.sendSync(request)!=null);
+		assertEquals(PRIMARY, itkSender.parm_destination.getPhysicalAddress());
+		assertEquals(0, itkSender.parm_sentTo.size());
+	}
+
 	private ITKMessage getGoodRequest(){
 		ITKAddress provider = new ITKAddressImpl(SERVICE_PROVIDER);
 		
@@ -0,0 +1,188 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKOutboundJournalUnitTest extends TestCase {
+
+	private File directory;
+	private ITKOutboundJournal journal;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("itk-journal").toFile();
+		journal = newJournal();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		journal.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private ITKOutboundJournal newJournal() {
+		ITKOutboundJournal newJournal = new ITKOutboundJournal();
+		newJournal.setDirectory(directory.getAbsolutePath());
+		newJournal.setSegmentSize(64 * 1024);
+		return newJournal;
+	}
+
+	private ITKOutboundJournal reopen() throws ITKMessagingException {
+		journal.close();
+		journal = newJournal();
+		return journal;
+	}
+
+	@Test
+	public void testRecover() throws ITKMessagingException {
+		assertTrue(journal.open().isEmpty());
+		ITKOutboundJournal.Entry first = journal.append("CONV-1", "<message>1</message>");
+		ITKOutboundJournal.Entry second = journal.append("CONV-2", "<message>\u00a32</message>");
+		ITKOutboundJournal.Entry third = journal.append("CONV-3", "<message>3</message>");
+		assertEquals("<message>\u00a32</message>", second.getMessage());
+		journal.markDelivered(second);
+		assertEquals(2, journal.getPendingCount());
+
+		List<ITKOutboundJournal.Entry> recovered = reopen().open();
+		assertEquals(2, recovered.size());
+		assertEquals("CONV-1", recovered.get(0).getConversationId());
+		assertEquals("<message>1</message>", recovered.get(0).getMessage());
+		assertEquals(first.getSequence(), recovered.get(0).getSequence());
+		assertEquals("CONV-3", recovered.get(1).getConversationId());
+		assertEquals(third.getSequence(), recovered.get(1).getSequence());
+
+		// Sequence numbers carry on from the last run
+		assertTrue(journal.append("CONV-4", "<message>4</message>").getSequence() > third.getSequence());
+	}
+
+	@Test
+	public void testMarkFailed() throws ITKMessagingException {
+		journal.open();
+		journal.markFailed(journal.append("CONV-1", "<message>1</message>"));
+		journal.append("CONV-2", "<message>2</message>");
+		List<ITKOutboundJournal.Entry> recovered = reopen().open();
+		assertEquals(1, recovered.size());
+		assertEquals("CONV-2", recovered.get(0).getConversationId());
+	}
+
+	@Test
+	public void testSegmentsDeleted() throws ITKMessagingException {
+		journal.open();
+		StringBuilder message = new StringBuilder();
+		while (message.length() < 10000) {
+			message.append("<item>The quick brown fox jumps over the lazy dog</item>");
+		}
+		List<ITKOutboundJournal.Entry> entries = new ArrayList<ITKOutboundJournal.Entry>();
+		for (int i = 0; i < 20; i++) {
+			entries.add(journal.append("CONV-" + i, message.toString()));
+		}
+		assertTrue(journal.getSegmentCount() > 1);
+		for (ITKOutboundJournal.Entry entry : entries) {
+			journal.markDelivered(entry);
+		}
+		// Only the segment being appended to is kept
+		assertEquals(1, journal.getSegmentCount());
+		assertEquals(1, directory.listFiles().length);
+
+		// A message bigger than a segment gets one of its own
+		while (message.length() < 100000) {
+			message.append(message);
+		}
+		assertEquals(message.toString(), journal.append("CONV-BIG", message.toString()).getMessage());
+		assertEquals(message.toString(), reopen().open().get(0).getMessage());
+	}
+
+	@Test
+	public void testIncompleteRecord() throws Exception {
+		journal.open();
+		journal.append("CONV-1", "<message>1</message>");
+		ITKOutboundJournal.Entry second = journal.append("CONV-2", "<message>2</message>");
+		journal.close();
+
+		// Corrupt the last byte of the second record, as if the append was never synced
+		File segment = directory.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		long position = 8 + (17 + 2 + 6 + 20) + 17 + 2 + 6 + 19;
+		raf.seek(position);
+		raf.write('X');
+		raf.close();
+
+		journal = newJournal();
+		List<ITKOutboundJournal.Entry> recovered = journal.open();
+		assertEquals(1, recovered.size());
+		assertEquals("CONV-1", recovered.get(0).getConversationId());
+		assertTrue(second.getSequence() > recovered.get(0).getSequence());
+	}
+
+	@Test
+	public void testGroupSync() throws Exception {
+		journal.open();
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final int thread = i;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int j = 0; j < 50; j++) {
+							journal.append("CONV-" + thread + "-" + j, "<message/>");
+						}
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertTrue(failures.isEmpty());
+		assertEquals(400, journal.getPendingCount());
+		// Appends waiting at the same time share a sync
+		assertTrue(journal.getSyncCount() < 400);
+		assertEquals(400, reopen().open().size());
+	}
+
+	@Test
+	public void testNotOpen() {
+		try {
+			journal.append("CONV-1", "<message/>");
+			fail("Should throw an ITKMessagingException");
+		} catch (ITKMessagingException e) {
+			assertTrue(e.getMessage().contains("not open"));
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.source;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKRetrySchedulerUnitTest extends TestCase {
+
+	private ITKRetryScheduler scheduler;
+
+	@Override
+	protected void setUp() throws Exception {
+		scheduler = new ITKRetryScheduler();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		scheduler.close();
+	}
+
+	/**
+	 * Fails with the given exceptions in turn, then succeeds. The first failure
+	 * is thrown as if the send could not be started, later ones are given to the callback.
+	 */
+	private static class FailingAttempt implements ITKRetryScheduler.Attempt {
+
+		private final ITKMessagingException[] failures;
+		private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+		FailingAttempt(ITKMessagingException... failures) {
+			this.failures = failures;
+		}
+
+		@Override
+		public void start(int attempt, ITKSendCallback callback) throws ITKMessagingException {
+			threads.add(Thread.currentThread().getName());
+			if (attempt == 1 && failures.length > 0) {
+				throw failures[0];
+			}
+			if (attempt <= failures.length) {
+				callback.failed(failures[attempt - 1]);
+			} else {
+				callback.completed(new ITKSimpleMessageImpl("OK" + attempt));
+			}
+		}
+	}
+
+	/**
+	 * Fails the first attempt, then holds on to the callback of the retry as if its
+	 * response were still outstanding
+	 */
+	private static class OutstandingAttempt implements ITKRetryScheduler.Attempt {
+
+		private final CountDownLatch retried;
+		private volatile ITKSendCallback callback;
+
+		OutstandingAttempt(CountDownLatch retried) {
+			this.retried = retried;
+		}
+
+		@Override
+		public void start(int attempt, ITKSendCallback callback) throws ITKMessagingException {
+			if (attempt == 1) {
+				callback.failed(new ITKUnavailableException("Busy"));
+				return;
+			}
+			this.callback = callback;
+			retried.countDown();
+		}
+	}
+
+	@Test
+	public void testRetryable() {
+		assertTrue(ITKRetryPolicy.isRetryable(new ITKUnavailableException("Busy")));
+		assertTrue(ITKRetryPolicy.isRetryable(new ITKTransportTimeoutException("Timeout")));
+		assertTrue(ITKRetryPolicy.isRetryable(
+				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_RETRYABLE_CODE, "Retryable")));
+		assertFalse(ITKRetryPolicy.isRetryable(
+				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not retryable")));
+		assertFalse(ITKRetryPolicy.isRetryable(new ITKCommsException("Comms")));
+	}
+
+	@Test
+	public void testDelay() {
+		ITKRetryPolicy policy = new ITKRetryPolicy(10, 100, 1000, 2, 0);
+		assertEquals(100, policy.getDelay(1));
+		assertEquals(200, policy.getDelay(2));
+		assertEquals(800, policy.getDelay(4));
+		assertEquals(1000, policy.getDelay(5));
+		assertEquals(1000, policy.getDelay(50));
+
+		policy = new ITKRetryPolicy(10, 100, 1000, 2, 0.5);
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.getDelay(3);
+			assertTrue(delay >= 200 && delay <= 400);
+		}
+	}
+
+	@Test
+	public void testForService() {
+		// Not configured in the test service.properties
+		assertSame(ITKRetryPolicy.NO_RETRY, ITKRetryPolicy.forService("urn:nhs-itk:services:201005:testServiceA-v1-0"));
+		assertFalse(ITKRetryPolicy.NO_RETRY.shouldRetry(new ITKUnavailableException("Busy"), 1));
+	}
+
+	@Test
+	public void testRetriedOnTimer() throws ITKMessagingException {
+		FailingAttempt attempt = new FailingAttempt(new ITKUnavailableException("Busy"),
+				new ITKTransportTimeoutException("Timeout"));
+		ITKMessage result = ITKRetryScheduler.await(
+				scheduler.execute(new ITKRetryPolicy(3, 10, 50, 2, 0.5), "test", attempt), "test");
+		assertEquals("OK3", result.getConversationId());
+		assertEquals(Thread.currentThread().getName(), attempt.threads.get(0));
+		assertTrue(attempt.threads.get(1).startsWith("ITK-Retry-"));
+		assertTrue(attempt.threads.get(2).startsWith("ITK-Retry-"));
+	}
+
+	@Test
+	public void testTimerNotHeldByOutstandingAttempts() throws Exception {
+		scheduler.setThreads(1);
+		CountDownLatch retried = new CountDownLatch(3);
+		List<OutstandingAttempt> attempts = new ArrayList<OutstandingAttempt>();
+		List<Future<ITKMessage>> results = new ArrayList<Future<ITKMessage>>();
+		for (int i = 0; i < 3; i++) {
+			OutstandingAttempt attempt = new OutstandingAttempt(retried);
+			attempts.add(attempt);
+			results.add(scheduler.execute(new ITKRetryPolicy(3, 10, 50, 2, 0), "test " + i, attempt));
+		}
+
+		// One timer thread starts every retry although none has had its response
+		assertTrue(retried.await(5, TimeUnit.SECONDS));
+		for (Future<ITKMessage> result : results) {
+			assertFalse(result.isDone());
+		}
+
+		for (int i = 0; i < 3; i++) {
+			attempts.get(i).callback.completed(new ITKSimpleMessageImpl("OK" + i));
+			assertEquals("OK" + i, results.get(i).get(5, TimeUnit.SECONDS).getConversationId());
+		}
+	}
+
+	@Test
+	public void testGivesUp() {
+		FailingAttempt attempt = new FailingAttempt(new ITKUnavailableException("Busy 1"),
+				new ITKUnavailableException("Busy 2"), new ITKUnavailableException("Busy 3"));
+		try {
+			ITKRetryScheduler.await(scheduler.execute(new ITKRetryPolicy(2, 10, 50, 2, 0.5), "test", attempt), "test");
+			fail("Expected ITKUnavailableException");
+		} catch (ITKMessagingException e) {
+			assertTrue(e instanceof ITKUnavailableException);
+			assertTrue(e.getMessage().contains("Busy 2"));
+		}
+		assertEquals(2, attempt.threads.size());
+	}
+
+	@Test
+	public void testNotRetryable() {
+		FailingAttempt attempt = new FailingAttempt(new ITKUnavailableException("Busy"),
+				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not retryable"));
+		try {
+			ITKRetryScheduler.await(scheduler.execute(new ITKRetryPolicy(5, 10, 50, 2, 0.5), "test", attempt), "test");
+			fail("Expected ITKMessagingException");
+		} catch (ITKMessagingException e) {
+			assertTrue(e.getMessage().contains("Not retryable"));
+		}
+		assertEquals(2, attempt.threads.size());
+	}
+
+}
@@ -64,6 +64,25 @@ public class TransformManagerUnitTest extends TestCase {
 		
 	}
 
+	@Test
+	public void testTransformDocument() throws IOException, SAXException, ParserConfigurationException, XPathExpressionException, ITKMessagingException {
+		Document testInput = DomUtils.parse("<Input><A>aval</A><B>bval</B><C>cval</C></Input>");
+		String testOutput = TransformManager.doTransformDocument("TestTransform.xslt",testInput);
+		Document testDoc = DomUtils.parse(testOutput);
+		assertEquals("aval", XPaths.compileXPath("//TEST/A").evaluate(testDoc));
+		assertEquals("cval", XPaths.compileXPath("//TEST/C").evaluate(testDoc));
+	}
+
+	@Test
+	public void testTransformDocumentNullInput() {
+		try {
+			TransformManager.doTransformDocument("TestTransform.xslt",null);
+			fail("ITKMessagingException expected");
+		} catch (ITKMessagingException e) {
+			assertEquals(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, e.getErrorCode());
+		}
+	}
+
 	@Test
 	public void testTransformWithParms() throws IOException, SAXException, ParserConfigurationException {
 		String testInput = "<Input><A>aval</A><B>bval</B><C>cval</C></Input>";
@@ -201,4 +220,86 @@ public class TransformManagerUnitTest extends TestCase {
 		}
 	}
 
+	@Test
+	public void testPreloadAndInvalidate() {
+		TransformManager.invalidateAll();
+		assertFalse(TransformManager.isCached("TestTransform.xslt"));
+		try {
+			TransformManager.preload("TestTransform.xslt");
+		} catch (ITKMessagingException e1) {
+			fail("Failed to preload test transformation");
+		}
+		assertTrue(TransformManager.isCached("TestTransform.xslt"));
+
+		TransformManager.invalidate("TestTransform.xslt");
+		assertFalse(TransformManager.isCached("TestTransform.xslt"));
+	}
+
+	@Test
+	public void testCachedOnFirstUse() {
+		TransformManager.invalidateAll();
+		String testInput = "<Input><A>aval</A><B>bval</B><C>cval</C></Input>";
+		try {
+			String first = TransformManager.doTransform("TestTransform.xslt",testInput);
+			assertTrue(TransformManager.isCached("TestTransform.xslt"));
+			String second = TransformManager.doTransform("TestTransform.xslt",testInput);
+			assertEquals(first, second);
+		} catch (ITKMessagingException e1) {
+			fail("Failed to execute test transformation");
+		}
+	}
+
+	@Test
+	public void testPreloadBadTemplate() {
+		try {
+			TransformManager.preload("TestTransformBad.xslt");
+			fail("Failed to reject bad template");
+		} catch (ITKMessagingException e1) {
+			assertFalse(TransformManager.isCached("TestTransformBad.xslt"));
+		}
+		try {
+			TransformManager.preload("ABC");
+			fail("Failed to reject non-existant transform name");
+		} catch (ITKMessagingException e1) {
+			assertFalse(TransformManager.isCached("ABC"));
+		}
+	}
+
+	@Test
+	public void testTransletName() {
+		assertEquals("ToSOAP", TransformManager.getTransletName("ToSOAP.xslt"));
+		assertEquals("xslt_smsc_ToGetNHSNumberRequest", TransformManager.getTransletName("xslt/smsc/ToGetNHSNumberRequest.xslt"));
+		assertEquals("xslt_smsc_ToGetNHSNumberRequest", TransformManager.getTransletName("/xslt/smsc/ToGetNHSNumberRequest.xslt"));
+		assertEquals("_1_test_v2", TransformManager.getTransletName("1-test.v2.xslt"));
+	}
+
+	@Test
+	public void testPrecompiledTranslet() throws ClassNotFoundException {
+		if (!TransformManager.isTransletSupported()) {
+			// Skipped: translets cannot be loaded on this JDK, so they must stay off
+			TransformManager.setUseTranslets(true);
+			assertFalse(TransformManager.isUseTranslets());
+			return;
+		}
+		// Shipped stylesheets are precompiled during the build
+		Class.forName(TransformManager.TRANSLET_PACKAGE+".ToDistributionEnvelope");
+		Class.forName(TransformManager.TRANSLET_PACKAGE+".ToSOAP");
+
+		TransformManager.invalidateAll();
+		TransformManager.setUseTranslets(true);
+		try {
+			TransformManager.preload("ToDistributionEnvelope.xslt", "ToSOAP.xslt");
+			assertTrue(TransformManager.isCached("ToSOAP.xslt"));
+
+			// Test stylesheets have no translet and fall back to runtime compilation
+			String testOutput = TransformManager.doTransform("TestTransform.xslt","<Input><A>aval</A></Input>");
+			assertTrue(testOutput.contains("aval"));
+		} catch (ITKMessagingException e1) {
+			fail("Failed to load translets");
+		} finally {
+			TransformManager.setUseTranslets(false);
+			TransformManager.invalidateAll();
+		}
+	}
+
 }
@@ -0,0 +1,144 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * Decodes the examples of RFC 7541 Appendix C.
+ *
+ * @author Nick Jones
+ *
+ */
+public class HPACKUnitTest extends TestCase {
+
+	private static byte[] hex(String s) {
+		s = s.replace(" ", "");
+		byte[] bytes = new byte[s.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static void assertHeaders(List<String[]> headers, String... expected) {
+		assertEquals(expected.length / 2, headers.size());
+		for (int i = 0; i < headers.size(); i++) {
+			assertEquals(expected[i * 2], headers.get(i)[0]);
+			assertEquals(expected[i * 2 + 1], headers.get(i)[1]);
+		}
+	}
+
+	@Test
+	public void testRequestsWithHuffman() throws Exception {
+		// RFC 7541 C.4
+		HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+
+		assertHeaders(decoder.decode(hex("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertHeaders(decoder.getDynamicTable(), ":authority", "www.example.com");
+		assertEquals(57, decoder.getTableUsed());
+
+		assertHeaders(decoder.decode(hex("8286 84be 5886 a8eb 1064 9cbf")),
+				":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+				"cache-control", "no-cache");
+		assertHeaders(decoder.getDynamicTable(), "cache-control", "no-cache", ":authority", "www.example.com");
+		assertEquals(110, decoder.getTableUsed());
+
+		assertHeaders(decoder.decode(hex("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")),
+				":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+				"custom-key", "custom-value");
+		assertHeaders(decoder.getDynamicTable(), "custom-key", "custom-value", "cache-control", "no-cache",
+				":authority", "www.example.com");
+		assertEquals(164, decoder.getTableUsed());
+	}
+
+	@Test
+	public void testResponsesWithHuffmanAndEviction() throws Exception {
+		// RFC 7541 C.6, with the dynamic table limited to 256 octets
+		HPACK.Decoder decoder = new HPACK.Decoder(256);
+
+		assertHeaders(decoder.decode(hex("4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81"
+				+ "66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3")),
+				":status", "302", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+				"location", "https://www.example.com");
+		assertHeaders(decoder.getDynamicTable(), "location", "https://www.example.com",
+				"date", "Mon, 21 Oct 2013 20:13:21 GMT", "cache-control", "private", ":status", "302");
+		assertEquals(222, decoder.getTableUsed());
+
+		// Adding :status 307 evicts :status 302
+		assertHeaders(decoder.decode(hex("4883 640e ffc1 c0bf")),
+				":status", "307", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:21 GMT",
+				"location", "https://www.example.com");
+		assertHeaders(decoder.getDynamicTable(), ":status", "307", "location", "https://www.example.com",
+				"date", "Mon, 21 Oct 2013 20:13:21 GMT", "cache-control", "private");
+		assertEquals(222, decoder.getTableUsed());
+
+		// Each new entry evicts one or more of the oldest
+		assertHeaders(decoder.decode(hex("88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a"
+				+ "839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f"
+				+ "9587 3160 65c0 03ed 4ee5 b106 3d50 07")),
+				":status", "200", "cache-control", "private", "date", "Mon, 21 Oct 2013 20:13:22 GMT",
+				"location", "https://www.example.com", "content-encoding", "gzip",
+				"set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+		assertHeaders(decoder.getDynamicTable(),
+				"set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1",
+				"content-encoding", "gzip", "date", "Mon, 21 Oct 2013 20:13:22 GMT");
+		assertEquals(215, decoder.getTableUsed());
+	}
+
+	@Test
+	public void testTableSizeUpdate() throws Exception {
+		HPACK.Decoder decoder = new HPACK.Decoder(256);
+		decoder.decode(hex("4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81"
+				+ "66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"));
+		assertEquals(4, decoder.getDynamicTable().size());
+
+		// Shrinking the table to 128 octets keeps only the newest two entries
+		assertTrue(decoder.decode(hex("3f61")).isEmpty());
+		assertHeaders(decoder.getDynamicTable(), "location", "https://www.example.com",
+				"date", "Mon, 21 Oct 2013 20:13:21 GMT");
+		assertEquals(128, decoder.getTableUsed());
+
+		// Size zero empties it
+		assertTrue(decoder.decode(hex("20")).isEmpty());
+		assertTrue(decoder.getDynamicTable().isEmpty());
+		assertEquals(0, decoder.getTableUsed());
+
+		try {
+			// 4096 is more than the decoder allows
+			decoder.decode(hex("3fe1 1f"));
+			fail("Expected CompressionException");
+		} catch (HPACK.CompressionException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testEncodedHeadersDecode() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HPACK.encode(out, ":method", "POST");
+		HPACK.encode(out, "soapaction", "urn:nhs-itk:services:201005:testServiceA-v1-0");
+		HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+		assertHeaders(decoder.decode(out.toByteArray()),
+				":method", "POST", "soapaction", "urn:nhs-itk:services:201005:testServiceA-v1-0");
+		assertTrue(decoder.getDynamicTable().isEmpty());
+	}
+
+}
@@ -0,0 +1,203 @@
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/2 server (prior knowledge, no TLS) for transport tests. Every
+ * request gets the same canned response, sent from a thread of its own so that
+ * streams overlap.
+ */
+public class HTTP2Server_Mock implements Runnable {
+
+	public int responseCode = 200;
+	public byte[] responseBody;
+	public long responseDelay = 0;
+	public int maxConcurrentStreams = 100;
+	public int initialWindowSize = HTTP2Frame.DEFAULT_WINDOW_SIZE;
+
+	public final AtomicInteger connections = new AtomicInteger();
+	public final AtomicInteger peakStreams = new AtomicInteger();
+	public final List<Map<String, String>> requestHeaders = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+	public final List<String> requestBodies = Collections.synchronizedList(new ArrayList<String>());
+
+	private final AtomicInteger activeStreams = new AtomicInteger();
+	private final ServerSocket serverSocket;
+
+	public HTTP2Server_Mock() throws IOException {
+		this.serverSocket = new ServerSocket(0);
+		this.responseBody = readResource("HappyDay.xml");
+		Thread t = new Thread(this, "HTTP2Server_Mock");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String getAddress() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/syncsoap";
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connections.incrementAndGet();
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				// Server closed
+			}
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			final OutputStream out = socket.getOutputStream();
+			byte[] preface = new byte[HTTP2Frame.PREFACE.length];
+			int read = 0;
+			while (read < preface.length) {
+				int n = in.read(preface, read, preface.length - read);
+				if (n == -1) {
+					return;
+				}
+				read += n;
+			}
+			write(out, HTTP2Frame.SETTINGS, 0, 0, HTTP2Frame.settings(HTTP2Frame.SETTINGS_MAX_CONCURRENT_STREAMS,
+					maxConcurrentStreams, HTTP2Frame.SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize));
+
+			HPACK.Decoder decoder = new HPACK.Decoder(HPACK.DEFAULT_TABLE_SIZE);
+			Map<Integer, Map<String, String>> headers = new HashMap<Integer, Map<String, String>>();
+			Map<Integer, ByteArrayOutputStream> bodies = new HashMap<Integer, ByteArrayOutputStream>();
+			while (true) {
+				HTTP2Frame frame = HTTP2Frame.read(in, HTTP2Frame.DEFAULT_MAX_FRAME_SIZE);
+				if (frame.type == HTTP2Frame.SETTINGS && !frame.hasFlag(HTTP2Frame.FLAG_ACK)) {
+					write(out, HTTP2Frame.SETTINGS, HTTP2Frame.FLAG_ACK, 0, new byte[0]);
+				} else if (frame.type == HTTP2Frame.HEADERS) {
+					Map<String, String> fields = new HashMap<String, String>();
+					for (String[] field : decoder.decode(frame.payload)) {
+						fields.put(field[0], field[1]);
+					}
+					headers.put(frame.streamId, fields);
+					bodies.put(frame.streamId, new ByteArrayOutputStream());
+					int active = activeStreams.incrementAndGet();
+					synchronized (peakStreams) {
+						peakStreams.set(Math.max(peakStreams.get(), active));
+					}
+					if (frame.hasFlag(HTTP2Frame.FLAG_END_STREAM)) {
+						respond(out, frame.streamId, fields, bodies.remove(frame.streamId));
+					}
+				} else if (frame.type == HTTP2Frame.DATA) {
+					ByteArrayOutputStream body = bodies.get(frame.streamId);
+					body.write(frame.payload);
+					if (frame.payload.length > 0) {
+						// Open the windows again as the data is consumed
+						write(out, HTTP2Frame.WINDOW_UPDATE, 0, 0, HTTP2Frame.intPayload(frame.payload.length));
+						if (!frame.hasFlag(HTTP2Frame.FLAG_END_STREAM)) {
+							write(out, HTTP2Frame.WINDOW_UPDATE, 0, frame.streamId,
+									HTTP2Frame.intPayload(frame.payload.length));
+						}
+					}
+					if (frame.hasFlag(HTTP2Frame.FLAG_END_STREAM)) {
+						respond(out, frame.streamId, headers.get(frame.streamId), bodies.remove(frame.streamId));
+					}
+				} else if (frame.type == HTTP2Frame.GOAWAY) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Connection dropped
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void respond(final OutputStream out, final int streamId, Map<String, String> headers,
+			ByteArrayOutputStream body) throws IOException {
+		requestHeaders.add(headers);
+		requestBodies.add(body.toString("UTF-8"));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				boolean active = true;
+				try {
+					if (responseDelay > 0) {
+						Thread.sleep(responseDelay);
+					}
+					ByteArrayOutputStream block = new ByteArrayOutputStream();
+					HPACK.encode(block, ":status", Integer.toString(responseCode));
+					HPACK.encode(block, "content-type", "text/xml; charset=UTF-8");
+					write(out, HTTP2Frame.HEADERS, HTTP2Frame.FLAG_END_HEADERS, streamId, block.toByteArray());
+					int pos = 0;
+					do {
+						int length = Math.min(HTTP2Frame.DEFAULT_MAX_FRAME_SIZE, responseBody.length - pos);
+						boolean last = pos + length == responseBody.length;
+						if (last) {
+							// The client may open another stream as soon as it sees END_STREAM
+							activeStreams.decrementAndGet();
+							active = false;
+						}
+						synchronized (out) {
+							HTTP2Frame.write(out, HTTP2Frame.DATA, last ? HTTP2Frame.FLAG_END_STREAM : 0, streamId,
+									responseBody, pos, length);
+							out.flush();
+						}
+						pos += length;
+					} while (pos < responseBody.length);
+				} catch (InterruptedException e) {
+					// Test finished
+				} catch (IOException e) {
+					// Connection dropped
+				} finally {
+					if (active) {
+						activeStreams.decrementAndGet();
+					}
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void write(OutputStream out, int type, int flags, int streamId, byte[] payload) throws IOException {
+		synchronized (out) {
+			HTTP2Frame.write(out, type, flags, streamId, payload, 0, payload.length);
+			out.flush();
+		}
+	}
+
+	private byte[] readResource(String name) throws IOException {
+		InputStream is = HTTP2Server_Mock.class.getResourceAsStream(name);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			bos.write(buffer, 0, read);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class HTTPResponseParserUnitTest extends TestCase {
+
+	private static boolean feed(HTTPResponseParser parser, String text) throws IOException {
+		return parser.feed(ByteBuffer.wrap(text.getBytes("US-ASCII")));
+	}
+
+	@Test
+	public void testContentLengthOneByteAtATime() throws IOException {
+		String response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/xml\r\n\r\n<a/>\n";
+		HTTPResponseParser parser = new HTTPResponseParser(1000);
+		for (int i = 0; i < response.length() - 1; i++) {
+			assertFalse(feed(parser, response.substring(i, i + 1)));
+		}
+		assertTrue(feed(parser, response.substring(response.length() - 1)));
+		HTTPResponse parsed = parser.getResponse();
+		assertEquals(200, parsed.getStatusCode());
+		assertEquals("text/xml", parsed.getHeader("Content-Type"));
+		assertEquals("<a/>\n", parsed.getBodyAsString());
+		assertTrue(parsed.isKeepAlive());
+	}
+
+	@Test
+	public void testChunkedAfterContinue() throws IOException {
+		HTTPResponseParser parser = new HTTPResponseParser(1000);
+		assertFalse(feed(parser, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 500 Error\r\nTransfer-Encoding: chunked\r\n\r\n"));
+		assertFalse(feed(parser, "3\r\nabc\r\n4;ext=1\r\nde"));
+		assertTrue(feed(parser, "fg\r\n0\r\nTrailer: x\r\n\r\n"));
+		assertEquals(500, parser.getResponse().getStatusCode());
+		assertEquals("abcdefg", parser.getResponse().getBodyAsString());
+	}
+
+	@Test
+	public void testBodyUntilClose() throws IOException {
+		HTTPResponseParser parser = new HTTPResponseParser(1000);
+		assertFalse(feed(parser, "HTTP/1.0 200 OK\r\n\r\nabc"));
+		assertTrue(parser.endOfStream());
+		assertEquals("abc", parser.getResponse().getBodyAsString());
+		assertFalse(parser.getResponse().isKeepAlive());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		HTTPResponseParser parser = new HTTPResponseParser(1000);
+		try {
+			parser.endOfStream();
+			fail("Expected NoResponseException");
+		} catch (HTTPConnection.NoResponseException e) {
+			// Expected
+		}
+		parser = new HTTPResponseParser(1000);
+		feed(parser, "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc");
+		try {
+			parser.endOfStream();
+			fail("Expected EOFException");
+		} catch (EOFException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testMaxResponseSize() throws IOException {
+		HTTPResponseParser parser = new HTTPResponseParser(4);
+		try {
+			feed(parser, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n3\r\ndef\r\n");
+			fail("Expected LimitExceededException");
+		} catch (LimitedInputStream.LimitExceededException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testLineTooLong() throws IOException {
+		HTTPResponseParser parser = new HTTPResponseParser(1000);
+		StringBuilder header = new StringBuilder("HTTP/1.1 200 OK\r\nX-Long: ");
+		while (header.length() < 10000) {
+			header.append('a');
+		}
+		try {
+			feed(parser, header.toString());
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("line exceeded"));
+		}
+	}
+
+}
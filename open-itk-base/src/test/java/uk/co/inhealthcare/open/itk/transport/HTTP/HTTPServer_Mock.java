@@ -0,0 +1,201 @@
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A minimal keep-alive HTTP/1.1 server for transport tests. Every request gets the
+ * same canned response.
+ */
+public class HTTPServer_Mock implements Runnable {
+
+	public int responseCode = 200;
+	public byte[] responseBody;
+	public boolean closeAfterResponse = false;
+	public boolean sendConnectionClose = false;
+	public long responseDelay = 0;
+	public boolean gzipResponses = false;
+
+	public final AtomicInteger connections = new AtomicInteger();
+	public final List<Map<String, String>> requestHeaders = Collections.synchronizedList(new ArrayList<Map<String, String>>());
+	public final List<String> requestBodies = Collections.synchronizedList(new ArrayList<String>());
+
+	private final ServerSocket serverSocket;
+
+	public HTTPServer_Mock() throws IOException {
+		this.serverSocket = new ServerSocket(0);
+		this.responseBody = readResource("HappyDay.xml");
+		Thread t = new Thread(this, "HTTPServer_Mock");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public String getAddress() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/syncsoap";
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				connections.incrementAndGet();
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+			} catch (IOException e) {
+				// Server closed
+			}
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				String requestLine = readLine(in);
+				if (requestLine == null) {
+					break;
+				}
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+				}
+				byte[] body;
+				if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+					body = readChunked(in);
+				} else {
+					body = readBody(in, Integer.parseInt(headers.get("content-length")));
+				}
+				if ("gzip".equals(headers.get("content-encoding"))) {
+					body = gunzip(body);
+				}
+				requestHeaders.add(headers);
+				requestBodies.add(new String(body, "UTF-8"));
+				if (responseDelay > 0) {
+					try {
+						Thread.sleep(responseDelay);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+
+				byte[] response = responseBody;
+				boolean gzip = gzipResponses && "gzip".equals(headers.get("accept-encoding"));
+				if (gzip) {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream();
+					GZIPOutputStream gos = new GZIPOutputStream(bos);
+					gos.write(responseBody);
+					gos.close();
+					response = bos.toByteArray();
+				}
+				String head = "HTTP/1.1 " + responseCode + " Status\r\n"
+						+ "Content-Type: text/xml; charset=UTF-8\r\n"
+						+ (gzip ? "Content-Encoding: gzip\r\n" : "")
+						+ "Content-Length: " + response.length + "\r\n"
+						+ (sendConnectionClose ? "Connection: close\r\n" : "")
+						+ "\r\n";
+				out.write(head.getBytes("US-ASCII"));
+				out.write(response);
+				out.flush();
+				if (closeAfterResponse || sendConnectionClose) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Connection dropped
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private byte[] readBody(InputStream in, int length) throws IOException {
+		byte[] body = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int n = in.read(body, read, length - read);
+			if (n == -1) {
+				throw new IOException("Connection closed in the request body");
+			}
+			read += n;
+		}
+		return body;
+	}
+
+	private byte[] readChunked(InputStream in) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int size;
+		while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+			bos.write(readBody(in, size));
+			readLine(in);
+		}
+		// Trailers, if any, end with an empty line
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+		}
+		return bos.toByteArray();
+	}
+
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return sb.length() == 0 ? null : sb.toString();
+			}
+			if (c != '\r') {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private byte[] gunzip(byte[] body) throws IOException {
+		return readFully(new GZIPInputStream(new ByteArrayInputStream(body)));
+	}
+
+	private byte[] readResource(String name) throws IOException {
+		return readFully(HTTPServer_Mock.class.getResourceAsStream(name));
+	}
+
+	private byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			bos.write(buffer, 0, read);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+}
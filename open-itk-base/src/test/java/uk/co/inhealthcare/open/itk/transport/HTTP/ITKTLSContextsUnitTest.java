@@ -0,0 +1,189 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKAddressImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.service.ITKSimpleDOSImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKTLSContextsUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+
+	private ITKTransportRoute channelRoute(String channelId) {
+		ITKTransportRouteImpl route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS,
+				"https://localhost:4848/syncsoap", null, null, 3600, 5000);
+		route.setChannelId(channelId);
+		return route;
+	}
+
+	@Test
+	public void testSameSettingsShared() throws ITKMessagingException {
+		ITKTLSContexts tls = ITKTLSContexts.forRoute(channelRoute("TKW.ALL"));
+		assertSame(tls, ITKTLSContexts.forRoute(channelRoute("TKW.ALL")));
+		assertSame(tls, ITKTLSContexts.forRoute(channelRoute("EXPLICIT.ALL")));
+		assertSame(tls, ITKTLSContexts.forRoute(channelRoute(null)));
+		assertSame(tls.getSocketFactory(), ITKTLSContexts.forRoute(channelRoute("TKW.ALL")).getSocketFactory());
+		assertEquals(ITKTLSContexts.DEFAULT_SESSION_CACHE_SIZE,
+				tls.getSSLContext().getClientSessionContext().getSessionCacheSize());
+		assertEquals(ITKTLSContexts.DEFAULT_SESSION_TIMEOUT,
+				tls.getSSLContext().getClientSessionContext().getSessionTimeout());
+	}
+
+	@Test
+	public void testChannelTrustStore() throws ITKMessagingException {
+		ITKTransportRoute route = new ITKSimpleDOSImpl().resolveDestination(SERVICE_ID,
+				new ITKAddressImpl("urn:nhs-uk:addressing:ods:TLS"));
+		assertEquals("TLS.ALL", route.getChannelId());
+		ITKTLSContexts tls = ITKTLSContexts.forRoute(route);
+		assertNotSame(ITKTLSContexts.forRoute(channelRoute("TKW.ALL")), tls);
+		assertTrue(tls.getName().contains("test-truststore.jks"));
+		assertFalse(tls.getName().contains("changeit"));
+		assertEquals(50, tls.getSSLContext().getClientSessionContext().getSessionCacheSize());
+		assertEquals(600, tls.getSSLContext().getClientSessionContext().getSessionTimeout());
+	}
+
+	@Test
+	public void testMissingTrustStore() {
+		try {
+			ITKTLSContexts.forRoute(channelRoute("MISSING.ALL"));
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			assertTrue(e.getMessage().contains("MISSING.ALL"));
+		}
+	}
+
+	@Test
+	public void testSystemKeyStore() throws Exception {
+		String keyStore = new File(ITKTLSContextsUnitTest.class.getResource("/test-client.jks").toURI()).getPath();
+		System.setProperty("javax.net.ssl.keyStore", keyStore);
+		System.setProperty("javax.net.ssl.keyStorePassword", "changeit");
+		System.setProperty("javax.net.ssl.keyStoreType", "JKS");
+		try {
+			// The channel has no key store of its own, so the JVM's is presented
+			ITKTLSContexts tls = ITKTLSContexts.forRoute(channelRoute("MTLS.ALL"));
+			assertTrue(tls.getName().contains("test-client.jks"));
+			assertEquals("CN=ITK Test Client", clientCertificateSubject(tls));
+		} finally {
+			System.clearProperty("javax.net.ssl.keyStore");
+			System.clearProperty("javax.net.ssl.keyStorePassword");
+			System.clearProperty("javax.net.ssl.keyStoreType");
+		}
+	}
+
+	@Test
+	public void testChannelKeyStore() throws Exception {
+		ITKTLSContexts tls = ITKTLSContexts.forRoute(channelRoute("MTLSKEY.ALL"));
+		assertEquals("CN=ITK Test Client", clientCertificateSubject(tls));
+	}
+
+	/**
+	 * Makes a TLS connection to a server which requires a client certificate, and
+	 * returns the subject of the certificate the server was given
+	 */
+	private String clientCertificateSubject(ITKTLSContexts tls) throws Exception {
+		KeyStore store = KeyStore.getInstance("JKS");
+		InputStream is = ITKTLSContextsUnitTest.class.getResourceAsStream("/test-client.jks");
+		try {
+			store.load(is, "changeit".toCharArray());
+		} finally {
+			is.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(store, "changeit".toCharArray());
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(store);
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+		final SSLServerSocket server = (SSLServerSocket) serverContext.getServerSocketFactory()
+				.createServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		server.setNeedClientAuth(true);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> subject = executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					SSLSocket socket = (SSLSocket) server.accept();
+					try {
+						socket.startHandshake();
+						Certificate[] peer = socket.getSession().getPeerCertificates();
+						return ((X509Certificate) peer[0]).getSubjectX500Principal().getName();
+					} finally {
+						socket.close();
+					}
+				}
+			});
+			SSLSocket client = (SSLSocket) tls.getSocketFactory().createSocket(
+					InetAddress.getLoopbackAddress(), server.getLocalPort());
+			try {
+				client.startHandshake();
+				// The server has the certificate once it has read the client's first record
+				client.getOutputStream().write(0);
+				client.getOutputStream().flush();
+				return subject.get(10, TimeUnit.SECONDS);
+			} finally {
+				client.close();
+			}
+		} finally {
+			server.close();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testConfigureLeavesDefaultsAlone() throws ITKMessagingException, IOException {
+		HostnameVerifier defaultVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+		ITKTLSContexts tls = ITKTLSContexts.forRoute(channelRoute("TKW.ALL"));
+		// Not connected until it is used
+		HttpsURLConnection conn = (HttpsURLConnection) new URL("https://localhost:4848/syncsoap").openConnection();
+		tls.configure(conn);
+		assertSame(tls.getSocketFactory(), conn.getSSLSocketFactory());
+		assertSame(defaultVerifier, HttpsURLConnection.getDefaultHostnameVerifier());
+		assertNotSame(tls.getSocketFactory(), HttpsURLConnection.getDefaultSSLSocketFactory());
+	}
+
+}
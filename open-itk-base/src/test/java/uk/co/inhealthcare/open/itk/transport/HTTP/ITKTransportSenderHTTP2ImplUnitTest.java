@@ -0,0 +1,251 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+import uk.co.inhealthcare.open.itk.transport.WS.ITKSOAPException;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKTransportSenderHTTP2ImplUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+
+	private static final String SOAP_FAULT = "<SOAP:Envelope xmlns:SOAP=\"http://schemas.xmlsoap.org/soap/envelope/\""
+			+ " xmlns:wsa=\"http://www.w3.org/2005/08/addressing\"><SOAP:Header>"
+			+ "<wsa:Action>http://www.w3.org/2005/08/addressing/fault</wsa:Action></SOAP:Header>"
+			+ "<SOAP:Body><SOAP:Fault><faultcode>SOAP:Client</faultcode><faultstring>A client related error has occurred"
+			+ "</faultstring><SOAP:detail><itk:itkErrorInfo xmlns:itk=\"urn:nhs-itk:ns:201005\">"
+			+ "<itk:ErrorID>ERR-1</itk:ErrorID><itk:ErrorCode>1000</itk:ErrorCode>"
+			+ "<itk:ErrorDiagnosticText>Invalid message</itk:ErrorDiagnosticText>"
+			+ "</itk:itkErrorInfo></SOAP:detail></SOAP:Fault></SOAP:Body></SOAP:Envelope>";
+
+	private HTTP2Server_Mock server;
+	private ITKTransportSenderHTTP2Impl sender;
+	private ITKTransportRoute route;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new HTTP2Server_Mock();
+		sender = new ITKTransportSenderHTTP2Impl();
+		route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_H2, server.getAddress(), null, null, 3600, 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sender.close();
+		server.close();
+	}
+
+	private ITKMessage buildMessage(String payload) throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+		msg.setBusinessPayload(payload);
+		msg.buildFullMessage();
+		return msg;
+	}
+
+	private Document send() throws ITKMessagingException {
+		return send("<TESTPAYLOAD xmlns=\"urn:test\"/>");
+	}
+
+	private Document send(String payload) throws ITKMessagingException {
+		Map<String, String> httpProperties = new HashMap<String, String>();
+		httpProperties.put("SOAPAction", SERVICE_ID);
+		return sender.transportSend(buildMessage(payload), route, httpProperties);
+	}
+
+	/**
+	 * Sends from several threads at once, returning any failures
+	 */
+	private List<Throwable> sendConcurrently(int threads) throws InterruptedException {
+		final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						send();
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			});
+			t.start();
+			senders.add(t);
+		}
+		for (Thread t : senders) {
+			t.join();
+		}
+		return failures;
+	}
+
+	@Test
+	public void testSend() throws ITKMessagingException {
+		for (int i = 0; i < 3; i++) {
+			Document response = send();
+			assertEquals("Envelope", response.getDocumentElement().getLocalName());
+		}
+		assertEquals(1, server.connections.get());
+		assertEquals(3, server.requestBodies.size());
+		Map<String, String> headers = server.requestHeaders.get(0);
+		assertEquals("POST", headers.get(":method"));
+		assertEquals("/syncsoap", headers.get(":path"));
+		assertEquals(SERVICE_ID, headers.get("soapaction"));
+		assertTrue(server.requestBodies.get(0).contains("TESTPAYLOAD"));
+		assertEquals(1, sender.getConnectionsCreated());
+		assertEquals(3, sender.getStreamsOpened());
+		assertEquals(0, sender.getActiveStreamCount());
+	}
+
+	@Test
+	public void testMultiplexed() throws InterruptedException {
+		server.responseDelay = 300;
+		assertTrue(sendConcurrently(5).isEmpty());
+		assertEquals(1, server.connections.get());
+		assertEquals(5, server.requestBodies.size());
+		assertTrue(server.peakStreams.get() > 1);
+		assertTrue(sender.getPeakActiveStreamCount() > 1);
+		assertEquals(0, sender.getActiveStreamCount());
+	}
+
+	@Test
+	public void testStreamLimit() throws ITKMessagingException, InterruptedException {
+		server.maxConcurrentStreams = 2;
+		// Lets the settings of the server arrive
+		send();
+		server.responseDelay = 200;
+		assertTrue(sendConcurrently(6).isEmpty());
+		assertEquals(1, server.connections.get());
+		assertEquals(2, server.peakStreams.get());
+		assertTrue(sender.getStreamLimitStalls() > 0);
+	}
+
+	@Test
+	public void testFlowControl() throws ITKMessagingException {
+		server.initialWindowSize = 16384;
+		StringBuilder payload = new StringBuilder("<TESTPAYLOAD xmlns=\"urn:test\">");
+		while (payload.length() < 200000) {
+			payload.append("<item>The quick brown fox jumps over the lazy dog</item>");
+		}
+		payload.append("</TESTPAYLOAD>");
+		assertNotNull(send(payload.toString()));
+		assertTrue(server.requestBodies.get(0).contains(payload.toString()));
+		assertTrue(sender.getFlowControlStalls() > 0);
+	}
+
+	@Test
+	public void testBusyTone() throws ITKMessagingException {
+		server.responseCode = 503;
+		try {
+			send();
+			fail("Expected ITKUnavailableException");
+		} catch (ITKUnavailableException e) {
+			// Expected
+		}
+		server.responseCode = 200;
+		assertNotNull(send());
+		assertEquals(1, server.connections.get());
+	}
+
+	@Test
+	public void testSOAPFault() throws ITKMessagingException, Exception {
+		server.responseCode = 500;
+		server.responseBody = SOAP_FAULT.getBytes("UTF-8");
+		try {
+			send();
+			fail("Expected ITKSOAPException");
+		} catch (ITKSOAPException e) {
+			assertEquals("ERR-1", e.getErrorId());
+			assertEquals(1000, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testTimeout() throws ITKMessagingException {
+		server.responseDelay = 2000;
+		long start = System.currentTimeMillis();
+		try {
+			sender.transportSend(buildMessage("<TESTPAYLOAD xmlns=\"urn:test\"/>"), route, new HashMap<String, String>(),
+					ITKDeadline.after(200));
+			fail("Expected ITKTransportTimeoutException");
+		} catch (ITKTransportTimeoutException e) {
+			// Expected
+		}
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		// The stream was cancelled but the connection is still good
+		server.responseDelay = 0;
+		assertNotNull(send());
+		assertEquals(1, server.connections.get());
+		assertEquals(0, sender.getActiveStreamCount());
+	}
+
+	@Test
+	public void testSlowConnectDoesNotBlockOtherDestinations() throws Exception {
+		// Accepts connections but never answers the TLS handshake
+		ServerSocket stalled = new ServerSocket(0);
+		try {
+			final ITKTransportRoute stalledRoute = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_H2,
+					"https://127.0.0.1:" + stalled.getLocalPort() + "/syncsoap", null, null, 3600, 2000);
+			final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						sender.transportSend(buildMessage("<TESTPAYLOAD xmlns=\"urn:test\"/>"), stalledRoute,
+								new HashMap<String, String>());
+					} catch (Throwable t) {
+						failures.add(t);
+					}
+				}
+			});
+			t.start();
+			// Once accepted the sender is waiting on the handshake
+			stalled.setSoTimeout(5000);
+			Socket accepted = stalled.accept();
+			long start = System.currentTimeMillis();
+			assertNotNull(send());
+			assertTrue(System.currentTimeMillis() - start < 1000);
+			t.join();
+			assertEquals(1, failures.size());
+			accepted.close();
+		} finally {
+			stalled.close();
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKTransportSenderHTTPImplUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+
+	private HTTPServer_Mock server;
+	private ITKTransportSenderHTTPImpl sender;
+	private ITKTransportRoute route;
+
+	@Override
+	protected void setUp() throws Exception {
+		System.setProperty("JSAT.OverrideHostnameVerification", "N");
+		server = new HTTPServer_Mock();
+		sender = new ITKTransportSenderHTTPImpl();
+		route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, server.getAddress(), null, null, 3600, 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	private Document send() throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+		msg.setBusinessPayload("<TESTPAYLOAD xmlns=\"urn:test\"/>");
+		msg.buildFullMessage();
+		Map<String, String> httpProperties = new HashMap<String, String>();
+		httpProperties.put("SOAPAction", SERVICE_ID);
+		return sender.transportSend(msg, route, httpProperties);
+	}
+
+	@Test
+	public void testRequestStreamed() throws ITKMessagingException {
+		assertNotNull(send());
+		// Sent as it is written rather than buffered to find its length
+		assertEquals("chunked", server.requestHeaders.get(0).get("transfer-encoding"));
+		assertNull(server.requestHeaders.get(0).get("content-length"));
+		assertTrue(server.requestBodies.get(0).contains("TESTPAYLOAD"));
+	}
+
+	@Test
+	public void testMultibyteResponse() throws ITKMessagingException, UnsupportedEncodingException {
+		// Two byte characters either side of every 1KB boundary
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			text.append("\u00e9");
+		}
+		server.responseBody = ("<Response>" + text + "</Response>").getBytes("UTF-8");
+		Document response = send();
+		assertEquals(text.toString(), response.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testMaxResponseSize() throws ITKMessagingException {
+		sender.setMaxResponseSize(100);
+		try {
+			send();
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			assertTrue(e.getMessage().contains("maximum size"));
+		}
+	}
+
+	@Test
+	public void testInternalServerError() throws ITKMessagingException {
+		server.responseCode = 500;
+		try {
+			send();
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			assertTrue(e.getMessage().contains("HTTP Internal server error"));
+		}
+	}
+
+	@Test
+	public void testCompressed() throws ITKMessagingException, UnsupportedEncodingException {
+		ITKTransportRouteImpl compressed = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, server.getAddress(),
+				null, null, 3600, 5000);
+		compressed.setCompressRequest(true);
+		compressed.setAcceptCompressed(true);
+		route = compressed;
+		server.gzipResponses = true;
+		server.responseBody = "<Response>\u00e9</Response>".getBytes("UTF-8");
+		Document response = send();
+		assertEquals("\u00e9", response.getDocumentElement().getTextContent());
+		assertEquals("gzip", server.requestHeaders.get(0).get("content-encoding"));
+		assertEquals("gzip", server.requestHeaders.get(0).get("accept-encoding"));
+		// The server decompresses the request
+		assertTrue(server.requestBodies.get(0).contains("TESTPAYLOAD"));
+	}
+
+	@Test
+	public void testNotCompressedByDefault() throws ITKMessagingException {
+		server.gzipResponses = true;
+		assertNotNull(send());
+		assertNull(server.requestHeaders.get(0).get("content-encoding"));
+		assertNull(server.requestHeaders.get(0).get("accept-encoding"));
+	}
+
+	@Test
+	public void testCompressedMaxResponseSize() throws ITKMessagingException, UnsupportedEncodingException {
+		ITKTransportRouteImpl compressed = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, server.getAddress(),
+				null, null, 3600, 5000);
+		compressed.setAcceptCompressed(true);
+		route = compressed;
+		server.gzipResponses = true;
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			text.append('a');
+		}
+		server.responseBody = ("<Response>" + text + "</Response>").getBytes("UTF-8");
+		// Compresses to well under the limit, but the limit applies once decompressed
+		sender.setMaxResponseSize(1000);
+		try {
+			send();
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			assertTrue(e.getMessage().contains("maximum size"));
+		}
+	}
+
+}
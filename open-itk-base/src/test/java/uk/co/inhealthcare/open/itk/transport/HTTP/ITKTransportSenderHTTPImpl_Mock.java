@@ -20,6 +20,7 @@ import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportSender;
 import uk.co.inhealthcare.open.itk.transport.WS.ITKSOAPException;
@@ -30,6 +31,7 @@ public class ITKTransportSenderHTTPImpl_Mock implements ITKTransportSender {
 	public String serviceEndpoint = "";
 	public String soapAction = "";
 	public int timeout = -1;
+	public ITKDeadline deadline = null;
 	
 	public String mockResponseCode = "503";
 	public String mockResponseFile = "HappyDay.xml";
@@ -42,6 +44,12 @@ public class ITKTransportSenderHTTPImpl_Mock implements ITKTransportSender {
 	 * @return the document
 	 * @throws ITKMessagingException the iTK messaging exception
 	 */
+	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map <String,String> transportProperties,
+			ITKDeadline deadline) throws ITKMessagingException {
+		this.deadline = deadline;
+		return transportSend(message, destination, transportProperties);
+	}
+
 	public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map <String,String> transportProperties)
 			throws ITKMessagingException {
 		
@@ -55,6 +63,8 @@ public class ITKTransportSenderHTTPImpl_Mock implements ITKTransportSender {
 			int responseCode = 200;
 			if (mockResponseCode.equalsIgnoreCase("503")){
 				responseCode = 503;
+			} else if (mockResponseCode.equalsIgnoreCase("202")){
+				responseCode = 202;
 			}
 			logger.trace("HTTP Response Code:"+responseCode);
 			if (responseCode == HttpURLConnection.HTTP_ACCEPTED){
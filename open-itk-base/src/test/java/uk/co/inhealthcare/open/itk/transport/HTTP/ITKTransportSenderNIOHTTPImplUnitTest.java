@@ -0,0 +1,201 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKTransportSenderNIOHTTPImplUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+
+	private HTTPServer_Mock server;
+	private ITKTransportSenderNIOHTTPImpl sender;
+	private ITKTransportRoute route;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new HTTPServer_Mock();
+		sender = new ITKTransportSenderNIOHTTPImpl();
+		route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, server.getAddress(), null, null, 3600, 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sender.close();
+		server.close();
+	}
+
+	private ITKMessage buildMessage() throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+		msg.setBusinessPayload("<TESTPAYLOAD xmlns=\"urn:test\"/>");
+		msg.buildFullMessage();
+		return msg;
+	}
+
+	private Map<String, String> httpProperties() {
+		Map<String, String> httpProperties = new HashMap<String, String>();
+		httpProperties.put("SOAPAction", SERVICE_ID);
+		return httpProperties;
+	}
+
+	@Test
+	public void testTransportSend() throws ITKMessagingException {
+		Document response = sender.transportSend(buildMessage(), route, httpProperties());
+		assertEquals("Envelope", response.getDocumentElement().getLocalName());
+		assertEquals(SERVICE_ID, server.requestHeaders.get(0).get("soapaction"));
+		assertEquals("close", server.requestHeaders.get(0).get("connection"));
+		assertTrue(server.requestBodies.get(0).contains("TESTPAYLOAD"));
+		assertEquals(0, sender.getInFlightCount());
+	}
+
+	@Test
+	public void testManyInFlight() throws Exception {
+		// One I/O thread carries every message while the server sits on each of them
+		sender.setIoThreads(1);
+		server.responseDelay = 500;
+		List<Future<Document>> responses = new ArrayList<Future<Document>>();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 50; i++) {
+			responses.add(sender.transportSendAsync(buildMessage(), route, httpProperties(), ITKDeadline.forRoute(route), null));
+		}
+		for (Future<Document> response : responses) {
+			assertNotNull(response.get(5, TimeUnit.SECONDS));
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(50, server.connections.get());
+		assertEquals(0, sender.getInFlightCount());
+	}
+
+	@Test
+	public void testCallback() throws Exception {
+		final CountDownLatch done = new CountDownLatch(2);
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		ITKTransportCallback callback = new ITKTransportCallback() {
+			@Override
+			public void completed(Document response) {
+				completed.incrementAndGet();
+				done.countDown();
+			}
+
+			@Override
+			public void failed(ITKMessagingException exception) {
+				failed.incrementAndGet();
+				done.countDown();
+			}
+		};
+		sender.transportSendAsync(buildMessage(), route, httpProperties(), ITKDeadline.forRoute(route), callback);
+		sender.transportSendAsync(buildMessage(), route, httpProperties(), ITKDeadline.after(0), callback);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(1, completed.get());
+		assertEquals(1, failed.get());
+	}
+
+	@Test
+	public void testBusyTone() throws Exception {
+		server.responseCode = 503;
+		Future<Document> response = sender.transportSendAsync(buildMessage(), route, httpProperties(),
+				ITKDeadline.forRoute(route), null);
+		try {
+			response.get(5, TimeUnit.SECONDS);
+			fail("Expected ExecutionException");
+		} catch (ExecutionException ee) {
+			assertTrue(ee.getCause() instanceof ITKUnavailableException);
+		}
+	}
+
+	@Test
+	public void testMaxInFlight() throws Exception {
+		sender.setMaxInFlight(1);
+		server.responseDelay = 500;
+		Future<Document> first = sender.transportSendAsync(buildMessage(), route, httpProperties(), ITKDeadline.forRoute(route), null);
+		try {
+			sender.transportSend(buildMessage(), route, httpProperties());
+			fail("Expected ITKUnavailableException");
+		} catch (ITKUnavailableException e) {
+			// Expected
+		}
+		assertNotNull(first.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testMaxResponseSize() throws ITKMessagingException {
+		sender.setMaxResponseSize(100);
+		try {
+			sender.transportSend(buildMessage(), route, httpProperties());
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			assertTrue(e.getMessage().contains("maximum size"));
+		}
+	}
+
+	@Test
+	public void testTransportTimeout() throws ITKMessagingException {
+		server.responseDelay = 2000;
+		route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, server.getAddress(), null, null, 3600, 200);
+		long start = System.currentTimeMillis();
+		try {
+			sender.transportSend(buildMessage(), route, httpProperties());
+			fail("Expected ITKTransportTimeoutException");
+		} catch (ITKTransportTimeoutException e) {
+			// Expected
+		}
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertEquals(0, sender.getInFlightCount());
+	}
+
+	@Test
+	public void testExpiredDeadline() throws ITKMessagingException {
+		try {
+			sender.transportSend(buildMessage(), route, httpProperties(), ITKDeadline.after(0));
+			fail("Expected ITKTransportTimeoutException");
+		} catch (ITKTransportTimeoutException e) {
+			// Expected
+		}
+		// Nothing was sent
+		assertEquals(0, server.connections.get());
+	}
+
+}
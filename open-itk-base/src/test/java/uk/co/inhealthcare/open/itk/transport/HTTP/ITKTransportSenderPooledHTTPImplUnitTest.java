@@ -0,0 +1,274 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKTransportTimeoutException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKTransportSenderPooledHTTPImplUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+
+	private HTTPServer_Mock server;
+	private ITKTransportSenderPooledHTTPImpl sender;
+	private ITKTransportRoute route;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new HTTPServer_Mock();
+		sender = new ITKTransportSenderPooledHTTPImpl();
+		route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_POOLED, server.getAddress(), null, null, 3600, 5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sender.close();
+		server.close();
+	}
+
+	private ITKMessage buildMessage() throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+		msg.setBusinessPayload("<TESTPAYLOAD xmlns=\"urn:test\"/>");
+		msg.buildFullMessage();
+		return msg;
+	}
+
+	private Document send() throws ITKMessagingException {
+		Map<String, String> httpProperties = new HashMap<String, String>();
+		httpProperties.put("SOAPAction", SERVICE_ID);
+		return sender.transportSend(buildMessage(), route, httpProperties);
+	}
+
+	@Test
+	public void testConnectionReused() throws ITKMessagingException, IOException {
+		for (int i = 0; i < 3; i++) {
+			Document response = send();
+			assertEquals("Envelope", response.getDocumentElement().getLocalName());
+		}
+		assertEquals(1, server.connections.get());
+		assertEquals(3, server.requestBodies.size());
+		assertEquals(SERVICE_ID, server.requestHeaders.get(0).get("soapaction"));
+		assertTrue(server.requestBodies.get(0).contains("TESTPAYLOAD"));
+
+		HTTPConnectionPool pool = sender.getConnectionPool(server.getAddress());
+		assertEquals(1, pool.getCreatedCount());
+		assertEquals(2, pool.getReusedCount());
+		assertEquals(1, pool.getIdleCount());
+		assertEquals(0, pool.getLeasedCount());
+		assertEquals(2, sender.getConnectionsReused());
+	}
+
+	@Test
+	public void testConnectionCloseNotReused() throws ITKMessagingException {
+		server.sendConnectionClose = true;
+		send();
+		send();
+		assertEquals(2, server.connections.get());
+		assertEquals(2, sender.getConnectionsCreated());
+		assertEquals(0, sender.getConnectionsReused());
+	}
+
+	@Test
+	public void testIdleConnectionEvicted() throws ITKMessagingException, InterruptedException {
+		sender.setIdleTimeout(50);
+		send();
+		Thread.sleep(100);
+		send();
+		assertEquals(2, sender.getConnectionsCreated());
+		assertEquals(1, sender.getConnectionsEvicted());
+		assertEquals(0, sender.getConnectionsReused());
+	}
+
+	@Test
+	public void testServerClosedConnectionRetried() throws ITKMessagingException, InterruptedException {
+		// The server drops the connection without telling the client, as on a keep-alive timeout
+		server.closeAfterResponse = true;
+		send();
+		Thread.sleep(100);
+		assertNotNull(send());
+		assertEquals(2, server.connections.get());
+		assertEquals(2, server.requestBodies.size());
+		assertEquals(2, sender.getConnectionsCreated());
+	}
+
+	@Test
+	public void testBusyTone() throws ITKMessagingException, IOException {
+		server.responseCode = 503;
+		try {
+			send();
+			fail("Expected ITKUnavailableException");
+		} catch (ITKUnavailableException e) {
+			// Expected
+		}
+		// The connection is still good for the next message
+		server.responseCode = 200;
+		assertNotNull(send());
+		assertEquals(1, server.connections.get());
+		assertEquals(0, sender.getConnectionPool(server.getAddress()).getLeasedCount());
+	}
+
+	@Test
+	public void testMaxResponseSize() throws ITKMessagingException, IOException {
+		sender.setMaxResponseSize(100);
+		try {
+			send();
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			assertTrue(e.getMessage().contains("maximum size"));
+		}
+		assertEquals(0, sender.getConnectionPool(server.getAddress()).getIdleCount());
+	}
+
+	@Test
+	public void testExpiredDeadline() throws ITKMessagingException {
+		try {
+			sender.transportSend(buildMessage(), route, new HashMap<String, String>(), ITKDeadline.after(0));
+			fail("Expected ITKTransportTimeoutException");
+		} catch (ITKTransportTimeoutException e) {
+			// Expected
+		}
+		// Nothing was sent
+		assertEquals(0, server.connections.get());
+	}
+
+	@Test
+	public void testDeadlineLimitsReadTimeout() throws ITKMessagingException {
+		// The route allows 5 seconds but only 200ms of the conversation is left
+		server.responseDelay = 2000;
+		long start = System.currentTimeMillis();
+		try {
+			sender.transportSend(buildMessage(), route, new HashMap<String, String>(), ITKDeadline.after(200));
+			fail("Expected ITKTransportTimeoutException");
+		} catch (ITKTransportTimeoutException e) {
+			// Expected
+		}
+		assertTrue(System.currentTimeMillis() - start < 1500);
+	}
+
+	@Test
+	public void testCompressed() throws ITKMessagingException {
+		ITKTransportRouteImpl compressed = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_POOLED,
+				server.getAddress(), null, null, 3600, 5000);
+		compressed.setCompressRequest(true);
+		compressed.setAcceptCompressed(true);
+		route = compressed;
+		server.gzipResponses = true;
+		assertNotNull(send());
+		assertNotNull(send());
+		assertEquals("gzip", server.requestHeaders.get(1).get("content-encoding"));
+		assertTrue(server.requestBodies.get(1).contains("TESTPAYLOAD"));
+		assertEquals(1, server.connections.get());
+	}
+
+	@Test
+	public void testHttpsPool() throws ITKMessagingException, IOException {
+		// Nothing listening - the pool is made before the connection is refused
+		ServerSocket unused = new ServerSocket(0);
+		String address = "https://127.0.0.1:" + unused.getLocalPort() + "/syncsoap";
+		unused.close();
+
+		ITKTransportRouteImpl secure = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_POOLED, address, null, null, 3600, 5000);
+		secure.setChannelId("MTLSKEY.ALL");
+		route = secure;
+		try {
+			send();
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			// Expected
+		}
+		HTTPConnectionPool pool = sender.getConnectionPool(secure);
+		assertNotNull(pool);
+		assertEquals(0, pool.getLeasedCount());
+
+		// The default TLS settings have a pool of their own
+		assertNull(sender.getConnectionPool(address));
+		ITKTransportRouteImpl other = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_POOLED, address, null, null, 3600, 5000);
+		other.setChannelId("TKW.ALL");
+		route = other;
+		try {
+			send();
+			fail("Expected ITKCommsException");
+		} catch (ITKCommsException e) {
+			// Expected
+		}
+		assertNotSame(pool, sender.getConnectionPool(address));
+		assertSame(sender.getConnectionPool(other), sender.getConnectionPool(address));
+	}
+
+	@Test
+	public void testHeaderLineTooLong() throws Exception {
+		// Sends a header line that never ends
+		final ServerSocket endless = new ServerSocket(0);
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Socket socket = endless.accept();
+					OutputStream out = socket.getOutputStream();
+					out.write("HTTP/1.1 200 OK\r\nX-Long: ".getBytes("US-ASCII"));
+					byte[] filler = new byte[1024];
+					Arrays.fill(filler, (byte) 'a');
+					while (true) {
+						out.write(filler);
+					}
+				} catch (IOException ioe) {
+					// The sender gave up and closed the connection
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		try {
+			route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS_POOLED,
+					"http://127.0.0.1:" + endless.getLocalPort() + "/syncsoap", null, null, 3600, 5000);
+			long start = System.currentTimeMillis();
+			try {
+				send();
+				fail("Expected ITKCommsException");
+			} catch (ITKCommsException e) {
+				// Expected
+			}
+			assertTrue(System.currentTimeMillis() - start < 2000);
+		} finally {
+			endless.close();
+		}
+	}
+
+}
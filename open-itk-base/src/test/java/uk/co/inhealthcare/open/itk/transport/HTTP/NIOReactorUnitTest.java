@@ -0,0 +1,114 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.HTTP;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class NIOReactorUnitTest extends TestCase {
+
+	private HTTPServer_Mock server;
+	private NIOReactor reactor;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new HTTPServer_Mock();
+		reactor = new NIOReactor("NIOReactorUnitTest");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		reactor.close();
+		server.close();
+	}
+
+	private static class Result implements NIOExchange.Handler {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile HTTPResponse response;
+		private volatile IOException exception;
+
+		@Override
+		public void completed(HTTPResponse response) {
+			this.response = response;
+			done.countDown();
+		}
+
+		@Override
+		public void failed(IOException exception) {
+			this.exception = exception;
+			done.countDown();
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		void await() throws InterruptedException {
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	private NIOExchange exchange(InetSocketAddress address, Result result) throws Exception {
+		URL url = new URL(server.getAddress());
+		String request = "POST " + url.getPath() + " HTTP/1.1\r\nHost: " + url.getHost() + ":" + url.getPort()
+				+ "\r\nContent-Length: 0\r\n\r\n";
+		return new NIOExchange(address, ByteBuffer.wrap(request.getBytes("US-ASCII")), null, 1000000, 5000,
+				ITKDeadline.after(5000), result);
+	}
+
+	@Test
+	public void testExchange() throws Exception {
+		URL url = new URL(server.getAddress());
+		Result result = new Result();
+		reactor.submit(exchange(new InetSocketAddress(url.getHost(), url.getPort()), result));
+		result.await();
+		assertNull(result.exception);
+		assertEquals(200, result.response.getStatusCode());
+	}
+
+	@Test
+	public void testStartFailureOnlyFailsThatExchange() throws Exception {
+		// Connecting to an unresolved address throws a RuntimeException
+		Result broken = new Result();
+		reactor.submit(exchange(InetSocketAddress.createUnresolved("nowhere.invalid", 80), broken));
+		broken.await();
+		assertNotNull(broken.exception);
+		assertNull(broken.response);
+
+		// The reactor is still running
+		URL url = new URL(server.getAddress());
+		Result result = new Result();
+		reactor.submit(exchange(new InetSocketAddress(url.getHost(), url.getPort()), result));
+		result.await();
+		assertNull(result.exception);
+		assertEquals(200, result.response.getStatusCode());
+	}
+
+}
@@ -0,0 +1,296 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKCommsException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKDeadlineExceededException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKSaturatedException;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.HTTP.HTTPServer_Mock;
+import uk.co.inhealthcare.open.itk.transport.HTTP.ITKTransportSenderHTTPImpl;
+import uk.co.inhealthcare.open.itk.transport.HTTP.ITKTransportSenderNIOHTTPImpl;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKTransportSenderCircuitBreakerImplUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+
+	private HTTPServer_Mock server;
+	private ITKTransportSenderCircuitBreakerImpl breaker;
+	private ITKTransportRoute route;
+	private long now = 1000000;
+
+	@Override
+	protected void setUp() throws Exception {
+		System.setProperty("JSAT.OverrideHostnameVerification", "N");
+		server = new HTTPServer_Mock();
+		server.responseCode = 503;
+		route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, server.getAddress(), null, null, 3600, 5000);
+		breaker = configure(new ITKTransportSenderCircuitBreakerImpl(), new ITKTransportSenderHTTPImpl());
+	}
+
+	private <T extends ITKTransportSenderCircuitBreakerImpl> T configure(T breaker, ITKTransportSender transport) {
+		breaker.setTransportService(transport);
+		breaker.setBusyToneThreshold(3);
+		breaker.setCommsFailureThreshold(2);
+		breaker.setOpenDuration(30000);
+		breaker.setClock(new ITKClock() {
+			@Override
+			public long currentTimeMillis() {
+				return now;
+			}
+		});
+		return breaker;
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+	}
+
+	private Document send() throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+		msg.setBusinessPayload("<TESTPAYLOAD xmlns=\"urn:test\"/>");
+		msg.buildFullMessage();
+		Map<String, String> httpProperties = new HashMap<String, String>();
+		httpProperties.put("SOAPAction", SERVICE_ID);
+		return breaker.transportSend(msg, route, httpProperties);
+	}
+
+	private void sendExpectingBusyTone() throws ITKMessagingException {
+		try {
+			send();
+			fail("Expected ITKUnavailableException");
+		} catch (ITKUnavailableException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testBusyTonesOpenCircuit() throws ITKMessagingException {
+		for (int i = 0; i < 5; i++) {
+			sendExpectingBusyTone();
+		}
+		// Only the first three reached the server
+		assertEquals(3, server.requestBodies.size());
+		ITKCircuitBreaker circuit = breaker.getCircuitBreaker(server.getAddress());
+		assertEquals(ITKCircuitBreaker.State.OPEN, circuit.getState());
+		assertEquals(2, circuit.getShortCircuitCount());
+	}
+
+	@Test
+	public void testSuccessResetsCount() throws ITKMessagingException {
+		sendExpectingBusyTone();
+		sendExpectingBusyTone();
+		server.responseCode = 200;
+		assertNotNull(send());
+		server.responseCode = 503;
+		sendExpectingBusyTone();
+		sendExpectingBusyTone();
+		assertEquals(ITKCircuitBreaker.State.CLOSED, breaker.getCircuitBreaker(server.getAddress()).getState());
+		assertEquals(5, server.requestBodies.size());
+	}
+
+	@Test
+	public void testProbeClosesCircuit() throws ITKMessagingException {
+		for (int i = 0; i < 3; i++) {
+			sendExpectingBusyTone();
+		}
+		server.responseCode = 200;
+		now += 29999;
+		sendExpectingBusyTone();
+		assertEquals(3, server.requestBodies.size());
+
+		now += 1;
+		assertNotNull(send());
+		assertEquals(ITKCircuitBreaker.State.CLOSED, breaker.getCircuitBreaker(server.getAddress()).getState());
+		assertNotNull(send());
+		assertEquals(5, server.requestBodies.size());
+	}
+
+	@Test
+	public void testFailedProbeReopensCircuit() throws ITKMessagingException {
+		for (int i = 0; i < 3; i++) {
+			sendExpectingBusyTone();
+		}
+		now += 30000;
+		ITKCircuitBreaker circuit = breaker.getCircuitBreaker(server.getAddress());
+		assertTrue(circuit.tryAcquire());
+		assertEquals(ITKCircuitBreaker.State.HALF_OPEN, circuit.getState());
+		// Only one probe at a time
+		sendExpectingBusyTone();
+		circuit.recordFailure(new ITKUnavailableException("HTTP Unavailable Response / ITK Busy Tone"));
+		assertEquals(ITKCircuitBreaker.State.OPEN, circuit.getState());
+		sendExpectingBusyTone();
+		assertEquals(3, server.requestBodies.size());
+	}
+
+	@Test
+	public void testDestinationsIndependent() throws Exception {
+		HTTPServer_Mock other = new HTTPServer_Mock();
+		try {
+			for (int i = 0; i < 3; i++) {
+				sendExpectingBusyTone();
+			}
+			route = new ITKTransportRouteImpl(ITKTransportRoute.HTTP_WS, other.getAddress(), null, null, 3600, 5000);
+			assertNotNull(send());
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void testAsyncCommsFailuresOpenCircuit() throws Exception {
+		ITKTransportSenderNIOHTTPImpl nioSender = new ITKTransportSenderNIOHTTPImpl();
+		ITKAsyncTransportSenderCircuitBreakerImpl breaker = configure(new ITKAsyncTransportSenderCircuitBreakerImpl(), nioSender);
+		server.responseCode = 502;
+		try {
+			for (int i = 0; i < 3; i++) {
+				ITKMessage msg = new ITKSimpleMessageImpl();
+				msg.setMessageProperties(new ITKMessagePropertiesImpl());
+				msg.getMessageProperties().setServiceId(SERVICE_ID);
+				msg.buildFullMessage();
+				Future<Document> response = breaker.transportSendAsync(msg, route, new HashMap<String, String>(),
+						ITKDeadline.forRoute(route), null);
+				try {
+					response.get(5, TimeUnit.SECONDS);
+					fail("Expected ExecutionException");
+				} catch (ExecutionException ee) {
+					if (i < 2) {
+						assertTrue(ee.getCause() instanceof ITKCommsException);
+					} else {
+						assertTrue(ee.getCause() instanceof ITKUnavailableException);
+					}
+				}
+			}
+			assertEquals(2, server.requestBodies.size());
+		} finally {
+			nioSender.close();
+		}
+	}
+
+	@Test
+	public void testBlockingSenderNotAsync() {
+		// A blocking sender must not look asynchronous once it has a circuit breaker
+		assertFalse(breaker instanceof ITKAsyncTransportSender);
+		try {
+			new ITKAsyncTransportSenderCircuitBreakerImpl().setTransportService(new ITKTransportSenderHTTPImpl());
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testDeadlineExceededNotCounted() throws ITKMessagingException {
+		breaker.setTransportService(new DeadlineExceededSender());
+		for (int i = 0; i < 3; i++) {
+			sendExpectingDeadlineExceeded();
+		}
+		assertEquals(ITKCircuitBreaker.State.CLOSED, breaker.getCircuitBreaker(server.getAddress()).getState());
+	}
+
+	@Test
+	public void testDeadlineExceededReleasesProbe() throws ITKMessagingException {
+		for (int i = 0; i < 3; i++) {
+			sendExpectingBusyTone();
+		}
+		now += 30000;
+		breaker.setTransportService(new DeadlineExceededSender());
+		sendExpectingDeadlineExceeded();
+		assertEquals(ITKCircuitBreaker.State.HALF_OPEN, breaker.getCircuitBreaker(server.getAddress()).getState());
+
+		// The next message is let through as the probe
+		breaker.setTransportService(new ITKTransportSenderHTTPImpl());
+		server.responseCode = 200;
+		assertNotNull(send());
+		assertEquals(ITKCircuitBreaker.State.CLOSED, breaker.getCircuitBreaker(server.getAddress()).getState());
+	}
+
+	@Test
+	public void testSaturationNotCounted() throws Exception {
+		ITKTransportSenderNIOHTTPImpl nioSender = new ITKTransportSenderNIOHTTPImpl();
+		nioSender.setMaxInFlight(0);
+		ITKAsyncTransportSenderCircuitBreakerImpl breaker = configure(new ITKAsyncTransportSenderCircuitBreakerImpl(), nioSender);
+		try {
+			for (int i = 0; i < 5; i++) {
+				ITKMessage msg = new ITKSimpleMessageImpl();
+				msg.setMessageProperties(new ITKMessagePropertiesImpl());
+				msg.getMessageProperties().setServiceId(SERVICE_ID);
+				msg.buildFullMessage();
+				Future<Document> response = breaker.transportSendAsync(msg, route, new HashMap<String, String>(),
+						ITKDeadline.forRoute(route), null);
+				try {
+					response.get(5, TimeUnit.SECONDS);
+					fail("Expected ExecutionException");
+				} catch (ExecutionException ee) {
+					assertTrue(ee.getCause() instanceof ITKSaturatedException);
+				}
+			}
+			assertEquals(0, server.requestBodies.size());
+			assertEquals(ITKCircuitBreaker.State.CLOSED, breaker.getCircuitBreaker(server.getAddress()).getState());
+		} finally {
+			nioSender.close();
+		}
+	}
+
+	private void sendExpectingDeadlineExceeded() throws ITKMessagingException {
+		try {
+			send();
+			fail("Expected ITKDeadlineExceededException");
+		} catch (ITKDeadlineExceededException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Fails every message as if the deadline ran out part way through sending it
+	 */
+	private static class DeadlineExceededSender implements ITKTransportSender {
+
+		@Override
+		public Document transportSend(ITKMessage message, ITKTransportRoute destination,
+				Map<String, String> transportProperties) throws ITKMessagingException {
+			return transportSend(message, destination, transportProperties, ITKDeadline.forRoute(destination));
+		}
+
+		@Override
+		public Document transportSend(ITKMessage message, ITKTransportRoute destination,
+				Map<String, String> transportProperties, ITKDeadline deadline) throws ITKMessagingException {
+			throw new ITKDeadlineExceededException("Deadline exceeded sending ITK Message");
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.WS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.transport.ITKAsyncSender;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.util.SettableFuture;
+
+/**
+ * An ITKAsyncSender which answers each route after a primed delay.
+ *
+ * @author Nick Jones
+ */
+public class ITKAsyncSenderWSImpl_Mock extends ITKSenderWSImpl_Mock implements ITKAsyncSender {
+
+	private final Map<String, Long> delays = new HashMap<String, Long>();
+	private final Map<String, ITKMessagingException> failures = new HashMap<String, ITKMessagingException>();
+
+	public void primeDelay(String physicalAddress, long delay) {
+		delays.put(physicalAddress, delay);
+	}
+
+	public void primeFailure(String physicalAddress, ITKMessagingException failure) {
+		failures.put(physicalAddress, failure);
+	}
+
+	public List<String> parm_sentTo = Collections.synchronizedList(new ArrayList<String>());
+
+	@Override
+	public Future<ITKMessage> sendSyncAsync(final ITKTransportRoute destination, final ITKMessage request,
+			ITKDeadline deadline, final ITKSendCallback callback) throws ITKMessagingException {
+
+		parm_sentTo.add(destination.getPhysicalAddress());
+		final SettableFuture<ITKMessage> future = new SettableFuture<ITKMessage>();
+		final Long delay = delays.get(destination.getPhysicalAddress());
+		final ITKMessagingException failure = failures.get(destination.getPhysicalAddress());
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (delay != null) {
+						Thread.sleep(delay);
+					}
+					if (failure != null) {
+						throw failure;
+					}
+					ITKMessage response = sendSync(destination, request);
+					future.set(response);
+					callback.completed(response);
+				} catch (ITKMessagingException me) {
+					future.setException(me);
+					callback.failed(me);
+				} catch (InterruptedException ie) {
+					future.cancel(false);
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+		return future;
+	}
+
+}
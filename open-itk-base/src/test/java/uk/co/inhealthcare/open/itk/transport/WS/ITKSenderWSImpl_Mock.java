@@ -21,6 +21,7 @@ import uk.co.inhealthcare.open.itk.capabilities.AuditService;
 import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
 import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
 import uk.co.inhealthcare.open.itk.transport.ITKSender;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportSender;
@@ -51,6 +52,14 @@ public class ITKSenderWSImpl_Mock implements ITKSender {
 
 	public ITKTransportRoute parm_destination;
 	public ITKMessage parm_request;
+	public ITKDeadline parm_deadline;
+
+	@Override
+	public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline) throws ITKMessagingException {
+		parm_deadline = deadline;
+		return sendSync(destination, request);
+	}
+
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.transport.ITKSender#sendSync(uk.nhs.interoperability.transport.ITKTransportRoute, uk.nhs.interoperability.payload.ITKMessage)
 	 */
@@ -90,14 +99,13 @@ public class ITKSenderWSImpl_Mock implements ITKSender {
 	
 	/* (non-Javadoc)
 	 * @see uk.nhs.interoperability.transport.ITKSender#send(uk.nhs.interoperability.transport.ITKTransportRoute, uk.nhs.interoperability.payload.ITKMessage)
-	 * Not implemented in this version (not required for SMSP)
 	 */
 	@Override
 	public void send(ITKTransportRoute destination, ITKMessage request)	throws ITKMessagingException {
 
-		ITKMessagingException notImplementedException = 
-				new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not Yet Implemented");
-		throw notImplementedException;
+		// Store the parms to be available to any JUNITS
+		parm_destination = destination;
+		parm_request = request;
 		
 	}
 	private String readInput(String testFileName) throws IOException {
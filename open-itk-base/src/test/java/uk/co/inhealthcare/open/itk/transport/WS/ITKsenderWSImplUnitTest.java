@@ -1,9 +1,17 @@
 package uk.co.inhealthcare.open.itk.transport.WS;
 
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
 import junit.framework.TestCase;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.w3c.dom.Document;
 
 import uk.co.inhealthcare.open.itk.capabilities.AuditService;
 import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
@@ -14,8 +22,15 @@ import uk.co.inhealthcare.open.itk.infrastructure.ITKUnavailableException;
 import uk.co.inhealthcare.open.itk.payload.ITKMessage;
 import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
 import uk.co.inhealthcare.open.itk.service.ITKSimpleAudit_Mock;
+import uk.co.inhealthcare.open.itk.transport.ITKAsyncTransportSender;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRouteImpl;
+import uk.co.inhealthcare.open.itk.transport.HTTP.HTTPServer_Mock;
 import uk.co.inhealthcare.open.itk.transport.HTTP.ITKTransportSenderHTTPImpl_Mock;
+import uk.co.inhealthcare.open.itk.transport.HTTP.ITKTransportSenderNIOHTTPImpl;
 import uk.co.inhealthcare.open.itk.transport.WS.ITKSenderWSImpl;
 
 public class ITKsenderWSImplUnitTest extends TestCase {
@@ -216,7 +231,7 @@ public class ITKsenderWSImplUnitTest extends TestCase {
 			// Expect this
 		}
 	}
-	public void testAsyncNotImplemented() throws ITKMessagingException {
+	public void testAsyncNullRequest() throws ITKMessagingException {
 
 		try {
 			ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", "");
@@ -227,7 +242,7 @@ public class ITKsenderWSImplUnitTest extends TestCase {
 		}
 	}
 
-	public void testSendNotImplemented() throws ITKMessagingException {
+	public void testSendNullRequest() throws ITKMessagingException {
 		
 		try {
 			ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", "");
@@ -238,5 +253,209 @@ public class ITKsenderWSImplUnitTest extends TestCase {
 		}
 	}
 
+	public void testSendAcknowledged() throws ITKMessagingException {
+		
+		itkHttpSender.mockResponseCode="202";
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		request.setMessageProperties(props);
+		ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", SERVICE_ENDPOINT);
+
+		// An acknowledgement is all a fire and forget send needs
+		wsSender.send(dest, request);
+		
+		assertEquals(SERVICE_ID, itkHttpSender.soapAction);
+		assertEquals(AuditService.SOAPREQUEST, auditService.parm_requestAuditType.get(0));
+		assertEquals(AuditService.SOAPRESPONSE, auditService.parm_requestAuditType.get(1));
+		SOAPAuditDetails soapResponseAudit = (SOAPAuditDetails) auditService.parm_requestAuditDetails.get(1);
+		assertEquals("202", soapResponseAudit.getStatus());
+	}
+
+	public void testSendBusy() throws ITKMessagingException {
+		
+		itkHttpSender.mockResponseCode="503";
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		request.setMessageProperties(props);
+		ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", SERVICE_ENDPOINT);
+		try {
+			wsSender.send(dest, request);
+			fail("Should throw an ITKUnavailableException");
+		} catch (ITKUnavailableException e) {
+			// Expect this
+		}
+	}
+
+	@Test
+	public void testSendSyncAsync() throws Exception {
+		
+		System.setProperty("JSAT.OverrideHostnameVerification", "N");
+		HTTPServer_Mock server = new HTTPServer_Mock();
+		ITKTransportSenderNIOHTTPImpl nioSender = new ITKTransportSenderNIOHTTPImpl();
+		wsSender.setTransportService(nioSender);
+		try {
+			ITKMessage request = new ITKSimpleMessageImpl();
+			ITKMessageProperties props = new ITKMessagePropertiesImpl();
+			props.setServiceId(SERVICE_ID);
+			request.setMessageProperties(props);
+			ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", server.getAddress(), null, null, 3600, 5000);
+
+			Future<ITKMessage> response = wsSender.sendSyncAsync(dest, request, null);
+			assertNotNull(response.get(5, TimeUnit.SECONDS).getBusinessPayloadDocument());
+			assertEquals(AuditService.SOAPRESPONSE, auditService.parm_requestAuditType.get(1));
+			assertEquals("OK", ((SOAPAuditDetails) auditService.parm_requestAuditDetails.get(1)).getStatus());
+
+			// Failures come back through the future and are audited as for sendSync
+			server.responseCode = 503;
+			response = wsSender.sendSyncAsync(dest, request, null);
+			try {
+				response.get(5, TimeUnit.SECONDS);
+				fail("ExecutionException should have been thrown");
+			} catch (ExecutionException ee) {
+				assertTrue(ee.getCause() instanceof ITKUnavailableException);
+			}
+			assertEquals("FAIL:BUSY", ((SOAPAuditDetails) auditService.parm_requestAuditDetails.get(3)).getStatus());
+		} finally {
+			nioSender.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testSendSyncAsyncBlockingTransport() throws Exception {
+		
+		itkHttpSender.mockResponseCode="200";
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		request.setMessageProperties(props);
+		ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", SERVICE_ENDPOINT);
+
+		// The transport cannot send asynchronously so the message is sent straight away
+		Future<ITKMessage> response = wsSender.sendSyncAsync(dest, request, null);
+		assertTrue(response.isDone());
+		assertNotNull(response.get());
+	}
+
+	@Test
+	public void testSendSyncAsyncBlockingUnexpectedError() throws Exception {
+		
+		wsSender.setTransportService(new ITKTransportSenderHTTPImpl_Mock() {
+			@Override
+			public Document transportSend(ITKMessage message, ITKTransportRoute destination, Map<String, String> transportProperties,
+					ITKDeadline deadline) {
+				throw new IllegalStateException("Unexpected");
+			}
+		});
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		request.setMessageProperties(props);
+		ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", SERVICE_ENDPOINT);
+
+		final AtomicReference<ITKMessagingException> failure = new AtomicReference<ITKMessagingException>();
+		Future<ITKMessage> response = wsSender.sendSyncAsync(dest, request, null, new ITKSendCallback() {
+			@Override
+			public void completed(ITKMessage response) {
+			}
+
+			@Override
+			public void failed(ITKMessagingException exception) {
+				failure.set(exception);
+			}
+		});
+		assertTrue(response.isDone());
+		assertNotNull(failure.get());
+		assertTrue(failure.get().getCause() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void testSendSyncAsyncUnexpectedError() throws Exception {
+		
+		// The response is processed on the transport's thread once it arrives
+		wsSender.setTransportService(new AsyncTransport_Mock());
+		wsSender.setAuditService(new ITKSimpleAudit_Mock() {
+			@Override
+			public void auditSOAPResponse(SOAPAuditDetails auditDetails) {
+				throw new IllegalStateException("Unexpected");
+			}
+		});
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		request.setMessageProperties(props);
+		ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", SERVICE_ENDPOINT);
+
+		final AtomicReference<ITKMessagingException> failure = new AtomicReference<ITKMessagingException>();
+		Future<ITKMessage> response = wsSender.sendSyncAsync(dest, request, null, new ITKSendCallback() {
+			@Override
+			public void completed(ITKMessage response) {
+			}
+
+			@Override
+			public void failed(ITKMessagingException exception) {
+				failure.set(exception);
+			}
+		});
+		assertTrue(response.isDone());
+		assertNotNull(failure.get());
+		assertTrue(failure.get().getCause() instanceof IllegalStateException);
+	}
+
+	@Test
+	public void testSendSyncAsyncBlockingSendThreads() throws Exception {
+		
+		itkHttpSender.mockResponseCode="200";
+		wsSender.setBlockingSendThreads(1);
+		
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		request.setMessageProperties(props);
+		ITKTransportRouteImpl dest = new ITKTransportRouteImpl("WS", SERVICE_ENDPOINT);
+
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<String> thread = new AtomicReference<String>();
+		try {
+			// The blocking transport is called on one of the sender's threads
+			Future<ITKMessage> response = wsSender.sendSyncAsync(dest, request, null, new ITKSendCallback() {
+				@Override
+				public void completed(ITKMessage response) {
+					thread.set(Thread.currentThread().getName());
+					done.countDown();
+				}
+
+				@Override
+				public void failed(ITKMessagingException exception) {
+					done.countDown();
+				}
+			});
+			assertNotNull(response.get(5, TimeUnit.SECONDS));
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals("ITK-WS-1", thread.get());
+		} finally {
+			wsSender.close();
+		}
+	}
+
+	/**
+	 * Completes every send straight away with an empty (202) response
+	 */
+	private static class AsyncTransport_Mock extends ITKTransportSenderHTTPImpl_Mock implements ITKAsyncTransportSender {
+
+		@Override
+		public Future<Document> transportSendAsync(ITKMessage message, ITKTransportRoute destination,
+				Map<String, String> transportProperties, ITKDeadline deadline, ITKTransportCallback callback) {
+			callback.completed(null);
+			return null;
+		}
+	}
 
 }
@@ -0,0 +1,140 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.transport.WS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKAddressImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.service.ITKSimpleDOSImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportPropertiesImpl;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+import uk.co.inhealthcare.open.itk.util.xml.XPaths;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class SOAPEnvelopeWriterUnitTest extends TestCase {
+
+	private final static String SERVICE_ID = "urn:nhs-itk:services:201005:testServiceA-v1-0";
+	private final static String PROVIDER_EXPLICIT = "urn:nhs-uk:addressing:ods:EXPLICIT";
+
+	private WSSOAPMessageImpl buildSoapMessage(String messageType) throws ITKMessagingException {
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+		msg.setBusinessPayload("<TESTPAYLOAD xmlns=\"urn:test\"><A>a&amp;b</A></TESTPAYLOAD>");
+		msg.buildFullMessage();
+
+		ITKSimpleDOSImpl dos = new ITKSimpleDOSImpl();
+		WSSOAPMessageImpl soapMsg = new WSSOAPMessageImpl(dos.resolveDestination(SERVICE_ID, new ITKAddressImpl(PROVIDER_EXPLICIT)), msg, messageType);
+		soapMsg.getTransportProperties().setTransportFrom("http://127.0.0.1:4000/syncsoap");
+		soapMsg.getTransportProperties().setTransportUsername("JSAT");
+		return soapMsg;
+	}
+
+	private String evaluate(String xpath, Document doc) throws XPathExpressionException {
+		return XPaths.compileXPath(xpath).evaluate(doc);
+	}
+
+	@Test
+	public void testMatchesTemplate() throws ITKMessagingException, SAXException, IOException, ParserConfigurationException, XPathExpressionException {
+		WSSOAPMessageImpl soapMsg = buildSoapMessage(WSSOAPMessageImpl.SYNCREQ);
+		soapMsg.buildFullMessage("ToSOAP.xslt");
+		Document expected = DomUtils.parse(soapMsg.getFullMessage().replaceAll(">\\s+<", "><"));
+
+		soapMsg.buildFullMessage();
+		Document actual = DomUtils.parse(soapMsg.getFullMessage());
+
+		ITKTransportProperties e = ITKTransportPropertiesImpl.buildFromSoap(expected);
+		ITKTransportProperties a = ITKTransportPropertiesImpl.buildFromSoap(actual);
+		assertEquals(e.getTransportMessageId(), a.getTransportMessageId());
+		assertEquals(e.getTransportAction(), a.getTransportAction());
+		assertEquals(e.getTransportTo(), a.getTransportTo());
+		assertEquals(e.getTransportFrom(), a.getTransportFrom());
+		assertEquals(e.getTransportUsername(), a.getTransportUsername());
+		assertEquals(e.getTransportCreatedTime(), a.getTransportCreatedTime());
+		assertEquals(e.getTransportExpiresTime(), a.getTransportExpiresTime());
+		assertEquals(evaluate("SOAP:Envelope/SOAP:Header/wsse:Security/wsu:Timestamp/@wsu:Id", expected),
+				evaluate("SOAP:Envelope/SOAP:Header/wsse:Security/wsu:Timestamp/@wsu:Id", actual));
+
+		assertEquals(evaluate("SOAP:Envelope/SOAP:Body/itk:DistributionEnvelope/itk:header/@trackingid", expected),
+				evaluate("SOAP:Envelope/SOAP:Body/itk:DistributionEnvelope/itk:header/@trackingid", actual));
+		assertEquals(evaluate("SOAP:Envelope/SOAP:Body/itk:DistributionEnvelope/itk:payloads/itk:payload/@id", expected),
+				evaluate("SOAP:Envelope/SOAP:Body/itk:DistributionEnvelope/itk:payloads/itk:payload/@id", actual));
+
+		// Namespace declarations may be placed differently, so compare the payloads as parsed
+		Document expectedPayload = DomUtils.createDocumentFromNode((Node)XPaths.SOAP_WRAPPED_ITK_FIRST_PAYLOAD_XPATH.evaluate(expected, XPathConstants.NODE));
+		Document actualPayload = DomUtils.createDocumentFromNode((Node)XPaths.SOAP_WRAPPED_ITK_FIRST_PAYLOAD_XPATH.evaluate(actual, XPathConstants.NODE));
+		assertEquals("urn:test", actualPayload.getDocumentElement().getNamespaceURI());
+		assertEquals(expectedPayload.getDocumentElement().getTextContent(), actualPayload.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testAsyncRequestHeaders() throws ITKMessagingException, SAXException, IOException, ParserConfigurationException, XPathExpressionException {
+		WSSOAPMessageImpl soapMsg = buildSoapMessage(WSSOAPMessageImpl.ASYNCREQ);
+		soapMsg.getTransportProperties().setTransportReplyTo("http://127.0.0.1:4000/reply");
+		soapMsg.getTransportProperties().setTransportFaultTo("");
+		soapMsg.buildFullMessage();
+		Document soap = DomUtils.parse(soapMsg.getFullMessage());
+
+		assertEquals("http://127.0.0.1:4000/reply", evaluate("SOAP:Envelope/SOAP:Header/wsa:ReplyTo/wsa:Address", soap));
+		assertEquals("0", evaluate("count(SOAP:Envelope/SOAP:Header/wsa:FaultTo)", soap));
+		assertEquals("JSAT", evaluate("SOAP:Envelope/SOAP:Header/wsse:Security/wsse:UsernameToken/wsse:Username", soap));
+	}
+
+	@Test
+	public void testSyncResponseHeaders() throws ITKMessagingException, SAXException, IOException, ParserConfigurationException, XPathExpressionException {
+		WSSOAPMessageImpl soapMsg = buildSoapMessage(WSSOAPMessageImpl.SYNCRESP);
+		soapMsg.buildFullMessage();
+		Document soap = DomUtils.parse(soapMsg.getFullMessage());
+
+		assertEquals(SERVICE_ID, evaluate("SOAP:Envelope/SOAP:Header/wsa:Action", soap));
+		assertEquals("0", evaluate("count(SOAP:Envelope/SOAP:Header/wsa:From)", soap));
+		assertEquals("0", evaluate("count(SOAP:Envelope/SOAP:Header/wsse:Security)", soap));
+	}
+
+	@Test
+	public void testWriteFullMessage() throws ITKMessagingException, IOException {
+		WSSOAPMessageImpl soapMsg = buildSoapMessage(WSSOAPMessageImpl.SYNCREQ);
+		soapMsg.buildFullMessage();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		soapMsg.writeFullMessage(out);
+		assertEquals(soapMsg.getFullMessage(), out.toString("UTF-8"));
+
+		// Once built with a template the transformed message is written as it is
+		soapMsg.buildFullMessage("ToSOAP.xslt");
+		out = new ByteArrayOutputStream();
+		soapMsg.writeFullMessage(out);
+		assertEquals(soapMsg.getFullMessage(), out.toString("UTF-8"));
+	}
+
+}
@@ -23,6 +23,7 @@ import uk.co.inhealthcare.open.itk.transport.ITKTransportProperties;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportPropertiesImpl;
 import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
 import uk.co.inhealthcare.open.itk.transport.WS.WSSOAPMessageImpl;
+import uk.co.inhealthcare.open.itk.util.ITKClock;
 import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
 import uk.co.inhealthcare.open.itk.util.xml.XPaths;
 
@@ -214,4 +215,36 @@ public class WSSOAPMessageImplUnitTest extends TestCase {
 		}
 		
 	}
+
+	@Test
+	public void testTimestampsFromClock() throws ITKMessagingException {
+
+		ITKMessage msg = new ITKSimpleMessageImpl();
+		msg.setMessageProperties(new ITKMessagePropertiesImpl());
+		msg.getMessageProperties().setServiceId(SERVICE_ID);
+
+		ITKSimpleDOSImpl dos = new ITKSimpleDOSImpl();
+		ITKTransportRoute destination = dos.resolveDestination(SERVICE_ID, new ITKAddressImpl(PROVIDER_EXPLICIT));
+
+		ITKClock defaultClock = ITKClock.getDefault();
+		ITKClock.setDefault(new ITKClock() {
+			@Override
+			public long currentTimeMillis() {
+				// 2014-06-30T13:45:01.999Z
+				return 1404135901999L;
+			}
+		});
+		WSSOAPMessageImpl soapMsg;
+		try {
+			soapMsg = new WSSOAPMessageImpl(destination,msg,WSSOAPMessageImpl.SYNCREQ);
+		} finally {
+			ITKClock.setDefault(defaultClock);
+		}
+
+		assertEquals("2014-06-30T13:45:01Z", soapMsg.getCreatedDateString());
+		assertEquals(1404135901999L, soapMsg.getCreated().getTimeInMillis());
+		soapMsg.setTimeToLive(60);
+		assertEquals("2014-06-30T13:46:01Z", soapMsg.getExpiryDateString());
+		assertEquals(1404135961999L, soapMsg.getExpires().getTimeInMillis());
+	}
 }
@@ -0,0 +1,79 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKSendCallback;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportCallback;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKCompletionsUnitTest extends TestCase {
+
+	@Test
+	public void testCompleted() throws Exception {
+		SettableFuture<ITKMessage> future = new SettableFuture<ITKMessage>();
+		final ITKMessage[] notified = new ITKMessage[1];
+		ITKMessage response = new ITKSimpleMessageImpl();
+		ITKCompletions.complete(future, new ITKSendCallback() {
+			public void completed(ITKMessage response) {
+				notified[0] = response;
+			}
+			public void failed(ITKMessagingException exception) {
+				fail("Unexpected failure");
+			}
+		}, response, null);
+		assertSame(response, future.get());
+		assertSame(response, notified[0]);
+	}
+
+	@Test
+	public void testFailedWithoutCallback() throws Exception {
+		SettableFuture<Document> future = new SettableFuture<Document>();
+		ITKMessagingException exception = new ITKMessagingException("Failed");
+		ITKCompletions.complete(future, (ITKTransportCallback) null, null, exception);
+		try {
+			future.get();
+			fail("Expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertSame(exception, e.getCause());
+		}
+	}
+
+	@Test
+	public void testCallbackFailureIsContained() throws Exception {
+		SettableFuture<Document> future = new SettableFuture<Document>();
+		ITKCompletions.complete(future, new ITKTransportCallback() {
+			public void completed(Document response) {
+				throw new IllegalStateException("Callback failed");
+			}
+			public void failed(ITKMessagingException exception) {
+			}
+		}, null, null);
+		assertTrue(future.isDone());
+		assertNull(future.get());
+	}
+
+}
@@ -0,0 +1,111 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class ITKRingBufferUnitTest extends TestCase {
+
+	@Test
+	public void testCapacity() {
+		assertEquals(1, new ITKRingBuffer<String>(1).capacity());
+		assertEquals(8, new ITKRingBuffer<String>(5).capacity());
+		assertEquals(8, new ITKRingBuffer<String>(8).capacity());
+		try {
+			new ITKRingBuffer<String>(0);
+			fail("Should throw an IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testOfferAndDrain() {
+		ITKRingBuffer<String> ring = new ITKRingBuffer<String>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer("E" + i));
+		}
+		assertFalse(ring.offer("FULL"));
+		assertEquals(4, ring.size());
+
+		List<String> drained = new ArrayList<String>();
+		assertEquals(3, ring.drainTo(drained, 3));
+		assertEquals("E0", drained.get(0));
+		assertEquals("E2", drained.get(2));
+
+		// Wraps round into the slots just drained
+		assertTrue(ring.offer("E4"));
+		assertTrue(ring.offer("E5"));
+		drained.clear();
+		assertEquals(3, ring.drainTo(drained, 10));
+		assertEquals("E3", drained.get(0));
+		assertEquals("E5", drained.get(2));
+		assertTrue(ring.isEmpty());
+		assertEquals(0, ring.drainTo(drained, 10));
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final ITKRingBuffer<Integer> ring = new ITKRingBuffer<Integer>(64);
+		final int producers = 4;
+		final int perProducer = 10000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						while (!ring.offer(base + i)) {
+							Thread.yield();
+						}
+					}
+				}
+			});
+			t.start();
+			threads.add(t);
+		}
+		int[] last = new int[producers];
+		Arrays.fill(last, -1);
+		int received = 0;
+		List<Integer> drained = new ArrayList<Integer>();
+		long giveUp = System.currentTimeMillis() + 30000;
+		while (received < producers * perProducer && System.currentTimeMillis() < giveUp) {
+			drained.clear();
+			ring.drainTo(drained, 32);
+			for (Integer value : drained) {
+				// Each producer's elements come out in the order they went in
+				int producer = value / perProducer;
+				assertTrue(value % perProducer > last[producer]);
+				last[producer] = value % perProducer;
+				received++;
+			}
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(producers * perProducer, received);
+		assertTrue(ring.isEmpty());
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class TimestampFormatUnitTest extends TestCase {
+
+	// 2014-06-30T13:45:01.007Z
+	private static final long TIME = 1404135901007L;
+
+	private static String expected(String pattern, TimeZone timeZone, long millis) {
+		SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+		sdf.setTimeZone(timeZone);
+		return sdf.format(new Date(millis));
+	}
+
+	@Test
+	public void testAuditFormat() {
+		assertEquals("2014/06/30 13:45:01.007 +0000", TimestampFormat.AUDIT.format(TIME));
+		assertEquals("2014/06/30 13:45:01.090 +0000", TimestampFormat.AUDIT.format(TIME + 83));
+		assertEquals("2014/06/30 13:45:01.999 +0000", TimestampFormat.AUDIT.format(TIME + 992));
+		assertEquals("2014/06/30 13:45:02.000 +0000", TimestampFormat.AUDIT.format(TIME + 993));
+		// Going back a second must not reuse the cached second
+		assertEquals("2014/06/30 13:45:01.500 +0000", TimestampFormat.AUDIT.format(TIME + 493));
+	}
+
+	@Test
+	public void testSoapFormat() {
+		assertEquals("2014-06-30T13:45:01Z", TimestampFormat.SOAP.format(TIME));
+	}
+
+	@Test
+	public void testMatchesSimpleDateFormat() {
+		TimeZone london = TimeZone.getTimeZone("Europe/London");
+		String[] patterns = { "yyyyMMddHHmmss", "yyyy/MM/dd HH:mm:ss.SSS Z", "SSS'ms' dd/MM/yyyy" };
+		for (String pattern : patterns) {
+			TimestampFormat format = new TimestampFormat(pattern, london);
+			for (long millis = TIME - 5000; millis < TIME + 5000; millis += 377) {
+				assertEquals(expected(pattern, london, millis), format.format(millis));
+			}
+			assertEquals(expected(pattern, london, -1), format.format(-1));
+		}
+	}
+
+	@Test
+	public void testConcurrentFormatting() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>();
+			for (int i = 0; i < 4; i++) {
+				final long start = TIME + i * 250000L;
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() {
+						for (long millis = start; millis < start + 250000L; millis += 97) {
+							String actual = TimestampFormat.AUDIT.format(millis);
+							String expected = expected("yyyy/MM/dd HH:mm:ss.SSS Z", TimeZone.getTimeZone("GMT"), millis);
+							if (!expected.equals(actual)) {
+								return expected + " != " + actual;
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<String> result : results) {
+				assertNull(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testClock() {
+		ITKClock clock = new ITKClock() {
+			@Override
+			public long currentTimeMillis() {
+				return TIME;
+			}
+		};
+		assertEquals("2014/06/30 13:45:01.007 +0000", clock.format(TimestampFormat.AUDIT));
+		assertTrue(Math.abs(ITKClock.getDefault().currentTimeMillis() - System.currentTimeMillis()) < 1000);
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util.xml;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class DOMStreamReaderUnitTest extends TestCase {
+
+	private static final String XML = "<?xml version=\"1.0\"?><!-- before --><itk:A xmlns:itk=\"urn:nhs-itk:ns:201005\" a=\"1\">"
+			+ "<itk:B xmlns=\"urn:default\" xmlns:x=\"urn:x\" x:b=\"2\">text<![CDATA[<cdata>]]></itk:B>"
+			+ "<C/><?pi data?><!-- inside --></itk:A>";
+
+	@Test
+	public void testSameEventsAsParser() throws XMLStreamException, SAXException, IOException, ParserConfigurationException {
+		XMLInputFactory xif = XMLInputFactory.newInstance();
+		xif.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		XMLStreamReader expected = xif.createXMLStreamReader(new StringReader(XML));
+		XMLStreamReader actual = new DOMStreamReader(DomUtils.parse(XML));
+		assertEquals(describe(expected), describe(actual));
+	}
+
+	@Test
+	public void testElement() throws XMLStreamException, SAXException, IOException, ParserConfigurationException {
+		Document doc = DomUtils.parse(XML);
+		DOMStreamReader reader = new DOMStreamReader(doc.getDocumentElement().getFirstChild());
+		assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+		assertEquals("B", reader.getLocalName());
+		assertSame(doc.getDocumentElement().getFirstChild(), reader.getCurrentNode());
+		assertEquals("2", reader.getAttributeValue("urn:x", "b"));
+		assertEquals("text<cdata>", reader.getElementText());
+		assertEquals(XMLStreamConstants.END_DOCUMENT, reader.next());
+		assertFalse(reader.hasNext());
+	}
+
+	@Test
+	public void testEmptyElement() throws XMLStreamException, SAXException, IOException, ParserConfigurationException {
+		DOMStreamReader reader = new DOMStreamReader(DomUtils.parse("<A/>"));
+		assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+		assertEquals(XMLStreamConstants.END_ELEMENT, reader.nextTag());
+		assertEquals("A", reader.getLocalName());
+		assertEquals(XMLStreamConstants.END_DOCUMENT, reader.next());
+	}
+
+	private static List<String> describe(XMLStreamReader reader) throws XMLStreamException {
+		List<String> events = new ArrayList<String>();
+		while (reader.hasNext()) {
+			// The JDK parser reports CDATA sections as characters by default
+			int event = reader.next() == XMLStreamConstants.CDATA ? XMLStreamConstants.CHARACTERS : reader.getEventType();
+			StringBuilder sb = new StringBuilder().append(event);
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT:
+				sb.append(' ').append(reader.getName()).append(" prefix=").append(reader.getPrefix());
+				for (int i = 0; i < reader.getNamespaceCount(); i++) {
+					sb.append(" ns:").append(reader.getNamespacePrefix(i)).append('=').append(reader.getNamespaceURI(i));
+				}
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					sb.append(" @").append(reader.getAttributeName(i)).append('=').append(reader.getAttributeValue(i));
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				sb.append(' ').append(reader.getName()).append(" ns:").append(reader.getNamespaceCount());
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.COMMENT:
+				sb.append(' ').append(new String(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength()));
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				sb.append(' ').append(reader.getPITarget()).append(' ').append(reader.getPIData());
+				break;
+			default:
+				break;
+			}
+			events.add(sb.toString());
+		}
+		return events;
+	}
+
+}
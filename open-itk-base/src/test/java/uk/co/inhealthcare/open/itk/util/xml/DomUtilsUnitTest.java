@@ -0,0 +1,69 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util.xml;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class DomUtilsUnitTest extends TestCase {
+
+	@Test
+	public void testBuilderReused() throws ParserConfigurationException {
+		assertSame(DomUtils.getDocumentBuilder(), DomUtils.getDocumentBuilder());
+	}
+
+	@Test
+	public void testParseNamespaceAware() throws SAXException, IOException, ParserConfigurationException {
+		Document doc = DomUtils.parse("<itk:A xmlns:itk=\"urn:nhs-itk:ns:201005\"><itk:B>b</itk:B></itk:A>");
+		assertEquals("urn:nhs-itk:ns:201005", doc.getDocumentElement().getNamespaceURI());
+		assertEquals("A", doc.getDocumentElement().getLocalName());
+	}
+
+	@Test
+	public void testParseAfterError() throws SAXException, IOException, ParserConfigurationException {
+		try {
+			DomUtils.parse("<A><B></A>");
+			fail("Failed to reject bad XML");
+		} catch (SAXException e) {
+			assertTrue(true);
+		}
+		Document first = DomUtils.parse("<A>1</A>");
+		Document second = DomUtils.parse("<A>2</A>");
+		assertNotSame(first, second);
+		assertEquals("1", first.getDocumentElement().getTextContent());
+		assertEquals("2", second.getDocumentElement().getTextContent());
+	}
+
+	@Test
+	public void testCreateDocumentFromNode() throws SAXException, IOException, ParserConfigurationException {
+		Document doc = DomUtils.parse("<A><B><C>c</C></B></A>");
+		Document copy = DomUtils.createDocumentFromNode(doc.getDocumentElement().getFirstChild());
+		assertEquals("B", copy.getDocumentElement().getNodeName());
+		assertEquals("c", copy.getDocumentElement().getTextContent());
+		assertNull(DomUtils.createDocumentFromNode(null));
+		assertNull(DomUtils.parse(null));
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.util.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.xpath.XPathExpression;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+/**
+ * @author Nick Jones
+ *
+ */
+public class XPathsUnitTest extends TestCase {
+
+	@Test
+	public void testCompiledOnce() {
+		XPathExpression first = XPaths.compileXPath("/Test/Value");
+		XPathExpression second = XPaths.compileXPath("/Test/Value");
+		assertNotNull(first);
+		assertSame(first, second);
+	}
+
+	@Test
+	public void testInvalidXPath() {
+		assertNull(XPaths.compileXPath("/Test/[["));
+	}
+
+	@Test
+	public void testConcurrentEvaluation() throws Exception {
+		final XPathExpression xpe = XPaths.compileXPath("/Test/Value");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 200; i++) {
+				final String value = "V" + i;
+				results.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws Exception {
+						Document doc = DomUtils.parse("<Test><Value>" + value + "</Value></Test>");
+						return value.equals(xpe.evaluate(doc));
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
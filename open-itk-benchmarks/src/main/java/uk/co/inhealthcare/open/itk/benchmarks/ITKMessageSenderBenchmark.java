@@ -0,0 +1,162 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.capabilities.AuditException;
+import uk.co.inhealthcare.open.itk.capabilities.AuditService;
+import uk.co.inhealthcare.open.itk.capabilities.ITKAuditDetails;
+import uk.co.inhealthcare.open.itk.capabilities.SOAPAuditDetails;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.source.ITKMessageSenderImpl;
+import uk.co.inhealthcare.open.itk.transport.ITKDeadline;
+import uk.co.inhealthcare.open.itk.transport.ITKSender;
+import uk.co.inhealthcare.open.itk.transport.ITKTransportRoute;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+
+/**
+ * Measures ITKMessageSenderImpl.sendSync with the transport replaced by a canned
+ * DistributionEnvelope response, so covers building the request and building the
+ * response from the envelope (buildResponse) without any network time.
+ *
+ * The response is handed back either as a String, as the mocks do, or as a parsed
+ * Document, as the web service sender does.
+ *
+ * @author Nick Jones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ITKMessageSenderBenchmark {
+
+	public static final String STRING = "String";
+	public static final String DOCUMENT = "Document";
+
+	@Param({STRING, DOCUMENT})
+	public String responseForm;
+
+	private ITKMessageSenderImpl sender;
+
+	@Setup
+	public void setup() {
+		sender = new ITKMessageSenderImpl();
+		sender.setAuditService(new NoAuditService());
+		sender.setToItkTransform("ToDistributionEnvelope.xslt");
+		sender.setItkSenderWS(new CannedResponseSender(Payloads.read(Payloads.RESPONSE_DE), DOCUMENT.equals(responseForm)));
+	}
+
+	@Benchmark
+	public ITKMessage sendSync() throws ITKMessagingException {
+		return sender.sendSync(MessageBuildBenchmark.buildRequest());
+	}
+
+	/**
+	 * Returns the same response to every request.
+	 */
+	static class CannedResponseSender implements ITKSender {
+
+		private final String response;
+		private final boolean asDocument;
+
+		CannedResponseSender(String response, boolean asDocument) {
+			this.response = response;
+			this.asDocument = asDocument;
+		}
+
+		@Override
+		public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request, ITKDeadline deadline) throws ITKMessagingException {
+			return sendSync(destination, request);
+		}
+
+		@Override
+		public ITKMessage sendSync(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+			// Build the request as the web service sender would before sending it
+			request.getFullMessage();
+			ITKMessage message = new ITKSimpleMessageImpl(request.getConversationId());
+			if (asDocument) {
+				try {
+					message.setBusinessPayloadDocument(DomUtils.parse(response));
+				} catch (SAXException e) {
+					throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Error parsing canned response");
+				} catch (IOException e) {
+					throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Error parsing canned response");
+				} catch (ParserConfigurationException e) {
+					throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Error parsing canned response");
+				}
+			} else {
+				message.setBusinessPayload(response);
+			}
+			return message;
+		}
+
+		@Override
+		public void send(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not benchmarked");
+		}
+
+		@Override
+		public void sendAsync(ITKTransportRoute destination, ITKMessage request) throws ITKMessagingException {
+			throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Not benchmarked");
+		}
+	}
+
+	/**
+	 * Discards the audit records so that only the message handling is measured.
+	 */
+	static class NoAuditService implements AuditService {
+
+		@Override
+		public void auditITKRequest(ITKAuditDetails auditDetails) throws AuditException {
+		}
+
+		@Override
+		public void auditITKResponse(ITKAuditDetails auditDetails) throws AuditException {
+		}
+
+		@Override
+		public void auditSOAPRequest(SOAPAuditDetails auditDetails) throws AuditException {
+		}
+
+		@Override
+		public void auditSOAPResponse(SOAPAuditDetails auditDetails) throws AuditException {
+		}
+
+		@Override
+		public void auditFailure(ITKAuditDetails auditDetails) throws AuditException {
+		}
+	}
+
+}
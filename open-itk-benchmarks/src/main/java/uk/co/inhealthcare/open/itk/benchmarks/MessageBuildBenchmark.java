@@ -0,0 +1,127 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKAddressImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKIdentityImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.service.ITKSimpleDOSImpl;
+import uk.co.inhealthcare.open.itk.transform.TransformManager;
+import uk.co.inhealthcare.open.itk.transport.WS.WSSOAPMessageImpl;
+
+/**
+ * Measures building the outbound message: wrapping the business payload in a
+ * DistributionEnvelope and the DistributionEnvelope in a SOAP envelope, each with
+ * the configured template and written directly.
+ *
+ * @author Nick Jones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBuildBenchmark {
+
+	static final String SERVICE_ID = "urn:nhs-itk:services:201005:getNHSNumber-v1-0";
+	static final String PROFILE_ID = "urn:nhs-en:profile:getNHSNumberRequest-v1-0";
+	static final String TKW = "urn:nhs-uk:addressing:ods:TKW";
+	static final String FROM_ADDRESS = "urn:nhs-uk:addressing:ods:XXXX:team1:C";
+
+	private static final String DE_TEMPLATE = "ToDistributionEnvelope.xslt";
+	private static final String SOAP_TEMPLATE = "ToSOAP.xslt";
+
+	private ITKMessage message;
+	private WSSOAPMessageImpl soapMessage;
+	private ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+
+	/**
+	 * Builds a getNHSNumber request as the SMSC operations do.
+	 *
+	 * @return the request
+	 * @throws ITKMessagingException if the request payload cannot be built
+	 */
+	static ITKMessage buildRequest() throws ITKMessagingException {
+		ITKMessage request = new ITKSimpleMessageImpl();
+		ITKMessageProperties props = new ITKMessagePropertiesImpl();
+		props.setServiceId(SERVICE_ID);
+		props.setProfileId(PROFILE_ID);
+		props.setToAddress(new ITKAddressImpl(TKW));
+		props.setFromAddress(new ITKAddressImpl(FROM_ADDRESS));
+		props.addAuditIdentity(new ITKIdentityImpl(FROM_ADDRESS));
+		props.addHandlingSpecification(ITKMessageProperties.BUSINESS_ACK_HANDLING_SPECIFICATION_KEY, "false");
+		request.setMessageProperties(props);
+		String tname = "xslt/smsc/ToGetNHSNumberRequest.xslt";
+		request.setBusinessPayload(TransformManager.doTransform(tname, Payloads.transformInput(tname)));
+		return request;
+	}
+
+	@Setup
+	public void setup() throws ITKMessagingException {
+		message = buildRequest();
+		message.buildFullMessage();
+
+		ITKSimpleDOSImpl dos = new ITKSimpleDOSImpl();
+		soapMessage = new WSSOAPMessageImpl(dos.resolveDestination(SERVICE_ID, new ITKAddressImpl(TKW)), message, WSSOAPMessageImpl.SYNCREQ);
+		soapMessage.getTransportProperties().setTransportFrom("http://127.0.0.1:4000/syncsoap");
+		soapMessage.getTransportProperties().setTransportUsername("JSAT");
+	}
+
+	@Benchmark
+	public String distributionEnvelopeTemplate() throws ITKMessagingException {
+		message.buildFullMessage(DE_TEMPLATE);
+		return message.getFullMessage();
+	}
+
+	@Benchmark
+	public String distributionEnvelopeStreaming() throws ITKMessagingException {
+		message.buildFullMessage();
+		return message.getFullMessage();
+	}
+
+	@Benchmark
+	public String soapTemplate() throws ITKMessagingException {
+		soapMessage.buildFullMessage(SOAP_TEMPLATE);
+		return soapMessage.getFullMessage();
+	}
+
+	@Benchmark
+	public int soapStreaming() throws ITKMessagingException, IOException {
+		soapMessage.buildFullMessage();
+		out.reset();
+		soapMessage.writeFullMessage(out);
+		return out.size();
+	}
+
+}
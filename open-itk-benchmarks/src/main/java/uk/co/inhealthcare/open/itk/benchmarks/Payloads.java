@@ -0,0 +1,102 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Representative messages for the benchmarks. The ITK and SMSP messages are the ones
+ * used by the open-itk-base and open-inhealthcare-core unit tests, which the build
+ * copies onto the benchmark classpath.
+ *
+ * @author Nick Jones
+ */
+public final class Payloads {
+
+	/** A DistributionEnvelope wrapping a getNHSNumber response. */
+	public static final String RESPONSE_DE = "/uk/co/inhealthcare/open/itk/transport/WS/HappyDayDE.xml";
+
+	/** A DistributionEnvelope with addresses, identities and handling specifications. */
+	public static final String DISTRIBUTION_ENVELOPE = "/uk/co/inhealthcare/open/itk/infrastructure/HappyDayDistEnv.xml";
+
+	/** A SOAP message carrying a DistributionEnvelope. */
+	public static final String SOAP_MESSAGE = "/uk/co/inhealthcare/open/itk/transport/HappyDaySoap.xml";
+
+	/** SMSP response payloads. */
+	public static final String GNN_RESPONSE = "/uk/co/inhealthcare/open/itk/source/HappyDayGNNResponse.xml";
+	public static final String VNN_RESPONSE = "/uk/co/inhealthcare/open/itk/source/HappyDayVNNResponse.xml";
+	public static final String GPD_RESPONSE = "/uk/co/inhealthcare/open/itk/source/HappyDayGPDResponse.xml";
+
+	// Canonical inputs to the shipped stylesheets, as built by the classes that use them
+	private static final String ITK_MESSAGE = "/uk/co/inhealthcare/open/itk/benchmarks/ITKMessage.xml";
+	private static final String SOAP_CANONICAL = "/uk/co/inhealthcare/open/itk/benchmarks/SOAPMessage.xml";
+	private static final String SMSP_REQUEST = "/uk/co/inhealthcare/open/itk/benchmarks/SMSPRequest.xml";
+	private static final String EMAIL = "/uk/co/inhealthcare/open/itk/benchmarks/Email.xml";
+	private static final String PAYLOAD_MARKER = "$PAYLOAD";
+
+	private Payloads() {
+	}
+
+	/**
+	 * Reads a classpath resource as UTF-8.
+	 *
+	 * @param resource the resource name
+	 * @return the content
+	 */
+	public static String read(String resource) {
+		InputStream is = Payloads.class.getResourceAsStream(resource);
+		if (is == null) {
+			throw new IllegalStateException("Benchmark resource not found:" + resource);
+		}
+		try {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int n;
+				while ((n = is.read(buffer)) != -1) {
+					out.write(buffer, 0, n);
+				}
+				return out.toString("UTF-8").trim();
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Error reading benchmark resource:" + resource, e);
+		}
+	}
+
+	/**
+	 * Gets the canonical input for one of the shipped stylesheets.
+	 *
+	 * @param stylesheet the stylesheet name
+	 * @return the input
+	 */
+	public static String transformInput(String stylesheet) {
+		if (stylesheet.equals("ToDistributionEnvelope.xslt")) {
+			return read(ITK_MESSAGE).replace(PAYLOAD_MARKER, read(GNN_RESPONSE));
+		} else if (stylesheet.equals("ToSOAP.xslt")) {
+			return read(SOAP_CANONICAL).replace(PAYLOAD_MARKER, read(RESPONSE_DE));
+		} else if (stylesheet.equals("xslt/smsc/FromGetPatientDetailsResponse.xslt")) {
+			return read(GPD_RESPONSE);
+		} else if (stylesheet.startsWith("xslt/smsc/")) {
+			return read(SMSP_REQUEST);
+		} else if (stylesheet.startsWith("xslt/jsat/")) {
+			return read(EMAIL);
+		}
+		throw new IllegalArgumentException("No benchmark input for stylesheet:" + stylesheet);
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.payload.ITKMessage;
+import uk.co.inhealthcare.open.itk.payload.ITKSimpleMessageImpl;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+import uk.co.inhealthcare.open.smsc.messages.GetNHSNumberResponse;
+import uk.co.inhealthcare.open.smsc.messages.GetPatientDetailsResponse;
+import uk.co.inhealthcare.open.smsc.messages.VerifyNHSNumberResponse;
+
+/**
+ * Measures constructing each SMSP response from the business payload returned by
+ * ITKMessageSenderImpl, including parsing the payload when it arrives as a String.
+ *
+ * @author Nick Jones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SMSPResponseBenchmark {
+
+	@Param({ITKMessageSenderBenchmark.STRING, ITKMessageSenderBenchmark.DOCUMENT})
+	public String responseForm;
+
+	private String gnnResponse;
+	private String vnnResponse;
+	private String gpdResponse;
+
+	@Setup
+	public void setup() {
+		gnnResponse = Payloads.read(Payloads.GNN_RESPONSE);
+		vnnResponse = Payloads.read(Payloads.VNN_RESPONSE);
+		gpdResponse = Payloads.read(Payloads.GPD_RESPONSE);
+	}
+
+	private ITKMessage response(String payload) throws ITKMessagingException {
+		ITKMessage message = new ITKSimpleMessageImpl();
+		if (ITKMessageSenderBenchmark.DOCUMENT.equals(responseForm)) {
+			try {
+				message.setBusinessPayloadDocument(DomUtils.parse(payload));
+			} catch (SAXException e) {
+				throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Error parsing response");
+			} catch (IOException e) {
+				throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Error parsing response");
+			} catch (ParserConfigurationException e) {
+				throw new ITKMessagingException(ITKMessagingException.PROCESSING_ERROR_NOT_RETRYABLE_CODE, "Error parsing response");
+			}
+		} else {
+			message.setBusinessPayload(payload);
+		}
+		return message;
+	}
+
+	@Benchmark
+	public GetNHSNumberResponse getNHSNumberResponse() throws ITKMessagingException {
+		return new GetNHSNumberResponse(response(gnnResponse));
+	}
+
+	@Benchmark
+	public VerifyNHSNumberResponse verifyNHSNumberResponse() throws ITKMessagingException {
+		return new VerifyNHSNumberResponse(response(vnnResponse));
+	}
+
+	@Benchmark
+	public GetPatientDetailsResponse getPatientDetailsResponse() throws ITKMessagingException {
+		return new GetPatientDetailsResponse(response(gpdResponse));
+	}
+
+}
@@ -0,0 +1,79 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.transform.TransformManager;
+
+/**
+ * Measures TransformManager.doTransform for each stylesheet shipped by open-itk-base
+ * and open-inhealthcare-core, both compiled at runtime and as precompiled translets.
+ *
+ * @author Nick Jones
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformManagerBenchmark {
+
+	@Param({
+		"ToDistributionEnvelope.xslt",
+		"ToSOAP.xslt",
+		"xslt/smsc/ToGetNHSNumberRequest.xslt",
+		"xslt/smsc/ToVerifyNHSNumberRequest.xslt",
+		"xslt/smsc/ToGetPatientDetailsRequest.xslt",
+		"xslt/smsc/ToGetPatientDetailsByNHSNumberRequest.xslt",
+		"xslt/smsc/ToGetPatientDetailsBySearchRequest.xslt",
+		"xslt/smsc/FromGetPatientDetailsResponse.xslt",
+		"xslt/jsat/ToStdBusinessAlert.xslt",
+		"xslt/jsat/ToStdTechnicalAlert.xslt"
+	})
+	public String stylesheet;
+
+	@Param({"false", "true"})
+	public boolean useTranslets;
+
+	private String input;
+
+	@Setup
+	public void setup() throws ITKMessagingException {
+		TransformManager.setUseTranslets(useTranslets);
+		TransformManager.invalidateAll();
+		TransformManager.preload(stylesheet);
+		input = Payloads.transformInput(stylesheet);
+	}
+
+	@Benchmark
+	public String doTransform() throws ITKMessagingException {
+		return TransformManager.doTransform(stylesheet, input);
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package uk.co.inhealthcare.open.itk.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import uk.co.inhealthcare.open.itk.infrastructure.DistributionEnvelopeReader;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessageProperties;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagePropertiesImpl;
+import uk.co.inhealthcare.open.itk.infrastructure.ITKMessagingException;
+import uk.co.inhealthcare.open.itk.util.xml.DomUtils;
+
+/**
+ * Measures parsing and serialising the inbound SOAP message and reading the message
+ * properties from a DistributionEnvelope, both from a DOM and with a single StAX pass.
+ *
+ * @author Nick Jones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlParsingBenchmark {
+
+	private String soapMessage;
+	private Document soapDocument;
+	private String distributionEnvelope;
+	private Document distributionEnvelopeDocument;
+
+	@Setup
+	public void setup() throws SAXException, IOException, ParserConfigurationException {
+		soapMessage = Payloads.read(Payloads.SOAP_MESSAGE);
+		soapDocument = DomUtils.parse(soapMessage);
+		distributionEnvelope = Payloads.read(Payloads.DISTRIBUTION_ENVELOPE);
+		distributionEnvelopeDocument = DomUtils.parse(distributionEnvelope);
+	}
+
+	@Benchmark
+	public Document parse() throws SAXException, IOException, ParserConfigurationException {
+		return DomUtils.parse(soapMessage);
+	}
+
+	@Benchmark
+	public String serialiseToXML() {
+		return DomUtils.serialiseToXML(soapDocument);
+	}
+
+	@Benchmark
+	public ITKMessageProperties buildMessageProperties() throws ITKMessagingException {
+		return ITKMessagePropertiesImpl.build(distributionEnvelopeDocument);
+	}
+
+	@Benchmark
+	public ITKMessageProperties parseAndBuildMessageProperties() throws ITKMessagingException, SAXException, IOException, ParserConfigurationException {
+		return ITKMessagePropertiesImpl.build(DomUtils.parse(distributionEnvelope));
+	}
+
+	@Benchmark
+	public ITKMessageProperties readMessageProperties() throws ITKMessagingException, XMLStreamException {
+		return DistributionEnvelopeReader.read(distributionEnvelope).getMessageProperties();
+	}
+
+}